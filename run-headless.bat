@@ -0,0 +1 @@
+mvn exec:java -Dexec.mainClass="tetzlaff.ibrelight.app.HeadlessIBRelight" -Dexec.args="%* .\data\guan-yu-replicability.vset tetzlaff.ibrelight.export.specularfit.SpecularFitRequest .\output"
\ No newline at end of file
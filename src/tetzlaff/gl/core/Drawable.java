@@ -345,4 +345,12 @@ public interface Drawable<ContextType extends Context<ContextType>> extends Cont
      * false if the vertex attribute was not set because no vertex attribute exists at the specified location in this shader program.
      */
     boolean addVertexBuffer(String name, VertexBuffer<ContextType> buffer);
+
+    /**
+     * Designates an index buffer that specifies the order in which the vertices in this renderable's vertex buffers should be drawn.
+     * When an index buffer is set, each draw call processes one vertex for every index in the index buffer,
+     * rather than one vertex for every element of the vertex buffers, so vertices that are shared by multiple primitives only need to be stored once.
+     * @param indexBuffer The index buffer to use, or null to draw the vertex buffers in order without an index buffer.
+     */
+    void setIndexBuffer(IndexBuffer<ContextType> indexBuffer);
 }
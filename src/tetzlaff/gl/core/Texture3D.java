@@ -100,6 +100,7 @@ public interface Texture3D<ContextType extends Context<ContextType>> extends Tex
      * @param flipVertical Whether or not to automatically flip all of the pixels vertically to resolve discrepancies with respect to the orientation of the vertical axis.
      * @param mappedType The type to which to map the data for storage in the texture.
      * @param mappingFunction The function that transforms the color from the image to the mapped type for storage in the texture.
+     *                        It may be called concurrently from multiple threads.
      * @param <MappedType> The high-level return type of the mapping function.
      *                     This is typically either Number (for single-channel textures) or an Iterable of Numbers for multi-channel textures.
      * @throws IOException Upon a File I/O problem while loading the image.
@@ -115,6 +116,7 @@ public interface Texture3D<ContextType extends Context<ContextType>> extends Tex
      * @param flipVertical Whether or not to automatically flip all of the pixels vertically to resolve discrepancies with respect to the orientation of the vertical axis.
      * @param mappedType The type to which to map the data for storage in the texture.
      * @param mappingFunction The function that transforms the color from the image to the mapped type for storage in the texture.
+     *                        It may be called concurrently from multiple threads.
      * @param <MappedType> The high-level return type of the mapping function.
      *                     This is typically either Number (for single-channel textures) or an Iterable of Numbers for multi-channel textures.
      * @throws IOException Upon a File I/O problem while loading the image.
@@ -131,6 +133,7 @@ public interface Texture3D<ContextType extends Context<ContextType>> extends Tex
      * @param flipVertical Whether or not to automatically flip all of the pixels vertically to resolve discrepancies with respect to the orientation of the vertical axis.
      * @param mappedType The type to which to map the data for storage in the texture.
      * @param mappingFunction The function that transforms the color from the image to the mapped type for storage in the texture.
+     *                        It may be called concurrently from multiple threads.
      * @param <MappedType> The high-level return type of the mapping function.
      *                     This is typically either Number (for single-channel textures) or an Iterable of Numbers for multi-channel textures.
      * @throws IOException Upon a File I/O problem while loading the image.
@@ -147,6 +150,7 @@ public interface Texture3D<ContextType extends Context<ContextType>> extends Tex
      * @param flipVertical Whether or not to automatically flip all of the pixels vertically to resolve discrepancies with respect to the orientation of the vertical axis.
      * @param mappedType The type to which to map the data for storage in the texture.
      * @param mappingFunction The function that transforms the color from the image to the mapped type for storage in the texture.
+     *                        It may be called concurrently from multiple threads.
      * @param <MappedType> The high-level return type of the mapping function.
      *                     This is typically either Number (for single-channel textures) or an Iterable of Numbers for multi-channel textures.
      * @throws IOException Upon a File I/O problem while loading the image.
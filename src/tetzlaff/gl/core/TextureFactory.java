@@ -40,6 +40,7 @@ public interface TextureFactory<ContextType extends Context<ContextType>>
      * @param flipVertical Whether or not to automatically flip all of the pixels vertically to resolve discrepancies with respect to the orientation of the vertical axis.
      * @param mappedType The type to which to map the data for storage in the texture.
      * @param mappingFunction The function that transforms the color from the image to the mapped type for storage in the texture.
+     *                        It may be called concurrently from multiple threads.
      * @param <MappedType> The high-level return type of the mapping function.
      *                     This is typically either Number (for single-channel textures) or an Iterable of Numbers for multi-channel textures.
      * @return The builder object for the texture.
@@ -78,6 +79,7 @@ public interface TextureFactory<ContextType extends Context<ContextType>>
      * @param flipVertical Whether or not to automatically flip all of the pixels vertically to resolve discrepancies with respect to the orientation of the vertical axis.
      * @param mappedType The type to which to map the data for storage in the texture.
      * @param mappingFunction The function that transforms the color from the image to the mapped type for storage in the texture.
+     *                        It may be called concurrently from multiple threads.
      * @param <MappedType> The high-level return type of the mapping function.
      *                     This is typically either Number (for single-channel textures) or an Iterable of Numbers for multi-channel textures.
      * @return The builder object for the texture.
@@ -106,6 +108,7 @@ public interface TextureFactory<ContextType extends Context<ContextType>>
      * @param flipVertical Whether or not to automatically flip all of the pixels vertically to resolve discrepancies with respect to the orientation of the vertical axis.
      * @param mappedType The type to which to map the data for storage in the texture.
      * @param mappingFunction The function that transforms the color from the image to the mapped type for storage in the texture.
+     *                        It may be called concurrently from multiple threads.
      * @param <MappedType> The high-level return type of the mapping function.
      *                     This is typically either Number (for single-channel textures) or an Iterable of Numbers for multi-channel textures.
      * @return The builder object for the texture.
@@ -147,6 +150,7 @@ public interface TextureFactory<ContextType extends Context<ContextType>>
      * @param flipVertical Whether or not to automatically flip all of the pixels vertically to resolve discrepancies with respect to the orientation of the vertical axis.
      * @param mappedType The type to which to map the data for storage in the texture.
      * @param mappingFunction The function that transforms the color from the image to the mapped type for storage in the texture.
+     *                        It may be called concurrently from multiple threads.
      * @param <MappedType> The high-level return type of the mapping function.
      *                     This is typically either Number (for single-channel textures) or an Iterable of Numbers for multi-channel textures.
      * @return The builder object for the texture.
@@ -200,6 +204,7 @@ public interface TextureFactory<ContextType extends Context<ContextType>>
      * @param flipVertical Whether or not to automatically flip all of the pixels vertically to resolve discrepancies with respect to the orientation of the vertical axis.
      * @param mappedType The type to which to map the data for storage in the texture.
      * @param mappingFunction The function that transforms the color from the image to the mapped type for storage in the texture.
+     *                        It may be called concurrently from multiple threads.
      * @param <MappedType> The high-level return type of the mapping function.
      *                     This is typically either Number (for single-channel textures) or an Iterable of Numbers for multi-channel textures.
      * @return The builder object for the texture.
@@ -230,6 +235,7 @@ public interface TextureFactory<ContextType extends Context<ContextType>>
      * @param flipVertical Whether or not to automatically flip all of the pixels vertically to resolve discrepancies with respect to the orientation of the vertical axis.
      * @param mappedType The type to which to map the data for storage in the texture.
      * @param mappingFunction The function that transforms the color from the image to the mapped type for storage in the texture.
+     *                        It may be called concurrently from multiple threads.
      * @param <MappedType> The high-level return type of the mapping function.
      *                     This is typically either Number (for single-channel textures) or an Iterable of Numbers for multi-channel textures.
      * @return The builder object for the texture.
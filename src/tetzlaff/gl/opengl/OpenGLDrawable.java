@@ -16,6 +16,7 @@ import java.util.TreeMap;
 
 import tetzlaff.gl.core.Drawable;
 import tetzlaff.gl.core.Framebuffer;
+import tetzlaff.gl.core.IndexBuffer;
 import tetzlaff.gl.core.PrimitiveMode;
 import tetzlaff.gl.core.VertexBuffer;
 import tetzlaff.gl.exceptions.UnrecognizedPrimitiveModeException;
@@ -173,6 +174,12 @@ class OpenGLDrawable implements Drawable<OpenGLContext>
         return this.addVertexBuffer(program.getVertexAttribLocation(name), buffer);
     }
 
+    @Override
+    public void setIndexBuffer(IndexBuffer<OpenGLContext> indexBuffer)
+    {
+        this.vao.setIndexBuffer(indexBuffer);
+    }
+
     @Override
     public boolean setVertexAttrib(int location, int value)
     {
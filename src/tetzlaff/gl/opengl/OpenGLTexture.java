@@ -22,6 +22,8 @@ import java.util.function.Function;
 import org.lwjgl.*;
 import tetzlaff.gl.core.*;
 import tetzlaff.gl.core.ColorFormat.DataType;
+import tetzlaff.util.ImageBufferConverter;
+import tetzlaff.util.ImageBufferConverter.ChannelOrder;
 import tetzlaff.util.RadianceImageLoader.Image;
 
 import static org.lwjgl.opengl.GL11.*;
@@ -302,117 +304,13 @@ abstract class OpenGLTexture implements Texture<OpenGLContext>, OpenGLFramebuffe
 
     static ByteBuffer bufferedImageToNativeBuffer(BufferedImage colorImg, BufferedImage maskImg, boolean flipVertical)
     {
-        ByteBuffer buffer = BufferUtils.createByteBuffer(colorImg.getWidth() * colorImg.getHeight() * 4);
-        IntBuffer intBuffer = buffer.asIntBuffer();
-
-        if (maskImg == null)
-        {
-            if (flipVertical)
-            {
-                for (int y = colorImg.getHeight() - 1; y >= 0; y--)
-                {
-                    for (int x = 0; x < colorImg.getWidth(); x++)
-                    {
-                        intBuffer.put(colorImg.getRGB(x, y));
-                    }
-                }
-            }
-            else
-            {
-                for (int y = 0; y < colorImg.getHeight(); y++)
-                {
-                    for (int x = 0; x < colorImg.getWidth(); x++)
-                    {
-                        intBuffer.put(colorImg.getRGB(x, y));
-                    }
-                }
-            }
-        }
-        else
-        {
-            if (flipVertical)
-            {
-                for (int y = colorImg.getHeight() - 1; y >= 0; y--)
-                {
-                    for (int x = 0; x < colorImg.getWidth(); x++)
-                    {
-                        // Use green channel of the mask image for alpha
-                        intBuffer.put((colorImg.getRGB(x, y) & 0x00ffffff) | ((maskImg.getRGB(x, y) & 0x0000ff00) << 16));
-                    }
-                }
-            }
-            else
-            {
-                for (int y = 0; y < colorImg.getHeight(); y++)
-                {
-                    for (int x = 0; x < colorImg.getWidth(); x++)
-                    {
-                        // Use green channel of the mask image for alpha
-                        intBuffer.put((colorImg.getRGB(x, y) & 0x00ffffff) | ((maskImg.getRGB(x, y) & 0x0000ff00) << 16));
-                    }
-                }
-            }
-        }
-
-        return buffer;
+        return ImageBufferConverter.convert(colorImg, maskImg, flipVertical, ChannelOrder.BGRA);
     }
 
     static ByteBuffer bufferedImageToNativeBuffer(BufferedImage colorImg, BufferedImage maskImg, boolean flipVertical,
         Function<ByteBuffer, Consumer<Color>> bufferWrapperFunction, int mappedColorLength)
     {
-        ByteBuffer buffer = BufferUtils.createByteBuffer(colorImg.getWidth() * colorImg.getHeight() * mappedColorLength);
-        Consumer<Color> wrappedBuffer = bufferWrapperFunction.apply(buffer);
-
-        if (maskImg == null)
-        {
-            if (flipVertical)
-            {
-                for (int y = colorImg.getHeight() - 1; y >= 0; y--)
-                {
-                    for (int x = 0; x < colorImg.getWidth(); x++)
-                    {
-                        wrappedBuffer.accept(new Color(colorImg.getRGB(x, y), true));
-                    }
-                }
-            }
-            else
-            {
-                for (int y = 0; y < colorImg.getHeight(); y++)
-                {
-                    for (int x = 0; x < colorImg.getWidth(); x++)
-                    {
-                        wrappedBuffer.accept(new Color(colorImg.getRGB(x, y), true));
-                    }
-                }
-            }
-        }
-        else
-        {
-            if (flipVertical)
-            {
-                for (int y = colorImg.getHeight() - 1; y >= 0; y--)
-                {
-                    for (int x = 0; x < colorImg.getWidth(); x++)
-                    {
-                        // Use green channel of the mask image for alpha
-                        wrappedBuffer.accept(new Color((colorImg.getRGB(x, y) & 0x00ffffff) | ((maskImg.getRGB(x, y) & 0x0000ff00) << 16), true));
-                    }
-                }
-            }
-            else
-            {
-                for (int y = 0; y < colorImg.getHeight(); y++)
-                {
-                    for (int x = 0; x < colorImg.getWidth(); x++)
-                    {
-                        // Use green channel of the mask image for alpha
-                        wrappedBuffer.accept(new Color((colorImg.getRGB(x, y) & 0x00ffffff) | ((maskImg.getRGB(x, y) & 0x0000ff00) << 16), true));
-                    }
-                }
-            }
-        }
-
-        return buffer;
+        return ImageBufferConverter.convertMapped(colorImg, maskImg, flipVertical, bufferWrapperFunction, mappedColorLength);
     }
 
     static ByteBuffer hdrImageToNativeBuffer(Image colorImg, BufferedImage maskImg)
@@ -11,6 +11,7 @@
 
 package tetzlaff.gl.opengl;
 
+import tetzlaff.gl.core.IndexBuffer;
 import tetzlaff.gl.core.Resource;
 import tetzlaff.gl.core.VertexBuffer;
 import tetzlaff.gl.exceptions.NoSpecifiedVertexBuffersException;
@@ -23,9 +24,9 @@ class OpenGLVertexArray implements Resource
 {
     protected final OpenGLContext context;
 
-    private final boolean usesIndexing = false;
     private final int vaoId;
     private int count = Integer.MAX_VALUE;
+    private OpenGLIndexBuffer indexBuffer;
 
     OpenGLVertexArray(OpenGLContext context)
     {
@@ -44,19 +45,11 @@ class OpenGLVertexArray implements Resource
     {
         if (buffer instanceof OpenGLVertexBuffer)
         {
-            if (usesIndexing)
-            {
-                throw new IllegalStateException("Cannot add a vertex attribute without an index buffer: this VAO already contains other vertex buffers which use index buffers.");
-            }
-            else
-            {
-                glBindVertexArray(this.vaoId);
-                OpenGLContext.errorCheck();
-                glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
-                OpenGLContext.errorCheck();
-                ((OpenGLVertexBuffer)buffer).useAsVertexAttribute(attributeIndex);
-                this.count = Math.min(this.count, buffer.count());
-            }
+            glBindVertexArray(this.vaoId);
+            OpenGLContext.errorCheck();
+            bindIndexBuffer();
+            ((OpenGLVertexBuffer)buffer).useAsVertexAttribute(attributeIndex);
+            this.count = Math.min(this.count, buffer.count());
         }
         else
         {
@@ -64,6 +57,28 @@ class OpenGLVertexArray implements Resource
         }
     }
 
+    void setIndexBuffer(IndexBuffer<OpenGLContext> indexBuffer)
+    {
+        if (indexBuffer == null || indexBuffer instanceof OpenGLIndexBuffer)
+        {
+            this.indexBuffer = (OpenGLIndexBuffer)indexBuffer;
+            glBindVertexArray(this.vaoId);
+            OpenGLContext.errorCheck();
+            bindIndexBuffer();
+        }
+        else
+        {
+            throw new IllegalArgumentException("'indexBuffer' must be of type OpenGLIndexBuffer.");
+        }
+    }
+
+    private void bindIndexBuffer()
+    {
+        // The element array buffer binding is part of the state of the vertex array object.
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer == null ? 0 : indexBuffer.getBufferId());
+        OpenGLContext.errorCheck();
+    }
+
     void draw(int primitiveMode)
     {
         if (count == Integer.MAX_VALUE)
@@ -74,9 +89,14 @@ class OpenGLVertexArray implements Resource
         {
             glBindVertexArray(this.vaoId);
             OpenGLContext.errorCheck();
-            if (usesIndexing)
+
+            // Uploading data to any index buffer binds it to whichever vertex array object is bound at the time,
+            // so make sure that this one is still using its own index buffer.
+            bindIndexBuffer();
+
+            if (indexBuffer != null)
             {
-                glDrawElements(primitiveMode, this.count, GL_UNSIGNED_INT, 0);
+                glDrawElements(primitiveMode, indexBuffer.count(), GL_UNSIGNED_INT, 0);
                 OpenGLContext.errorCheck();
             }
             else
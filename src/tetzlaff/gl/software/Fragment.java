@@ -0,0 +1,126 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import java.util.Arrays;
+
+/**
+ * A single fragment being shaded by a software fragment shader.
+ * Instances are reused between fragments by the rasterizer, so they should not be retained by the shader.
+ */
+public final class Fragment
+{
+    private final float[] varyings;
+    private final float[] colors;
+    private final boolean[] colorsWritten;
+
+    private int x;
+    private int y;
+    private float depth;
+    private boolean frontFacing;
+
+    Fragment(int varyingCount, int colorAttachmentCount)
+    {
+        this.varyings = new float[varyingCount];
+        this.colors = new float[colorAttachmentCount * 4];
+        this.colorsWritten = new boolean[colorAttachmentCount];
+    }
+
+    void reset(int x, int y, float depth, boolean frontFacing)
+    {
+        this.x = x;
+        this.y = y;
+        this.depth = depth;
+        this.frontFacing = frontFacing;
+        Arrays.fill(colorsWritten, false);
+    }
+
+    float[] getVaryingsForWrite()
+    {
+        return varyings;
+    }
+
+    boolean isColorWritten(int attachmentIndex)
+    {
+        return colorsWritten[attachmentIndex];
+    }
+
+    float[] getColors()
+    {
+        return colors;
+    }
+
+    /**
+     * Gets the window-space x-coordinate of the fragment, in pixels (the integer part of gl_FragCoord.x).
+     */
+    public int getX()
+    {
+        return x;
+    }
+
+    /**
+     * Gets the window-space y-coordinate of the fragment, in pixels, with 0 at the bottom (the integer part of gl_FragCoord.y).
+     */
+    public int getY()
+    {
+        return y;
+    }
+
+    /**
+     * Gets the window-space depth of the fragment (gl_FragCoord.z).
+     */
+    public float getDepth()
+    {
+        return depth;
+    }
+
+    public boolean isFrontFacing()
+    {
+        return frontFacing;
+    }
+
+    public int getVaryingCount()
+    {
+        return varyings.length;
+    }
+
+    /**
+     * Gets a perspective-correct interpolated output of the vertex shader.
+     */
+    public float getVarying(int index)
+    {
+        return varyings[index];
+    }
+
+    public int getColorAttachmentCount()
+    {
+        return colorsWritten.length;
+    }
+
+    /**
+     * Sets the color written to a color attachment.
+     * Attachments which are never set for a fragment are left unmodified.
+     * Attachment indices beyond the framebuffer's attachment count are ignored, as in OpenGL.
+     */
+    public void setColor(int attachmentIndex, float r, float g, float b, float a)
+    {
+        if (attachmentIndex < colorsWritten.length)
+        {
+            int offset = attachmentIndex * 4;
+            colors[offset] = r;
+            colors[offset + 1] = g;
+            colors[offset + 2] = b;
+            colors[offset + 3] = a;
+            colorsWritten[attachmentIndex] = true;
+        }
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+/**
+ * A fragment shader for the software context, implemented in Java rather than GLSL.
+ */
+@FunctionalInterface
+public interface FragmentShader
+{
+    /**
+     * Processes a single fragment.
+     * This may be called concurrently for different fragments, so implementations must not modify shared state.
+     * @param program The program being executed, which provides access to uniforms, textures and uniform buffers.
+     * @param fragment The fragment being shaded, which provides the interpolated varyings and receives the output colors.
+     * @return true if the fragment should be written to the framebuffer, or false to discard it.
+     */
+    boolean execute(SoftwareProgram program, Fragment fragment);
+}
@@ -0,0 +1,200 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import tetzlaff.gl.builders.ProgramBuilder;
+import tetzlaff.gl.builders.framebuffer.FramebufferObjectBuilder;
+import tetzlaff.gl.core.*;
+import tetzlaff.gl.software.SoftwareFramebufferObject.SoftwareFramebufferObjectBuilder;
+import tetzlaff.gl.software.SoftwareProgram.SoftwareProgramBuilder;
+
+/**
+ * A graphics context that runs entirely on the CPU, without requiring a window, a display, or any native graphics libraries.
+ * Shaders for this context are Java callbacks (see VertexShader and FragmentShader) rather than GLSL source code.
+ * To allow code written against GLSL shader files to run unmodified, a Java implementation can be registered for a shader file name
+ * using registerShader(); the factory will be invoked with the preprocessor defines whenever a shader is created from a file with that name.
+ * The rasterizer only supports triangles, single-sampled rendering, and the base mipmap level of textures;
+ * compressed texture formats are stored uncompressed, and cubemaps are not supported.
+ * @author Michael Tetzlaff
+ */
+public final class SoftwareContext implements Context<SoftwareContext>
+{
+    private final SoftwareContextState state;
+    private final SoftwareTextureFactory textureFactory;
+    private final SoftwareDefaultFramebuffer defaultFramebuffer;
+    private final SoftwareNullTexture nullTexture;
+
+    private final Map<String, Function<Map<String, Object>, SoftwareShader>> shaderRegistry = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new software context.
+     * @param width The width of the default framebuffer.
+     * @param height The height of the default framebuffer.
+     */
+    public SoftwareContext(int width, int height)
+    {
+        this.state = new SoftwareContextState();
+        this.textureFactory = new SoftwareTextureFactory(this);
+        this.defaultFramebuffer = new SoftwareDefaultFramebuffer(this, width, height);
+        this.nullTexture = new SoftwareNullTexture(this);
+    }
+
+    SoftwareNullTexture getNullTexture()
+    {
+        return nullTexture;
+    }
+
+    @Override
+    public void makeContextCurrent()
+    {
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void finish()
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    @Override
+    public SoftwareContextState getState()
+    {
+        return this.state;
+    }
+
+    @Override
+    public DoubleFramebuffer<SoftwareContext> getDefaultFramebuffer()
+    {
+        return this.defaultFramebuffer;
+    }
+
+    /**
+     * Creates a new vertex shader from a Java implementation.
+     * @param varyingCount The number of scalar varyings written by the shader, which will be interpolated across each triangle.
+     * @param shader The shader implementation.
+     * @return The newly created shader.
+     */
+    public SoftwareShader createVertexShader(int varyingCount, VertexShader shader)
+    {
+        return SoftwareShader.createVertex(this, varyingCount, shader);
+    }
+
+    /**
+     * Creates a new fragment shader from a Java implementation.
+     * @param shader The shader implementation.
+     * @return The newly created shader.
+     */
+    public SoftwareShader createFragmentShader(FragmentShader shader)
+    {
+        return SoftwareShader.createFragment(this, shader);
+    }
+
+    /**
+     * Registers a Java implementation to be used in place of a GLSL shader file.
+     * @param fileName The name of the shader file (without any directories), i.e. "texspace_noscale.vert".
+     * @param factory A function that creates the shader given the preprocessor defines that would have been injected into the GLSL code.
+     */
+    public void registerShader(String fileName, Function<Map<String, Object>, SoftwareShader> factory)
+    {
+        shaderRegistry.put(fileName, factory);
+    }
+
+    @Override
+    public Shader<SoftwareContext> createShader(ShaderType type, String source)
+    {
+        throw new UnsupportedOperationException("The software context cannot compile GLSL source code.");
+    }
+
+    @Override
+    public Shader<SoftwareContext> createShader(ShaderType type, File file, Map<String, Object> defines) throws FileNotFoundException
+    {
+        Function<Map<String, Object>, SoftwareShader> factory = shaderRegistry.get(file.getName());
+
+        if (factory == null)
+        {
+            throw new UnsupportedOperationException("No software implementation has been registered for shader file " + file.getName() + '.');
+        }
+
+        SoftwareShader shader = factory.apply(defines);
+
+        if (shader.getType() != type)
+        {
+            throw new IllegalArgumentException("The software implementation registered for shader file " + file.getName()
+                + " is a " + shader.getType() + " shader, but a " + type + " shader was requested.");
+        }
+
+        return shader;
+    }
+
+    @Override
+    public ProgramBuilder<SoftwareContext> getShaderProgramBuilder()
+    {
+        return new SoftwareProgramBuilder(this);
+    }
+
+    @Override
+    public FramebufferObjectBuilder<SoftwareContext> buildFramebufferObject(int width, int height)
+    {
+        return new SoftwareFramebufferObjectBuilder(this, width, height);
+    }
+
+    @Override
+    public VertexBuffer<SoftwareContext> createVertexBuffer()
+    {
+        return new SoftwareVertexBuffer(this);
+    }
+
+    @Override
+    public IndexBuffer<SoftwareContext> createIndexBuffer()
+    {
+        return new SoftwareIndexBuffer(this);
+    }
+
+    @Override
+    public UniformBuffer<SoftwareContext> createUniformBuffer()
+    {
+        return new SoftwareUniformBuffer(this);
+    }
+
+    @Override
+    public Drawable<SoftwareContext> createDrawable(Program<SoftwareContext> program)
+    {
+        if (program instanceof SoftwareProgram)
+        {
+            return new SoftwareDrawable(this, (SoftwareProgram) program);
+        }
+        else
+        {
+            throw new IllegalArgumentException("'program' must be of type SoftwareProgram.");
+        }
+    }
+
+    @Override
+    public TextureFactory<SoftwareContext> getTextureFactory()
+    {
+        return this.textureFactory;
+    }
+}
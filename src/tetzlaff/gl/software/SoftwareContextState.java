@@ -0,0 +1,158 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import tetzlaff.gl.core.BlendFunction;
+import tetzlaff.gl.core.ContextState;
+
+/**
+ * Fixed-function state for the software context.
+ * Limits are reported as generous values since the software pipeline does not have hardware constraints.
+ */
+public class SoftwareContextState implements ContextState
+{
+    private volatile boolean depthTestEnabled = false;
+    private volatile boolean depthWriteEnabled = true;
+    private volatile boolean backFaceCullingEnabled = false;
+    private volatile BlendFunction blendFunction = null;
+
+    SoftwareContextState()
+    {
+    }
+
+    boolean isDepthTestEnabled()
+    {
+        return depthTestEnabled;
+    }
+
+    boolean isDepthWriteEnabled()
+    {
+        return depthWriteEnabled;
+    }
+
+    boolean isBackFaceCullingEnabled()
+    {
+        return backFaceCullingEnabled;
+    }
+
+    BlendFunction getBlendFunction()
+    {
+        return blendFunction;
+    }
+
+    @Override
+    public void enableDepthTest()
+    {
+        depthTestEnabled = true;
+    }
+
+    @Override
+    public void disableDepthTest()
+    {
+        depthTestEnabled = false;
+    }
+
+    @Override
+    public void enableDepthWrite()
+    {
+        depthWriteEnabled = true;
+    }
+
+    @Override
+    public void disableDepthWrite()
+    {
+        depthWriteEnabled = false;
+    }
+
+    @Override
+    public void enableMultisampling()
+    {
+        // Multisampling is not implemented; every pixel is sampled once at its center.
+    }
+
+    @Override
+    public void disableMultisampling()
+    {
+    }
+
+    @Override
+    public void enableBackFaceCulling()
+    {
+        backFaceCullingEnabled = true;
+    }
+
+    @Override
+    public void disableBackFaceCulling()
+    {
+        backFaceCullingEnabled = false;
+    }
+
+    @Override
+    public void setBlendFunction(BlendFunction func)
+    {
+        blendFunction = func;
+    }
+
+    @Override
+    public void disableBlending()
+    {
+        blendFunction = null;
+    }
+
+    @Override
+    public int getMaxCombinedVertexUniformComponents()
+    {
+        return 1 << 16;
+    }
+
+    @Override
+    public int getMaxCombinedFragmentUniformComponents()
+    {
+        return 1 << 16;
+    }
+
+    @Override
+    public int getMaxUniformBlockSize()
+    {
+        return 1 << 24;
+    }
+
+    @Override
+    public int getMaxVertexUniformComponents()
+    {
+        return 1 << 16;
+    }
+
+    @Override
+    public int getMaxFragmentUniformComponents()
+    {
+        return 1 << 16;
+    }
+
+    @Override
+    public int getMaxArrayTextureLayers()
+    {
+        return 1 << 16;
+    }
+
+    @Override
+    public int getMaxCombinedTextureImageUnits()
+    {
+        return 1024;
+    }
+
+    @Override
+    public int getMaxCombinedUniformBlocks()
+    {
+        return 1024;
+    }
+}
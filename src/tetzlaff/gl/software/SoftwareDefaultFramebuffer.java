@@ -0,0 +1,74 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import tetzlaff.gl.core.ColorFormat;
+import tetzlaff.gl.core.DoubleFramebuffer;
+import tetzlaff.gl.core.FramebufferSize;
+
+/**
+ * Default framebuffer for the software context: an offscreen double-buffered RGBA8 color buffer with a depth buffer.
+ * As with a double-buffered GL context, drawing and reading both use the back buffer.
+ */
+final class SoftwareDefaultFramebuffer extends SoftwareFramebuffer implements DoubleFramebuffer<SoftwareContext>
+{
+    private final TexelBuffer depthBuffer;
+    private TexelBuffer frontBuffer;
+    private TexelBuffer backBuffer;
+
+    SoftwareDefaultFramebuffer(SoftwareContext context, int width, int height)
+    {
+        super(context);
+        this.frontBuffer = TexelBuffer.createColor(width, height, ColorFormat.RGBA8);
+        this.backBuffer = TexelBuffer.createColor(width, height, ColorFormat.RGBA8);
+        this.depthBuffer = TexelBuffer.createDepth(width, height, false);
+        this.depthBuffer.fill(1.0f, 0.0f, 0.0f, 0.0f);
+    }
+
+    @Override
+    synchronized TexelBuffer getColorBuffer(int attachmentIndex)
+    {
+        return backBuffer;
+    }
+
+    @Override
+    TexelBuffer getDepthBuffer()
+    {
+        return depthBuffer;
+    }
+
+    @Override
+    TexelBuffer getStencilBuffer()
+    {
+        return null;
+    }
+
+    @Override
+    public FramebufferSize getSize()
+    {
+        return new FramebufferSize(depthBuffer.width, depthBuffer.height);
+    }
+
+    @Override
+    public int getColorAttachmentCount()
+    {
+        return 1;
+    }
+
+    @Override
+    public synchronized void swapBuffers()
+    {
+        TexelBuffer tmp = frontBuffer;
+        frontBuffer = backBuffer;
+        backBuffer = tmp;
+    }
+}
@@ -0,0 +1,855 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+import tetzlaff.gl.core.*;
+import tetzlaff.gl.core.BlendFunction.Weight;
+import tetzlaff.gl.exceptions.NoSpecifiedVertexBuffersException;
+import tetzlaff.gl.vecmath.*;
+
+/**
+ * A drawable for the software context, which runs the program's Java shaders and rasterizes triangles on the CPU.
+ * Vertices are shaded in parallel; rasterization is split into horizontal bands of the framebuffer which are processed in parallel,
+ * with each band processing triangles in submission order so that depth testing and blending behave as they would in OpenGL.
+ * Triangles are clipped against the near and far planes; the viewport bounds are enforced during rasterization.
+ * Pixels are sampled at their centers using the top-left fill convention, and varyings are interpolated with perspective correction.
+ * The depth test uses the GL_LESS comparison, and depth is only written when the depth test is enabled.
+ */
+final class SoftwareDrawable implements Drawable<SoftwareContext>
+{
+    private static final int BAND_HEIGHT = 32;
+    private static final int VERTEX_CHUNK_SIZE = 1024;
+    private static final float MIN_CLIP_W = 1.0e-6f;
+
+    private final SoftwareContext context;
+    private final SoftwareProgram program;
+
+    private final Map<Integer, SoftwareVertexBuffer> vertexBuffers = new TreeMap<>();
+    private final Map<Integer, float[]> constantAttributes = new TreeMap<>();
+    private SoftwareIndexBuffer indexBuffer;
+
+    // Snapshots of the vertex attribute settings, indexed by location, taken at the beginning of each draw call.
+    private SoftwareVertexBuffer[] attributeBuffers = new SoftwareVertexBuffer[0];
+    private float[][] attributeConstants = new float[0][];
+
+    SoftwareDrawable(SoftwareContext context, SoftwareProgram program)
+    {
+        this.context = context;
+        this.program = program;
+    }
+
+    @Override
+    public SoftwareContext getContext()
+    {
+        return this.context;
+    }
+
+    @Override
+    public SoftwareProgram program()
+    {
+        return this.program;
+    }
+
+    float getAttributeComponent(int location, int vertexIndex, int component)
+    {
+        if (location >= 0 && location < attributeBuffers.length)
+        {
+            SoftwareVertexBuffer buffer = attributeBuffers[location];
+            if (buffer != null)
+            {
+                return buffer.get(vertexIndex, component);
+            }
+
+            float[] constant = attributeConstants[location];
+            if (constant != null)
+            {
+                return constant[component];
+            }
+        }
+
+        return component == 3 ? 1.0f : 0.0f;
+    }
+
+    private int snapshotAttributes()
+    {
+        int locationCount = 0;
+        for (int location : vertexBuffers.keySet())
+        {
+            locationCount = Math.max(locationCount, location + 1);
+        }
+        for (int location : constantAttributes.keySet())
+        {
+            locationCount = Math.max(locationCount, location + 1);
+        }
+
+        attributeBuffers = new SoftwareVertexBuffer[locationCount];
+        attributeConstants = new float[locationCount][];
+
+        int count = Integer.MAX_VALUE;
+        for (Map.Entry<Integer, SoftwareVertexBuffer> entry : vertexBuffers.entrySet())
+        {
+            attributeBuffers[entry.getKey()] = entry.getValue();
+            count = Math.min(count, entry.getValue().count());
+        }
+        for (Map.Entry<Integer, float[]> entry : constantAttributes.entrySet())
+        {
+            attributeConstants[entry.getKey()] = entry.getValue();
+        }
+
+        if (count == Integer.MAX_VALUE)
+        {
+            throw new NoSpecifiedVertexBuffersException("No vertex buffers were specified for the drawable.");
+        }
+
+        return count;
+    }
+
+    private static int[] assembleTriangles(PrimitiveMode primitiveMode, int vertexCount)
+    {
+        switch (primitiveMode)
+        {
+            case TRIANGLES:
+            {
+                int[] indices = new int[vertexCount - vertexCount % 3];
+                for (int i = 0; i < indices.length; i++)
+                {
+                    indices[i] = i;
+                }
+                return indices;
+            }
+            case TRIANGLE_STRIP:
+            {
+                int triangleCount = Math.max(0, vertexCount - 2);
+                int[] indices = new int[triangleCount * 3];
+                for (int i = 0; i < triangleCount; i++)
+                {
+                    // Alternate the winding so that every triangle has the same orientation as the first.
+                    indices[3 * i] = i % 2 == 0 ? i : i + 1;
+                    indices[3 * i + 1] = i % 2 == 0 ? i + 1 : i;
+                    indices[3 * i + 2] = i + 2;
+                }
+                return indices;
+            }
+            case TRIANGLE_FAN:
+            {
+                int triangleCount = Math.max(0, vertexCount - 2);
+                int[] indices = new int[triangleCount * 3];
+                for (int i = 0; i < triangleCount; i++)
+                {
+                    indices[3 * i] = 0;
+                    indices[3 * i + 1] = i + 1;
+                    indices[3 * i + 2] = i + 2;
+                }
+                return indices;
+            }
+            default:
+                throw new UnsupportedOperationException("The software context can only draw triangles (requested: " + primitiveMode + ").");
+        }
+    }
+
+    /**
+     * Replaces the vertex numbers of assembled triangles with the corresponding elements of the index buffer.
+     */
+    private static void applyIndexBuffer(int[] indices, SoftwareIndexBuffer indexBuffer, int vertexCount)
+    {
+        for (int i = 0; i < indices.length; i++)
+        {
+            int index = indexBuffer.get(indices[i]);
+            if (index < 0 || index >= vertexCount)
+            {
+                throw new IllegalStateException("Index buffer element " + indices[i] + " (" + index
+                    + ") is out of range for vertex buffers with " + vertexCount + " vertices.");
+            }
+
+            indices[i] = index;
+        }
+    }
+
+    /**
+     * Growable storage for triangles that have been clipped and transformed to window coordinates.
+     * Each vertex is stored as (x, y, z, 1/w, varyings / w).
+     */
+    private static final class TriangleList
+    {
+        final int vertexStride;
+        final int triangleStride;
+        float[] data;
+        int count;
+
+        TriangleList(int varyingCount, int initialCapacity)
+        {
+            this.vertexStride = 4 + varyingCount;
+            this.triangleStride = 3 * vertexStride;
+            this.data = new float[Math.max(1, initialCapacity) * triangleStride];
+        }
+
+        int addTriangle()
+        {
+            if ((count + 1) * triangleStride > data.length)
+            {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            return count++ * triangleStride;
+        }
+
+        void removeLast()
+        {
+            count--;
+        }
+    }
+
+    /**
+     * Growable list of triangle indices for one band of the framebuffer.
+     */
+    private static final class IntList
+    {
+        int[] data = new int[16];
+        int size;
+
+        void add(int value)
+        {
+            if (size == data.length)
+            {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+    }
+
+    private static final class Viewport
+    {
+        final int x;
+        final int y;
+        final int width;
+        final int height;
+
+        Viewport(int x, int y, int width, int height)
+        {
+            this.x = x;
+            this.y = y;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private static void emitVertex(float[] clipVertex, int varyingCount, Viewport viewport, float[] destination, int offset)
+    {
+        float invW = 1.0f / clipVertex[3];
+        destination[offset] = viewport.x + (clipVertex[0] * invW + 1.0f) * 0.5f * viewport.width;
+        destination[offset + 1] = viewport.y + (clipVertex[1] * invW + 1.0f) * 0.5f * viewport.height;
+        destination[offset + 2] = (clipVertex[2] * invW + 1.0f) * 0.5f;
+        destination[offset + 3] = invW;
+
+        for (int v = 0; v < varyingCount; v++)
+        {
+            destination[offset + 4 + v] = clipVertex[4 + v] * invW;
+        }
+    }
+
+    private static float[] getClipVertex(float[] positions, float[] varyings, int varyingCount, int index)
+    {
+        float[] vertex = new float[4 + varyingCount];
+        System.arraycopy(positions, index * 4, vertex, 0, 4);
+        System.arraycopy(varyings, index * varyingCount, vertex, 4, varyingCount);
+        return vertex;
+    }
+
+    private static boolean isInsideAllPlanes(float[] positions, int index)
+    {
+        float z = positions[index * 4 + 2];
+        float w = positions[index * 4 + 3];
+        return w >= MIN_CLIP_W && z >= -w && z <= w;
+    }
+
+    private static float planeDistance(float[] vertex, int plane)
+    {
+        switch (plane)
+        {
+            case 0: return vertex[3] - MIN_CLIP_W;
+            case 1: return vertex[2] + vertex[3]; // near
+            default: return vertex[3] - vertex[2]; // far
+        }
+    }
+
+    private static float[][] clipPolygon(float[][] polygon, int plane)
+    {
+        float[][] result = new float[polygon.length + 1][];
+        int resultCount = 0;
+
+        for (int i = 0; i < polygon.length; i++)
+        {
+            float[] current = polygon[i];
+            float[] next = polygon[(i + 1) % polygon.length];
+            float currentDistance = planeDistance(current, plane);
+            float nextDistance = planeDistance(next, plane);
+
+            if (currentDistance >= 0)
+            {
+                result[resultCount++] = current;
+            }
+
+            if ((currentDistance >= 0) != (nextDistance >= 0))
+            {
+                float t = currentDistance / (currentDistance - nextDistance);
+                float[] intersection = new float[current.length];
+                for (int k = 0; k < current.length; k++)
+                {
+                    intersection[k] = current[k] + t * (next[k] - current[k]);
+                }
+                result[resultCount++] = intersection;
+            }
+        }
+
+        return Arrays.copyOf(result, resultCount);
+    }
+
+    private static TriangleList clipAndTransform(int[] indices, float[] positions, float[] varyings, int varyingCount, Viewport viewport)
+    {
+        TriangleList triangles = new TriangleList(varyingCount, indices.length / 3);
+
+        for (int t = 0; t < indices.length; t += 3)
+        {
+            int a = indices[t];
+            int b = indices[t + 1];
+            int c = indices[t + 2];
+
+            if (isInsideAllPlanes(positions, a) && isInsideAllPlanes(positions, b) && isInsideAllPlanes(positions, c))
+            {
+                int offset = triangles.addTriangle();
+                emitVertex(getClipVertex(positions, varyings, varyingCount, a), varyingCount, viewport, triangles.data, offset);
+                emitVertex(getClipVertex(positions, varyings, varyingCount, b), varyingCount, viewport, triangles.data,
+                    offset + triangles.vertexStride);
+                emitVertex(getClipVertex(positions, varyings, varyingCount, c), varyingCount, viewport, triangles.data,
+                    offset + 2 * triangles.vertexStride);
+            }
+            else
+            {
+                float[][] polygon =
+                {
+                    getClipVertex(positions, varyings, varyingCount, a),
+                    getClipVertex(positions, varyings, varyingCount, b),
+                    getClipVertex(positions, varyings, varyingCount, c)
+                };
+
+                for (int plane = 0; plane < 3 && polygon.length >= 3; plane++)
+                {
+                    polygon = clipPolygon(polygon, plane);
+                }
+
+                // Triangulate the clipped polygon as a fan, which preserves the winding of the original triangle.
+                for (int i = 1; i + 1 < polygon.length; i++)
+                {
+                    int offset = triangles.addTriangle();
+                    emitVertex(polygon[0], varyingCount, viewport, triangles.data, offset);
+                    emitVertex(polygon[i], varyingCount, viewport, triangles.data, offset + triangles.vertexStride);
+                    emitVertex(polygon[i + 1], varyingCount, viewport, triangles.data, offset + 2 * triangles.vertexStride);
+                }
+            }
+        }
+
+        return triangles;
+    }
+
+    private static float signedArea(float[] data, int offset, int vertexStride)
+    {
+        float ax = data[offset];
+        float ay = data[offset + 1];
+        float bx = data[offset + vertexStride];
+        float by = data[offset + vertexStride + 1];
+        float cx = data[offset + 2 * vertexStride];
+        float cy = data[offset + 2 * vertexStride + 1];
+        return (bx - ax) * (cy - ay) - (cx - ax) * (by - ay);
+    }
+
+    private static float blendWeight(Weight weight, float[] source, float[] destination, int channel)
+    {
+        switch (weight)
+        {
+            case ZERO: return 0.0f;
+            case ONE: return 1.0f;
+            case SRC_COLOR: return source[channel];
+            case ONE_MINUS_SRC_COLOR: return 1.0f - source[channel];
+            case DST_COLOR: return destination[channel];
+            case ONE_MINUS_DST_COLOR: return 1.0f - destination[channel];
+            case SRC_ALPHA: return source[3];
+            case ONE_MINUS_SRC_ALPHA: return 1.0f - source[3];
+            case DST_ALPHA: return destination[3];
+            case ONE_MINUS_DST_ALPHA: return 1.0f - destination[3];
+            default: return 1.0f;
+        }
+    }
+
+    private void rasterizeBand(TriangleList triangles, IntList bandTriangles, int bandStart, int bandEnd, int minX, int maxX,
+        SoftwareFramebuffer framebuffer, boolean depthTest, boolean depthWrite, boolean cullBackFaces, BlendFunction blendFunction)
+    {
+        int varyingCount = triangles.vertexStride - 4;
+        int colorAttachmentCount = framebuffer.getColorAttachmentCount();
+        TexelBuffer depthBuffer = framebuffer.getDepthBuffer();
+        TexelBuffer[] colorBuffers = new TexelBuffer[colorAttachmentCount];
+        for (int i = 0; i < colorAttachmentCount; i++)
+        {
+            colorBuffers[i] = framebuffer.getColorBuffer(i);
+        }
+
+        FragmentShader fragmentShader = program.getFragmentShader().getFragmentShader();
+        Fragment fragment = new Fragment(varyingCount, colorAttachmentCount);
+        float[] fragmentVaryings = fragment.getVaryingsForWrite();
+        float[] fragmentColors = fragment.getColors();
+        float[] source = new float[4];
+        float[] destination = new float[4];
+        float[] blended = new float[4];
+
+        float[] data = triangles.data;
+        int stride = triangles.vertexStride;
+
+        for (int t = 0; t < bandTriangles.size; t++)
+        {
+            int offset = bandTriangles.data[t] * triangles.triangleStride;
+            float area = signedArea(data, offset, stride);
+            boolean frontFacing = area > 0;
+
+            if (cullBackFaces && !frontFacing)
+            {
+                continue;
+            }
+
+            // Order the vertices counter-clockwise so that the edge functions are positive inside the triangle.
+            int a = offset;
+            int b = frontFacing ? offset + stride : offset + 2 * stride;
+            int c = frontFacing ? offset + 2 * stride : offset + stride;
+            float absArea = Math.abs(area);
+
+            double ax = data[a];
+            double ay = data[a + 1];
+            double bx = data[b];
+            double by = data[b + 1];
+            double cx = data[c];
+            double cy = data[c + 1];
+
+            int rowStart = Math.max(bandStart, (int)Math.ceil(Math.min(ay, Math.min(by, cy)) - 0.5));
+            int rowEnd = Math.min(bandEnd - 1, (int)Math.floor(Math.max(ay, Math.max(by, cy)) - 0.5));
+            int colStart = Math.max(minX, (int)Math.ceil(Math.min(ax, Math.min(bx, cx)) - 0.5));
+            int colEnd = Math.min(maxX - 1, (int)Math.floor(Math.max(ax, Math.max(bx, cx)) - 0.5));
+
+            // Edges opposite each vertex: the edge function of edge (b, c) is the barycentric weight of a (scaled by the area), etc.
+            boolean topLeftBC = (cy - by) < 0 || (cy == by && (cx - bx) < 0);
+            boolean topLeftCA = (ay - cy) < 0 || (ay == cy && (ax - cx) < 0);
+            boolean topLeftAB = (by - ay) < 0 || (by == ay && (bx - ax) < 0);
+
+            for (int row = rowStart; row <= rowEnd; row++)
+            {
+                double py = row + 0.5;
+
+                for (int col = colStart; col <= colEnd; col++)
+                {
+                    double px = col + 0.5;
+
+                    double e0 = (cx - bx) * (py - by) - (cy - by) * (px - bx);
+                    double e1 = (ax - cx) * (py - cy) - (ay - cy) * (px - cx);
+                    double e2 = (bx - ax) * (py - ay) - (by - ay) * (px - ax);
+
+                    if ((e0 > 0 || e0 == 0 && topLeftBC) && (e1 > 0 || e1 == 0 && topLeftCA) && (e2 > 0 || e2 == 0 && topLeftAB))
+                    {
+                        float l0 = (float)(e0 / absArea);
+                        float l1 = (float)(e1 / absArea);
+                        float l2 = (float)(e2 / absArea);
+
+                        float depth = l0 * data[a + 2] + l1 * data[b + 2] + l2 * data[c + 2];
+
+                        if (depthTest && depthBuffer != null && !(depth < depthBuffer.readScalar(col, row)))
+                        {
+                            continue;
+                        }
+
+                        float invW = l0 * data[a + 3] + l1 * data[b + 3] + l2 * data[c + 3];
+                        for (int v = 0; v < varyingCount; v++)
+                        {
+                            fragmentVaryings[v] = (l0 * data[a + 4 + v] + l1 * data[b + 4 + v] + l2 * data[c + 4 + v]) / invW;
+                        }
+
+                        fragment.reset(col, row, depth, frontFacing);
+
+                        if (!fragmentShader.execute(program, fragment))
+                        {
+                            continue;
+                        }
+
+                        if (depthTest && depthWrite && depthBuffer != null)
+                        {
+                            depthBuffer.writeScalar(col, row, depth);
+                        }
+
+                        for (int i = 0; i < colorAttachmentCount; i++)
+                        {
+                            if (colorBuffers[i] != null && fragment.isColorWritten(i))
+                            {
+                                if (blendFunction != null && !colorBuffers[i].isIntegerFormat())
+                                {
+                                    System.arraycopy(fragmentColors, i * 4, source, 0, 4);
+                                    colorBuffers[i].read(col, row, destination, 0);
+
+                                    for (int k = 0; k < 4; k++)
+                                    {
+                                        blended[k] = source[k] * blendWeight(blendFunction.sourceWeightFunction, source, destination, k)
+                                            + destination[k] * blendWeight(blendFunction.destinationWeightFunction, source, destination, k);
+                                    }
+
+                                    colorBuffers[i].write(col, row, blended[0], blended[1], blended[2], blended[3]);
+                                }
+                                else
+                                {
+                                    colorBuffers[i].write(col, row,
+                                        fragmentColors[i * 4], fragmentColors[i * 4 + 1], fragmentColors[i * 4 + 2], fragmentColors[i * 4 + 3]);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void draw(PrimitiveMode primitiveMode, Framebuffer<SoftwareContext> framebuffer, int x, int y, int width, int height)
+    {
+        if (!(framebuffer.getContentsForWrite() instanceof SoftwareFramebuffer))
+        {
+            throw new IllegalArgumentException("Contents of 'framebuffer' must be of type SoftwareFramebuffer.");
+        }
+
+        SoftwareFramebuffer target = (SoftwareFramebuffer) framebuffer.getContentsForWrite();
+        FramebufferSize size = target.getSize();
+        Viewport viewport = new Viewport(x, y, width, height);
+
+        int vertexCount = snapshotAttributes();
+        int[] indices;
+        if (indexBuffer != null)
+        {
+            indices = assembleTriangles(primitiveMode, indexBuffer.count());
+            applyIndexBuffer(indices, indexBuffer, vertexCount);
+        }
+        else
+        {
+            indices = assembleTriangles(primitiveMode, vertexCount);
+        }
+
+        if (indices.length == 0)
+        {
+            return;
+        }
+
+        // Vertex processing
+        VertexShader vertexShader = program.getVertexShader().getVertexShader();
+        int varyingCount = program.getVertexShader().getVaryingCount();
+        float[] positions = new float[vertexCount * 4];
+        float[] varyings = new float[vertexCount * varyingCount];
+
+        IntStream.range(0, (vertexCount + VERTEX_CHUNK_SIZE - 1) / VERTEX_CHUNK_SIZE).parallel().forEach(chunk ->
+        {
+            VertexAttributes attributes = new VertexAttributes(this);
+            float[] vertexVaryings = new float[varyingCount];
+
+            for (int i = chunk * VERTEX_CHUNK_SIZE; i < Math.min(vertexCount, (chunk + 1) * VERTEX_CHUNK_SIZE); i++)
+            {
+                attributes.setVertexIndex(i);
+                Arrays.fill(vertexVaryings, 0.0f);
+                Vector4 position = vertexShader.execute(program, attributes, vertexVaryings);
+
+                positions[4 * i] = position.x;
+                positions[4 * i + 1] = position.y;
+                positions[4 * i + 2] = position.z;
+                positions[4 * i + 3] = position.w;
+                System.arraycopy(vertexVaryings, 0, varyings, i * varyingCount, varyingCount);
+            }
+        });
+
+        // Primitive assembly, clipping and viewport transformation
+        TriangleList triangles = clipAndTransform(indices, positions, varyings, varyingCount, viewport);
+
+        // The scissor region is the intersection of the viewport and the framebuffer.
+        int minX = Math.max(0, x);
+        int maxX = Math.min(size.width, x + width);
+        int minY = Math.max(0, y);
+        int maxY = Math.min(size.height, y + height);
+        if (minX >= maxX || minY >= maxY)
+        {
+            return;
+        }
+
+        // Bin triangles into bands of rows.
+        int bandCount = (maxY - minY + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        IntList[] bands = new IntList[bandCount];
+        for (int i = 0; i < bandCount; i++)
+        {
+            bands[i] = new IntList();
+        }
+
+        for (int t = 0; t < triangles.count; t++)
+        {
+            int offset = t * triangles.triangleStride;
+            float y0 = triangles.data[offset + 1];
+            float y1 = triangles.data[offset + triangles.vertexStride + 1];
+            float y2 = triangles.data[offset + 2 * triangles.vertexStride + 1];
+
+            int rowStart = Math.max(minY, (int)Math.ceil(Math.min(y0, Math.min(y1, y2)) - 0.5));
+            int rowEnd = Math.min(maxY - 1, (int)Math.floor(Math.max(y0, Math.max(y1, y2)) - 0.5));
+
+            for (int band = (rowStart - minY) / BAND_HEIGHT; rowStart <= rowEnd && band <= (rowEnd - minY) / BAND_HEIGHT; band++)
+            {
+                bands[band].add(t);
+            }
+        }
+
+        SoftwareContextState state = context.getState();
+        boolean depthTest = state.isDepthTestEnabled();
+        boolean depthWrite = state.isDepthWriteEnabled();
+        boolean cullBackFaces = state.isBackFaceCullingEnabled();
+        BlendFunction blendFunction = state.getBlendFunction();
+
+        IntStream.range(0, bandCount).parallel().forEach(band ->
+            rasterizeBand(triangles, bands[band], minY + band * BAND_HEIGHT, Math.min(maxY, minY + (band + 1) * BAND_HEIGHT),
+                minX, maxX, target, depthTest, depthWrite, cullBackFaces, blendFunction));
+    }
+
+    @Override
+    public void draw(PrimitiveMode primitiveMode, Framebuffer<SoftwareContext> framebuffer)
+    {
+        FramebufferSize size = framebuffer.getSize();
+        this.draw(primitiveMode, framebuffer, 0, 0, size.width, size.height);
+    }
+
+    @Override
+    public void draw(PrimitiveMode primitiveMode, Framebuffer<SoftwareContext> framebuffer, int width, int height)
+    {
+        this.draw(primitiveMode, framebuffer, 0, 0, width, height);
+    }
+
+    @Override
+    public void draw(PrimitiveMode primitiveMode, SoftwareContext context)
+    {
+        this.draw(primitiveMode, context.getDefaultFramebuffer());
+    }
+
+    @Override
+    public void draw(PrimitiveMode primitiveMode, SoftwareContext context, int x, int y, int width, int height)
+    {
+        this.draw(primitiveMode, context.getDefaultFramebuffer(), x, y, width, height);
+    }
+
+    @Override
+    public void draw(PrimitiveMode primitiveMode, SoftwareContext context, int width, int height)
+    {
+        this.draw(primitiveMode, context.getDefaultFramebuffer(), width, height);
+    }
+
+    @Override
+    public boolean addVertexBuffer(int location, VertexBuffer<SoftwareContext> buffer)
+    {
+        if (buffer instanceof SoftwareVertexBuffer)
+        {
+            if (location >= 0)
+            {
+                vertexBuffers.put(location, (SoftwareVertexBuffer) buffer);
+                return true;
+            }
+            else
+            {
+                return false;
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("'buffer' must be of type SoftwareVertexBuffer.");
+        }
+    }
+
+    @Override
+    public boolean addVertexBuffer(String name, VertexBuffer<SoftwareContext> buffer)
+    {
+        return this.addVertexBuffer(program.getVertexAttribLocation(name), buffer);
+    }
+
+    @Override
+    public void setIndexBuffer(IndexBuffer<SoftwareContext> indexBuffer)
+    {
+        if (indexBuffer == null || indexBuffer instanceof SoftwareIndexBuffer)
+        {
+            this.indexBuffer = (SoftwareIndexBuffer) indexBuffer;
+        }
+        else
+        {
+            throw new IllegalArgumentException("'indexBuffer' must be of type SoftwareIndexBuffer.");
+        }
+    }
+
+    private boolean setConstantAttribute(int location, float x, float y, float z, float w)
+    {
+        if (location >= 0)
+        {
+            constantAttributes.put(location, new float[] { x, y, z, w });
+            return true;
+        }
+        else
+        {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean setVertexAttrib(int location, DoubleVector4 value)
+    {
+        return setConstantAttribute(location, (float) value.x, (float) value.y, (float) value.z, (float) value.w);
+    }
+
+    @Override
+    public boolean setVertexAttrib(int location, DoubleVector3 value)
+    {
+        return setConstantAttribute(location, (float) value.x, (float) value.y, (float) value.z, 1.0f);
+    }
+
+    @Override
+    public boolean setVertexAttrib(int location, DoubleVector2 value)
+    {
+        return setConstantAttribute(location, (float) value.x, (float) value.y, 0.0f, 1.0f);
+    }
+
+    @Override
+    public boolean setVertexAttrib(int location, double value)
+    {
+        return setConstantAttribute(location, (float) value, 0.0f, 0.0f, 1.0f);
+    }
+
+    @Override
+    public boolean setVertexAttrib(int location, Vector4 value)
+    {
+        return setConstantAttribute(location, value.x, value.y, value.z, value.w);
+    }
+
+    @Override
+    public boolean setVertexAttrib(int location, Vector3 value)
+    {
+        return setConstantAttribute(location, value.x, value.y, value.z, 1.0f);
+    }
+
+    @Override
+    public boolean setVertexAttrib(int location, Vector2 value)
+    {
+        return setConstantAttribute(location, value.x, value.y, 0.0f, 1.0f);
+    }
+
+    @Override
+    public boolean setVertexAttrib(int location, float value)
+    {
+        return setConstantAttribute(location, value, 0.0f, 0.0f, 1.0f);
+    }
+
+    @Override
+    public boolean setVertexAttrib(int location, IntVector4 value)
+    {
+        return setConstantAttribute(location, value.x, value.y, value.z, value.w);
+    }
+
+    @Override
+    public boolean setVertexAttrib(int location, IntVector3 value)
+    {
+        return setConstantAttribute(location, value.x, value.y, value.z, 1.0f);
+    }
+
+    @Override
+    public boolean setVertexAttrib(int location, IntVector2 value)
+    {
+        return setConstantAttribute(location, value.x, value.y, 0.0f, 1.0f);
+    }
+
+    @Override
+    public boolean setVertexAttrib(int location, int value)
+    {
+        return setConstantAttribute(location, value, 0.0f, 0.0f, 1.0f);
+    }
+
+    @Override
+    public boolean setVertexAttrib(String name, DoubleVector4 value)
+    {
+        return this.setVertexAttrib(program.getVertexAttribLocation(name), value);
+    }
+
+    @Override
+    public boolean setVertexAttrib(String name, DoubleVector3 value)
+    {
+        return this.setVertexAttrib(program.getVertexAttribLocation(name), value);
+    }
+
+    @Override
+    public boolean setVertexAttrib(String name, DoubleVector2 value)
+    {
+        return this.setVertexAttrib(program.getVertexAttribLocation(name), value);
+    }
+
+    @Override
+    public boolean setVertexAttrib(String name, double value)
+    {
+        return this.setVertexAttrib(program.getVertexAttribLocation(name), value);
+    }
+
+    @Override
+    public boolean setVertexAttrib(String name, Vector4 value)
+    {
+        return this.setVertexAttrib(program.getVertexAttribLocation(name), value);
+    }
+
+    @Override
+    public boolean setVertexAttrib(String name, Vector3 value)
+    {
+        return this.setVertexAttrib(program.getVertexAttribLocation(name), value);
+    }
+
+    @Override
+    public boolean setVertexAttrib(String name, Vector2 value)
+    {
+        return this.setVertexAttrib(program.getVertexAttribLocation(name), value);
+    }
+
+    @Override
+    public boolean setVertexAttrib(String name, float value)
+    {
+        return this.setVertexAttrib(program.getVertexAttribLocation(name), value);
+    }
+
+    @Override
+    public boolean setVertexAttrib(String name, IntVector4 value)
+    {
+        return this.setVertexAttrib(program.getVertexAttribLocation(name), value);
+    }
+
+    @Override
+    public boolean setVertexAttrib(String name, IntVector3 value)
+    {
+        return this.setVertexAttrib(program.getVertexAttribLocation(name), value);
+    }
+
+    @Override
+    public boolean setVertexAttrib(String name, IntVector2 value)
+    {
+        return this.setVertexAttrib(program.getVertexAttribLocation(name), value);
+    }
+
+    @Override
+    public boolean setVertexAttrib(String name, int value)
+    {
+        return this.setVertexAttrib(program.getVertexAttribLocation(name), value);
+    }
+}
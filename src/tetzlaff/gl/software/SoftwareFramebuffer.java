@@ -0,0 +1,329 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import javax.imageio.ImageIO;
+
+import tetzlaff.gl.core.Framebuffer;
+import tetzlaff.gl.core.FramebufferSize;
+
+/**
+ * Base class for framebuffers of the software context.
+ * The framebuffer itself serves as its own contents for reading and writing, since there is no separate GL object to bind.
+ */
+abstract class SoftwareFramebuffer implements Framebuffer<SoftwareContext>
+{
+    protected final SoftwareContext context;
+
+    SoftwareFramebuffer(SoftwareContext context)
+    {
+        this.context = context;
+    }
+
+    @Override
+    public SoftwareContext getContext()
+    {
+        return context;
+    }
+
+    /**
+     * Gets the buffer for a color attachment, or null if there is no attachment at that index.
+     */
+    abstract TexelBuffer getColorBuffer(int attachmentIndex);
+
+    /**
+     * Gets the depth buffer, or null if there is no depth attachment.
+     */
+    abstract TexelBuffer getDepthBuffer();
+
+    /**
+     * Gets the stencil buffer, or null if there is no separate stencil attachment.
+     */
+    abstract TexelBuffer getStencilBuffer();
+
+    @Override
+    public Object getContentsForRead()
+    {
+        return this;
+    }
+
+    @Override
+    public Object getContentsForWrite()
+    {
+        return this;
+    }
+
+    private TexelBuffer getColorBufferForRead(int attachmentIndex)
+    {
+        TexelBuffer buffer = attachmentIndex >= 0 && attachmentIndex < getColorAttachmentCount() ? getColorBuffer(attachmentIndex) : null;
+        if (buffer == null)
+        {
+            throw new IllegalArgumentException("No color attachment at index " + attachmentIndex + '.');
+        }
+        return buffer;
+    }
+
+    private TexelBuffer getDepthBufferForRead()
+    {
+        TexelBuffer buffer = getDepthBuffer();
+        if (buffer == null)
+        {
+            throw new IllegalStateException("The framebuffer does not have a depth attachment.");
+        }
+        return buffer;
+    }
+
+    @Override
+    public void readColorBufferARGB(int attachmentIndex, ByteBuffer destination, int x, int y, int width, int height)
+    {
+        if (destination.remaining() < width * height * 4)
+        {
+            throw new IllegalArgumentException("The destination buffer is not big enough to hold the requested data.");
+        }
+
+        TexelBuffer buffer = getColorBufferForRead(attachmentIndex);
+        int position = destination.position();
+        for (int row = 0; row < height; row++)
+        {
+            for (int col = 0; col < width; col++)
+            {
+                // Same byte layout as reading GL_BGRA / GL_UNSIGNED_BYTE
+                int argb = buffer.readARGB(x + col, y + row);
+                destination.put(position++, (byte)argb);
+                destination.put(position++, (byte)(argb >>> 8));
+                destination.put(position++, (byte)(argb >>> 16));
+                destination.put(position++, (byte)(argb >>> 24));
+            }
+        }
+    }
+
+    @Override
+    public void readFloatingPointColorBufferRGBA(int attachmentIndex, FloatBuffer destination, int x, int y, int width, int height)
+    {
+        if (destination.remaining() < width * height * 4)
+        {
+            throw new IllegalArgumentException("The destination buffer is not big enough to hold the requested data.");
+        }
+
+        destination.duplicate().put(readFloatingPointColorBufferRGBA(attachmentIndex, x, y, width, height));
+    }
+
+    @Override
+    public void readIntegerColorBufferRGBA(int attachmentIndex, IntBuffer destination, int x, int y, int width, int height)
+    {
+        if (destination.remaining() < width * height * 4)
+        {
+            throw new IllegalArgumentException("The destination buffer is not big enough to hold the requested data.");
+        }
+
+        destination.duplicate().put(readIntegerColorBufferRGBA(attachmentIndex, x, y, width, height));
+    }
+
+    @Override
+    public void readDepthBuffer(ShortBuffer destination, int x, int y, int width, int height)
+    {
+        if (destination.remaining() < width * height)
+        {
+            throw new IllegalArgumentException("The destination buffer is not big enough to hold the requested data.");
+        }
+
+        destination.duplicate().put(readDepthBuffer(x, y, width, height));
+    }
+
+    @Override
+    public void readColorBufferARGB(int attachmentIndex, ByteBuffer destination)
+    {
+        FramebufferSize size = this.getSize();
+        this.readColorBufferARGB(attachmentIndex, destination, 0, 0, size.width, size.height);
+    }
+
+    @Override
+    public void readFloatingPointColorBufferRGBA(int attachmentIndex, FloatBuffer destination)
+    {
+        FramebufferSize size = this.getSize();
+        this.readFloatingPointColorBufferRGBA(attachmentIndex, destination, 0, 0, size.width, size.height);
+    }
+
+    @Override
+    public void readIntegerColorBufferRGBA(int attachmentIndex, IntBuffer destination)
+    {
+        FramebufferSize size = this.getSize();
+        this.readIntegerColorBufferRGBA(attachmentIndex, destination, 0, 0, size.width, size.height);
+    }
+
+    @Override
+    public void readDepthBuffer(ShortBuffer destination)
+    {
+        FramebufferSize size = this.getSize();
+        this.readDepthBuffer(destination, 0, 0, size.width, size.height);
+    }
+
+    @Override
+    public int[] readColorBufferARGB(int attachmentIndex, int x, int y, int width, int height)
+    {
+        TexelBuffer buffer = getColorBufferForRead(attachmentIndex);
+        int[] pixelArray = new int[width * height];
+        for (int row = 0; row < height; row++)
+        {
+            for (int col = 0; col < width; col++)
+            {
+                pixelArray[row * width + col] = buffer.readARGB(x + col, y + row);
+            }
+        }
+        return pixelArray;
+    }
+
+    @Override
+    public int[] readColorBufferARGB(int attachmentIndex)
+    {
+        FramebufferSize size = this.getSize();
+        return this.readColorBufferARGB(attachmentIndex, 0, 0, size.width, size.height);
+    }
+
+    @Override
+    public float[] readFloatingPointColorBufferRGBA(int attachmentIndex, int x, int y, int width, int height)
+    {
+        TexelBuffer buffer = getColorBufferForRead(attachmentIndex);
+        float[] pixelArray = new float[width * height * 4];
+        for (int row = 0; row < height; row++)
+        {
+            for (int col = 0; col < width; col++)
+            {
+                buffer.read(x + col, y + row, pixelArray, (row * width + col) * 4);
+            }
+        }
+        return pixelArray;
+    }
+
+    @Override
+    public float[] readFloatingPointColorBufferRGBA(int attachmentIndex)
+    {
+        FramebufferSize size = this.getSize();
+        return this.readFloatingPointColorBufferRGBA(attachmentIndex, 0, 0, size.width, size.height);
+    }
+
+    @Override
+    public int[] readIntegerColorBufferRGBA(int attachmentIndex, int x, int y, int width, int height)
+    {
+        float[] floats = readFloatingPointColorBufferRGBA(attachmentIndex, x, y, width, height);
+        int[] pixelArray = new int[floats.length];
+        for (int i = 0; i < floats.length; i++)
+        {
+            pixelArray[i] = Math.round(floats[i]);
+        }
+        return pixelArray;
+    }
+
+    @Override
+    public int[] readIntegerColorBufferRGBA(int attachmentIndex)
+    {
+        FramebufferSize size = this.getSize();
+        return this.readIntegerColorBufferRGBA(attachmentIndex, 0, 0, size.width, size.height);
+    }
+
+    @Override
+    public short[] readDepthBuffer(int x, int y, int width, int height)
+    {
+        TexelBuffer buffer = getDepthBufferForRead();
+        short[] pixelArray = new short[width * height];
+        for (int row = 0; row < height; row++)
+        {
+            for (int col = 0; col < width; col++)
+            {
+                float depth = Math.max(0.0f, Math.min(1.0f, buffer.readScalar(x + col, y + row)));
+                pixelArray[row * width + col] = (short)Math.round(depth * 65535.0f);
+            }
+        }
+        return pixelArray;
+    }
+
+    @Override
+    public short[] readDepthBuffer()
+    {
+        FramebufferSize size = this.getSize();
+        return this.readDepthBuffer(0, 0, size.width, size.height);
+    }
+
+    @Override
+    public void saveColorBufferToFile(int attachmentIndex, String fileFormat, File file) throws IOException
+    {
+        FramebufferSize size = this.getSize();
+        this.saveColorBufferToFile(attachmentIndex, 0, 0, size.width, size.height, fileFormat, file);
+    }
+
+    @Override
+    public void saveColorBufferToFile(int attachmentIndex, int x, int y, int width, int height, String fileFormat, File file) throws IOException
+    {
+        int[] pixels = this.readColorBufferARGB(attachmentIndex, x, y, width, height);
+
+        // Flip the array vertically
+        for (int row = 0; row < height / 2; row++)
+        {
+            int limit = (row + 1) * width;
+            for (int i1 = row * width, i2 = (height - row - 1) * width; i1 < limit; i1++, i2++)
+            {
+                int tmp = pixels[i1];
+                pixels[i1] = pixels[i2];
+                pixels[i2] = tmp;
+            }
+        }
+
+        BufferedImage outImg = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        outImg.setRGB(0, 0, width, height, pixels, 0, width);
+        ImageIO.write(outImg, fileFormat, file);
+    }
+
+    @Override
+    public void clearColorBuffer(int attachmentIndex, float r, float g, float b, float a)
+    {
+        getColorBufferForRead(attachmentIndex).fill(r, g, b, a);
+    }
+
+    @Override
+    public void clearIntegerColorBuffer(int attachmentIndex, int r, int g, int b, int a)
+    {
+        getColorBufferForRead(attachmentIndex).fill(r, g, b, a);
+    }
+
+    @Override
+    public void clearDepthBuffer(float depth)
+    {
+        TexelBuffer buffer = getDepthBuffer();
+        if (buffer != null)
+        {
+            buffer.fill(depth, 0.0f, 0.0f, 0.0f);
+        }
+    }
+
+    @Override
+    public void clearDepthBuffer()
+    {
+        this.clearDepthBuffer(1.0f);
+    }
+
+    @Override
+    public void clearStencilBuffer(int stencilIndex)
+    {
+        TexelBuffer buffer = getStencilBuffer();
+        if (buffer != null)
+        {
+            buffer.fill(stencilIndex, 0.0f, 0.0f, 0.0f);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import tetzlaff.gl.builders.base.FramebufferObjectBuilderBase;
+import tetzlaff.gl.core.FramebufferAttachment;
+import tetzlaff.gl.core.FramebufferObject;
+import tetzlaff.gl.core.FramebufferSize;
+
+final class SoftwareFramebufferObject extends SoftwareFramebuffer implements FramebufferObject<SoftwareContext>
+{
+    private final int width;
+    private final int height;
+    private final SoftwareFramebufferAttachment[] colorAttachments;
+    private SoftwareFramebufferAttachment depthAttachment;
+    private SoftwareFramebufferAttachment stencilAttachment;
+    private SoftwareFramebufferAttachment depthStencilAttachment;
+
+    public static class SoftwareFramebufferObjectBuilder extends FramebufferObjectBuilderBase<SoftwareContext>
+    {
+        SoftwareFramebufferObjectBuilder(SoftwareContext context, int width, int height)
+        {
+            super(context, width, height);
+        }
+
+        @Override
+        public SoftwareFramebufferObject createFramebufferObject()
+        {
+            SoftwareTexture2D[] colorAttachments = new SoftwareTexture2D[this.getColorAttachmentCount()];
+            for (int i = 0; i < this.getColorAttachmentCount(); i++)
+            {
+                if (this.getColorAttachmentBuilder(i) != null)
+                {
+                    colorAttachments[i] = (SoftwareTexture2D)this.getColorAttachmentBuilder(i).createTexture();
+                }
+            }
+
+            SoftwareTexture2D depthAttachment = null;
+            SoftwareTexture2D stencilAttachment = null;
+            SoftwareTexture2D depthStencilAttachment = null;
+            if (this.hasCombinedDepthStencilAttachment())
+            {
+                depthStencilAttachment = (SoftwareTexture2D)this.getDepthStencilAttachmentBuilder().createTexture();
+            }
+            else
+            {
+                if (this.hasDepthAttachment())
+                {
+                    depthAttachment = (SoftwareTexture2D)this.getDepthAttachmentBuilder().createTexture();
+                }
+
+                if (this.hasStencilAttachment())
+                {
+                    stencilAttachment = (SoftwareTexture2D)this.getStencilAttachmentBuilder().createTexture();
+                }
+            }
+
+            return new SoftwareFramebufferObject(context, width, height, colorAttachments, depthAttachment, stencilAttachment, depthStencilAttachment);
+        }
+    }
+
+    private SoftwareFramebufferObject(SoftwareContext context, int width, int height,
+        SoftwareTexture2D[] colorAttachments, SoftwareTexture2D depthAttachment,
+        SoftwareTexture2D stencilAttachment, SoftwareTexture2D depthStencilAttachment)
+    {
+        super(context);
+        this.width = width;
+        this.height = height;
+        this.colorAttachments = colorAttachments.clone();
+        this.depthAttachment = depthAttachment;
+        this.stencilAttachment = stencilAttachment;
+        this.depthStencilAttachment = depthStencilAttachment;
+    }
+
+    private static SoftwareFramebufferAttachment castAttachment(FramebufferAttachment<SoftwareContext> attachment)
+    {
+        if (attachment instanceof SoftwareFramebufferAttachment)
+        {
+            return (SoftwareFramebufferAttachment) attachment;
+        }
+        else
+        {
+            throw new IllegalArgumentException("Attachment must be of type SoftwareFramebufferAttachment.");
+        }
+    }
+
+    private void validateAttachmentSize(SoftwareFramebufferAttachment attachment)
+    {
+        TexelBuffer buffer = attachment.getTexelBuffer();
+        if (buffer.width < width || buffer.height < height)
+        {
+            throw new IllegalArgumentException("Attachment (" + buffer.width + 'x' + buffer.height
+                + ") is smaller than the framebuffer (" + width + 'x' + height + ").");
+        }
+    }
+
+    @Override
+    TexelBuffer getColorBuffer(int attachmentIndex)
+    {
+        SoftwareFramebufferAttachment attachment = colorAttachments[attachmentIndex];
+        return attachment == null ? null : attachment.getTexelBuffer();
+    }
+
+    @Override
+    TexelBuffer getDepthBuffer()
+    {
+        if (depthStencilAttachment != null)
+        {
+            return depthStencilAttachment.getTexelBuffer();
+        }
+        else
+        {
+            return depthAttachment == null ? null : depthAttachment.getTexelBuffer();
+        }
+    }
+
+    @Override
+    TexelBuffer getStencilBuffer()
+    {
+        return stencilAttachment == null ? null : stencilAttachment.getTexelBuffer();
+    }
+
+    @Override
+    public FramebufferSize getSize()
+    {
+        return new FramebufferSize(width, height);
+    }
+
+    @Override
+    public int getColorAttachmentCount()
+    {
+        return colorAttachments.length;
+    }
+
+    @Override
+    public SoftwareTexture2D getColorAttachmentTexture(int index)
+    {
+        if (index < 0)
+        {
+            throw new IllegalArgumentException("Attachment index cannot be negative.");
+        }
+        else if (index >= this.colorAttachments.length)
+        {
+            throw new IllegalArgumentException("Attachment index (" + index +
+                ") exceeded the number of color attachments for the framebuffer (" + this.colorAttachments.length + ").");
+        }
+        else if (!(this.colorAttachments[index] instanceof SoftwareTexture2D))
+        {
+            throw new UnsupportedOperationException("The color attachment for the framebuffer at index " + index + " is not a 2D texture.");
+        }
+        else
+        {
+            return (SoftwareTexture2D) this.colorAttachments[index];
+        }
+    }
+
+    @Override
+    public SoftwareTexture2D getDepthAttachmentTexture()
+    {
+        if (!(this.depthAttachment instanceof SoftwareTexture2D))
+        {
+            throw new UnsupportedOperationException("The depth attachment for the framebuffer is not a 2D texture.");
+        }
+        else
+        {
+            return (SoftwareTexture2D) this.depthAttachment;
+        }
+    }
+
+    @Override
+    public SoftwareTexture2D getStencilAttachmentTexture()
+    {
+        if (!(this.stencilAttachment instanceof SoftwareTexture2D))
+        {
+            throw new UnsupportedOperationException("The stencil attachment for the framebuffer is not a 2D texture.");
+        }
+        else
+        {
+            return (SoftwareTexture2D) this.stencilAttachment;
+        }
+    }
+
+    @Override
+    public SoftwareTexture2D getDepthStencilAttachmentTexture()
+    {
+        if (!(this.depthStencilAttachment instanceof SoftwareTexture2D))
+        {
+            throw new UnsupportedOperationException("The depth/stencil attachment for the framebuffer is not a 2D texture.");
+        }
+        else
+        {
+            return (SoftwareTexture2D) this.depthStencilAttachment;
+        }
+    }
+
+    @Override
+    public void setColorAttachment(int index, FramebufferAttachment<SoftwareContext> attachment)
+    {
+        if (index < 0 || index >= this.colorAttachments.length)
+        {
+            throw new IllegalArgumentException("Attachment index (" + index +
+                ") is out of range for the number of color attachments for the framebuffer (" + this.colorAttachments.length + ").");
+        }
+
+        SoftwareFramebufferAttachment attachmentCast = castAttachment(attachment);
+        validateAttachmentSize(attachmentCast);
+        this.colorAttachments[index] = attachmentCast;
+    }
+
+    @Override
+    public void setDepthAttachment(FramebufferAttachment<SoftwareContext> attachment)
+    {
+        SoftwareFramebufferAttachment attachmentCast = castAttachment(attachment);
+        validateAttachmentSize(attachmentCast);
+        this.depthAttachment = attachmentCast;
+        this.depthStencilAttachment = null;
+    }
+
+    @Override
+    public void setStencilAttachment(FramebufferAttachment<SoftwareContext> attachment)
+    {
+        SoftwareFramebufferAttachment attachmentCast = castAttachment(attachment);
+        validateAttachmentSize(attachmentCast);
+        this.stencilAttachment = attachmentCast;
+        this.depthStencilAttachment = null;
+    }
+
+    @Override
+    public void setDepthStencilAttachment(FramebufferAttachment<SoftwareContext> attachment)
+    {
+        SoftwareFramebufferAttachment attachmentCast = castAttachment(attachment);
+        validateAttachmentSize(attachmentCast);
+        this.depthStencilAttachment = attachmentCast;
+        this.depthAttachment = null;
+        this.stencilAttachment = null;
+    }
+
+    @Override
+    public void close()
+    {
+        // Attachments are garbage collected along with the framebuffer.
+    }
+}
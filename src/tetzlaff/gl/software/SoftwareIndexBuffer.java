@@ -0,0 +1,55 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import tetzlaff.gl.core.IndexBuffer;
+
+final class SoftwareIndexBuffer implements IndexBuffer<SoftwareContext>
+{
+    private final SoftwareContext context;
+    private int[] indices = new int[0];
+
+    SoftwareIndexBuffer(SoftwareContext context)
+    {
+        this.context = context;
+    }
+
+    @Override
+    public SoftwareContext getContext()
+    {
+        return context;
+    }
+
+    @Override
+    public int count()
+    {
+        return indices.length;
+    }
+
+    int get(int i)
+    {
+        return indices[i];
+    }
+
+    @Override
+    public SoftwareIndexBuffer setData(int... data)
+    {
+        this.indices = data.clone();
+        return this;
+    }
+
+    @Override
+    public void close()
+    {
+        indices = new int[0];
+    }
+}
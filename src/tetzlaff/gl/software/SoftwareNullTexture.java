@@ -0,0 +1,65 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import tetzlaff.gl.core.*;
+
+final class SoftwareNullTexture implements Texture<SoftwareContext>
+{
+    private final SoftwareContext context;
+
+    SoftwareNullTexture(SoftwareContext context)
+    {
+        this.context = context;
+    }
+
+    @Override
+    public SoftwareContext getContext()
+    {
+        return context;
+    }
+
+    @Override
+    public int getMipmapLevelCount()
+    {
+        return 0;
+    }
+
+    @Override
+    public ColorFormat getInternalUncompressedColorFormat()
+    {
+        return null;
+    }
+
+    @Override
+    public CompressionFormat getInternalCompressedColorFormat()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean isInternalFormatCompressed()
+    {
+        return false;
+    }
+
+    @Override
+    public TextureType getTextureType()
+    {
+        return TextureType.NULL;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,536 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import java.io.FileNotFoundException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import tetzlaff.gl.builders.base.ProgramBuilderBase;
+import tetzlaff.gl.core.*;
+import tetzlaff.gl.exceptions.ProgramLinkFailureException;
+import tetzlaff.gl.vecmath.*;
+
+/**
+ * A shader program for the software context, consisting of a Java vertex shader and a Java fragment shader.
+ * Uniforms, attributes and uniform blocks are not declared ahead of time as in GLSL; a location is assigned
+ * the first time a name is used, and any value can be stored at that location.
+ * Shaders read uniforms back through the typed getters; unset uniforms read as zero
+ * (or null for matrices, integer vectors, textures and uniform buffers).
+ * Looking up uniforms by location is faster than looking them up by name.
+ */
+public final class SoftwareProgram implements Program<SoftwareContext>
+{
+    private final SoftwareContext context;
+    private final SoftwareShader vertexShader;
+    private final SoftwareShader fragmentShader;
+    private final Map<String, Object> defines;
+
+    private final Map<String, Integer> uniformLocations = new ConcurrentHashMap<>(32);
+    private final List<Object> uniformValues = new CopyOnWriteArrayList<>();
+
+    private final Map<String, Integer> attributeLocations = new ConcurrentHashMap<>(8);
+
+    private final Map<String, Integer> uniformBlockIndices = new ConcurrentHashMap<>(8);
+    private final List<SoftwareUniformBuffer> uniformBuffers = new CopyOnWriteArrayList<>();
+
+    public static class SoftwareProgramBuilder extends ProgramBuilderBase<SoftwareContext>
+    {
+        SoftwareProgramBuilder(SoftwareContext context)
+        {
+            super(context);
+        }
+
+        @Override
+        public SoftwareProgram createProgram() throws FileNotFoundException
+        {
+            SoftwareShader vertexShader = null;
+            SoftwareShader fragmentShader = null;
+
+            for (Shader<SoftwareContext> shader : compileShaders())
+            {
+                if (!(shader instanceof SoftwareShader))
+                {
+                    throw new IllegalArgumentException("Shaders must be of type SoftwareShader.");
+                }
+
+                SoftwareShader softwareShader = (SoftwareShader) shader;
+                switch (softwareShader.getType())
+                {
+                    case VERTEX:
+                        vertexShader = softwareShader;
+                        break;
+                    case FRAGMENT:
+                        fragmentShader = softwareShader;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("The software context does not support " + softwareShader.getType() + " shaders.");
+                }
+            }
+
+            if (vertexShader == null || fragmentShader == null)
+            {
+                throw new ProgramLinkFailureException("A software program requires both a vertex shader and a fragment shader.");
+            }
+
+            return new SoftwareProgram(context, vertexShader, fragmentShader, getDefines());
+        }
+    }
+
+    private SoftwareProgram(SoftwareContext context, SoftwareShader vertexShader, SoftwareShader fragmentShader, Map<String, Object> defines)
+    {
+        this.context = context;
+        this.vertexShader = vertexShader;
+        this.fragmentShader = fragmentShader;
+        this.defines = new HashMap<>(defines);
+    }
+
+    @Override
+    public SoftwareContext getContext()
+    {
+        return context;
+    }
+
+    SoftwareShader getVertexShader()
+    {
+        return vertexShader;
+    }
+
+    SoftwareShader getFragmentShader()
+    {
+        return fragmentShader;
+    }
+
+    @Override
+    public boolean hasDefine(String key)
+    {
+        return defines.containsKey(key);
+    }
+
+    @Override
+    public Optional<Object> getDefine(String key)
+    {
+        return Optional.ofNullable(defines.get(key));
+    }
+
+    @Override
+    public int getUniformLocation(String name)
+    {
+        Integer existing = uniformLocations.get(name);
+        if (existing != null)
+        {
+            return existing;
+        }
+
+        synchronized (uniformLocations)
+        {
+            return uniformLocations.computeIfAbsent(name, n ->
+            {
+                uniformValues.add(null);
+                return uniformValues.size() - 1;
+            });
+        }
+    }
+
+    @Override
+    public int getVertexAttribLocation(String name)
+    {
+        Integer existing = attributeLocations.get(name);
+        if (existing != null)
+        {
+            return existing;
+        }
+
+        synchronized (attributeLocations)
+        {
+            return attributeLocations.computeIfAbsent(name, n -> attributeLocations.size());
+        }
+    }
+
+    @Override
+    public int getUniformBlockIndex(String name)
+    {
+        Integer existing = uniformBlockIndices.get(name);
+        if (existing != null)
+        {
+            return existing;
+        }
+
+        synchronized (uniformBlockIndices)
+        {
+            return uniformBlockIndices.computeIfAbsent(name, n ->
+            {
+                uniformBuffers.add(null);
+                return uniformBuffers.size() - 1;
+            });
+        }
+    }
+
+    private boolean setUniformValue(int location, Object value)
+    {
+        synchronized (uniformLocations)
+        {
+            if (location >= 0 && location < uniformValues.size())
+            {
+                uniformValues.set(location, value);
+                return true;
+            }
+            else
+            {
+                return false;
+            }
+        }
+    }
+
+    private Object getUniformValue(int location)
+    {
+        return location >= 0 && location < uniformValues.size() ? uniformValues.get(location) : null;
+    }
+
+    @Override
+    public boolean setUniform(int location, boolean value)
+    {
+        return setUniformValue(location, value);
+    }
+
+    @Override
+    public boolean setUniform(int location, Vector4 value)
+    {
+        return setUniformValue(location, value);
+    }
+
+    @Override
+    public boolean setUniform(int location, Vector3 value)
+    {
+        return setUniformValue(location, value);
+    }
+
+    @Override
+    public boolean setUniform(int location, Vector2 value)
+    {
+        return setUniformValue(location, value);
+    }
+
+    @Override
+    public boolean setUniform(int location, float value)
+    {
+        return setUniformValue(location, value);
+    }
+
+    @Override
+    public boolean setUniform(int location, IntVector4 value)
+    {
+        return setUniformValue(location, value);
+    }
+
+    @Override
+    public boolean setUniform(int location, IntVector3 value)
+    {
+        return setUniformValue(location, value);
+    }
+
+    @Override
+    public boolean setUniform(int location, IntVector2 value)
+    {
+        return setUniformValue(location, value);
+    }
+
+    @Override
+    public boolean setUniform(int location, int value)
+    {
+        return setUniformValue(location, value);
+    }
+
+    @Override
+    public boolean setUniform(int location, Matrix4 value)
+    {
+        return setUniformValue(location, value);
+    }
+
+    @Override
+    public boolean setUniform(String name, boolean value)
+    {
+        return setUniform(getUniformLocation(name), value);
+    }
+
+    @Override
+    public boolean setUniform(String name, Vector4 value)
+    {
+        return setUniform(getUniformLocation(name), value);
+    }
+
+    @Override
+    public boolean setUniform(String name, Vector3 value)
+    {
+        return setUniform(getUniformLocation(name), value);
+    }
+
+    @Override
+    public boolean setUniform(String name, Vector2 value)
+    {
+        return setUniform(getUniformLocation(name), value);
+    }
+
+    @Override
+    public boolean setUniform(String name, float value)
+    {
+        return setUniform(getUniformLocation(name), value);
+    }
+
+    @Override
+    public boolean setUniform(String name, IntVector4 value)
+    {
+        return setUniform(getUniformLocation(name), value);
+    }
+
+    @Override
+    public boolean setUniform(String name, IntVector3 value)
+    {
+        return setUniform(getUniformLocation(name), value);
+    }
+
+    @Override
+    public boolean setUniform(String name, IntVector2 value)
+    {
+        return setUniform(getUniformLocation(name), value);
+    }
+
+    @Override
+    public boolean setUniform(String name, int value)
+    {
+        return setUniform(getUniformLocation(name), value);
+    }
+
+    @Override
+    public boolean setUniform(String name, Matrix4 value)
+    {
+        return setUniform(getUniformLocation(name), value);
+    }
+
+    @Override
+    public boolean setTexture(int location, Texture<SoftwareContext> texture)
+    {
+        if (texture == null || texture instanceof SoftwareTexture2D || texture instanceof SoftwareTexture3D
+            || texture instanceof SoftwareNullTexture)
+        {
+            return setUniformValue(location, texture);
+        }
+        else
+        {
+            throw new IllegalArgumentException("Textures must be of a type created by the software context.");
+        }
+    }
+
+    @Override
+    public boolean setTexture(String name, Texture<SoftwareContext> texture)
+    {
+        return setTexture(getUniformLocation(name), texture);
+    }
+
+    @Override
+    public boolean setUniformBuffer(int index, UniformBuffer<SoftwareContext> buffer)
+    {
+        if (buffer instanceof SoftwareUniformBuffer)
+        {
+            synchronized (uniformBlockIndices)
+            {
+                if (index >= 0 && index < uniformBuffers.size())
+                {
+                    uniformBuffers.set(index, (SoftwareUniformBuffer) buffer);
+                    return true;
+                }
+                else
+                {
+                    return false;
+                }
+            }
+        }
+        else
+        {
+            throw new IllegalArgumentException("'buffer' must be of type SoftwareUniformBuffer.");
+        }
+    }
+
+    @Override
+    public boolean setUniformBuffer(String name, UniformBuffer<SoftwareContext> buffer)
+    {
+        return setUniformBuffer(getUniformBlockIndex(name), buffer);
+    }
+
+    public boolean getBoolean(int location)
+    {
+        Object value = getUniformValue(location);
+        if (value instanceof Boolean)
+        {
+            return (Boolean) value;
+        }
+        else
+        {
+            return value instanceof Number && ((Number) value).intValue() != 0;
+        }
+    }
+
+    public int getInt(int location)
+    {
+        Object value = getUniformValue(location);
+        if (value instanceof Number)
+        {
+            return ((Number) value).intValue();
+        }
+        else
+        {
+            return value instanceof Boolean && (Boolean) value ? 1 : 0;
+        }
+    }
+
+    public float getFloat(int location)
+    {
+        Object value = getUniformValue(location);
+        return value instanceof Number ? ((Number) value).floatValue() : 0.0f;
+    }
+
+    public Vector2 getVector2(int location)
+    {
+        Object value = getUniformValue(location);
+        return value instanceof Vector2 ? (Vector2) value : Vector2.ZERO;
+    }
+
+    public Vector3 getVector3(int location)
+    {
+        Object value = getUniformValue(location);
+        return value instanceof Vector3 ? (Vector3) value : Vector3.ZERO;
+    }
+
+    public Vector4 getVector4(int location)
+    {
+        Object value = getUniformValue(location);
+        return value instanceof Vector4 ? (Vector4) value : Vector4.ZERO;
+    }
+
+    public IntVector2 getIntVector2(int location)
+    {
+        Object value = getUniformValue(location);
+        return value instanceof IntVector2 ? (IntVector2) value : null;
+    }
+
+    public IntVector3 getIntVector3(int location)
+    {
+        Object value = getUniformValue(location);
+        return value instanceof IntVector3 ? (IntVector3) value : null;
+    }
+
+    public IntVector4 getIntVector4(int location)
+    {
+        Object value = getUniformValue(location);
+        return value instanceof IntVector4 ? (IntVector4) value : null;
+    }
+
+    public Matrix4 getMatrix4(int location)
+    {
+        Object value = getUniformValue(location);
+        return value instanceof Matrix4 ? (Matrix4) value : null;
+    }
+
+    /**
+     * Gets the 2D texture bound to a sampler uniform, or null if no 2D texture (or only a null texture) is bound.
+     */
+    public SoftwareTexture2D getTexture2D(int location)
+    {
+        Object value = getUniformValue(location);
+        return value instanceof SoftwareTexture2D ? (SoftwareTexture2D) value : null;
+    }
+
+    /**
+     * Gets the texture array bound to a sampler uniform, or null if no texture array (or only a null texture) is bound.
+     */
+    public SoftwareTexture3D getTexture3D(int location)
+    {
+        Object value = getUniformValue(location);
+        return value instanceof SoftwareTexture3D ? (SoftwareTexture3D) value : null;
+    }
+
+    public SoftwareUniformBuffer getUniformBuffer(int index)
+    {
+        return index >= 0 && index < uniformBuffers.size() ? uniformBuffers.get(index) : null;
+    }
+
+    public boolean getBoolean(String name)
+    {
+        return getBoolean(getUniformLocation(name));
+    }
+
+    public int getInt(String name)
+    {
+        return getInt(getUniformLocation(name));
+    }
+
+    public float getFloat(String name)
+    {
+        return getFloat(getUniformLocation(name));
+    }
+
+    public Vector2 getVector2(String name)
+    {
+        return getVector2(getUniformLocation(name));
+    }
+
+    public Vector3 getVector3(String name)
+    {
+        return getVector3(getUniformLocation(name));
+    }
+
+    public Vector4 getVector4(String name)
+    {
+        return getVector4(getUniformLocation(name));
+    }
+
+    public IntVector2 getIntVector2(String name)
+    {
+        return getIntVector2(getUniformLocation(name));
+    }
+
+    public IntVector3 getIntVector3(String name)
+    {
+        return getIntVector3(getUniformLocation(name));
+    }
+
+    public IntVector4 getIntVector4(String name)
+    {
+        return getIntVector4(getUniformLocation(name));
+    }
+
+    public Matrix4 getMatrix4(String name)
+    {
+        return getMatrix4(getUniformLocation(name));
+    }
+
+    public SoftwareTexture2D getTexture2D(String name)
+    {
+        return getTexture2D(getUniformLocation(name));
+    }
+
+    public SoftwareTexture3D getTexture3D(String name)
+    {
+        return getTexture3D(getUniformLocation(name));
+    }
+
+    public SoftwareUniformBuffer getUniformBuffer(String name)
+    {
+        return getUniformBuffer(getUniformBlockIndex(name));
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import tetzlaff.gl.core.Shader;
+import tetzlaff.gl.core.ShaderType;
+
+/**
+ * A shader stage for the software context.
+ * Rather than compiling GLSL, each shader wraps a Java implementation of either a vertex or a fragment shader.
+ * Instances are created using SoftwareContext.createVertexShader() and SoftwareContext.createFragmentShader().
+ */
+public final class SoftwareShader implements Shader<SoftwareContext>
+{
+    private final SoftwareContext context;
+    private final ShaderType type;
+    private final VertexShader vertexShader;
+    private final FragmentShader fragmentShader;
+    private final int varyingCount;
+
+    private SoftwareShader(SoftwareContext context, ShaderType type, VertexShader vertexShader, FragmentShader fragmentShader, int varyingCount)
+    {
+        this.context = context;
+        this.type = type;
+        this.vertexShader = vertexShader;
+        this.fragmentShader = fragmentShader;
+        this.varyingCount = varyingCount;
+    }
+
+    static SoftwareShader createVertex(SoftwareContext context, int varyingCount, VertexShader shader)
+    {
+        if (varyingCount < 0)
+        {
+            throw new IllegalArgumentException("The number of varyings cannot be negative.");
+        }
+
+        return new SoftwareShader(context, ShaderType.VERTEX, shader, null, varyingCount);
+    }
+
+    static SoftwareShader createFragment(SoftwareContext context, FragmentShader shader)
+    {
+        return new SoftwareShader(context, ShaderType.FRAGMENT, null, shader, 0);
+    }
+
+    @Override
+    public SoftwareContext getContext()
+    {
+        return context;
+    }
+
+    public ShaderType getType()
+    {
+        return type;
+    }
+
+    VertexShader getVertexShader()
+    {
+        return vertexShader;
+    }
+
+    FragmentShader getFragmentShader()
+    {
+        return fragmentShader;
+    }
+
+    /**
+     * Gets the number of scalar outputs that a vertex shader passes to the fragment shader.
+     */
+    int getVaryingCount()
+    {
+        return varyingCount;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import tetzlaff.gl.builders.base.ColorTextureBuilderBase;
+import tetzlaff.gl.core.*;
+import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
+
+/**
+ * A 1D color texture for the software context, stored as a single row of texels.
+ * Only the base mipmap level is stored; mipmapping and anisotropic filtering settings are accepted but ignored.
+ */
+public final class SoftwareTexture1D implements Texture1D<SoftwareContext>, SoftwareFramebufferAttachment
+{
+    private final SoftwareContext context;
+    private final TexelBuffer texels;
+    private final ColorFormat internalColorFormat;
+    private final CompressionFormat internalCompressionFormat;
+    private final boolean linearFilteringEnabled;
+
+    private volatile TextureWrapMode wrap = TextureWrapMode.None;
+
+    static class FromBufferBuilder extends ColorTextureBuilderBase<SoftwareContext, SoftwareTexture1D>
+    {
+        private final NativeVectorBuffer data;
+
+        FromBufferBuilder(SoftwareContext context, NativeVectorBuffer data)
+        {
+            super(context);
+            this.data = data;
+        }
+
+        @Override
+        public SoftwareTexture1D createTexture()
+        {
+            TexelBuffer texels = TexelBuffer.createColor(data.getCount(), 1,
+                SoftwareTexture2D.getStorageFormat(getInternalColorFormat(), getInternalCompressionFormat()));
+            texels.load(data);
+            return new SoftwareTexture1D(context, texels, getInternalColorFormat(), getInternalCompressionFormat(), isLinearFilteringEnabled());
+        }
+    }
+
+    private SoftwareTexture1D(SoftwareContext context, TexelBuffer texels,
+        ColorFormat internalColorFormat, CompressionFormat internalCompressionFormat, boolean linearFilteringEnabled)
+    {
+        this.context = context;
+        this.texels = texels;
+        this.internalColorFormat = internalColorFormat;
+        this.internalCompressionFormat = internalCompressionFormat;
+        this.linearFilteringEnabled = linearFilteringEnabled;
+    }
+
+    @Override
+    public SoftwareContext getContext()
+    {
+        return context;
+    }
+
+    @Override
+    public TexelBuffer getTexelBuffer()
+    {
+        return texels;
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return texels.width;
+    }
+
+    @Override
+    public int getMipmapLevelCount()
+    {
+        return 1;
+    }
+
+    @Override
+    public ColorFormat getInternalUncompressedColorFormat()
+    {
+        return internalColorFormat;
+    }
+
+    @Override
+    public CompressionFormat getInternalCompressedColorFormat()
+    {
+        return internalCompressionFormat;
+    }
+
+    @Override
+    public boolean isInternalFormatCompressed()
+    {
+        return internalCompressionFormat != null;
+    }
+
+    @Override
+    public TextureType getTextureType()
+    {
+        return TextureType.COLOR;
+    }
+
+    @Override
+    public void setTextureWrap(TextureWrapMode wrap)
+    {
+        this.wrap = wrap;
+    }
+
+    /**
+     * Samples the texture at a normalized texture coordinate (the equivalent of GLSL texture()), writing RGBA into the destination.
+     */
+    public void sample(float s, float[] destination)
+    {
+        texels.sample(s, 0.5f, wrap, TextureWrapMode.None, linearFilteringEnabled, destination, 0);
+    }
+
+    /**
+     * Reads a single texel without filtering (the equivalent of GLSL texelFetch()), writing RGBA into the destination.
+     */
+    public void fetch(int x, float[] destination)
+    {
+        texels.readAny(x, 0, destination, 0);
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
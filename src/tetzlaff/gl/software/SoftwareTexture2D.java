@@ -0,0 +1,398 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Function;
+import javax.imageio.ImageIO;
+
+import tetzlaff.gl.builders.base.ColorTextureBuilderBase;
+import tetzlaff.gl.builders.base.DepthStencilTextureBuilderBase;
+import tetzlaff.gl.builders.base.DepthTextureBuilderBase;
+import tetzlaff.gl.builders.base.StencilTextureBuilderBase;
+import tetzlaff.gl.core.*;
+import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
+import tetzlaff.gl.types.AbstractDataType;
+import tetzlaff.gl.vecmath.Vector4;
+import tetzlaff.util.RadianceImageLoader;
+import tetzlaff.util.RadianceImageLoader.Image;
+
+/**
+ * A 2D texture for the software context.
+ * Only the base mipmap level is stored; mipmapping, anisotropic filtering and multisampling settings are accepted but ignored.
+ * Compressed internal formats are stored uncompressed.
+ */
+public final class SoftwareTexture2D implements Texture2D<SoftwareContext>, SoftwareFramebufferAttachment
+{
+    private final SoftwareContext context;
+    private final TexelBuffer texels;
+    private final TextureType textureType;
+    private final ColorFormat internalColorFormat;
+    private final CompressionFormat internalCompressionFormat;
+    private final boolean linearFilteringEnabled;
+
+    private volatile TextureWrapMode wrapS = TextureWrapMode.None;
+    private volatile TextureWrapMode wrapT = TextureWrapMode.None;
+
+    static ColorFormat getStorageFormat(ColorFormat colorFormat, CompressionFormat compressionFormat)
+    {
+        if (compressionFormat == null)
+        {
+            return colorFormat;
+        }
+
+        switch (compressionFormat)
+        {
+            case RED_4BPP: return ColorFormat.R8;
+            case SIGNED_RED_4BPP: return ColorFormat.R8_SNORM;
+            case RED_4BPP_GREEN_4BPP: return ColorFormat.RG8;
+            case SIGNED_RED_4BPP_GREEN_4BPP: return ColorFormat.RG8_SNORM;
+            case RGB_4BPP: return ColorFormat.RGB8;
+            case SRGB_4BPP: return ColorFormat.SRGB8;
+            case SRGB_PUNCHTHROUGH_ALPHA1_4BPP:
+            case SRGB_4BPP_ALPHA_4BPP:
+                return ColorFormat.SRGB8_ALPHA8;
+            case RGB_PUNCHTHROUGH_ALPHA1_4BPP:
+            case RGB_4BPP_ALPHA_4BPP:
+            default:
+                return ColorFormat.RGBA8;
+        }
+    }
+
+    static class ColorBuilder extends ColorTextureBuilderBase<SoftwareContext, SoftwareTexture2D>
+    {
+        private final int width;
+        private final int height;
+
+        ColorBuilder(SoftwareContext context, int width, int height)
+        {
+            super(context);
+            this.width = width;
+            this.height = height;
+        }
+
+        TexelBuffer createTexelBuffer()
+        {
+            return TexelBuffer.createColor(width, height, getStorageFormat(getInternalColorFormat(), getInternalCompressionFormat()));
+        }
+
+        @Override
+        public SoftwareTexture2D createTexture()
+        {
+            return new SoftwareTexture2D(context, createTexelBuffer(), TextureType.COLOR,
+                getInternalColorFormat(), getInternalCompressionFormat(), isLinearFilteringEnabled());
+        }
+    }
+
+    static class FromBufferBuilder extends ColorBuilder
+    {
+        private final NativeVectorBuffer data;
+
+        FromBufferBuilder(SoftwareContext context, int width, int height, NativeVectorBuffer data)
+        {
+            super(context, width, height);
+            this.data = data;
+        }
+
+        @Override
+        TexelBuffer createTexelBuffer()
+        {
+            TexelBuffer texels = super.createTexelBuffer();
+            texels.load(data);
+            return texels;
+        }
+    }
+
+    static class FromImageBuilder extends ColorBuilder
+    {
+        private final BufferedImage colorImg;
+        private final BufferedImage maskImg;
+        private final boolean flipVertical;
+
+        FromImageBuilder(SoftwareContext context, BufferedImage colorImg, BufferedImage maskImg, boolean flipVertical)
+        {
+            super(context, colorImg.getWidth(), colorImg.getHeight());
+            this.colorImg = colorImg;
+            this.maskImg = maskImg;
+            this.flipVertical = flipVertical;
+
+            if (maskImg != null && (maskImg.getWidth() != colorImg.getWidth() || maskImg.getHeight() != colorImg.getHeight()))
+            {
+                throw new IllegalArgumentException("Color image and mask image must have the same dimensions.");
+            }
+        }
+
+        @Override
+        TexelBuffer createTexelBuffer()
+        {
+            TexelBuffer texels = super.createTexelBuffer();
+            texels.loadImage(colorImg, maskImg, flipVertical);
+            return texels;
+        }
+    }
+
+    static class MappedFromImageBuilder<MappedType> extends ColorBuilder
+    {
+        private final BufferedImage colorImg;
+        private final BufferedImage maskImg;
+        private final boolean flipVertical;
+        private final AbstractDataType<? super MappedType> mappedType;
+        private final Function<Color, MappedType> mappingFunction;
+
+        MappedFromImageBuilder(SoftwareContext context, BufferedImage colorImg, BufferedImage maskImg, boolean flipVertical,
+            AbstractDataType<? super MappedType> mappedType, Function<Color, MappedType> mappingFunction)
+        {
+            super(context, colorImg.getWidth(), colorImg.getHeight());
+            this.colorImg = colorImg;
+            this.maskImg = maskImg;
+            this.flipVertical = flipVertical;
+            this.mappedType = mappedType;
+            this.mappingFunction = mappingFunction;
+
+            if (maskImg != null && (maskImg.getWidth() != colorImg.getWidth() || maskImg.getHeight() != colorImg.getHeight()))
+            {
+                throw new IllegalArgumentException("Color image and mask image must have the same dimensions.");
+            }
+        }
+
+        @Override
+        TexelBuffer createTexelBuffer()
+        {
+            TexelBuffer texels = super.createTexelBuffer();
+            texels.loadImage(colorImg, maskImg, flipVertical, mappedType, mappingFunction);
+            return texels;
+        }
+    }
+
+    static class FromHDRImageBuilder extends ColorBuilder
+    {
+        private final Image colorImg;
+        private final BufferedImage maskImg;
+
+        FromHDRImageBuilder(SoftwareContext context, Image colorImg, BufferedImage maskImg)
+        {
+            super(context, colorImg.width, colorImg.height);
+            this.colorImg = colorImg;
+            this.maskImg = maskImg;
+
+            if (maskImg != null && (maskImg.getWidth() != colorImg.width || maskImg.getHeight() != colorImg.height))
+            {
+                throw new IllegalArgumentException("Color image and mask image must have the same dimensions.");
+            }
+        }
+
+        @Override
+        TexelBuffer createTexelBuffer()
+        {
+            TexelBuffer texels = super.createTexelBuffer();
+            texels.loadImage(colorImg, maskImg);
+            return texels;
+        }
+    }
+
+    static BufferedImage readImage(InputStream stream) throws IOException
+    {
+        BufferedImage image = ImageIO.read(stream);
+        if (image == null)
+        {
+            throw new IOException("Error: Unsupported image format.");
+        }
+        return image;
+    }
+
+    static FromImageBuilder fromStream(SoftwareContext context, InputStream imageStream, InputStream maskStream, boolean flipVertical)
+        throws IOException
+    {
+        return new FromImageBuilder(context, readImage(imageStream), maskStream == null ? null : readImage(maskStream), flipVertical);
+    }
+
+    static FromHDRImageBuilder fromHDRStream(SoftwareContext context, BufferedInputStream imageStream, InputStream maskStream, boolean flipVertical)
+        throws IOException
+    {
+        return new FromHDRImageBuilder(context, new RadianceImageLoader().read(imageStream, flipVertical, true),
+            maskStream == null ? null : readImage(maskStream));
+    }
+
+    static class DepthBuilder extends DepthTextureBuilderBase<SoftwareContext, SoftwareTexture2D>
+    {
+        private final int width;
+        private final int height;
+
+        DepthBuilder(SoftwareContext context, int width, int height)
+        {
+            super(context);
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public SoftwareTexture2D createTexture()
+        {
+            return new SoftwareTexture2D(context, TexelBuffer.createDepth(width, height, isFloatingPointEnabled()),
+                isFloatingPointEnabled() ? TextureType.FLOATING_POINT_DEPTH : TextureType.DEPTH, null, null, isLinearFilteringEnabled());
+        }
+    }
+
+    static class StencilBuilder extends StencilTextureBuilderBase<SoftwareContext, SoftwareTexture2D>
+    {
+        private final int width;
+        private final int height;
+
+        StencilBuilder(SoftwareContext context, int width, int height)
+        {
+            super(context);
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public SoftwareTexture2D createTexture()
+        {
+            return new SoftwareTexture2D(context, TexelBuffer.createStencil(width, height), TextureType.STENCIL, null, null, false);
+        }
+    }
+
+    /**
+     * Combined depth-stencil textures only store depth, since the software context has no stencil test.
+     */
+    static class DepthStencilBuilder extends DepthStencilTextureBuilderBase<SoftwareContext, SoftwareTexture2D>
+    {
+        private final int width;
+        private final int height;
+
+        DepthStencilBuilder(SoftwareContext context, int width, int height)
+        {
+            super(context);
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public SoftwareTexture2D createTexture()
+        {
+            return new SoftwareTexture2D(context, TexelBuffer.createDepth(width, height, isFloatingPointEnabled()),
+                isFloatingPointEnabled() ? TextureType.FLOATING_POINT_DEPTH_STENCIL : TextureType.DEPTH_STENCIL, null, null,
+                isLinearFilteringEnabled());
+        }
+    }
+
+    SoftwareTexture2D(SoftwareContext context, TexelBuffer texels, TextureType textureType,
+        ColorFormat internalColorFormat, CompressionFormat internalCompressionFormat, boolean linearFilteringEnabled)
+    {
+        this.context = context;
+        this.texels = texels;
+        this.textureType = textureType;
+        this.internalColorFormat = internalColorFormat;
+        this.internalCompressionFormat = internalCompressionFormat;
+        this.linearFilteringEnabled = linearFilteringEnabled;
+    }
+
+    @Override
+    public SoftwareContext getContext()
+    {
+        return context;
+    }
+
+    @Override
+    public TexelBuffer getTexelBuffer()
+    {
+        return texels;
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return texels.width;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return texels.height;
+    }
+
+    @Override
+    public int getMipmapLevelCount()
+    {
+        return 1;
+    }
+
+    @Override
+    public ColorFormat getInternalUncompressedColorFormat()
+    {
+        return internalColorFormat;
+    }
+
+    @Override
+    public CompressionFormat getInternalCompressedColorFormat()
+    {
+        return internalCompressionFormat;
+    }
+
+    @Override
+    public boolean isInternalFormatCompressed()
+    {
+        return internalCompressionFormat != null;
+    }
+
+    @Override
+    public TextureType getTextureType()
+    {
+        return textureType;
+    }
+
+    @Override
+    public void setTextureWrap(TextureWrapMode wrapS, TextureWrapMode wrapT)
+    {
+        this.wrapS = wrapS;
+        this.wrapT = wrapT;
+    }
+
+    @Override
+    public void load(NativeVectorBuffer data)
+    {
+        texels.load(data);
+    }
+
+    /**
+     * Samples the texture at normalized texture coordinates (the equivalent of GLSL texture()), writing RGBA into the destination.
+     * Depth textures return the depth in the red channel.
+     */
+    public void sample(float s, float t, float[] destination)
+    {
+        texels.sample(s, t, wrapS, wrapT, linearFilteringEnabled, destination, 0);
+    }
+
+    public Vector4 sample(float s, float t)
+    {
+        float[] rgba = new float[4];
+        sample(s, t, rgba);
+        return new Vector4(rgba[0], rgba[1], rgba[2], rgba[3]);
+    }
+
+    /**
+     * Reads a single texel without filtering (the equivalent of GLSL texelFetch()), writing RGBA into the destination.
+     */
+    public void fetch(int x, int y, float[] destination)
+    {
+        texels.readAny(x, y, destination, 0);
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Function;
+
+import tetzlaff.gl.builders.base.ColorTextureBuilderBase;
+import tetzlaff.gl.builders.base.DepthStencilTextureBuilderBase;
+import tetzlaff.gl.builders.base.DepthTextureBuilderBase;
+import tetzlaff.gl.builders.base.StencilTextureBuilderBase;
+import tetzlaff.gl.core.*;
+import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
+import tetzlaff.gl.types.AbstractDataType;
+import tetzlaff.gl.vecmath.Vector4;
+
+/**
+ * A 2D texture array for the software context.
+ * Each layer is stored separately so that layers can be loaded independently and used as framebuffer attachments.
+ */
+public final class SoftwareTexture3D implements Texture3D<SoftwareContext>
+{
+    private final SoftwareContext context;
+    private final TexelBuffer[] layers;
+    private final TextureType textureType;
+    private final ColorFormat internalColorFormat;
+    private final CompressionFormat internalCompressionFormat;
+    private final boolean linearFilteringEnabled;
+
+    private volatile TextureWrapMode wrapS = TextureWrapMode.None;
+    private volatile TextureWrapMode wrapT = TextureWrapMode.None;
+
+    static class ColorBuilder extends ColorTextureBuilderBase<SoftwareContext, SoftwareTexture3D>
+    {
+        private final int width;
+        private final int height;
+        private final int depth;
+
+        ColorBuilder(SoftwareContext context, int width, int height, int depth)
+        {
+            super(context);
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+        }
+
+        @Override
+        public SoftwareTexture3D createTexture()
+        {
+            ColorFormat storageFormat = SoftwareTexture2D.getStorageFormat(getInternalColorFormat(), getInternalCompressionFormat());
+            TexelBuffer[] layers = new TexelBuffer[depth];
+            for (int i = 0; i < depth; i++)
+            {
+                layers[i] = TexelBuffer.createColor(width, height, storageFormat);
+            }
+
+            return new SoftwareTexture3D(context, layers, TextureType.COLOR,
+                getInternalColorFormat(), getInternalCompressionFormat(), isLinearFilteringEnabled());
+        }
+    }
+
+    static class DepthBuilder extends DepthTextureBuilderBase<SoftwareContext, SoftwareTexture3D>
+    {
+        private final int width;
+        private final int height;
+        private final int depth;
+
+        DepthBuilder(SoftwareContext context, int width, int height, int depth)
+        {
+            super(context);
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+        }
+
+        @Override
+        public SoftwareTexture3D createTexture()
+        {
+            TexelBuffer[] layers = new TexelBuffer[depth];
+            for (int i = 0; i < depth; i++)
+            {
+                layers[i] = TexelBuffer.createDepth(width, height, isFloatingPointEnabled());
+            }
+
+            return new SoftwareTexture3D(context, layers,
+                isFloatingPointEnabled() ? TextureType.FLOATING_POINT_DEPTH : TextureType.DEPTH, null, null, isLinearFilteringEnabled());
+        }
+    }
+
+    static class StencilBuilder extends StencilTextureBuilderBase<SoftwareContext, SoftwareTexture3D>
+    {
+        private final int width;
+        private final int height;
+        private final int depth;
+
+        StencilBuilder(SoftwareContext context, int width, int height, int depth)
+        {
+            super(context);
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+        }
+
+        @Override
+        public SoftwareTexture3D createTexture()
+        {
+            TexelBuffer[] layers = new TexelBuffer[depth];
+            for (int i = 0; i < depth; i++)
+            {
+                layers[i] = TexelBuffer.createStencil(width, height);
+            }
+
+            return new SoftwareTexture3D(context, layers, TextureType.STENCIL, null, null, false);
+        }
+    }
+
+    static class DepthStencilBuilder extends DepthStencilTextureBuilderBase<SoftwareContext, SoftwareTexture3D>
+    {
+        private final int width;
+        private final int height;
+        private final int depth;
+
+        DepthStencilBuilder(SoftwareContext context, int width, int height, int depth)
+        {
+            super(context);
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+        }
+
+        @Override
+        public SoftwareTexture3D createTexture()
+        {
+            TexelBuffer[] layers = new TexelBuffer[depth];
+            for (int i = 0; i < depth; i++)
+            {
+                layers[i] = TexelBuffer.createDepth(width, height, isFloatingPointEnabled());
+            }
+
+            return new SoftwareTexture3D(context, layers,
+                isFloatingPointEnabled() ? TextureType.FLOATING_POINT_DEPTH_STENCIL : TextureType.DEPTH_STENCIL, null, null,
+                isLinearFilteringEnabled());
+        }
+    }
+
+    private final class LayerAttachment implements SoftwareFramebufferAttachment
+    {
+        private final int layerIndex;
+
+        LayerAttachment(int layerIndex)
+        {
+            this.layerIndex = layerIndex;
+        }
+
+        @Override
+        public SoftwareContext getContext()
+        {
+            return context;
+        }
+
+        @Override
+        public TexelBuffer getTexelBuffer()
+        {
+            return layers[layerIndex];
+        }
+    }
+
+    private SoftwareTexture3D(SoftwareContext context, TexelBuffer[] layers, TextureType textureType,
+        ColorFormat internalColorFormat, CompressionFormat internalCompressionFormat, boolean linearFilteringEnabled)
+    {
+        if (layers.length == 0)
+        {
+            throw new IllegalArgumentException("A texture array must have at least one layer.");
+        }
+
+        this.context = context;
+        this.layers = layers;
+        this.textureType = textureType;
+        this.internalColorFormat = internalColorFormat;
+        this.internalCompressionFormat = internalCompressionFormat;
+        this.linearFilteringEnabled = linearFilteringEnabled;
+    }
+
+    @Override
+    public SoftwareContext getContext()
+    {
+        return context;
+    }
+
+    @Override
+    public int getWidth()
+    {
+        return layers[0].width;
+    }
+
+    @Override
+    public int getHeight()
+    {
+        return layers[0].height;
+    }
+
+    @Override
+    public int getDepth()
+    {
+        return layers.length;
+    }
+
+    @Override
+    public int getMipmapLevelCount()
+    {
+        return 1;
+    }
+
+    @Override
+    public ColorFormat getInternalUncompressedColorFormat()
+    {
+        return internalColorFormat;
+    }
+
+    @Override
+    public CompressionFormat getInternalCompressedColorFormat()
+    {
+        return internalCompressionFormat;
+    }
+
+    @Override
+    public boolean isInternalFormatCompressed()
+    {
+        return internalCompressionFormat != null;
+    }
+
+    @Override
+    public TextureType getTextureType()
+    {
+        return textureType;
+    }
+
+    @Override
+    public void setTextureWrap(TextureWrapMode wrapS, TextureWrapMode wrapT, TextureWrapMode wrapR)
+    {
+        // Layers are selected by index, so the wrap mode along the layer axis has no effect.
+        this.wrapS = wrapS;
+        this.wrapT = wrapT;
+    }
+
+    private TexelBuffer getLayer(int layerIndex)
+    {
+        if (layerIndex < 0 || layerIndex >= layers.length)
+        {
+            throw new IllegalArgumentException("The layer index specified (" + layerIndex + ") is out of bounds (layer count: " + layers.length + ").");
+        }
+
+        return layers[layerIndex];
+    }
+
+    private BufferedImage validateAndScaleImage(int layerIndex, BufferedImage img)
+    {
+        getLayer(layerIndex);
+
+        if (img.getWidth() == getWidth() && img.getHeight() == getHeight())
+        {
+            return img;
+        }
+        else
+        {
+            BufferedImage resized = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
+            Graphics resizedGraphics = resized.createGraphics();
+            resizedGraphics.drawImage(img.getScaledInstance(getWidth(), getHeight(), java.awt.Image.SCALE_SMOOTH), 0, 0, null);
+            resizedGraphics.dispose();
+            return resized;
+        }
+    }
+
+    @Override
+    public void loadLayer(int layerIndex, InputStream fileStream, boolean flipVertical) throws IOException
+    {
+        getLayer(layerIndex).loadImage(validateAndScaleImage(layerIndex, SoftwareTexture2D.readImage(fileStream)), null, flipVertical);
+    }
+
+    @Override
+    public void loadLayer(int layerIndex, File file, boolean flipVertical) throws IOException
+    {
+        try (InputStream stream = new FileInputStream(file))
+        {
+            loadLayer(layerIndex, stream, flipVertical);
+        }
+    }
+
+    @Override
+    public void loadLayer(int layerIndex, InputStream imageStream, InputStream maskStream, boolean flipVertical) throws IOException
+    {
+        getLayer(layerIndex).loadImage(
+            validateAndScaleImage(layerIndex, SoftwareTexture2D.readImage(imageStream)),
+            validateAndScaleImage(layerIndex, SoftwareTexture2D.readImage(maskStream)),
+            flipVertical);
+    }
+
+    @Override
+    public void loadLayer(int layerIndex, File imageFile, File maskFile, boolean flipVertical) throws IOException
+    {
+        try (InputStream imageStream = new FileInputStream(imageFile); InputStream maskStream = new FileInputStream(maskFile))
+        {
+            loadLayer(layerIndex, imageStream, maskStream, flipVertical);
+        }
+    }
+
+    @Override
+    public <MappedType> void loadLayer(int layerIndex, InputStream fileStream, boolean flipVertical,
+        AbstractDataType<? super MappedType> mappedType, Function<Color, MappedType> mappingFunction) throws IOException
+    {
+        getLayer(layerIndex).loadImage(validateAndScaleImage(layerIndex, SoftwareTexture2D.readImage(fileStream)), null, flipVertical,
+            mappedType, mappingFunction);
+    }
+
+    @Override
+    public <MappedType> void loadLayer(int layerIndex, File file, boolean flipVertical,
+        AbstractDataType<? super MappedType> mappedType, Function<Color, MappedType> mappingFunction) throws IOException
+    {
+        try (InputStream stream = new FileInputStream(file))
+        {
+            loadLayer(layerIndex, stream, flipVertical, mappedType, mappingFunction);
+        }
+    }
+
+    @Override
+    public <MappedType> void loadLayer(int layerIndex, InputStream imageStream, InputStream maskStream, boolean flipVertical,
+        AbstractDataType<? super MappedType> mappedType, Function<Color, MappedType> mappingFunction) throws IOException
+    {
+        getLayer(layerIndex).loadImage(
+            validateAndScaleImage(layerIndex, SoftwareTexture2D.readImage(imageStream)),
+            validateAndScaleImage(layerIndex, SoftwareTexture2D.readImage(maskStream)),
+            flipVertical, mappedType, mappingFunction);
+    }
+
+    @Override
+    public <MappedType> void loadLayer(int layerIndex, File imageFile, File maskFile, boolean flipVertical,
+        AbstractDataType<? super MappedType> mappedType, Function<Color, MappedType> mappingFunction) throws IOException
+    {
+        try (InputStream imageStream = new FileInputStream(imageFile); InputStream maskStream = new FileInputStream(maskFile))
+        {
+            loadLayer(layerIndex, imageStream, maskStream, flipVertical, mappedType, mappingFunction);
+        }
+    }
+
+    @Override
+    public void loadLayer(int layerIndex, NativeVectorBuffer data)
+    {
+        getLayer(layerIndex).load(data);
+    }
+
+    @Override
+    public FramebufferAttachment<SoftwareContext> getLayerAsFramebufferAttachment(int layerIndex)
+    {
+        getLayer(layerIndex);
+        return new LayerAttachment(layerIndex);
+    }
+
+    /**
+     * Samples a layer of the texture array at normalized texture coordinates, writing RGBA into the destination.
+     * The layer coordinate is rounded and clamped to the valid range, as in GLSL.
+     */
+    public void sample(float s, float t, float layer, float[] destination)
+    {
+        int layerIndex = Math.max(0, Math.min(layers.length - 1, Math.round(layer)));
+        layers[layerIndex].sample(s, t, wrapS, wrapT, linearFilteringEnabled, destination, 0);
+    }
+
+    public Vector4 sample(float s, float t, float layer)
+    {
+        float[] rgba = new float[4];
+        sample(s, t, layer, rgba);
+        return new Vector4(rgba[0], rgba[1], rgba[2], rgba[3]);
+    }
+
+    /**
+     * Reads a single texel without filtering (the equivalent of GLSL texelFetch()), writing RGBA into the destination.
+     */
+    public void fetch(int x, int y, int layerIndex, float[] destination)
+    {
+        layers[layerIndex].readAny(x, y, destination, 0);
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Function;
+
+import tetzlaff.gl.builders.*;
+import tetzlaff.gl.core.*;
+import tetzlaff.gl.nativebuffer.NativeDataType;
+import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
+import tetzlaff.gl.nativebuffer.NativeVectorBufferFactory;
+import tetzlaff.gl.types.AbstractDataType;
+
+/**
+ * Texture factory for the software context.
+ * 1D color textures, 1D color texture arrays, 2D textures, 2D texture arrays and their depth / stencil variants are supported.
+ * Cubemaps are not needed by anything that runs on the software context and are not implemented.
+ */
+class SoftwareTextureFactory implements TextureFactory<SoftwareContext>
+{
+    private final SoftwareContext context;
+
+    SoftwareTextureFactory(SoftwareContext context)
+    {
+        this.context = context;
+    }
+
+    @Override
+    public ColorTextureBuilder<SoftwareContext, ? extends Texture2D<SoftwareContext>> build2DColorTextureFromStreamWithMask(
+        InputStream imageStream, InputStream maskStream, boolean flipVertical) throws IOException
+    {
+        return SoftwareTexture2D.fromStream(context, imageStream, maskStream, flipVertical);
+    }
+
+    @Override
+    public <MappedType> ColorTextureBuilder<SoftwareContext, ? extends Texture2D<SoftwareContext>> build2DColorTextureFromStreamWithMask(
+        InputStream imageStream, InputStream maskStream, boolean flipVertical,
+        AbstractDataType<? super MappedType> mappedType, Function<Color, MappedType> mappingFunction) throws IOException
+    {
+        return new SoftwareTexture2D.MappedFromImageBuilder<>(context, SoftwareTexture2D.readImage(imageStream),
+            maskStream == null ? null : SoftwareTexture2D.readImage(maskStream), flipVertical, mappedType, mappingFunction);
+    }
+
+    @Override
+    public ColorTextureBuilder<SoftwareContext, ? extends Texture2D<SoftwareContext>> build2DColorHDRTextureFromStreamWithMask(
+        BufferedInputStream imageStream, InputStream maskStream, boolean flipVertical) throws IOException
+    {
+        return SoftwareTexture2D.fromHDRStream(context, imageStream, maskStream, flipVertical);
+    }
+
+    @Override
+    public ColorTextureBuilder<SoftwareContext, ? extends Texture2D<SoftwareContext>> build2DColorTextureFromImageWithMask(
+        BufferedImage colorImage, BufferedImage maskImage, boolean flipVertical)
+    {
+        return new SoftwareTexture2D.FromImageBuilder(context, colorImage, maskImage, flipVertical);
+    }
+
+    @Override
+    public <MappedType> ColorTextureBuilder<SoftwareContext, ? extends Texture2D<SoftwareContext>> build2DColorTextureFromImageWithMask(
+        BufferedImage colorImage, BufferedImage maskImage, boolean flipVertical,
+        AbstractDataType<? super MappedType> mappedType, Function<Color, MappedType> mappingFunction)
+    {
+        return new SoftwareTexture2D.MappedFromImageBuilder<>(context, colorImage, maskImage, flipVertical, mappedType, mappingFunction);
+    }
+
+    @Override
+    public ColorTextureBuilder<SoftwareContext, ? extends Texture1D<SoftwareContext>> build1DColorTexture(NativeVectorBuffer data)
+    {
+        return new SoftwareTexture1D.FromBufferBuilder(context, data);
+    }
+
+    @Override
+    public ColorTextureBuilder<SoftwareContext, ? extends Texture2D<SoftwareContext>> build2DColorTextureFromBuffer(
+        int width, int height, NativeVectorBuffer data)
+    {
+        return new SoftwareTexture2D.FromBufferBuilder(context, width, height, data);
+    }
+
+    @Override
+    public ColorTextureBuilder<SoftwareContext, ? extends Texture2D<SoftwareContext>> build2DColorTexture(int width, int height)
+    {
+        return new SoftwareTexture2D.ColorBuilder(context, width, height);
+    }
+
+    @Override
+    public ColorTextureBuilder<SoftwareContext, ? extends Texture2D<SoftwareContext>> build1DColorTextureArray(int width, int height)
+    {
+        // Like OpenGL, a 1D texture array is laid out as a 2D texture with one row per layer.
+        return new SoftwareTexture2D.ColorBuilder(context, width, height);
+    }
+
+    @Override
+    public DepthTextureBuilder<SoftwareContext, ? extends Texture2D<SoftwareContext>> build2DDepthTexture(int width, int height)
+    {
+        return new SoftwareTexture2D.DepthBuilder(context, width, height);
+    }
+
+    @Override
+    public StencilTextureBuilder<SoftwareContext, ? extends Texture2D<SoftwareContext>> build2DStencilTexture(int width, int height)
+    {
+        return new SoftwareTexture2D.StencilBuilder(context, width, height);
+    }
+
+    @Override
+    public DepthStencilTextureBuilder<SoftwareContext, ? extends Texture2D<SoftwareContext>> build2DDepthStencilTexture(int width, int height)
+    {
+        return new SoftwareTexture2D.DepthStencilBuilder(context, width, height);
+    }
+
+    // Supporting code (same tables as the OpenGL implementation so that noise-based shaders match):
+    // Author: Stefan Gustavson (stegu@itn.liu.se) 2004
+    // You may use, modify and redistribute this code free of charge,
+    // provided that my name and this notice appears intact.
+    // https://github.com/ashima/webgl-noise
+    // Modified by Michael Tetzlaff
+
+    private static final int[] PERM = {151,160,137,91,90,15,
+        131,13,201,95,96,53,194,233,7,225,140,36,103,30,69,142,8,99,37,240,21,10,23,
+        190, 6,148,247,120,234,75,0,26,197,62,94,252,219,203,117,35,11,32,57,177,33,
+        88,237,149,56,87,174,20,125,136,171,168, 68,175,74,165,71,134,139,48,27,166,
+        77,146,158,231,83,111,229,122,60,211,133,230,220,105,92,41,55,46,245,40,244,
+        102,143,54, 65,25,63,161, 1,216,80,73,209,76,132,187,208, 89,18,169,200,196,
+        135,130,116,188,159,86,164,100,109,198,173,186, 3,64,52,217,226,250,124,123,
+        5,202,38,147,118,126,255,82,85,212,207,206,59,227,47,16,58,17,182,189,28,42,
+        223,183,170,213,119,248,152, 2,44,154,163, 70,221,153,101,155,167, 43,172,9,
+        129,22,39,253, 19,98,108,110,79,113,224,232,178,185, 112,104,218,246,97,228,
+        251,34,242,193,238,210,144,12,191,179,162,241, 81,51,145,235,249,14,239,107,
+        49,192,214, 31,181,199,106,157,184, 84,204,176,115,121,50,45,127, 4,150,254,
+        138,236,205,93,222,114,67,29,24,72,243,141,128,195,78,66,215,61,156,180};
+
+    private static final int[][] GRAD3 = {{0,1,1},{0,1,-1},{0,-1,1},{0,-1,-1},
+        {1,0,1},{1,0,-1},{-1,0,1},{-1,0,-1},
+        {1,1,0},{1,-1,0},{-1,1,0},{-1,-1,0}, // 12 cube edges
+        {1,0,-1},{-1,0,-1},{0,-1,1},{0,1,1}}; // 4 more to make 16
+
+    @Override
+    public TextureBuilder<SoftwareContext, ? extends Texture2D<SoftwareContext>> buildPerlinNoiseTexture()
+    {
+        byte[] pixels = new byte[256 * 256 * 4];
+        for (int i = 0; i < 256; i++)
+        {
+            for (int j = 0; j < 256; j++)
+            {
+                int offset = (i * 256 + j) * 4;
+                byte value = (byte) PERM[(j + PERM[i]) & 0xFF];
+                pixels[offset] = (byte)(GRAD3[value & 0x0F][0] * 64 + 64);     // Gradient x
+                pixels[offset + 1] = (byte)(GRAD3[value & 0x0F][1] * 64 + 64); // Gradient y
+                pixels[offset + 2] = (byte)(GRAD3[value & 0x0F][2] * 64 + 64); // Gradient z
+                pixels[offset + 3] = value;                                    // Permuted index
+            }
+        }
+
+        return new SoftwareTexture2D.FromBufferBuilder(context, 256, 256,
+            NativeVectorBufferFactory.getInstance().createFromByteArray(NativeDataType.UNSIGNED_BYTE, 4, 256 * 256, pixels));
+    }
+
+    // End of supporting code
+
+    @Override
+    public ColorTextureBuilder<SoftwareContext, ? extends Texture3D<SoftwareContext>> build2DColorTextureArray(int width, int height, int length)
+    {
+        return new SoftwareTexture3D.ColorBuilder(context, width, height, length);
+    }
+
+    @Override
+    public DepthTextureBuilder<SoftwareContext, ? extends Texture3D<SoftwareContext>> build2DDepthTextureArray(int width, int height, int length)
+    {
+        return new SoftwareTexture3D.DepthBuilder(context, width, height, length);
+    }
+
+    @Override
+    public StencilTextureBuilder<SoftwareContext, ? extends Texture3D<SoftwareContext>> build2DStencilTextureArray(int width, int height, int length)
+    {
+        return new SoftwareTexture3D.StencilBuilder(context, width, height, length);
+    }
+
+    @Override
+    public DepthStencilTextureBuilder<SoftwareContext, ? extends Texture3D<SoftwareContext>> build2DDepthStencilTextureArray(
+        int width, int height, int length)
+    {
+        return new SoftwareTexture3D.DepthStencilBuilder(context, width, height, length);
+    }
+
+    @Override
+    public ColorCubemapBuilder<SoftwareContext, ? extends Cubemap<SoftwareContext>> buildColorCubemap(int faceSize)
+    {
+        throw new UnsupportedOperationException("Cubemaps are not supported by the software context.");
+    }
+
+    @Override
+    public DepthTextureBuilder<SoftwareContext, ? extends Cubemap<SoftwareContext>> buildDepthCubemap(int faceSize)
+    {
+        throw new UnsupportedOperationException("Cubemaps are not supported by the software context.");
+    }
+
+    @Override
+    public StencilTextureBuilder<SoftwareContext, ? extends Cubemap<SoftwareContext>> buildStencilCubemap(int faceSize)
+    {
+        throw new UnsupportedOperationException("Cubemaps are not supported by the software context.");
+    }
+
+    @Override
+    public DepthStencilTextureBuilder<SoftwareContext, ? extends Cubemap<SoftwareContext>> buildDepthStencilCubemap(int faceSize)
+    {
+        throw new UnsupportedOperationException("Cubemaps are not supported by the software context.");
+    }
+
+    @Override
+    public Texture<SoftwareContext> getNullTexture(SamplerType samplerType)
+    {
+        return context.getNullTexture();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import tetzlaff.gl.core.UniformBuffer;
+import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
+
+/**
+ * A uniform buffer for the software context.
+ * The data is copied when it is set; shaders read it back using byte offsets that follow the std140 layout
+ * that the equivalent GLSL uniform block would use.
+ */
+public final class SoftwareUniformBuffer implements UniformBuffer<SoftwareContext>
+{
+    private final SoftwareContext context;
+    private ByteBuffer data = ByteBuffer.allocate(0).order(ByteOrder.nativeOrder());
+
+    SoftwareUniformBuffer(SoftwareContext context)
+    {
+        this.context = context;
+    }
+
+    @Override
+    public SoftwareContext getContext()
+    {
+        return context;
+    }
+
+    @Override
+    public SoftwareUniformBuffer setData(ByteBuffer data)
+    {
+        ByteBuffer source = data.duplicate();
+        ByteBuffer copy = ByteBuffer.allocate(source.remaining()).order(ByteOrder.nativeOrder());
+        copy.put(source);
+        copy.rewind();
+        this.data = copy;
+        return this;
+    }
+
+    @Override
+    public SoftwareUniformBuffer setData(NativeVectorBuffer data)
+    {
+        return setData(data.getBuffer());
+    }
+
+    public int size()
+    {
+        return data.capacity();
+    }
+
+    public float getFloat(int byteOffset)
+    {
+        return data.getFloat(byteOffset);
+    }
+
+    public int getInt(int byteOffset)
+    {
+        return data.getInt(byteOffset);
+    }
+
+    @Override
+    public void close()
+    {
+        data = ByteBuffer.allocate(0).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import tetzlaff.gl.core.VertexBuffer;
+import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
+
+/**
+ * A vertex buffer for the software context.
+ * Data is converted to single-precision floats when it is set, as the software pipeline always works in floating point.
+ */
+final class SoftwareVertexBuffer implements VertexBuffer<SoftwareContext>
+{
+    private final SoftwareContext context;
+    private float[] data = new float[0];
+    private int dimensions;
+    private int count;
+
+    SoftwareVertexBuffer(SoftwareContext context)
+    {
+        this.context = context;
+    }
+
+    @Override
+    public SoftwareContext getContext()
+    {
+        return context;
+    }
+
+    @Override
+    public int count()
+    {
+        return count;
+    }
+
+    int getDimensions()
+    {
+        return dimensions;
+    }
+
+    float get(int index, int component)
+    {
+        if (component < dimensions)
+        {
+            return data[index * dimensions + component];
+        }
+        else
+        {
+            return component == 3 ? 1.0f : 0.0f;
+        }
+    }
+
+    @Override
+    public SoftwareVertexBuffer setData(NativeVectorBuffer data, boolean normalize)
+    {
+        if (data.getDataType().isPacked())
+        {
+            throw new UnsupportedOperationException("Packed data types are not supported by the software context.");
+        }
+
+        int newDimensions = data.getDimensions();
+        int newCount = data.getCount();
+        float[] newData = new float[newDimensions * newCount];
+
+        for (int i = 0; i < newCount; i++)
+        {
+            for (int d = 0; d < newDimensions; d++)
+            {
+                newData[i * newDimensions + d] = TexelBuffer.convertNativeComponent(data.get(i, d), data.getDataType(), normalize);
+            }
+        }
+
+        this.data = newData;
+        this.dimensions = newDimensions;
+        this.count = newCount;
+        return this;
+    }
+
+    @Override
+    public void close()
+    {
+        data = new float[0];
+        count = 0;
+    }
+}
@@ -0,0 +1,557 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import tetzlaff.gl.core.ColorFormat;
+import tetzlaff.gl.core.ColorFormat.DataType;
+import tetzlaff.gl.core.TextureWrapMode;
+import tetzlaff.gl.nativebuffer.NativeDataType;
+import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
+import tetzlaff.gl.nativebuffer.NativeVectorBufferFactory;
+import tetzlaff.gl.types.AbstractDataType;
+import tetzlaff.util.RadianceImageLoader.Image;
+
+/**
+ * Storage for a single two-dimensional image used by the software context, either as a texture (or texture array layer)
+ * or as a framebuffer attachment.
+ * Color buffers always store four channels; depth and stencil buffers store a single channel.
+ * Formats with at most 8 bits per channel (including sRGB) are stored as bytes; everything else is stored as floats.
+ * Conversion to the internal format (clamping, quantization, sRGB encoding, missing channels) happens on write,
+ * so that reads always return what a GL implementation would return when sampling the texture.
+ * Row 0 is the bottom row of the image, as in OpenGL.
+ */
+final class TexelBuffer
+{
+    private static final float[] UNORM8_DECODE = new float[256];
+    private static final float[] SRGB8_DECODE = new float[256];
+
+    static
+    {
+        for (int i = 0; i < 256; i++)
+        {
+            UNORM8_DECODE[i] = i / 255.0f;
+
+            double c = i / 255.0;
+            SRGB8_DECODE[i] = (float)(c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+        }
+    }
+
+    final int width;
+    final int height;
+    final int channels;
+
+    private final ColorFormat format;
+    private final boolean floatingPointDepth;
+
+    private final byte[] bytes;
+    private final float[] floats;
+    private final float[] byteDecodeTable;
+
+    private TexelBuffer(int width, int height, int channels, ColorFormat format, boolean floatingPointDepth)
+    {
+        if (width <= 0 || height <= 0)
+        {
+            throw new IllegalArgumentException("Texture dimensions must be positive (requested " + width + 'x' + height + ").");
+        }
+
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        this.format = format;
+        this.floatingPointDepth = floatingPointDepth;
+
+        if (format != null && usesByteStorage(format))
+        {
+            this.bytes = new byte[width * height * channels];
+            this.floats = null;
+            this.byteDecodeTable = format.dataType == DataType.SRGB_FIXED_POINT ? SRGB8_DECODE : UNORM8_DECODE;
+        }
+        else
+        {
+            this.bytes = null;
+            this.floats = new float[width * height * channels];
+            this.byteDecodeTable = null;
+        }
+
+        if (format != null)
+        {
+            // Initialize to the value that unspecified channels would read as (alpha = 1).
+            fill(0.0f, 0.0f, 0.0f, 0.0f);
+        }
+    }
+
+    static TexelBuffer createColor(int width, int height, ColorFormat format)
+    {
+        return new TexelBuffer(width, height, 4, format == null ? ColorFormat.RGBA8 : format, false);
+    }
+
+    static TexelBuffer createDepth(int width, int height, boolean floatingPoint)
+    {
+        return new TexelBuffer(width, height, 1, null, floatingPoint);
+    }
+
+    static TexelBuffer createStencil(int width, int height)
+    {
+        return new TexelBuffer(width, height, 1, null, true);
+    }
+
+    private static boolean usesByteStorage(ColorFormat format)
+    {
+        return (format.dataType == DataType.NORMALIZED_FIXED_POINT || format.dataType == DataType.SRGB_FIXED_POINT)
+            && format.redBits <= 8 && format.greenBits <= 8 && format.blueBits <= 8 && format.alphaBits <= 8;
+    }
+
+    ColorFormat getFormat()
+    {
+        return format;
+    }
+
+    boolean isIntegerFormat()
+    {
+        return format != null && (format.dataType == DataType.UNSIGNED_INTEGER || format.dataType == DataType.SIGNED_INTEGER);
+    }
+
+    private static float quantize(float value, int bits)
+    {
+        if (bits >= 24)
+        {
+            return value;
+        }
+        else
+        {
+            float max = (float)((1 << bits) - 1);
+            return Math.round(value * max) / max;
+        }
+    }
+
+    private static float clamp(float value, float min, float max)
+    {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private float convertChannel(float value, int bits, float missingValue)
+    {
+        if (bits == 0)
+        {
+            return missingValue;
+        }
+
+        switch (format.dataType)
+        {
+            case NORMALIZED_FIXED_POINT:
+                return quantize(clamp(value, 0.0f, 1.0f), bits);
+            case SIGNED_FIXED_POINT:
+                return clamp(value, -1.0f, 1.0f);
+            case UNSIGNED_INTEGER:
+                return Math.max(0, Math.round(value));
+            case SIGNED_INTEGER:
+                return Math.round(value);
+            case FLOATING_POINT:
+            default:
+                return value;
+        }
+    }
+
+    private static byte encodeUnorm8(float value)
+    {
+        return (byte)Math.round(clamp(value, 0.0f, 1.0f) * 255.0f);
+    }
+
+    private static byte encodeSRGB8(float value)
+    {
+        double c = clamp(value, 0.0f, 1.0f);
+        return (byte)Math.round(255.0 * (c <= 0.0031308 ? c * 12.92 : 1.055 * Math.pow(c, 1.0 / 2.4) - 0.055));
+    }
+
+    /**
+     * Writes a color, converting it to the internal format.
+     */
+    void write(int x, int y, float r, float g, float b, float a)
+    {
+        int index = (y * width + x) * 4;
+
+        if (bytes != null)
+        {
+            if (format.dataType == DataType.SRGB_FIXED_POINT)
+            {
+                bytes[index] = format.redBits == 0 ? 0 : encodeSRGB8(r);
+                bytes[index + 1] = format.greenBits == 0 ? 0 : encodeSRGB8(g);
+                bytes[index + 2] = format.blueBits == 0 ? 0 : encodeSRGB8(b);
+            }
+            else
+            {
+                bytes[index] = format.redBits == 0 ? 0 : encodeUnorm8(r);
+                bytes[index + 1] = format.greenBits == 0 ? 0 : encodeUnorm8(g);
+                bytes[index + 2] = format.blueBits == 0 ? 0 : encodeUnorm8(b);
+            }
+
+            // Alpha is never sRGB-encoded.
+            bytes[index + 3] = format.alphaBits == 0 ? (byte)255 : encodeUnorm8(a);
+        }
+        else
+        {
+            floats[index] = convertChannel(r, format.redBits, 0.0f);
+            floats[index + 1] = convertChannel(g, format.greenBits, 0.0f);
+            floats[index + 2] = convertChannel(b, format.blueBits, 0.0f);
+            floats[index + 3] = convertChannel(a, format.alphaBits, 1.0f);
+        }
+    }
+
+    /**
+     * Writes a color that is already in the storage encoding of the internal format, as when uploading pixel data in GL:
+     * 8-bit values destined for an sRGB format are stored as-is rather than being sRGB-encoded again.
+     */
+    void writeEncoded(int x, int y, float r, float g, float b, float a)
+    {
+        if (bytes != null)
+        {
+            int index = (y * width + x) * 4;
+            bytes[index] = format.redBits == 0 ? 0 : encodeUnorm8(r);
+            bytes[index + 1] = format.greenBits == 0 ? 0 : encodeUnorm8(g);
+            bytes[index + 2] = format.blueBits == 0 ? 0 : encodeUnorm8(b);
+            bytes[index + 3] = format.alphaBits == 0 ? (byte)255 : encodeUnorm8(a);
+        }
+        else
+        {
+            write(x, y, r, g, b, a);
+        }
+    }
+
+    /**
+     * Reads a color as RGBA into the destination array at the specified offset.
+     */
+    void read(int x, int y, float[] destination, int offset)
+    {
+        int index = (y * width + x) * 4;
+
+        if (bytes != null)
+        {
+            destination[offset] = byteDecodeTable[bytes[index] & 0xFF];
+            destination[offset + 1] = byteDecodeTable[bytes[index + 1] & 0xFF];
+            destination[offset + 2] = byteDecodeTable[bytes[index + 2] & 0xFF];
+            destination[offset + 3] = UNORM8_DECODE[bytes[index + 3] & 0xFF];
+        }
+        else
+        {
+            destination[offset] = floats[index];
+            destination[offset + 1] = floats[index + 1];
+            destination[offset + 2] = floats[index + 2];
+            destination[offset + 3] = floats[index + 3];
+        }
+    }
+
+    /**
+     * Reads a color as a packed 8-bit-per-channel ARGB integer.
+     */
+    int readARGB(int x, int y)
+    {
+        int index = (y * width + x) * 4;
+
+        if (bytes != null && format.dataType != DataType.SRGB_FIXED_POINT)
+        {
+            return (bytes[index + 3] & 0xFF) << 24 | (bytes[index] & 0xFF) << 16 | (bytes[index + 1] & 0xFF) << 8 | bytes[index + 2] & 0xFF;
+        }
+        else
+        {
+            float[] rgba = new float[4];
+            read(x, y, rgba, 0);
+            return (encodeUnorm8(rgba[3]) & 0xFF) << 24 | (encodeUnorm8(rgba[0]) & 0xFF) << 16
+                | (encodeUnorm8(rgba[1]) & 0xFF) << 8 | encodeUnorm8(rgba[2]) & 0xFF;
+        }
+    }
+
+    /**
+     * Reads a single-channel (depth or stencil) value.
+     */
+    float readScalar(int x, int y)
+    {
+        return floats[y * width + x];
+    }
+
+    /**
+     * Writes a single-channel (depth or stencil) value.
+     */
+    void writeScalar(int x, int y, float value)
+    {
+        floats[y * width + x] = floatingPointDepth ? value : clamp(value, 0.0f, 1.0f);
+    }
+
+    void fill(float r, float g, float b, float a)
+    {
+        if (channels == 1)
+        {
+            Arrays.fill(floats, floatingPointDepth ? r : clamp(r, 0.0f, 1.0f));
+        }
+        else
+        {
+            for (int y = 0; y < height; y++)
+            {
+                for (int x = 0; x < width; x++)
+                {
+                    write(x, y, r, g, b, a);
+                }
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of this buffer with vectors from a native buffer, as if uploaded with glTexImage2D.
+     * Integer source data is normalized unless the internal format is an integer format.
+     */
+    void load(NativeVectorBuffer data)
+    {
+        if (data.getCount() < width * height)
+        {
+            throw new IllegalArgumentException("The buffer does not contain enough elements (" + data.getCount()
+                + ") for a " + width + 'x' + height + " texture.");
+        }
+        if (data.getDataType().isPacked())
+        {
+            throw new UnsupportedOperationException("Packed data types are not supported by the software context.");
+        }
+
+        int dimensions = data.getDimensions();
+        boolean normalize = !isIntegerFormat();
+        float[] rgba = new float[4];
+
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                int k = y * width + x;
+                rgba[0] = 0.0f;
+                rgba[1] = 0.0f;
+                rgba[2] = 0.0f;
+                rgba[3] = 1.0f;
+
+                for (int d = 0; d < Math.min(4, dimensions); d++)
+                {
+                    rgba[d] = convertNativeComponent(data.get(k, d), data.getDataType(), normalize);
+                }
+
+                if (channels == 1)
+                {
+                    writeScalar(x, y, rgba[0]);
+                }
+                else if (dimensions == 1)
+                {
+                    // Single-channel data goes to red; GL fills green and blue with zero.
+                    writeEncoded(x, y, rgba[0], 0.0f, 0.0f, 1.0f);
+                }
+                else
+                {
+                    writeEncoded(x, y, rgba[0], rgba[1], rgba[2], rgba[3]);
+                }
+            }
+        }
+    }
+
+    private void checkImageSize(int imageWidth, int imageHeight)
+    {
+        if (imageWidth != width || imageHeight != height)
+        {
+            throw new IllegalArgumentException("Image dimensions (" + imageWidth + 'x' + imageHeight
+                + ") do not match texture dimensions (" + width + 'x' + height + ").");
+        }
+    }
+
+    /**
+     * Replaces the contents of this buffer with an 8-bit image, using the green channel of the mask image (if any) as alpha.
+     */
+    void loadImage(BufferedImage colorImg, BufferedImage maskImg, boolean flipVertical)
+    {
+        checkImageSize(colorImg.getWidth(), colorImg.getHeight());
+
+        for (int y = 0; y < height; y++)
+        {
+            int imageY = flipVertical ? height - 1 - y : y;
+            for (int x = 0; x < width; x++)
+            {
+                int argb = colorImg.getRGB(x, imageY);
+                int alpha = maskImg == null ? argb >>> 24 : (maskImg.getRGB(x, imageY) & 0x0000ff00) >>> 8;
+                writeEncoded(x, y,
+                    UNORM8_DECODE[(argb >>> 16) & 0xFF], UNORM8_DECODE[(argb >>> 8) & 0xFF], UNORM8_DECODE[argb & 0xFF], UNORM8_DECODE[alpha]);
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of this buffer with an 8-bit image after passing each color through a mapping function,
+     * exactly as the mapped color would be uploaded to a GL texture.
+     */
+    <MappedType> void loadImage(BufferedImage colorImg, BufferedImage maskImg, boolean flipVertical,
+        AbstractDataType<? super MappedType> mappedType, Function<Color, MappedType> mappingFunction)
+    {
+        checkImageSize(colorImg.getWidth(), colorImg.getHeight());
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(width * height * mappedType.getSizeInBytes()).order(ByteOrder.nativeOrder());
+        Consumer<? super MappedType> wrappedBuffer = mappedType.wrapByteBuffer(buffer);
+
+        for (int y = 0; y < height; y++)
+        {
+            int imageY = flipVertical ? height - 1 - y : y;
+            for (int x = 0; x < width; x++)
+            {
+                int argb = colorImg.getRGB(x, imageY);
+                if (maskImg != null)
+                {
+                    argb = (argb & 0x00ffffff) | ((maskImg.getRGB(x, imageY) & 0x0000ff00) << 16);
+                }
+                wrappedBuffer.accept(mappingFunction.apply(new Color(argb, true)));
+            }
+        }
+
+        load(NativeVectorBufferFactory.getInstance().createFromExistingBuffer(
+            mappedType.getNativeDataType(), mappedType.getComponentCount(), width * height, buffer));
+    }
+
+    /**
+     * Replaces the contents of this buffer with a floating-point RGB image, using the green channel of the mask image (if any) as alpha.
+     */
+    void loadImage(Image colorImg, BufferedImage maskImg)
+    {
+        checkImageSize(colorImg.width, colorImg.height);
+
+        int k = 0;
+        for (int y = 0; y < height; y++)
+        {
+            for (int x = 0; x < width; x++)
+            {
+                float alpha = maskImg == null ? 1.0f : UNORM8_DECODE[(maskImg.getRGB(x, y) & 0x0000ff00) >>> 8];
+                writeEncoded(x, y, colorImg.data[k], colorImg.data[k + 1], colorImg.data[k + 2], alpha);
+                k += 3;
+            }
+        }
+    }
+
+    static float convertNativeComponent(Number value, NativeDataType dataType, boolean normalize)
+    {
+        if (!normalize)
+        {
+            return value.floatValue();
+        }
+
+        switch (dataType)
+        {
+            case UNSIGNED_BYTE: return value.intValue() / 255.0f;
+            case BYTE: return Math.max(-1.0f, value.intValue() / 127.0f);
+            case UNSIGNED_SHORT: return value.intValue() / 65535.0f;
+            case SHORT: return Math.max(-1.0f, value.intValue() / 32767.0f);
+            case UNSIGNED_INT: return (float)(value.longValue() / 4294967295.0);
+            case INT: return (float)Math.max(-1.0, value.intValue() / 2147483647.0);
+            default: return value.floatValue();
+        }
+    }
+
+    private static int wrap(int coordinate, int size, TextureWrapMode mode)
+    {
+        switch (mode)
+        {
+            case Repeat:
+                return Math.floorMod(coordinate, size);
+            case MirroredRepeat:
+            {
+                int period = Math.floorMod(coordinate, 2 * size);
+                return period < size ? period : 2 * size - 1 - period;
+            }
+            case MirrorOnce:
+            {
+                int mirrored = coordinate < 0 ? -1 - coordinate : coordinate;
+                return Math.min(mirrored, size - 1);
+            }
+            case None:
+            default:
+                return Math.max(0, Math.min(size - 1, coordinate));
+        }
+    }
+
+    /**
+     * Samples the buffer at normalized texture coordinates, writing RGBA into the destination array.
+     * Only the base mipmap level exists, so sampling is either nearest-neighbor or bilinear.
+     */
+    void sample(float s, float t, TextureWrapMode wrapS, TextureWrapMode wrapT, boolean linear, float[] destination, int offset)
+    {
+        if (linear)
+        {
+            float u = s * width - 0.5f;
+            float v = t * height - 0.5f;
+            int x0 = (int)Math.floor(u);
+            int y0 = (int)Math.floor(v);
+            float fx = u - x0;
+            float fy = v - y0;
+
+            int xa = wrap(x0, width, wrapS);
+            int xb = wrap(x0 + 1, width, wrapS);
+            int ya = wrap(y0, height, wrapT);
+            int yb = wrap(y0 + 1, height, wrapT);
+
+            for (int c = 0; c < 4; c++)
+            {
+                float bottom = channel(xa, ya, c) + fx * (channel(xb, ya, c) - channel(xa, ya, c));
+                float top = channel(xa, yb, c) + fx * (channel(xb, yb, c) - channel(xa, yb, c));
+                destination[offset + c] = bottom + fy * (top - bottom);
+            }
+        }
+        else
+        {
+            int x = wrap((int)Math.floor(s * width), width, wrapS);
+            int y = wrap((int)Math.floor(t * height), height, wrapT);
+            readAny(x, y, destination, offset);
+        }
+    }
+
+    private float channel(int x, int y, int c)
+    {
+        if (channels == 1)
+        {
+            return c == 0 ? floats[y * width + x] : c == 3 ? 1.0f : 0.0f;
+        }
+        else
+        {
+            int index = (y * width + x) * 4 + c;
+            if (bytes != null)
+            {
+                return c == 3 ? UNORM8_DECODE[bytes[index] & 0xFF] : byteDecodeTable[bytes[index] & 0xFF];
+            }
+            else
+            {
+                return floats[index];
+            }
+        }
+    }
+
+    /**
+     * Reads a texel regardless of the channel count; single-channel buffers read as (value, 0, 0, 1) like GL depth textures.
+     */
+    void readAny(int x, int y, float[] destination, int offset)
+    {
+        if (channels == 1)
+        {
+            destination[offset] = floats[y * width + x];
+            destination[offset + 1] = 0.0f;
+            destination[offset + 2] = 0.0f;
+            destination[offset + 3] = 1.0f;
+        }
+        else
+        {
+            read(x, y, destination, offset);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import tetzlaff.gl.vecmath.Vector2;
+import tetzlaff.gl.vecmath.Vector3;
+import tetzlaff.gl.vecmath.Vector4;
+
+/**
+ * The vertex attributes of a single vertex, as seen by a software vertex shader.
+ * Attributes that have no vertex buffer and no constant value read as (0, 0, 0, 1), as in OpenGL.
+ */
+public final class VertexAttributes
+{
+    private final SoftwareDrawable drawable;
+    private int vertexIndex;
+
+    VertexAttributes(SoftwareDrawable drawable)
+    {
+        this.drawable = drawable;
+    }
+
+    void setVertexIndex(int vertexIndex)
+    {
+        this.vertexIndex = vertexIndex;
+    }
+
+    public int getVertexIndex()
+    {
+        return vertexIndex;
+    }
+
+    public float get(int location, int component)
+    {
+        return drawable.getAttributeComponent(location, vertexIndex, component);
+    }
+
+    public float get(String name, int component)
+    {
+        return get(drawable.program().getVertexAttribLocation(name), component);
+    }
+
+    public Vector2 getVector2(int location)
+    {
+        return new Vector2(get(location, 0), get(location, 1));
+    }
+
+    public Vector3 getVector3(int location)
+    {
+        return new Vector3(get(location, 0), get(location, 1), get(location, 2));
+    }
+
+    public Vector4 getVector4(int location)
+    {
+        return new Vector4(get(location, 0), get(location, 1), get(location, 2), get(location, 3));
+    }
+
+    public Vector2 getVector2(String name)
+    {
+        return getVector2(drawable.program().getVertexAttribLocation(name));
+    }
+
+    public Vector3 getVector3(String name)
+    {
+        return getVector3(drawable.program().getVertexAttribLocation(name));
+    }
+
+    public Vector4 getVector4(String name)
+    {
+        return getVector4(drawable.program().getVertexAttribLocation(name));
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.software;
+
+import tetzlaff.gl.vecmath.Vector4;
+
+/**
+ * A vertex shader for the software context, implemented in Java rather than GLSL.
+ */
+@FunctionalInterface
+public interface VertexShader
+{
+    /**
+     * Processes a single vertex.
+     * This may be called concurrently for different vertices, so implementations must not modify shared state.
+     * @param program The program being executed, which provides access to uniforms, textures and uniform buffers.
+     * @param attributes The vertex attributes of the vertex being processed.
+     * @param varyings Destination for the outputs that will be interpolated across primitives and passed to the fragment shader.
+     *                 Its length is the varying count that the shader was created with.
+     * @return The clip-space position of the vertex (the equivalent of gl_Position).
+     */
+    Vector4 execute(SoftwareProgram program, VertexAttributes attributes, float[] varyings);
+}
@@ -0,0 +1,727 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
+
+/**
+ * The raw contents of a Wavefront OBJ file, as primitive arrays: the positions, texture coordinates, and normals in the order
+ * they appear in the file, and for each corner of each triangle, the (0-based) index of its position, texture coordinate, and normal.
+ * The file is read in chunks of whole lines that are parsed in parallel, directly from the bytes of the file,
+ * and then stitched together in file order.
+ * The results are the same as parsing the file one token at a time with a Scanner:
+ * only the first three vertices of each face are used, everything after the expected values on a line is ignored,
+ * normals are normalized, and the first material library and material name are used.
+ */
+final class ParsedOBJFile
+{
+    /**
+     * Nominal number of bytes in each chunk; chunks are extended to the end of the line.
+     */
+    private static final int DEFAULT_CHUNK_SIZE = 1 << 23;
+
+    /**
+     * Raw index of a texture coordinate or normal that was left out of a face.
+     */
+    private static final int MISSING = Integer.MIN_VALUE;
+
+    /**
+     * Powers of ten that are exactly representable as doubles.
+     */
+    private static final double[] POWERS_OF_TEN =
+    {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /**
+     * Vertex positions (3 components each).
+     */
+    final float[] positions;
+
+    /**
+     * Texture coordinates (2 components each).
+     */
+    final float[] texCoords;
+
+    /**
+     * Normalized vertex normals (3 components each).
+     */
+    final float[] normals;
+
+    /**
+     * Index into positions for each corner of each triangle.
+     */
+    final int[] vertexIndices;
+
+    /**
+     * Index into texCoords for each corner of each triangle, or null if any face is missing texture coordinates.
+     */
+    final int[] texCoordIndices;
+
+    /**
+     * Index into normals for each corner of each triangle, or null if any face is missing normals.
+     */
+    final int[] normalIndices;
+
+    /**
+     * The first material library referenced by the file, or null if there is none.
+     */
+    final String materialFileName;
+
+    /**
+     * The first material used by the file, or null if there is none.
+     */
+    final String materialName;
+
+    private ParsedOBJFile(float[] positions, float[] texCoords, float[] normals,
+        int[] vertexIndices, int[] texCoordIndices, int[] normalIndices, String materialFileName, String materialName)
+    {
+        this.positions = positions;
+        this.texCoords = texCoords;
+        this.normals = normals;
+        this.vertexIndices = vertexIndices;
+        this.texCoordIndices = texCoordIndices;
+        this.normalIndices = normalIndices;
+        this.materialFileName = materialFileName;
+        this.materialName = materialName;
+    }
+
+    /**
+     * @return The number of triangle corners (three per face).
+     */
+    int getCornerCount()
+    {
+        return vertexIndices.length;
+    }
+
+    /**
+     * Parses a Wavefront OBJ file.
+     * @param file The file to parse.
+     * @return The contents of the file.
+     * @throws FileNotFoundException Thrown if the file does not exist.
+     */
+    static ParsedOBJFile parse(File file) throws FileNotFoundException
+    {
+        return parse(file, DEFAULT_CHUNK_SIZE);
+    }
+
+    static ParsedOBJFile parse(File file, int chunkSize) throws FileNotFoundException
+    {
+        try (FileInputStream input = new FileInputStream(file); FileChannel channel = input.getChannel())
+        {
+            long[] boundaries = findChunkBoundaries(channel, chunkSize);
+
+            Chunk[] chunks = IntStream.range(0, boundaries.length - 1).parallel()
+                .mapToObj(i -> parseChunk(channel, boundaries[i], boundaries[i + 1]))
+                .toArray(Chunk[]::new);
+
+            return stitch(chunks);
+        }
+        catch (FileNotFoundException e)
+        {
+            throw e;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Splits the file into chunks of about the specified size that each start at the beginning of a line.
+     * @return The start of each chunk, followed by the size of the file.
+     */
+    private static long[] findChunkBoundaries(FileChannel channel, int chunkSize) throws IOException
+    {
+        long size = channel.size();
+        long[] boundaries = new long[(int)Math.min(Integer.MAX_VALUE - 1, size / chunkSize + 1) + 1];
+        int count = 1; // boundaries[0] = 0
+
+        ByteBuffer scratch = ByteBuffer.allocate(1 << 16);
+        long position = chunkSize;
+
+        while (position < size)
+        {
+            // Move the boundary to just after the next line break.
+            long lineStart = -1;
+
+            while (lineStart < 0 && position < size)
+            {
+                scratch.clear();
+                int bytesRead = channel.read(scratch, position);
+
+                for (int i = 0; i < bytesRead && lineStart < 0; i++)
+                {
+                    if (scratch.get(i) == '\n')
+                    {
+                        lineStart = position + i + 1;
+                    }
+                }
+
+                position += Math.max(0, bytesRead);
+            }
+
+            if (lineStart < 0 || lineStart >= size)
+            {
+                break;
+            }
+
+            boundaries[count] = lineStart;
+            count++;
+            position = lineStart + chunkSize;
+        }
+
+        boundaries[count] = size;
+        return Arrays.copyOf(boundaries, count + 1);
+    }
+
+    private static Chunk parseChunk(FileChannel channel, long start, long end)
+    {
+        if (end - start > Integer.MAX_VALUE)
+        {
+            throw new IllegalStateException("A single line of the OBJ file is too long to be parsed.");
+        }
+
+        byte[] bytes = new byte[(int)(end - start)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        try
+        {
+            while (buffer.hasRemaining())
+            {
+                if (channel.read(buffer, start + buffer.position()) < 0)
+                {
+                    throw new IOException("Unexpected end of OBJ file.");
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        Chunk chunk = new Chunk(bytes);
+        chunk.parse();
+        return chunk;
+    }
+
+    /**
+     * Concatenates the chunks in file order and resolves the face indices the same way as a single sequential pass would,
+     * including relative indices and the first face that is missing texture coordinates or normals.
+     */
+    private static ParsedOBJFile stitch(Chunk[] chunks)
+    {
+        int positionFloats = 0;
+        int texCoordFloats = 0;
+        int normalFloats = 0;
+        int cornerCount = 0;
+        String materialFileName = null;
+        String materialName = null;
+
+        for (Chunk chunk : chunks)
+        {
+            positionFloats += chunk.positions.size;
+            texCoordFloats += chunk.texCoords.size;
+            normalFloats += chunk.normals.size;
+            cornerCount += chunk.vertexIndices.size;
+
+            if (materialFileName == null)
+            {
+                materialFileName = chunk.materialFileName;
+            }
+
+            if (materialName == null)
+            {
+                materialName = chunk.materialName;
+            }
+        }
+
+        float[] positions = new float[positionFloats];
+        float[] texCoords = new float[texCoordFloats];
+        float[] normals = new float[normalFloats];
+        int[] vertexIndices = new int[cornerCount];
+        int[] texCoordIndices = new int[cornerCount];
+        int[] normalIndices = new int[cornerCount];
+
+        boolean hasTexCoords = true;
+        boolean hasNormals = true;
+        int positionOffset = 0;
+        int texCoordOffset = 0;
+        int normalOffset = 0;
+        int corner = 0;
+
+        for (Chunk chunk : chunks)
+        {
+            System.arraycopy(chunk.positions.data, 0, positions, positionOffset, chunk.positions.size);
+            System.arraycopy(chunk.texCoords.data, 0, texCoords, texCoordOffset, chunk.texCoords.size);
+            System.arraycopy(chunk.normals.data, 0, normals, normalOffset, chunk.normals.size);
+
+            for (int k = 0; k < chunk.vertexIndices.size; k++)
+            {
+                // Relative position indices count back from the number of positions preceding the face.
+                int vertexIndex = chunk.vertexIndices.data[k];
+                vertexIndices[corner] = vertexIndex < 0 ?
+                    positionOffset / 3 + chunk.facePositionCounts.data[k / 3] + vertexIndex : vertexIndex - 1;
+
+                // Relative texture coordinate and normal indices count back from the number of corners preceding this one.
+                int texCoordIndex = chunk.texCoordIndices.data[k];
+                if (texCoordIndex == MISSING)
+                {
+                    hasTexCoords = false;
+                }
+                else if (hasTexCoords)
+                {
+                    texCoordIndices[corner] = texCoordIndex < 0 ? corner + texCoordIndex : texCoordIndex - 1;
+                }
+
+                int normalIndex = chunk.normalIndices.data[k];
+                if (normalIndex == MISSING)
+                {
+                    hasNormals = false;
+                }
+                else if (hasNormals)
+                {
+                    normalIndices[corner] = normalIndex < 0 ? corner + normalIndex : normalIndex - 1;
+                }
+
+                corner++;
+            }
+
+            positionOffset += chunk.positions.size;
+            texCoordOffset += chunk.texCoords.size;
+            normalOffset += chunk.normals.size;
+        }
+
+        return new ParsedOBJFile(positions, texCoords, normals, vertexIndices,
+            hasTexCoords ? texCoordIndices : null, hasNormals ? normalIndices : null, materialFileName, materialName);
+    }
+
+    private static final class FloatList
+    {
+        float[] data = new float[1024];
+        int size;
+
+        void add(float value)
+        {
+            if (size == data.length)
+            {
+                data = Arrays.copyOf(data, 2 * size);
+            }
+
+            data[size] = value;
+            size++;
+        }
+    }
+
+    private static final class IntList
+    {
+        int[] data = new int[1024];
+        int size;
+
+        void add(int value)
+        {
+            if (size == data.length)
+            {
+                data = Arrays.copyOf(data, 2 * size);
+            }
+
+            data[size] = value;
+            size++;
+        }
+    }
+
+    /**
+     * The contents of a range of whole lines of the file.
+     * Face indices are kept as written (1-based or relative) until the chunks are stitched together.
+     */
+    private static final class Chunk
+    {
+        private final byte[] bytes;
+        private int cursor;
+        private int lineEnd;
+
+        final FloatList positions = new FloatList();
+        final FloatList texCoords = new FloatList();
+        final FloatList normals = new FloatList();
+        final IntList vertexIndices = new IntList();
+        final IntList texCoordIndices = new IntList();
+        final IntList normalIndices = new IntList();
+
+        /**
+         * The number of positions in this chunk preceding each face, for resolving relative indices.
+         */
+        final IntList facePositionCounts = new IntList();
+
+        String materialFileName;
+        String materialName;
+
+        Chunk(byte[] bytes)
+        {
+            this.bytes = bytes;
+        }
+
+        void parse()
+        {
+            int lineStart = 0;
+
+            while (lineStart < bytes.length)
+            {
+                lineEnd = lineStart;
+                while (lineEnd < bytes.length && bytes[lineEnd] != '\n' && bytes[lineEnd] != '\r')
+                {
+                    lineEnd++;
+                }
+
+                cursor = lineStart;
+                parseLine();
+                lineStart = lineEnd + 1;
+            }
+        }
+
+        private void parseLine()
+        {
+            int idStart = nextToken();
+            if (idStart < 0)
+            {
+                return;
+            }
+
+            int idLength = cursor - idStart;
+
+            if (idLength == 1 && bytes[idStart] == 'v')
+            {
+                // Vertex position
+                positions.add(nextFloat());
+                positions.add(nextFloat());
+                positions.add(nextFloat());
+            }
+            else if (idLength == 2 && bytes[idStart] == 'v' && bytes[idStart + 1] == 't')
+            {
+                // Texture coordinate
+                texCoords.add(nextFloat());
+                texCoords.add(nextFloat());
+            }
+            else if (idLength == 2 && bytes[idStart] == 'v' && bytes[idStart + 1] == 'n')
+            {
+                // Vertex normal, normalized to unit length (the same way as Vector3.normalized())
+                float nx = nextFloat();
+                float ny = nextFloat();
+                float nz = nextFloat();
+                float scale = 1.0f / (float)Math.sqrt(nx * nx + ny * ny + nz * nz);
+                normals.add(scale * nx);
+                normals.add(scale * ny);
+                normals.add(scale * nz);
+            }
+            else if (idLength == 1 && bytes[idStart] == 'f')
+            {
+                facePositionCounts.add(positions.size / 3);
+
+                for (int i = 0; i < 3; i++) // Only support triangles
+                {
+                    parseFaceVertex();
+                }
+            }
+            else if (matches(idStart, idLength, "mtllib"))
+            {
+                String name = nextString();
+                if (materialFileName == null)
+                {
+                    // Use first material filename found
+                    materialFileName = name;
+                }
+            }
+            else if (matches(idStart, idLength, "usemtl"))
+            {
+                String name = nextString();
+                if (materialName == null)
+                {
+                    // Use first material found
+                    materialName = name;
+                }
+            }
+        }
+
+        private boolean matches(int start, int length, String keyword)
+        {
+            if (length != keyword.length())
+            {
+                return false;
+            }
+
+            for (int i = 0; i < length; i++)
+            {
+                if (bytes[start + i] != keyword.charAt(i))
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        private static boolean isWhitespace(byte b)
+        {
+            // The ASCII characters matched by Character.isWhitespace(), which is what a Scanner uses to split tokens.
+            return (b >= 9 && b <= 13) || (b >= 28 && b <= 32);
+        }
+
+        /**
+         * Skips to the next token on the current line and moves the cursor to the end of it.
+         * @return The start of the token, or -1 if there are no more tokens on the line.
+         */
+        private int nextToken()
+        {
+            while (cursor < lineEnd && isWhitespace(bytes[cursor]))
+            {
+                cursor++;
+            }
+
+            if (cursor == lineEnd)
+            {
+                return -1;
+            }
+
+            int start = cursor;
+
+            while (cursor < lineEnd && !isWhitespace(bytes[cursor]))
+            {
+                cursor++;
+            }
+
+            return start;
+        }
+
+        private int requireToken()
+        {
+            int start = nextToken();
+
+            if (start < 0)
+            {
+                throw new NoSuchElementException("Unexpected end of line in OBJ file.");
+            }
+
+            return start;
+        }
+
+        private String nextString()
+        {
+            int start = nextToken();
+            return start < 0 ? null : new String(bytes, start, cursor - start, Charset.defaultCharset());
+        }
+
+        private void parseFaceVertex()
+        {
+            int start = requireToken();
+            int end = cursor;
+
+            // Split the token on slashes: position/texCoord/normal
+            int partEnd = start;
+            while (partEnd < end && bytes[partEnd] != '/')
+            {
+                partEnd++;
+            }
+
+            vertexIndices.add(parseInt(start, partEnd));
+
+            int[] optionalIndices = { MISSING, MISSING };
+
+            for (int part = 0; part < 2 && partEnd < end; part++)
+            {
+                int partStart = partEnd + 1;
+                partEnd = partStart;
+                while (partEnd < end && bytes[partEnd] != '/')
+                {
+                    partEnd++;
+                }
+
+                if (partEnd > partStart)
+                {
+                    optionalIndices[part] = parseInt(partStart, partEnd);
+                }
+            }
+
+            texCoordIndices.add(optionalIndices[0]);
+            normalIndices.add(optionalIndices[1]);
+        }
+
+        private int parseInt(int start, int end)
+        {
+            int i = start;
+            boolean negative = false;
+
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+'))
+            {
+                negative = bytes[i] == '-';
+                i++;
+            }
+
+            long value = 0;
+            boolean valid = i < end;
+
+            for (; valid && i < end; i++)
+            {
+                int digit = bytes[i] - '0';
+                value = 10 * value + digit;
+                valid = digit >= 0 && digit <= 9 && value <= 1L << 31;
+            }
+
+            value = negative ? -value : value;
+
+            if (!valid || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            {
+                throw new InputMismatchException(
+                    "Invalid index in OBJ file: " + new String(bytes, start, end - start, StandardCharsets.US_ASCII));
+            }
+
+            return (int)value;
+        }
+
+        private float nextFloat()
+        {
+            int start = requireToken();
+            return parseFloat(start, cursor);
+        }
+
+        /**
+         * Parses a decimal number, rounding it to the nearest float the same way as Float.parseFloat().
+         * Numbers with up to 15 significant digits and a moderate exponent are computed in double precision,
+         * which is exact apart from a single rounding; rounding that to a float gives the correctly rounded result
+         * unless the double lands exactly halfway between two floats.
+         * Anything else (including that case) falls back to Float.parseFloat().
+         */
+        private float parseFloat(int start, int end)
+        {
+            int i = start;
+            boolean negative = false;
+
+            if (i < end && (bytes[i] == '-' || bytes[i] == '+'))
+            {
+                negative = bytes[i] == '-';
+                i++;
+            }
+
+            long mantissa = 0;
+            int significantDigits = 0;
+            int exponent = 0;
+            boolean anyDigits = false;
+            boolean exact = true;
+            boolean fraction = false;
+
+            for (; i < end; i++)
+            {
+                byte b = bytes[i];
+
+                if (b == '.' && !fraction)
+                {
+                    fraction = true;
+                }
+                else if (b >= '0' && b <= '9')
+                {
+                    anyDigits = true;
+
+                    if (fraction)
+                    {
+                        exponent--;
+                    }
+
+                    if (mantissa == 0 && b == '0')
+                    {
+                        // Leading zero
+                    }
+                    else if (significantDigits < 18)
+                    {
+                        mantissa = 10 * mantissa + (b - '0');
+                        significantDigits++;
+                    }
+                    else
+                    {
+                        // Too many digits to keep; the parsed value may not be exact.
+                        exponent++;
+                        exact &= b == '0';
+                    }
+                }
+                else
+                {
+                    break;
+                }
+            }
+
+            if (i < end && (bytes[i] == 'e' || bytes[i] == 'E'))
+            {
+                i++;
+                boolean negativeExponent = false;
+
+                if (i < end && (bytes[i] == '-' || bytes[i] == '+'))
+                {
+                    negativeExponent = bytes[i] == '-';
+                    i++;
+                }
+
+                int exponentValue = 0;
+                boolean anyExponentDigits = false;
+
+                for (; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++)
+                {
+                    anyExponentDigits = true;
+                    exponentValue = Math.min(10000, 10 * exponentValue + (bytes[i] - '0'));
+                }
+
+                exact &= anyExponentDigits;
+                exponent += negativeExponent ? -exponentValue : exponentValue;
+            }
+
+            if (i == end && anyDigits && exact)
+            {
+                if (mantissa == 0)
+                {
+                    return negative ? -0.0f : 0.0f;
+                }
+                else if (mantissa <= (1L << 53) && exponent >= -22 && exponent <= 22)
+                {
+                    double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+
+                    // The 29 bits of a double's mantissa that are dropped when rounding to a float must not be exactly one half.
+                    if (value >= Float.MIN_NORMAL && value <= Float.MAX_VALUE
+                        && (Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) != 0x10000000L)
+                    {
+                        float result = (float)value;
+                        return negative ? -result : result;
+                    }
+                }
+            }
+
+            String token = new String(bytes, start, end - start, StandardCharsets.US_ASCII);
+
+            try
+            {
+                return Float.parseFloat(token);
+            }
+            catch (NumberFormatException e)
+            {
+                throw new InputMismatchException("Invalid number in OBJ file: " + token);
+            }
+        }
+    }
+}
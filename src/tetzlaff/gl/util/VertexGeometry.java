@@ -14,14 +14,14 @@ package tetzlaff.gl.util;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.*;
-import java.util.Map.Entry;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Dictionary;
+import java.util.stream.IntStream;
 
 import tetzlaff.gl.material.Material;
-import tetzlaff.gl.nativebuffer.NativeDataType;
 import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
 import tetzlaff.gl.nativebuffer.NativeVectorBufferFactory;
-import tetzlaff.gl.vecmath.Vector2;
 import tetzlaff.gl.vecmath.Vector3;
 import tetzlaff.gl.vecmath.Vector4;
 
@@ -41,6 +41,7 @@ public final class VertexGeometry
     private NativeVectorBuffer normals;
     private NativeVectorBuffer texCoords;
     private NativeVectorBuffer tangents;
+    private int[] indices;
     private Vector3 centroid;
     private Vector3 boundingBoxCenter;
     private Vector3 boundingBoxSize;
@@ -54,37 +55,96 @@ public final class VertexGeometry
         this.filename = filename;
     }
 
-    private static class NormalTexCoordPair
+    /**
+     * Assigns consecutive indices to distinct triples of indices, such as the position, texture coordinate, and normal indices
+     * of the corners of the faces, which identify the corners that can share a single vertex.
+     * Uses open addressing over primitive arrays so that meshes with millions of vertices don't need millions of objects.
+     */
+    private static final class IndexTripleTable
     {
-        public final int normalIndex;
-        public final int texCoordIndex;
+        private int[] keys;
+        private int[] indices;
+        private int size;
+
+        IndexTripleTable(int expectedSize)
+        {
+            int capacity = 16;
+            while (capacity < 2 * expectedSize)
+            {
+                capacity *= 2;
+            }
+
+            keys = new int[3 * capacity];
+            indices = new int[capacity];
+            Arrays.fill(indices, -1);
+        }
 
-        NormalTexCoordPair(int normalIndex, int texCoordIndex)
+        int size()
         {
-            this.normalIndex = normalIndex;
-            this.texCoordIndex = texCoordIndex;
+            return size;
         }
 
-        @Override
-        public boolean equals(Object obj)
+        /**
+         * Gets the index of a triple, assigning it the next index if it hasn't been seen before.
+         */
+        int getOrAdd(int first, int second, int third)
         {
-            if (obj instanceof NormalTexCoordPair)
+            int slot = findSlot(keys, indices, first, second, third);
+
+            if (indices[slot] < 0)
             {
-                NormalTexCoordPair otherPair = (NormalTexCoordPair) obj;
-                return this.normalIndex == otherPair.normalIndex && this.texCoordIndex == otherPair.texCoordIndex;
+                keys[3 * slot] = first;
+                keys[3 * slot + 1] = second;
+                keys[3 * slot + 2] = third;
+                indices[slot] = size;
+                size++;
+
+                if (2 * size > indices.length)
+                {
+                    grow();
+                }
+
+                return size - 1;
             }
             else
             {
-                return false;
+                return indices[slot];
+            }
+        }
+
+        private static int findSlot(int[] keys, int[] indices, int first, int second, int third)
+        {
+            int mask = indices.length - 1;
+            long hash = ((((long) first * 0x9E3779B97F4A7C15L) + second) * 0x9E3779B97F4A7C15L + third) * 0x9E3779B97F4A7C15L;
+            int slot = (int) (hash >>> 32) & mask;
+
+            while (indices[slot] >= 0
+                && (keys[3 * slot] != first || keys[3 * slot + 1] != second || keys[3 * slot + 2] != third))
+            {
+                slot = (slot + 1) & mask;
             }
+
+            return slot;
         }
 
-        @Override
-        public int hashCode()
+        private void grow()
         {
-            int result = normalIndex;
-            result = 31 * result + texCoordIndex;
-            return result;
+            int[] newKeys = new int[2 * keys.length];
+            int[] newIndices = new int[2 * indices.length];
+            Arrays.fill(newIndices, -1);
+
+            for (int i = 0; i < indices.length; i++)
+            {
+                if (indices[i] >= 0)
+                {
+                    int slot = findSlot(newKeys, newIndices, keys[3 * i], keys[3 * i + 1], keys[3 * i + 2]);
+                    System.arraycopy(keys, 3 * i, newKeys, 3 * slot, 3);
+                    newIndices[slot] = indices[i];
+                }
+            }
+
+            keys = newKeys;
+            indices = newIndices;
         }
     }
 
@@ -99,197 +159,26 @@ public final class VertexGeometry
 
         Date timestamp = new Date();
 
-        // Assume initially that normals and texture coordinates are present
-        inst.hasNormals = true;
-        inst.hasTexCoords = true;
-
-        // Initialize dynamic tables to store the data from the file
-        List<Vector3> vertexList = new ArrayList<>(100000);
-        List<Vector3> normalList = new ArrayList<>(100000);
-        Map<NormalTexCoordPair, Vector3> tangentMap = new HashMap<>(100000);
-        Map<NormalTexCoordPair, Vector3> bitangentMap = new HashMap<>(100000);
-        List<Vector2> texCoordList = new ArrayList<>(100000);
-        List<Integer> vertexIndexList = new ArrayList<>(100000);
-        List<Integer> normalIndexList = new ArrayList<>(100000);
-        List<Integer> texCoordIndexList = new ArrayList<>(100000);
+        ParsedOBJFile obj = ParsedOBJFile.parse(file);
 
-        Vector3 sum = Vector3.ZERO;
+        inst.materialFileName = obj.materialFileName;
+        inst.hasNormals = obj.normalIndices != null;
+        inst.hasTexCoords = obj.texCoordIndices != null;
 
-        String materialName = null;
-
-        try(Scanner scanner = new Scanner(file))
+        // Add up the positions in file order so that the centroid doesn't depend on how the file was parsed.
+        float[] positions = obj.positions;
+        int positionCount = positions.length / 3;
+        float sumX = 0.0f;
+        float sumY = 0.0f;
+        float sumZ = 0.0f;
+        for (int i = 0; i < positionCount; i++)
         {
-            while(scanner.hasNext())
-            {
-                String id = scanner.next();
-                switch (id)
-                {
-                    case "mtllib":
-                        if (inst.materialFileName == null)
-                        {
-                            // Use first material filename found
-                            inst.materialFileName = scanner.next();
-                        }
-                        break;
-                    case "usemtl":
-                        if (materialName == null)
-                        {
-                            // Use first material found
-                            materialName = scanner.next();
-                        }
-                        break;
-                    case "v":
-                        // Vertex position
-                        float x = scanner.nextFloat();
-                        float y = scanner.nextFloat();
-                        float z = scanner.nextFloat();
-
-                        sum = sum.plus(new Vector3(x, y, z));
-
-                        vertexList.add(new Vector3(x, y, z));
-                        break;
-                    case "vt":
-                        // Texture coordinate
-                        if (inst.hasTexCoords)
-                        {
-                            texCoordList.add(new Vector2(scanner.nextFloat(), scanner.nextFloat()));
-                        }
-                        break;
-                    case "vn":
-                        if (inst.hasNormals)
-                        {
-                            // Vertex normal
-                            float nx = scanner.nextFloat();
-                            float ny = scanner.nextFloat();
-                            float nz = scanner.nextFloat();
-
-                            // Normalize to unit length
-                            normalList.add(new Vector3(nx, ny, nz).normalized());
-                        }
-                        break;
-                    case "f":
-                        for (int i = 0; i < 3; i++) // Only support triangles
-                        {
-                            String[] parts = scanner.next().split("\\/");
-
-                            // Process vertex position
-                            int vertexIndex = Integer.parseInt(parts[0]);
-                            if (vertexIndex < 0)
-                            {
-                                // Relative index
-                                vertexIndexList.add(vertexList.size() + vertexIndex);
-                            }
-                            else
-                            {
-                                // Absolute index
-                                // 1-based -> 0-based indexing
-                                vertexIndexList.add(vertexIndex - 1);
-                            }
-
-                            if (parts.length < 2 || parts[1].isEmpty())
-                            {
-                                // No texture coordinate
-                                inst.hasTexCoords = false;
-                            }
-                            else if (inst.hasTexCoords)
-                            {
-                                // Process texture coordinate
-                                int texCoordIndex = Integer.parseInt(parts[1]);
-                                if (texCoordIndex < 0)
-                                {
-                                    // Relative index
-                                    texCoordIndexList.add(texCoordIndexList.size() + texCoordIndex);
-                                }
-                                else
-                                {
-                                    // Absolute index
-                                    // 1-based -> 0-based indexing
-                                    texCoordIndexList.add(texCoordIndex - 1);
-                                }
-                            }
-
-                            if (parts.length < 3 || parts[2].isEmpty())
-                            {
-                                // No vertex normal
-                                inst.hasNormals = false;
-                            }
-                            else if (inst.hasNormals)
-                            {
-                                // Process vertex normal
-                                int normalIndex = Integer.parseInt(parts[2]);
-                                if (normalIndex < 0)
-                                {
-                                    // Relative index
-                                    normalIndexList.add(normalIndexList.size() + normalIndex);
-                                }
-                                else
-                                {
-                                    // Absolute index
-                                    // 1-based -> 0-based indexing
-                                    normalIndexList.add(normalIndex - 1);
-                                }
-                            }
-                        }
-
-                        if (inst.hasTexCoords)
-                        {
-                            if (inst.hasNormals)
-                            {
-                                Vector3 position0 = vertexList.get(vertexIndexList.get(vertexIndexList.size() - 3));
-                                Vector3 position1 = vertexList.get(vertexIndexList.get(vertexIndexList.size() - 2));
-                                Vector3 position2 = vertexList.get(vertexIndexList.get(vertexIndexList.size() - 1));
-
-                                Vector2 texCoords0 = texCoordList.get(texCoordIndexList.get(texCoordIndexList.size() - 3));
-                                Vector2 texCoords1 = texCoordList.get(texCoordIndexList.get(texCoordIndexList.size() - 2));
-                                Vector2 texCoords2 = texCoordList.get(texCoordIndexList.get(texCoordIndexList.size() - 1));
-
-                                Vector3[] tangents = computeTangents(position0, position1, position2, texCoords0, texCoords1, texCoords2);
-
-                                // TODO broken code - make it so that two vertices share tangents if they share normals AND texture coordinates
-
-                                NormalTexCoordPair pair0 = new NormalTexCoordPair(
-                                    normalIndexList.get(normalIndexList.size() - 3),
-                                    texCoordIndexList.get(texCoordIndexList.size() - 3));
-
-                                NormalTexCoordPair pair1 = new NormalTexCoordPair(
-                                    normalIndexList.get(normalIndexList.size() - 2),
-                                    texCoordIndexList.get(texCoordIndexList.size() - 2));
-
-                                NormalTexCoordPair pair2 = new NormalTexCoordPair(
-                                    normalIndexList.get(normalIndexList.size() - 1),
-                                    texCoordIndexList.get(texCoordIndexList.size() - 1));
-
-                                tangentMap.put(pair0, tangentMap.getOrDefault(pair0, Vector3.ZERO).plus(tangents[0]));
-                                tangentMap.put(pair1, tangentMap.getOrDefault(pair1, Vector3.ZERO).plus(tangents[0]));
-                                tangentMap.put(pair2, tangentMap.getOrDefault(pair2, Vector3.ZERO).plus(tangents[0]));
-
-                                bitangentMap.put(pair0, bitangentMap.getOrDefault(pair0, Vector3.ZERO).plus(tangents[1]));
-                                bitangentMap.put(pair1, bitangentMap.getOrDefault(pair1, Vector3.ZERO).plus(tangents[1]));
-                                bitangentMap.put(pair2, bitangentMap.getOrDefault(pair2, Vector3.ZERO).plus(tangents[1]));
-                            }
-                            else
-                            {
-                                // TODO
-                            }
-                        }
-                        break;
-                    default:
-                        break;
-                }
-
-                // Always advance to the next line.
-                scanner.nextLine();
-            }
+            sumX += positions[3 * i];
+            sumY += positions[3 * i + 1];
+            sumZ += positions[3 * i + 2];
         }
 
-        inst.centroid = sum.dividedBy(vertexList.size());
-
-        Map<NormalTexCoordPair, Vector4> orthoTangentsMap = new HashMap<>(100000);
-        for (Entry<NormalTexCoordPair, Vector3> entry : tangentMap.entrySet())
-        {
-            orthoTangentsMap.put(entry.getKey(),
-                orthogonalizeTangent(normalList.get(entry.getKey().normalIndex), entry.getValue(), bitangentMap.get(entry.getKey())));
-        }
+        inst.centroid = new Vector3(sumX / positionCount, sumY / positionCount, sumZ / positionCount);
 
         float boundingBoxMinX = 0.0f;
         float boundingBoxMinY = 0.0f;
@@ -299,69 +188,92 @@ public final class VertexGeometry
         float boundingBoxMaxZ = 0.0f;
         inst.boundingRadius = 0.0f;
 
-        // Copy the data from the dynamic tables into a data structure that OpenGL can use.
-        int vertexCount = vertexIndexList.size();
-        inst.vertices = NativeVectorBufferFactory.getInstance().createEmpty(NativeDataType.FLOAT, 3, vertexCount);
-        int index = 0;
-        for (int k : vertexIndexList)
-        {
-            Vector3 vertex = vertexList.get(k);
-
-            boundingBoxMinX = Math.min(boundingBoxMinX, vertex.x);
-            boundingBoxMinY = Math.min(boundingBoxMinY, vertex.y);
-            boundingBoxMinZ = Math.min(boundingBoxMinZ, vertex.z);
+        // Corners of faces that have the same position, texture coordinates, and normal share a vertex;
+        // vertices are numbered in the order that they first appear in the faces.
+        int cornerCount = obj.getCornerCount();
+        IndexTripleTable vertexTable = new IndexTripleTable(cornerCount / 4);
+        int[] firstCorners = new int[cornerCount];
+        inst.indices = new int[cornerCount];
 
-            boundingBoxMaxX = Math.max(boundingBoxMaxX, vertex.x);
-            boundingBoxMaxY = Math.max(boundingBoxMaxY, vertex.y);
-            boundingBoxMaxZ = Math.max(boundingBoxMaxZ, vertex.z);
+        for (int i = 0; i < cornerCount; i++)
+        {
+            int previousVertexCount = vertexTable.size();
+            int vertex = vertexTable.getOrAdd(obj.vertexIndices[i],
+                inst.hasTexCoords ? obj.texCoordIndices[i] : 0,
+                inst.hasNormals ? obj.normalIndices[i] : 0);
 
-            inst.boundingRadius = Math.max(inst.boundingRadius, vertex.minus(inst.centroid).length());
+            if (vertexTable.size() > previousVertexCount)
+            {
+                firstCorners[vertex] = i;
+            }
 
-            inst.vertices.set(index, 0, vertex.x);
-            inst.vertices.set(index, 1, vertex.y);
-            inst.vertices.set(index, 2, vertex.z);
+            inst.indices[i] = vertex;
+        }
 
-            index++;
+        // Copy the data from the parsed file into a data structure that OpenGL can use.
+        int vertexCount = vertexTable.size();
+        float[] vertexData = new float[3 * vertexCount];
+        for (int i = 0; i < vertexCount; i++)
+        {
+            int k = obj.vertexIndices[firstCorners[i]];
+            float x = positions[3 * k];
+            float y = positions[3 * k + 1];
+            float z = positions[3 * k + 2];
+
+            boundingBoxMinX = Math.min(boundingBoxMinX, x);
+            boundingBoxMinY = Math.min(boundingBoxMinY, y);
+            boundingBoxMinZ = Math.min(boundingBoxMinZ, z);
+
+            boundingBoxMaxX = Math.max(boundingBoxMaxX, x);
+            boundingBoxMaxY = Math.max(boundingBoxMaxY, y);
+            boundingBoxMaxZ = Math.max(boundingBoxMaxZ, z);
+
+            float dx = x - inst.centroid.x;
+            float dy = y - inst.centroid.y;
+            float dz = z - inst.centroid.z;
+            inst.boundingRadius = Math.max(inst.boundingRadius, (float)Math.sqrt(dx * dx + dy * dy + dz * dz));
+
+            vertexData[3 * i] = x;
+            vertexData[3 * i + 1] = y;
+            vertexData[3 * i + 2] = z;
         }
 
+        inst.vertices = NativeVectorBufferFactory.getInstance().createFromFloatArray(3, vertexCount, vertexData);
+
         inst.boundingBoxCenter = new Vector3((boundingBoxMinX + boundingBoxMaxX) / 2, (boundingBoxMinY + boundingBoxMaxY) / 2, (boundingBoxMinZ + boundingBoxMaxZ) / 2);
         inst.boundingBoxSize = new Vector3(boundingBoxMaxX - boundingBoxMinX, boundingBoxMaxY - boundingBoxMinY, boundingBoxMaxZ - boundingBoxMinZ);
 
         if (inst.hasNormals)
         {
-            inst.normals = NativeVectorBufferFactory.getInstance().createEmpty(NativeDataType.FLOAT, 3, vertexCount);
-            int i = 0;
-            for (int k : normalIndexList)
+            float[] normalData = new float[3 * vertexCount];
+            for (int i = 0; i < vertexCount; i++)
             {
-                inst.normals.set(i, 0, normalList.get(k).x);
-                inst.normals.set(i, 1, normalList.get(k).y);
-                inst.normals.set(i, 2, normalList.get(k).z);
-                i++;
+                int k = obj.normalIndices[firstCorners[i]];
+                normalData[3 * i] = obj.normals[3 * k];
+                normalData[3 * i + 1] = obj.normals[3 * k + 1];
+                normalData[3 * i + 2] = obj.normals[3 * k + 2];
             }
+
+            inst.normals = NativeVectorBufferFactory.getInstance().createFromFloatArray(3, vertexCount, normalData);
         }
 
         if (inst.hasTexCoords)
         {
-            inst.texCoords = NativeVectorBufferFactory.getInstance().createEmpty(NativeDataType.FLOAT, 2, vertexCount);
-            int i = 0;
-            for (int k : texCoordIndexList)
+            float[] texCoordData = new float[2 * vertexCount];
+            for (int i = 0; i < vertexCount; i++)
             {
-                inst.texCoords.set(i, 0, texCoordList.get(k).x);
-                inst.texCoords.set(i, 1, texCoordList.get(k).y);
-                i++;
+                int k = obj.texCoordIndices[firstCorners[i]];
+                texCoordData[2 * i] = obj.texCoords[2 * k];
+                texCoordData[2 * i + 1] = obj.texCoords[2 * k + 1];
             }
+
+            inst.texCoords = NativeVectorBufferFactory.getInstance().createFromFloatArray(2, vertexCount, texCoordData);
         }
 
         if (inst.hasTexCoords && inst.hasNormals)
         {
-            inst.tangents = NativeVectorBufferFactory.getInstance().createEmpty(NativeDataType.FLOAT, 4, vertexCount);
-            for (int i = 0; i < normalIndexList.size(); i++)
-            {
-                inst.tangents.set(i, 0, orthoTangentsMap.get(new NormalTexCoordPair(normalIndexList.get(i), texCoordIndexList.get(i))).x);
-                inst.tangents.set(i, 1, orthoTangentsMap.get(new NormalTexCoordPair(normalIndexList.get(i), texCoordIndexList.get(i))).y);
-                inst.tangents.set(i, 2, orthoTangentsMap.get(new NormalTexCoordPair(normalIndexList.get(i), texCoordIndexList.get(i))).z);
-                inst.tangents.set(i, 3, orthoTangentsMap.get(new NormalTexCoordPair(normalIndexList.get(i), texCoordIndexList.get(i))).w);
-            }
+            inst.tangents = NativeVectorBufferFactory.getInstance().createFromFloatArray(4, vertexCount,
+                computeTangents(obj, firstCorners, vertexCount));
         }
 
         if (inst.materialFileName != null)
@@ -369,7 +281,7 @@ public final class VertexGeometry
             try
             {
                 Dictionary<String, Material> materialLibrary = Material.loadFromMTLFile(new File(file.getParentFile(), inst.materialFileName));
-                inst.material = materialLibrary.get(materialName);
+                inst.material = materialLibrary.get(obj.materialName);
             }
             catch(IOException e)
             {
@@ -387,26 +299,92 @@ public final class VertexGeometry
         return inst;
     }
 
-    private static Vector3[] computeTangents(
-            Vector3 position0, Vector3 position1, Vector3 position2,
-            Vector2 texCoords0, Vector2 texCoords1, Vector2 texCoords2)
+    /**
+     * Computes a tangent (with the handedness of the bitangent in the w-component) for each vertex of a mesh with normals and
+     * texture coordinates.  The tangents and bitangents of every face are added up for each pair of a normal and a texture coordinate,
+     * in the order of the faces, and then orthogonalized against the normal.
+     * @param firstCorners The first corner of a face that uses each vertex.
+     * @param vertexCount The number of vertices.
+     * @return The tangents, as 4 components per vertex.
+     */
+    private static float[] computeTangents(ParsedOBJFile obj, int[] firstCorners, int vertexCount)
     {
-        Vector3[] tangents = new Vector3[2];
+        // TODO broken code - make it so that two vertices share tangents if they share normals AND texture coordinates
 
-        float s1 = texCoords1.x - texCoords0.x;
-        float s2 = texCoords2.x - texCoords0.x;
-        float t1 = texCoords1.y - texCoords0.y;
-        float t2 = texCoords2.y - texCoords0.y;
+        int cornerCount = obj.getCornerCount();
+        IndexTripleTable pairTable = new IndexTripleTable(vertexCount);
+        int[] cornerPairs = new int[cornerCount];
+        int[] pairNormals = new int[vertexCount];
 
-        float r = 1.0f / (s1 * t2 - s2 * t1);
+        for (int i = 0; i < cornerCount; i++)
+        {
+            cornerPairs[i] = pairTable.getOrAdd(obj.normalIndices[i], obj.texCoordIndices[i], 0);
+            pairNormals[cornerPairs[i]] = obj.normalIndices[i];
+        }
 
-        Vector3 q1 = position1.minus(position0);
-        Vector3 q2 = position2.minus(position0);
+        int pairCount = pairTable.size();
+        float[] tangentSums = new float[3 * pairCount];
+        float[] bitangentSums = new float[3 * pairCount];
 
-        tangents[0] = q1.times(r * t2).plus(q2.times(r * -t1));
-        tangents[1] = q1.times(r * -s2).plus(q2.times(r * s1));
+        float[] positions = obj.positions;
+        float[] texCoords = obj.texCoords;
 
-        return tangents;
+        for (int f = 0; f < cornerCount / 3; f++)
+        {
+            int position0 = 3 * obj.vertexIndices[3 * f];
+            int position1 = 3 * obj.vertexIndices[3 * f + 1];
+            int position2 = 3 * obj.vertexIndices[3 * f + 2];
+
+            int texCoords0 = 2 * obj.texCoordIndices[3 * f];
+            int texCoords1 = 2 * obj.texCoordIndices[3 * f + 1];
+            int texCoords2 = 2 * obj.texCoordIndices[3 * f + 2];
+
+            float s1 = texCoords[texCoords1] - texCoords[texCoords0];
+            float s2 = texCoords[texCoords2] - texCoords[texCoords0];
+            float t1 = texCoords[texCoords1 + 1] - texCoords[texCoords0 + 1];
+            float t2 = texCoords[texCoords2 + 1] - texCoords[texCoords0 + 1];
+
+            float r = 1.0f / (s1 * t2 - s2 * t1);
+
+            for (int c = 0; c < 3; c++)
+            {
+                float q1 = positions[position1 + c] - positions[position0 + c];
+                float q2 = positions[position2 + c] - positions[position0 + c];
+
+                float tangent = (r * t2) * q1 + (r * -t1) * q2;
+                float bitangent = (r * -s2) * q1 + (r * s1) * q2;
+
+                for (int k = 0; k < 3; k++)
+                {
+                    int pair = cornerPairs[3 * f + k];
+                    tangentSums[3 * pair + c] += tangent;
+                    bitangentSums[3 * pair + c] += bitangent;
+                }
+            }
+        }
+
+        float[] orthoTangents = new float[4 * pairCount];
+        IntStream.range(0, pairCount).parallel().forEach(pair ->
+        {
+            int normal = 3 * pairNormals[pair];
+            Vector4 orthoTangent = orthogonalizeTangent(
+                new Vector3(obj.normals[normal], obj.normals[normal + 1], obj.normals[normal + 2]),
+                new Vector3(tangentSums[3 * pair], tangentSums[3 * pair + 1], tangentSums[3 * pair + 2]),
+                new Vector3(bitangentSums[3 * pair], bitangentSums[3 * pair + 1], bitangentSums[3 * pair + 2]));
+
+            orthoTangents[4 * pair] = orthoTangent.x;
+            orthoTangents[4 * pair + 1] = orthoTangent.y;
+            orthoTangents[4 * pair + 2] = orthoTangent.z;
+            orthoTangents[4 * pair + 3] = orthoTangent.w;
+        });
+
+        float[] tangentData = new float[4 * vertexCount];
+        for (int i = 0; i < vertexCount; i++)
+        {
+            System.arraycopy(orthoTangents, 4 * cornerPairs[firstCorners[i]], tangentData, 4 * i, 4);
+        }
+
+        return tangentData;
     }
 
     private static Vector4 orthogonalizeTangent(Vector3 normal, Vector3 tangent, Vector3 bitangent)
@@ -511,6 +489,18 @@ public final class VertexGeometry
         return tangents;
     }
 
+    /**
+     * Gets the indices of the vertices of each triangle of the mesh, three per triangle, that can be used by a GL as an index buffer.
+     * Corners of faces that share a position, texture coordinates, and a normal are represented by a single vertex,
+     * so the packed lists of vertex attributes contain one element per distinct vertex rather than one per corner.
+     * The returned array should not be modified.
+     * @return The vertex indices of the triangles.
+     */
+    public int[] getIndices()
+    {
+        return indices;
+    }
+
     /**
      * Gets the filename of the mesh's associated material.
      * @return The name of the material file for this mesh.
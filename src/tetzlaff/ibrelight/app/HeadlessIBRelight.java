@@ -0,0 +1,399 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.ibrelight.app;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Objects;
+
+import tetzlaff.gl.core.Context;
+import tetzlaff.gl.core.Framebuffer;
+import tetzlaff.gl.glfw.WindowFactory;
+import tetzlaff.gl.glfw.WindowImpl;
+import tetzlaff.gl.opengl.OpenGLContext;
+import tetzlaff.gl.software.SoftwareContext;
+import tetzlaff.gl.util.VertexGeometry;
+import tetzlaff.gl.vecmath.Matrix4;
+import tetzlaff.gl.vecmath.Vector3;
+import tetzlaff.gl.window.PollableWindow;
+import tetzlaff.ibrelight.core.*;
+import tetzlaff.ibrelight.rendering.resources.IBRResources;
+import tetzlaff.models.*;
+import tetzlaff.models.impl.SimpleSettingsModel;
+import tetzlaff.util.ShadingParameterMode;
+
+/**
+ * Command line entry point that loads a view set and executes a single request without starting JavaFX or showing a window.
+ * Usage: HeadlessIBRelight [--software] &lt;view set file&gt; &lt;request class&gt; &lt;output directory&gt; [additional request arguments...]
+ * The request class must have a public static method create(IBRelightModels, String...), the same convention used
+ * for requests passed on the command line to IBRelight; the arguments passed to it exclude the option flags.
+ * By default the request runs on an OpenGL context belonging to a window that is never shown.
+ * With --software, the request runs on the CPU using a SoftwareContext, so no display or graphics driver is needed;
+ * in that case color and depth images are not uploaded to textures, and the request can only use shaders that
+ * have a Java implementation registered with the context.  SpecularFitRequest runs every stage of the fit on the CPU
+ * in this mode, but skips reconstructing images from the fit and the error statistics that require rendering.
+ * Options must come before the view set file; the batch script passes its own arguments through as options,
+ * i.e. "run-headless.bat --software".
+ */
+public final class HeadlessIBRelight
+{
+    private HeadlessIBRelight()
+    {
+    }
+
+    public static void main(String... args) throws Exception
+    {
+        boolean softwareContextRequested = false;
+        int firstArg = 0;
+
+        while (firstArg < args.length && args[firstArg].startsWith("--"))
+        {
+            if (Objects.equals(args[firstArg], "--software"))
+            {
+                softwareContextRequested = true;
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unrecognized option: " + args[firstArg]);
+            }
+
+            firstArg++;
+        }
+
+        String[] requestArgs = Arrays.copyOfRange(args, firstArg, args.length);
+
+        if (requestArgs.length < 3)
+        {
+            System.err.println("Usage: HeadlessIBRelight [--software] <view set file> <request class> <output directory> [additional request arguments...]");
+            System.exit(1);
+        }
+
+        if (softwareContextRequested)
+        {
+            try(SoftwareContext context = new SoftwareContext(1, 1))
+            {
+                SimpleLoadOptionsModel loadOptions = new SimpleLoadOptionsModel()
+                    .setColorImagesRequested(false)
+                    .setDepthImagesRequested(false);
+
+                SimpleSettingsModel settingsModel = createDefaultSettingsModel();
+                settingsModel.createBooleanSetting("cpuReflectanceExtractionEnabled", true);
+                settingsModel.createBooleanSetting("cpuNormalOptimizationEnabled", true);
+                settingsModel.createBooleanSetting("cpuRoughnessOptimizationEnabled", true);
+                settingsModel.createBooleanSetting("cpuDiffuseOptimizationEnabled", true);
+
+                run(context, loadOptions, settingsModel, requestArgs);
+            }
+        }
+        else
+        {
+            // The GLFW window is created hidden and is never shown; it exists only to own the OpenGL context.
+            try(PollableWindow<OpenGLContext> window = WindowFactory.buildOpenGLWindow("IBRelight", 1, 1).create())
+            {
+                OpenGLContext context = window.getContext();
+                context.getState().enableDepthTest();
+
+                SimpleLoadOptionsModel loadOptions = new SimpleLoadOptionsModel()
+                    .setColorImagesRequested(true)
+                    .setMipmapsRequested(true)
+                    .setCompressionRequested(true)
+                    .setAlphaRequested(true)
+                    .setDepthImagesRequested(true)
+                    .setDepthImageWidth(1024)
+                    .setDepthImageHeight(1024);
+
+                run(context, loadOptions, createDefaultSettingsModel(), requestArgs);
+            }
+            finally
+            {
+                WindowImpl.closeAllWindows();
+            }
+        }
+    }
+
+    /**
+     * Creates a settings model with the same defaults that the JavaFX application starts with.
+     */
+    private static SimpleSettingsModel createDefaultSettingsModel()
+    {
+        SimpleSettingsModel settingsModel = new SimpleSettingsModel();
+        settingsModel.createBooleanSetting("occlusionEnabled", true);
+        settingsModel.createBooleanSetting("fresnelEnabled", false);
+        settingsModel.createBooleanSetting("pbrGeometricAttenuationEnabled", false);
+        settingsModel.createBooleanSetting("relightingEnabled", true);
+        settingsModel.createBooleanSetting("shadowsEnabled", false);
+        settingsModel.createNumericSetting("gamma", 2.2f);
+        settingsModel.createNumericSetting("weightExponent", 16.0f);
+        settingsModel.createNumericSetting("isotropyFactor", 0.0f);
+        settingsModel.createNumericSetting("occlusionBias", 0.0025f);
+        settingsModel.createObjectSetting("weightMode", ShadingParameterMode.PER_PIXEL);
+        settingsModel.createObjectSetting("renderingMode", StandardRenderingMode.IMAGE_BASED);
+        settingsModel.createBooleanSetting("buehlerAlgorithm", true);
+        settingsModel.createNumericSetting("buehlerViewCount", 5);
+        return settingsModel;
+    }
+
+    private static <ContextType extends Context<ContextType>> void run(ContextType context,
+        ReadonlyLoadOptionsModel loadOptions, SettingsModel settingsModel, String... args) throws Exception
+    {
+        IBRRequest<ContextType> request = createRequest(new HeadlessModels(settingsModel, loadOptions), args);
+        LoadingMonitor loadingMonitor = new ConsoleLoadingMonitor();
+
+        File vsetFile = new File(args[0]);
+
+        try(IBRResources<ContextType> resources = IBRResources.getBuilderForContext(context)
+            .setLoadingMonitor(loadingMonitor)
+            .setLoadOptions(loadOptions)
+            .loadVSETFile(vsetFile)
+            .create())
+        {
+            // Same light setup that IBRInstanceManager performs once an instance has finished loading.
+            double primaryViewDistance = resources.getPrimaryViewDistance();
+            Vector3 lightIntensity = new Vector3((float)(primaryViewDistance * primaryViewDistance));
+
+            for (int i = 0; i < resources.viewSet.getLightCount(); i++)
+            {
+                if (Objects.equals(resources.viewSet.getLightIntensity(i), Vector3.ZERO))
+                {
+                    resources.viewSet.setLightIntensity(i, lightIntensity);
+                }
+            }
+
+            resources.viewSet.setInfiniteLightSources(false);
+            resources.updateLightData();
+
+            context.makeContextCurrent();
+
+            loadingMonitor.startLoading();
+            request.executeRequest(new ResourcesInstance<>(resources), loadingMonitor);
+            loadingMonitor.loadingComplete();
+        }
+    }
+
+    private static <ContextType extends Context<ContextType>> IBRRequest<ContextType> createRequest(
+        IBRelightModels modelAccess, String... args)
+        throws ClassNotFoundException, NoSuchMethodException, IllegalAccessException, InvocationTargetException
+    {
+        Class<?> requestClass = Class.forName(args[1]);
+        Method createMethod = requestClass.getDeclaredMethod("create", IBRelightModels.class, String[].class);
+
+        if (IBRRequest.class.isAssignableFrom(createMethod.getReturnType())
+            && ((createMethod.getModifiers() & (Modifier.PUBLIC | Modifier.STATIC)) == (Modifier.PUBLIC | Modifier.STATIC)))
+        {
+            @SuppressWarnings("unchecked")
+            IBRRequest<ContextType> request = (IBRRequest<ContextType>) createMethod.invoke(null, modelAccess, args);
+            return request;
+        }
+        else
+        {
+            throw new IllegalArgumentException(requestClass.getName() + ".create() must be public, static, and return an IBRRequest.");
+        }
+    }
+
+    /**
+     * Models available to requests when running headless.
+     * Only the settings and load options exist; the interactive models (camera, lights, etc.) are owned by the user interface.
+     */
+    private static class HeadlessModels implements IBRelightModels
+    {
+        private final SettingsModel settingsModel;
+        private final ReadonlyLoadOptionsModel loadOptionsModel;
+
+        HeadlessModels(SettingsModel settingsModel, ReadonlyLoadOptionsModel loadOptionsModel)
+        {
+            this.settingsModel = settingsModel;
+            this.loadOptionsModel = loadOptionsModel;
+        }
+
+        @Override
+        public ReadonlyCameraModel getCameraModel()
+        {
+            throw new UnsupportedOperationException("The camera model is not available when running headless.");
+        }
+
+        @Override
+        public ReadonlyLightingModel getLightingModel()
+        {
+            throw new UnsupportedOperationException("The lighting model is not available when running headless.");
+        }
+
+        @Override
+        public ReadonlyObjectModel getObjectModel()
+        {
+            throw new UnsupportedOperationException("The object model is not available when running headless.");
+        }
+
+        @Override
+        public ReadonlyEnvironmentModel getEnvironmentModel()
+        {
+            throw new UnsupportedOperationException("The environment model is not available when running headless.");
+        }
+
+        @Override
+        public SettingsModel getSettingsModel()
+        {
+            return settingsModel;
+        }
+
+        @Override
+        public SceneViewportModel getSceneViewportModel()
+        {
+            throw new UnsupportedOperationException("The scene viewport is not available when running headless.");
+        }
+
+        @Override
+        public ReadonlyLoadOptionsModel getLoadOptionsModel()
+        {
+            return loadOptionsModel;
+        }
+
+        @Override
+        public LoadingModel getLoadingModel()
+        {
+            throw new UnsupportedOperationException("The loading model is not available when running headless.");
+        }
+
+        @Override
+        public ProjectModel getProjectModel()
+        {
+            throw new UnsupportedOperationException("The project model is not available when running headless.");
+        }
+    }
+
+    /**
+     * An IBR instance that only exposes its resources; requests that need to render the interactive scene cannot run headless.
+     */
+    private static class ResourcesInstance<ContextType extends Context<ContextType>> implements IBRInstance<ContextType>
+    {
+        private final IBRResources<ContextType> resources;
+
+        ResourcesInstance(IBRResources<ContextType> resources)
+        {
+            this.resources = resources;
+        }
+
+        @Override
+        public void initialize()
+        {
+        }
+
+        @Override
+        public void update()
+        {
+        }
+
+        @Override
+        public void draw(Framebuffer<ContextType> framebuffer, Matrix4 viewOverride, Matrix4 projectionOverride, int subdivWidth, int subdivHeight)
+        {
+            throw new UnsupportedOperationException("The interactive renderer is not available when running headless.");
+        }
+
+        @Override
+        public void setLoadingMonitor(LoadingMonitor loadingMonitor)
+        {
+        }
+
+        @Override
+        public ViewSet getActiveViewSet()
+        {
+            return resources.viewSet;
+        }
+
+        @Override
+        public VertexGeometry getActiveGeometry()
+        {
+            return resources.geometry;
+        }
+
+        @Override
+        public SceneModel getSceneModel()
+        {
+            throw new UnsupportedOperationException("The scene model is not available when running headless.");
+        }
+
+        @Override
+        public SceneViewport getSceneViewportModel()
+        {
+            throw new UnsupportedOperationException("The scene viewport is not available when running headless.");
+        }
+
+        @Override
+        public void reloadShaders()
+        {
+        }
+
+        @Override
+        public IBRResources<ContextType> getIBRResources()
+        {
+            return resources;
+        }
+
+        @Override
+        public DynamicResourceManager getDynamicResourceManager()
+        {
+            throw new UnsupportedOperationException("Dynamic resources are not available when running headless.");
+        }
+
+        @Override
+        public void close()
+        {
+            // The resources are owned and closed by the caller.
+        }
+    }
+
+    private static class ConsoleLoadingMonitor implements LoadingMonitor
+    {
+        private double maximum = 0.0;
+        private int lastPercent = -1;
+
+        @Override
+        public void startLoading()
+        {
+            maximum = 0.0;
+            lastPercent = -1;
+        }
+
+        @Override
+        public void setMaximum(double maximum)
+        {
+            this.maximum = maximum;
+        }
+
+        @Override
+        public void setProgress(double progress)
+        {
+            if (maximum > 0.0)
+            {
+                int percent = (int)Math.floor(100 * progress / maximum);
+                if (percent != lastPercent)
+                {
+                    lastPercent = percent;
+                    System.out.println("Progress: " + percent + '%');
+                }
+            }
+        }
+
+        @Override
+        public void loadingComplete()
+        {
+        }
+
+        @Override
+        public void loadingFailed(Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
@@ -219,12 +219,13 @@ public class PTMOptimization<ContextType extends Context<ContextType>>
                     }
 
                     // Scale the PTM solution by the determinant of the matrix and fill with the Lambertian solution as necessary.
-                    double determinant = matrixBuilder.weightsQTQAugmented[p].determinant();
+                    SimpleMatrix lhs = matrixBuilder.getAugmentedLHS(p);
+                    double determinant = lhs.determinant();
 
                     if (determinant > 0.0)  // Prevent singular matrix exceptions.
                     {
                         double alpha = Math.min(determinant, 1.0);
-                        SimpleMatrix rawSolution = matrixBuilder.weightsQTQAugmented[p].solve(matrixBuilder.weightsQTrAugmented[p]);
+                        SimpleMatrix rawSolution = lhs.solve(matrixBuilder.getAugmentedRHS(p));
 
                         // Once elements start to reach absolute values of 1 / PI start blending to the linear solution.
                         double scale = IntStream.range(0, rawSolution.getNumElements()).mapToDouble(i -> Math.abs(rawSolution.get(i))).max().orElse(0);
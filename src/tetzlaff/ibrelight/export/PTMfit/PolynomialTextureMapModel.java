@@ -11,14 +11,14 @@
 
 package tetzlaff.ibrelight.export.PTMfit;
 
-import tetzlaff.optimization.LeastSquaresModel;
+import tetzlaff.optimization.PrimitiveLeastSquaresModel;
 //import tetzlaff.ibrelight.export.PTMfit.PTMData;
 
 import java.util.function.IntFunction;
 
 import static java.lang.Float.isNaN;
 
-public class PolynomialTextureMapModel implements LeastSquaresModel<LuminanceData, Float>
+public class PolynomialTextureMapModel implements PrimitiveLeastSquaresModel<LuminanceData, Float>
 {
     private int width;
     private int length;
@@ -66,23 +66,51 @@ public class PolynomialTextureMapModel implements LeastSquaresModel<LuminanceDat
     public IntFunction<Float> getBasisFunctions(LuminanceData sampleData, int systemIndex) {
 //
         // b :column of the p matrix, system index :row
-        Float u=sampleData.getLightdir().getRed(systemIndex%(width*length));
-        Float v=sampleData.getLightdir().getGreen(systemIndex%(width*length));
-        Float w=sampleData.getLightdir().getBlue(systemIndex%(width*length));
-        Float[] row={1.0f,u,v,w,v*u, u*u + v*v};
+        double[] row = new double[getBasisFunctionCount()];
+        evaluateBasisFunctions(sampleData, systemIndex, row);
 
         return b->
         {
-            return row[b%row.length];
+            return (float)row[b%row.length];
         };
     }
 
+    /**
+     * Evaluates every basis function (one per column of the p matrix) for the light direction of a sample.
+     */
+    private void evaluateBasisFunctions(LuminanceData sampleData, int systemIndex, double[] basisValues)
+    {
+        float u=sampleData.getLightdir().getRed(systemIndex%(width*length));
+        float v=sampleData.getLightdir().getGreen(systemIndex%(width*length));
+        float w=sampleData.getLightdir().getBlue(systemIndex%(width*length));
+        basisValues[0]=1.0f;
+        basisValues[1]=u;
+        basisValues[2]=v;
+        basisValues[3]=w;
+        basisValues[4]=v*u;
+        basisValues[5]=u*u + v*v;
+    }
+
     @Override
     public int getBasisFunctionCount()
     {
         return 6;
     }
 
+    @Override
+    public int getSampleDimensions()
+    {
+        return 1;
+    }
+
+    @Override
+    public double evaluate(LuminanceData sampleData, int systemIndex, double[] samples, double[] basisValues) {
+        samples[0] = getSamples(sampleData, systemIndex);
+        evaluateBasisFunctions(sampleData, systemIndex, basisValues);
+
+        return getSampleWeight(sampleData, systemIndex);
+    }
+
     @Override
     public double innerProduct(Float t1, Float t2) {
         return t1*t2;
@@ -182,6 +182,7 @@ abstract class RenderRequestBase<ContextType extends Context<ContextType>> imple
         drawable.addVertexBuffer("texCoord", resources.texCoordBuffer);
         drawable.addVertexBuffer("normal", resources.normalBuffer);
         drawable.addVertexBuffer("tangent", resources.tangentBuffer);
+        drawable.setIndexBuffer(resources.indexBuffer);
         return drawable;
     }
 
@@ -12,12 +12,16 @@
 package tetzlaff.ibrelight.export.specularfit;
 
 import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.sql.Ref;
 
-import org.ejml.data.DMatrixRMaj;
 import tetzlaff.gl.vecmath.DoubleVector3;
 import tetzlaff.ibrelight.rendering.resources.GraphicsStream;
 import tetzlaff.optimization.function.BasisFunctions;
+import tetzlaff.optimization.function.MatrixBuilderSamples;
 import tetzlaff.optimization.MatrixSystem;
 import tetzlaff.optimization.function.OptimizedFunctions;
 import tetzlaff.util.Counter;
@@ -30,17 +34,57 @@ public class BRDFReconstruction
     private final BasisFunctions stepBasis;
     private final int matrixSize;
 
+    /**
+     * The sum of every accumulator; allocated once and zeroed at the start of each iteration.
+     */
+    private final MatrixSystem system;
+
+    /**
+     * Every accumulator that has been created so far; these persist across iterations.
+     * There are never more of these than the number of threads that the view stream allows to run at once.
+     */
+    private final List<Accumulator> accumulators = new ArrayList<>();
+
+    /**
+     * Accumulators that are not currently in use by a worker thread; guarded by the lock on accumulators.
+     */
+    private final Queue<Accumulator> idleAccumulators = new ArrayDeque<>();
+
+    /**
+     * Scratch space owned by one worker thread at a time while building the reflectance matrix.
+     * Views handled by the same worker are added into the same system, so only one merge is needed per accumulator
+     * instead of allocating and merging a full system for every view.
+     */
+    private static final class Accumulator
+    {
+        final MatrixSystem system;
+        final MatrixBuilderSamples samples;
+
+        /**
+         * Holds a single view's contribution for validation; null unless validation is enabled.
+         */
+        final MatrixSystem contribution;
+
+        Accumulator(int matrixSize, int basisCount)
+        {
+            system = new MatrixSystem(matrixSize, 3);
+            samples = new MatrixBuilderSamples(basisCount, 3);
+            contribution = ReflectanceMatrixBuilder.VALIDATE ? new MatrixSystem(matrixSize, 3) : null;
+        }
+    }
+
     public BRDFReconstruction(SpecularFitSettings settings, BasisFunctions stepBasis)
     {
         this.settings = settings;
         this.stepBasis = stepBasis;
         matrixSize = settings.basisCount * (settings.microfacetDistributionResolution + 1);
+        system = new MatrixSystem(matrixSize, 3);
     }
 
     public void execute(GraphicsStream<ReflectanceData> viewStream, SpecularFitSolution solution)
     {
         System.out.println("Building reflectance fitting matrix...");
-        MatrixSystem system = buildReflectanceMatrix(viewStream, solution);
+        buildReflectanceMatrix(viewStream, solution);
 
         System.out.println("Finished building matrix; solving now...");
 
@@ -121,7 +165,50 @@ public class BRDFReconstruction
 //        }
     }
 
-    private MatrixSystem buildReflectanceMatrix(GraphicsStream<ReflectanceData> viewStream, SpecularFitSolution solution)
+    private Accumulator acquireAccumulator(int maxRunningThreads)
+    {
+        synchronized (accumulators)
+        {
+            Accumulator accumulator = idleAccumulators.poll();
+
+            // A fork-join pool may briefly run an extra thread while another is blocked,
+            // so wait for an accumulator to be released rather than growing past the thread count.
+            while (accumulator == null && accumulators.size() >= maxRunningThreads)
+            {
+                try
+                {
+                    accumulators.wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for an accumulator.", e);
+                }
+
+                accumulator = idleAccumulators.poll();
+            }
+
+            if (accumulator == null)
+            {
+                // More threads are running at once than ever before.
+                accumulator = new Accumulator(matrixSize, settings.basisCount);
+                accumulators.add(accumulator);
+            }
+
+            return accumulator;
+        }
+    }
+
+    private void releaseAccumulator(Accumulator accumulator)
+    {
+        synchronized (accumulators)
+        {
+            idleAccumulators.add(accumulator);
+            accumulators.notify();
+        }
+    }
+
+    private void buildReflectanceMatrix(GraphicsStream<ReflectanceData> viewStream, SpecularFitSolution solution)
     {
         Counter counter = new Counter();
 
@@ -130,24 +217,57 @@ public class BRDFReconstruction
             new File(settings.outputDirectory, "sampleDump.txt").delete();
         }
 
-        MatrixSystem system = (ReflectanceMatrixBuilder.DUMP_SAMPLES ? viewStream.sequential() : viewStream)
-            .map(reflectanceData ->
-            {
-                // Create scratch space for the thread handling this view.
-                MatrixSystem contribution = new MatrixSystem(matrixSize, 3, DMatrixRMaj.class);
+        for (Accumulator accumulator : accumulators)
+        {
+            accumulator.system.zero();
+        }
+
+        GraphicsStream<ReflectanceData> stream = ReflectanceMatrixBuilder.DUMP_SAMPLES ? viewStream.sequential() : viewStream;
 
-                // Get the contributions from the current view.
-                new ReflectanceMatrixBuilder(reflectanceData, solution, settings.getMetallicity(), stepBasis, contribution).execute();
+        // Each thread that the stream runs at once needs its own accumulator, but no more than that.
+        int maxRunningThreads = stream.getMaxRunningThreads();
 
-                synchronized (counter)
+        stream.forEach(reflectanceData ->
+        {
+            // Borrow scratch space for the thread handling this view.
+            Accumulator accumulator = acquireAccumulator(maxRunningThreads);
+
+            try
+            {
+                // Add the contributions from the current view.
+                if (ReflectanceMatrixBuilder.VALIDATE)
                 {
-                    System.out.println("Finished view " + counter.get() + '.');
-                    counter.increment();
+                    // Validation compares against a single view, so the contributions need to be kept separate.
+                    accumulator.contribution.zero();
+                    new ReflectanceMatrixBuilder(reflectanceData, solution, settings.getMetallicity(), stepBasis,
+                        accumulator.contribution, accumulator.samples).execute();
+                    accumulator.system.addContribution(accumulator.contribution);
                 }
+                else
+                {
+                    new ReflectanceMatrixBuilder(reflectanceData, solution, settings.getMetallicity(), stepBasis,
+                        accumulator.system, accumulator.samples).execute();
+                }
+            }
+            finally
+            {
+                releaseAccumulator(accumulator);
+            }
+
+            synchronized (counter)
+            {
+                System.out.println("Finished view " + counter.get() + '.');
+                counter.increment();
+            }
+        });
+
+        // Only one merge per accumulator, rather than one per view.
+        system.zero();
 
-                return contribution;
-            })
-            .collect(() -> new MatrixSystem(matrixSize, 3, DMatrixRMaj.class), MatrixSystem::addContribution);
+        for (Accumulator accumulator : accumulators)
+        {
+            system.addContribution(accumulator.system);
+        }
 
         if (SpecularOptimization.DEBUG)
         {
@@ -188,7 +308,5 @@ public class BRDFReconstruction
                 System.out.println();
             }
         }
-
-        return system;
     }
 }
@@ -11,9 +11,11 @@
 
 package tetzlaff.ibrelight.export.specularfit;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import javax.imageio.ImageIO;
 
 import tetzlaff.gl.core.*;
 
@@ -66,6 +68,49 @@ public class BasisImageCreator<ContextType extends Context<ContextType>> impleme
         }
     }
 
+    /**
+     * Creates the same images on the CPU, directly from the basis functions of a solution, without a shader program.
+     * @param solution The solution containing the basis functions.
+     * @param settings The settings for the specular fit.
+     * @throws IOException If an image could not be saved.
+     */
+    public static void createImages(SpecularFitSolution solution, SpecularFitSettings settings) throws IOException
+    {
+        int resolution = settings.microfacetDistributionResolution;
+        int size = 2 * resolution + 1;
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+
+        for (int i = 0; i < settings.basisCount; i++)
+        {
+            for (int y = 0; y < size; y++)
+            {
+                for (int x = 0; x < size; x++)
+                {
+                    // Same lookup as the shader: distance from the center maps to the basis function domain,
+                    // sampled with linear filtering and clamped at the edges.
+                    double dx = (x + 0.5) / size - 0.5;
+                    double dy = (y + 0.5) / size - 0.5;
+                    double texel = Math.max(0.0, Math.min(resolution, Math.sqrt(dx * dx + dy * dy) * 2.0 * (resolution + 1) - 0.5));
+                    int m = Math.min((int)Math.floor(texel), resolution - 1);
+                    double t = texel - m;
+
+                    int red = toByte((1 - t) * solution.getSpecularRed().get(m, i) + t * solution.getSpecularRed().get(m + 1, i));
+                    int green = toByte((1 - t) * solution.getSpecularGreen().get(m, i) + t * solution.getSpecularGreen().get(m + 1, i));
+                    int blue = toByte((1 - t) * solution.getSpecularBlue().get(m, i) + t * solution.getSpecularBlue().get(m + 1, i));
+
+                    image.setRGB(x, y, 0xFF000000 | red << 16 | green << 8 | blue);
+                }
+            }
+
+            ImageIO.write(image, "PNG", new File(settings.outputDirectory, String.format("basis_%02d.png", i)));
+        }
+    }
+
+    private static int toByte(double value)
+    {
+        return (int)Math.round(Math.max(0.0, Math.min(1.0, value)) * 255);
+    }
+
     @Override
     public void close()
     {
@@ -75,11 +75,8 @@ public class BasisResources<ContextType extends Context<ContextType>> implements
 
         for (int b = 0; b < settings.basisCount; b++)
         {
-            // Copy weights from the individual solutions into the weight buffer laid out in texture space to be sent to the GPU.
-            for (int p = 0; p < settings.width * settings.height; p++)
-            {
-                weightMaskBuffer.set(p, 0, solution.getWeights(p).get(b));
-            }
+            // Copy the weight map, which is already laid out in texture space, into the buffer to be sent to the GPU.
+            weightMaskBuffer.getBuffer().asFloatBuffer().put(solution.getWeightMap(b));
 
             // Immediately load the weight map so that we can reuse the local memory buffer.
             weightMaps.loadLayer(b, weightMaskBuffer);
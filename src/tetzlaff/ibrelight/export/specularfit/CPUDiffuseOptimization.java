@@ -0,0 +1,137 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.ibrelight.export.specularfit;
+
+import java.util.stream.IntStream;
+
+import tetzlaff.util.HoleFill;
+
+/**
+ * Estimates the final diffuse map on the CPU, producing the same results as estimateDiffuse.frag followed by hole filling,
+ * directly from cached reflectance samples and the weights and basis functions of a solution.
+ */
+final class CPUDiffuseOptimization
+{
+    private final SpecularFitSettings settings;
+    private final TexelReflectanceSamples samples;
+
+    CPUDiffuseOptimization(SpecularFitSettings settings, TexelReflectanceSamples samples)
+    {
+        this.settings = settings;
+        this.samples = samples;
+    }
+
+    /**
+     * @param solution The solution containing the weights and basis functions.
+     * @param normalMapRGBA The normal map, in the format returned by NormalOptimization.readNormalMap().
+     * @param roughnessMapRGBA The roughness map, in the format returned by RoughnessOptimization.readRoughnessMap().
+     * @return The diffuse map (gamma-corrected) as RGBA data in texture space.
+     */
+    float[] execute(SpecularFitSolution solution, float[] normalMapRGBA, float[] roughnessMapRGBA)
+    {
+        double gamma = settings.additional.getFloat("gamma");
+        float[] diffuseMap = new float[4 * settings.width * settings.height];
+
+        TexelBRDF prototype = new TexelBRDF(settings, solution);
+        ThreadLocal<TexelBRDF> brdfs = ThreadLocal.withInitial(prototype::copy);
+
+        IntStream.range(0, samples.getTexelCount()).parallel().forEach(i ->
+        {
+            int p = samples.texelIndices[i];
+            TexelBRDF brdf = brdfs.get();
+            brdf.load(p);
+
+            double sqrtRoughness = roughnessMapRGBA[4 * p];
+            double roughness = sqrtRoughness * sqrtRoughness;
+
+            float[] frames = samples.tangentFrames;
+            double fittedX = normalMapRGBA[4 * p] * 2 - 1;
+            double fittedY = normalMapRGBA[4 * p + 1] * 2 - 1;
+            double fittedZ = Math.sqrt(Math.max(0.0, 1 - fittedX * fittedX - fittedY * fittedY));
+            double nx = frames[9 * i] * fittedX + frames[9 * i + 3] * fittedY + frames[9 * i + 6] * fittedZ;
+            double ny = frames[9 * i + 1] * fittedX + frames[9 * i + 4] * fittedY + frames[9 * i + 7] * fittedZ;
+            double nz = frames[9 * i + 2] * fittedX + frames[9 * i + 5] * fittedY + frames[9 * i + 8] * fittedZ;
+
+            double px = samples.positions[3 * i];
+            double py = samples.positions[3 * i + 1];
+            double pz = samples.positions[3 * i + 2];
+
+            double[] mfdEstimate = new double[3];
+            double[] diffuseSum = new double[4];
+
+            // Samples have already been filtered by alpha and by the triangle normal.
+            for (int s = samples.sampleOffsets[i]; s < samples.sampleOffsets[i + 1]; s++)
+            {
+                int k = samples.sampleViews[s];
+
+                double vx = samples.cameraPositions[3 * k] - px;
+                double vy = samples.cameraPositions[3 * k + 1] - py;
+                double vz = samples.cameraPositions[3 * k + 2] - pz;
+                double viewDist = Math.sqrt(vx * vx + vy * vy + vz * vz);
+                vx /= viewDist;
+                vy /= viewDist;
+                vz /= viewDist;
+
+                double triangleNDotV = Math.max(0.0, frames[9 * i + 6] * vx + frames[9 * i + 7] * vy + frames[9 * i + 8] * vz);
+
+                double lx = samples.lightPositions[3 * k] - px;
+                double ly = samples.lightPositions[3 * k + 1] - py;
+                double lz = samples.lightPositions[3 * k + 2] - pz;
+                double lightDist = Math.sqrt(lx * lx + ly * ly + lz * lz);
+                lx /= lightDist;
+                ly /= lightDist;
+                lz /= lightDist;
+
+                double hx = lx + vx;
+                double hy = ly + vy;
+                double hz = lz + vz;
+                double halfwayLength = Math.sqrt(hx * hx + hy * hy + hz * hz);
+                hx /= halfwayLength;
+                hy /= halfwayLength;
+                hz /= halfwayLength;
+
+                double nDotH = Math.max(0.0, nx * hx + ny * hy + nz * hz);
+                double nDotL = Math.max(0.0, nx * lx + ny * ly + nz * lz);
+                double nDotV = Math.max(0.0, nx * vx + ny * vy + nz * vz);
+
+                if (nDotH > 0.0 && nDotL > 0.0 && nDotV > 0.0)
+                {
+                    double hDotV = Math.max(0.0, hx * vx + hy * vy + hz * vz);
+                    double maskingShadowing = TexelBRDF.geom(settings, roughness, nDotH, nDotV, nDotL, hDotV);
+                    brdf.evaluateMFD(TexelBRDF.getHalfwayIndex(nDotH), mfdEstimate);
+
+                    // Avoid overfitting to specular dominated samples
+                    double weight = Math.sqrt(Math.max(0.0, 1 - nDotH * nDotH));
+
+                    for (int c = 0; c < 3; c++)
+                    {
+                        double specularEstimate = mfdEstimate[c] * maskingShadowing / (4 * nDotV);
+                        double diffuse = Math.PI * (samples.sampleColors[4 * s + c] - specularEstimate); // could be negative
+                        diffuseSum[c] += weight * diffuse * nDotL * triangleNDotV;
+                    }
+
+                    diffuseSum[3] += weight * nDotL * nDotL * triangleNDotV;
+                }
+            }
+
+            for (int c = 0; c < 3; c++)
+            {
+                diffuseMap[4 * p + c] = diffuseSum[3] > 0 ?
+                    (float)Math.pow(Math.max(0.0, diffuseSum[c] / diffuseSum[3]), 1.0 / gamma) : 0.0f;
+            }
+
+            diffuseMap[4 * p + 3] = 1.0f;
+        });
+
+        return HoleFill.execute(diffuseMap, settings.width, settings.height);
+    }
+}
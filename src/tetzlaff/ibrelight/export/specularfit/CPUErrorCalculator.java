@@ -0,0 +1,251 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.ibrelight.export.specularfit;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import tetzlaff.optimization.ErrorReport;
+import tetzlaff.optimization.ReadonlyErrorReport;
+import tetzlaff.optimization.StochasticErrorEstimator;
+
+/**
+ * Calculates the RMS error of a solution on the CPU, producing the same results as errorCalc.frag (with an error gamma of 1.0)
+ * directly from cached reflectance samples.
+ * Alternatively, the error can be estimated from a stratified random sample of texels, using a random subset of the views
+ * for each texel, with the full error only being calculated when the estimate is too uncertain to decide
+ * whether the solution got better or worse.
+ */
+final class CPUErrorCalculator
+{
+    /**
+     * Number of bands of texels (in the order of TexelReflectanceSamples, i.e. row by row) from which texels are sampled.
+     */
+    private static final int STRATA_COUNT = 64;
+
+    /**
+     * Number of texels sampled from each band.
+     */
+    private static final int TEXELS_PER_STRATUM = 64;
+
+    /**
+     * Approximate number of views evaluated for each sampled texel; every n-th view is used where n is chosen to get about this many.
+     */
+    private static final int VIEWS_PER_TEXEL = 16;
+
+    private final SpecularFitSettings settings;
+    private final TexelReflectanceSamples samples;
+    private final ErrorReport report;
+    private final StochasticErrorEstimator estimator;
+    private final int viewStride;
+
+    /**
+     * @param settings The settings for the specular fit.
+     * @param samples The reflectance samples, as extracted by TextureSpaceReflectanceStream.extractTexelSamples().
+     * @param seed The seed for the random number generator used to choose texels and views.
+     */
+    CPUErrorCalculator(SpecularFitSettings settings, TexelReflectanceSamples samples, long seed)
+    {
+        this.settings = settings;
+        this.samples = samples;
+        this.report = new ErrorReport(settings.width * settings.height);
+        // Without stochastic estimation, every update calculates the full error.
+        this.estimator = settings.isStochasticErrorEstimationEnabled() && samples.getTexelCount() > 0 ?
+            new StochasticErrorEstimator(samples.getTexelCount(), STRATA_COUNT, TEXELS_PER_STRATUM, seed) : null;
+
+        int averageViews = samples.getTexelCount() > 0 ? samples.getSampleCount() / samples.getTexelCount() : 0;
+        this.viewStride = Math.max(1, averageViews / VIEWS_PER_TEXEL);
+    }
+
+    ReadonlyErrorReport getReport()
+    {
+        return report;
+    }
+
+    void reject()
+    {
+        // Roll back to previous error calculation.
+        report.reject();
+    }
+
+    /**
+     * Calculates the full error from every sample.
+     * @param solution The solution containing the weights and basis functions.
+     * @param normalMapRGBA The normal map, in the format returned by NormalOptimization.readNormalMap().
+     * @param roughnessMapRGBA The roughness map, in the format returned by RoughnessOptimization.readRoughnessMap().
+     */
+    void update(SpecularFitSolution solution, float[] normalMapRGBA, float[] roughnessMapRGBA)
+    {
+        TexelBRDF prototype = new TexelBRDF(settings, solution);
+        ThreadLocal<TexelBRDF> brdfs = ThreadLocal.withInitial(prototype::copy);
+
+        int texelCount = samples.getTexelCount();
+        double[] errors = new double[texelCount];
+        double[] weights = new double[texelCount];
+
+        IntStream.range(0, texelCount).parallel().forEach(i ->
+        {
+            double[] errorAndWeight = new double[2];
+            calculateTexelError(brdfs.get(), normalMapRGBA, roughnessMapRGBA, i, 0, 1, errorAndWeight);
+            errors[i] = errorAndWeight[0];
+            weights[i] = errorAndWeight[1];
+        });
+
+        // Add up per-texel error in a fixed order so that the result doesn't depend on the number of threads.
+        double errorTotal = 0.0;
+        double weightTotal = 0.0;
+
+        for (int i = 0; i < texelCount; i++)
+        {
+            errorTotal += errors[i];
+            weightTotal += weights[i];
+        }
+
+        report.setError(Math.sqrt(errorTotal / weightTotal));
+    }
+
+    /**
+     * Updates the error for a new solution that will be accepted or rejected based on whether the error got worse,
+     * and counted as progress based on whether it improved by more than the convergence tolerance.
+     * If stochastic error estimation is enabled, the error is estimated from a random sample of texels and views,
+     * and the full error is only calculated if the estimate is too uncertain to make either decision.
+     * @param solution The solution containing the weights and basis functions.
+     * @param normalMapRGBA The normal map, in the format returned by NormalOptimization.readNormalMap().
+     * @param roughnessMapRGBA The roughness map, in the format returned by RoughnessOptimization.readRoughnessMap().
+     * @param convergenceTolerance The minimum improvement in error that counts as progress.
+     */
+    void update(SpecularFitSolution solution, float[] normalMapRGBA, float[] roughnessMapRGBA, double convergenceTolerance)
+    {
+        if (estimator != null && !estimator.isExhaustive())
+        {
+            int[] sample = estimator.drawSample();
+            Random random = estimator.getRandom();
+            int[] viewOffsets = IntStream.range(0, sample.length).map(j -> random.nextInt(viewStride)).toArray();
+
+            double[] errors = new double[sample.length];
+            double[] weights = new double[sample.length];
+
+            TexelBRDF prototype = new TexelBRDF(settings, solution);
+            ThreadLocal<TexelBRDF> brdfs = ThreadLocal.withInitial(prototype::copy);
+
+            IntStream.range(0, sample.length).parallel().forEach(j ->
+            {
+                double[] errorAndWeight = new double[2];
+                calculateTexelError(brdfs.get(), normalMapRGBA, roughnessMapRGBA, sample[j], viewOffsets[j], viewStride, errorAndWeight);
+                errors[j] = errorAndWeight[0];
+                weights[j] = errorAndWeight[1];
+            });
+
+            StochasticErrorEstimator.Estimate estimate = estimator.estimate(errors, weights);
+
+            if (!StochasticErrorEstimator.isDecisionAmbiguous(estimate, report, convergenceTolerance))
+            {
+                report.setError(estimate.getError(), estimate.getUncertainty());
+                return;
+            }
+        }
+
+        // Too close to call; use the full error.
+        update(solution, normalMapRGBA, roughnessMapRGBA);
+    }
+
+    /**
+     * Equivalent to errorCalc.frag for one texel, using every stride-th sample starting from viewOffset.
+     * Adds the total squared error and the total weight (the valid count in the shader) to errorAndWeight.
+     */
+    private void calculateTexelError(TexelBRDF brdf, float[] normalMapRGBA, float[] roughnessMapRGBA,
+        int i, int viewOffset, int stride, double[] errorAndWeight)
+    {
+        int p = samples.texelIndices[i];
+
+        double sqrtRoughness = roughnessMapRGBA[4 * p];
+        double roughness = sqrtRoughness * sqrtRoughness;
+        boolean filteredMask = roughnessMapRGBA[4 * p + 3] > 0.0f;
+
+        brdf.load(p);
+        double[] mfdEstimate = new double[3];
+
+        float[] frames = samples.tangentFrames;
+        double fittedX = normalMapRGBA[4 * p] * 2 - 1;
+        double fittedY = normalMapRGBA[4 * p + 1] * 2 - 1;
+        double fittedZ = Math.sqrt(Math.max(0.0, 1 - fittedX * fittedX - fittedY * fittedY));
+        double nx = frames[9 * i] * fittedX + frames[9 * i + 3] * fittedY + frames[9 * i + 6] * fittedZ;
+        double ny = frames[9 * i + 1] * fittedX + frames[9 * i + 4] * fittedY + frames[9 * i + 7] * fittedZ;
+        double nz = frames[9 * i + 2] * fittedX + frames[9 * i + 5] * fittedY + frames[9 * i + 8] * fittedZ;
+
+        double px = samples.positions[3 * i];
+        double py = samples.positions[3 * i + 1];
+        double pz = samples.positions[3 * i + 2];
+
+        // Samples have already been filtered by alpha and by the triangle normal.
+        for (int s = samples.sampleOffsets[i] + viewOffset; s < samples.sampleOffsets[i + 1]; s += stride)
+        {
+            int k = samples.sampleViews[s];
+
+            double vx = samples.cameraPositions[3 * k] - px;
+            double vy = samples.cameraPositions[3 * k + 1] - py;
+            double vz = samples.cameraPositions[3 * k + 2] - pz;
+            double viewDist = Math.sqrt(vx * vx + vy * vy + vz * vz);
+            vx /= viewDist;
+            vy /= viewDist;
+            vz /= viewDist;
+
+            double triangleNDotV = Math.max(0.0, frames[9 * i + 6] * vx + frames[9 * i + 7] * vy + frames[9 * i + 8] * vz);
+
+            double lx = samples.lightPositions[3 * k] - px;
+            double ly = samples.lightPositions[3 * k + 1] - py;
+            double lz = samples.lightPositions[3 * k + 2] - pz;
+            double lightDist = Math.sqrt(lx * lx + ly * ly + lz * lz);
+            lx /= lightDist;
+            ly /= lightDist;
+            lz /= lightDist;
+
+            double hx = lx + vx;
+            double hy = ly + vy;
+            double hz = lz + vz;
+            double halfwayLength = Math.sqrt(hx * hx + hy * hy + hz * hz);
+            hx /= halfwayLength;
+            hy /= halfwayLength;
+            hz /= halfwayLength;
+
+            double nDotH = Math.max(0.0, nx * hx + ny * hy + nz * hz);
+            double nDotL = Math.max(0.0, nx * lx + ny * ly + nz * lz);
+            double nDotV = Math.max(0.0, nx * vx + ny * vy + nz * vz);
+
+            double weight = samples.sampleColors[4 * s + 3] * triangleNDotV;
+
+            if (nDotH > 0.0 && nDotL > 0.0 && nDotV > 0.0 && filteredMask)
+            {
+                double hDotV = Math.max(0.0, hx * vx + hy * vy + hz * vz);
+                double maskingShadowing = TexelBRDF.geom(settings, roughness, nDotH, nDotV, nDotL, hDotV);
+                brdf.evaluateMFD(TexelBRDF.getHalfwayIndex(nDotH), mfdEstimate);
+
+                for (int c = 0; c < 3; c++)
+                {
+                    double specular = mfdEstimate[c] * maskingShadowing / (4 * nDotV);
+                    double diff = samples.sampleColors[4 * s + c] - (brdf.getDiffuse(c) * nDotL / Math.PI + specular);
+                    errorAndWeight[0] += weight * diff * diff;
+                }
+            }
+            else
+            {
+                for (int c = 0; c < 3; c++)
+                {
+                    double actual = samples.sampleColors[4 * s + c];
+                    errorAndWeight[0] += weight * actual * actual;
+                }
+            }
+
+            errorAndWeight[1] += 3 * weight;
+        }
+    }
+}
@@ -0,0 +1,707 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.ibrelight.export.specularfit;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * Refines the normal map entirely on the CPU, using the same per-texel Levenberg-Marquardt (or single pass linear) estimate
+ * as estimateNormals.frag and the same smoothing as smoothNormals.frag, but working directly from cached reflectance samples
+ * so that no graphics context is required.
+ * Unlike the GPU implementation, which iterates until the error over the whole texture stops improving,
+ * each texel keeps its own damping factor and stops iterating as soon as its own error stops improving,
+ * so texels that converge early stop costing any work.
+ */
+public final class CPUNormalOptimization
+{
+    private static final double PI = Math.PI;
+
+    /**
+     * Upper bound on the number of Levenberg-Marquardt iterations for any texel.
+     */
+    private static final int MAX_ITERATIONS = 200;
+
+    private final SpecularFitSettings settings;
+    private final TexelReflectanceSamples samples;
+
+    private float[] roughness;
+    private ThreadLocal<TexelState> texelStates;
+
+    /**
+     * Scratch data for evaluating the current BRDF estimate at one texel.
+     */
+    private final class TexelState
+    {
+        final TexelBRDF brdf;
+        final double[] mfdEstimate = new double[3];
+        final double[] mfdLow = new double[3];
+        final double[] mfdHigh = new double[3];
+        final double[] light = new double[3];
+        final double[] view = new double[3];
+        final double[] halfway = new double[3];
+        final double[] gradientX = new double[3];
+        final double[] gradientY = new double[3];
+
+        int index;
+        double px;
+        double py;
+        double pz;
+        double roughness;
+
+        TexelState(TexelBRDF brdf)
+        {
+            this.brdf = brdf;
+        }
+
+        /**
+         * Prepares to evaluate samples for a texel by combining the basis functions with the texel's weights.
+         */
+        void load(int i)
+        {
+            index = i;
+            px = samples.positions[3 * i];
+            py = samples.positions[3 * i + 1];
+            pz = samples.positions[3 * i + 2];
+            roughness = CPUNormalOptimization.this.roughness[i];
+            brdf.load(samples.texelIndices[i]);
+        }
+
+        /**
+         * Equivalent to calculateError() in normalError.glsl.
+         */
+        double calculateError(double nx, double ny, double nz)
+        {
+            float[] frames = samples.tangentFrames;
+            double triangleNormalX = frames[9 * index + 6];
+            double triangleNormalY = frames[9 * index + 7];
+            double triangleNormalZ = frames[9 * index + 8];
+
+            double error = 0.0;
+
+            for (int s = samples.sampleOffsets[index]; s < samples.sampleOffsets[index + 1]; s++)
+            {
+                int k = samples.sampleViews[s];
+
+                double lx = samples.lightPositions[3 * k] - px;
+                double ly = samples.lightPositions[3 * k + 1] - py;
+                double lz = samples.lightPositions[3 * k + 2] - pz;
+                double lightDist = Math.sqrt(lx * lx + ly * ly + lz * lz);
+                lx /= lightDist;
+                ly /= lightDist;
+                lz /= lightDist;
+
+                double vx = samples.cameraPositions[3 * k] - px;
+                double vy = samples.cameraPositions[3 * k + 1] - py;
+                double vz = samples.cameraPositions[3 * k + 2] - pz;
+                double viewDist = Math.sqrt(vx * vx + vy * vy + vz * vz);
+                vx /= viewDist;
+                vy /= viewDist;
+                vz /= viewDist;
+
+                double hx = lx + vx;
+                double hy = ly + vy;
+                double hz = lz + vz;
+                double halfwayLength = Math.sqrt(hx * hx + hy * hy + hz * hz);
+                hx /= halfwayLength;
+                hy /= halfwayLength;
+                hz /= halfwayLength;
+
+                double triangleNDotV = Math.max(0.0, triangleNormalX * vx + triangleNormalY * vy + triangleNormalZ * vz);
+                double nDotH = Math.max(0.0, nx * hx + ny * hy + nz * hz);
+                double nDotL = Math.max(0.0, nx * lx + ny * ly + nz * lz);
+                double nDotV = Math.max(0.0, nx * vx + ny * vy + nz * vz);
+
+                double actualRed = samples.sampleColors[4 * s];
+                double actualGreen = samples.sampleColors[4 * s + 1];
+                double actualBlue = samples.sampleColors[4 * s + 2];
+                double alpha = samples.sampleColors[4 * s + 3];
+
+                double weight = alpha * triangleNDotV * Math.sqrt(Math.max(0.0, 1 - nDotH * nDotH));
+
+                if (nDotH > 0 && nDotL > 0 && nDotV > 0)
+                {
+                    double hDotV = Math.max(0.0, hx * vx + hy * vy + hz * vz);
+                    double geomFactor = TexelBRDF.geom(settings, roughness, nDotH, nDotV, nDotL, hDotV) / (4 * nDotL * nDotV);
+
+                    brdf.evaluateMFD(TexelBRDF.getHalfwayIndex(nDotH), mfdEstimate);
+
+                    double diffRed = ((brdf.getDiffuse(0) / PI + mfdEstimate[0] * geomFactor) * nDotL - actualRed);
+                    double diffGreen = ((brdf.getDiffuse(1) / PI + mfdEstimate[1] * geomFactor) * nDotL - actualGreen);
+                    double diffBlue = ((brdf.getDiffuse(2) / PI + mfdEstimate[2] * geomFactor) * nDotL - actualBlue);
+                    error += weight * (diffRed * diffRed + diffGreen * diffGreen + diffBlue * diffBlue);
+                }
+                else if (weight > 0)
+                {
+                    error += weight * (actualRed * actualRed + actualGreen * actualGreen + actualBlue * actualBlue);
+                }
+            }
+
+            return error;
+        }
+    }
+
+    /**
+     * Creates a new CPU normal optimization.
+     * @param settings The settings for the specular fit.
+     * @param samples The reflectance samples, as extracted by TextureSpaceReflectanceStream.extractTexelSamples().
+     */
+    public CPUNormalOptimization(SpecularFitSettings settings, TexelReflectanceSamples samples)
+    {
+        this.settings = settings;
+        this.samples = samples;
+    }
+
+    /**
+     * Estimates a new normal map for the current basis functions and weights, followed by the number of smoothing iterations
+     * specified by the settings.
+     * @param solution The current solution, containing the basis functions and weights.
+     * @param normalMapRGBA The current normal map, in the format returned by NormalOptimization.readNormalMap(),
+     *                      or null to start from a flat normal map.
+     * @param roughnessMapRGBA The current roughness map as RGBA data with roughness in the red channel,
+     *                         as returned by RoughnessOptimization.readRoughnessMap(), or null for a roughness of 1.0 everywhere.
+     * @return The new normal map, in the same format as NormalOptimization.readNormalMap(),
+     * which can be uploaded using NormalOptimization.loadNormalMap().
+     */
+    public float[] execute(SpecularFitSolution solution, float[] normalMapRGBA, float[] roughnessMapRGBA)
+    {
+        int texelCount = samples.getTexelCount();
+
+        TexelBRDF brdf = new TexelBRDF(settings, solution);
+        texelStates = ThreadLocal.withInitial(() -> new TexelState(brdf.copy()));
+
+        roughness = new float[texelCount];
+        for (int i = 0; i < texelCount; i++)
+        {
+            roughness[i] = roughnessMapRGBA == null ? 1.0f : roughnessMapRGBA[4 * samples.texelIndices[i]];
+        }
+
+        // Current estimate of the normal in tangent space.
+        double[] normals = new double[3 * texelCount];
+        IntStream.range(0, texelCount).parallel().forEach(i ->
+        {
+            double x = normalMapRGBA == null ? 0.0 : normalMapRGBA[4 * samples.texelIndices[i]] * 2 - 1;
+            double y = normalMapRGBA == null ? 0.0 : normalMapRGBA[4 * samples.texelIndices[i] + 1] * 2 - 1;
+            normals[3 * i] = x;
+            normals[3 * i + 1] = y;
+            normals[3 * i + 2] = Math.sqrt(Math.max(0.0, 1 - x * x - y * y));
+        });
+
+        if (settings.isLevenbergMarquardtEnabled())
+        {
+            estimateLevenbergMarquardt(normals);
+        }
+        else
+        {
+            // Single pass normal estimation.
+            // Accept results regardless of whether they make the error better or not.
+            IntStream.range(0, texelCount).parallel().forEach(i -> estimateLinear(i, normals));
+        }
+
+        float[] result = smooth(normals);
+
+        this.texelStates = null;
+        this.roughness = null;
+        return result;
+    }
+
+    private void estimateLevenbergMarquardt(double[] normals)
+    {
+        int texelCount = samples.getTexelCount();
+        double[] damping = new double[texelCount];
+        double[] errors = new double[texelCount];
+        int[] unsuccessfulIterations = new int[texelCount];
+
+        // Set damping factor to 1.0 initially at each position.
+        Arrays.fill(damping, 1.0);
+
+        IntStream.range(0, texelCount).parallel().forEach(i ->
+        {
+            TexelState state = texelStates.get();
+            state.load(i);
+            errors[i] = toObjectSpaceError(state, i, normals[3 * i], normals[3 * i + 1], normals[3 * i + 2]);
+        });
+
+        int[] activeTexels = IntStream.range(0, texelCount).filter(i -> errors[i] > 0).toArray();
+
+        for (int iteration = 0; iteration < MAX_ITERATIONS && activeTexels.length > 0; iteration++)
+        {
+            IntStream.of(activeTexels).parallel().forEach(i ->
+            {
+                double previousError = errors[i];
+
+                if (iterateLevenbergMarquardt(i, normals, damping, errors)
+                    && previousError - errors[i] > settings.getConvergenceTolerance() * previousError)
+                {
+                    unsuccessfulIterations[i] = 0;
+                }
+                else
+                {
+                    unsuccessfulIterations[i]++;
+                }
+            });
+
+            // Texels that have stopped improving are not visited again.
+            activeTexels = IntStream.of(activeTexels).parallel()
+                .filter(i -> unsuccessfulIterations[i] < settings.getUnsuccessfulLMIterationsAllowed())
+                .toArray();
+
+            if (SpecularOptimization.DEBUG)
+            {
+                System.out.println("Normal estimation iteration " + iteration + ": " + activeTexels.length + " texels remaining.");
+            }
+        }
+    }
+
+    private double toObjectSpaceError(TexelState state, int i, double x, double y, double z)
+    {
+        float[] frames = samples.tangentFrames;
+        return state.calculateError(
+            frames[9 * i] * x + frames[9 * i + 3] * y + frames[9 * i + 6] * z,
+            frames[9 * i + 1] * x + frames[9 * i + 4] * y + frames[9 * i + 7] * z,
+            frames[9 * i + 2] * x + frames[9 * i + 5] * y + frames[9 * i + 8] * z);
+    }
+
+    /**
+     * Builds the orthonormal fitting frame used by estimateNormals.frag, with the previous normal as the third column.
+     * @return The fitting tangent and bitangent in tangent space (6 components).
+     */
+    private static double[] getFittingFrame(double x, double y, double z)
+    {
+        double tx = 1 - x * x;
+        double ty = -x * y;
+        double tz = -x * z;
+        double tangentLength = Math.sqrt(tx * tx + ty * ty + tz * tz);
+        tx /= tangentLength;
+        ty /= tangentLength;
+        tz /= tangentLength;
+
+        double bx = -y * x - ty * tx;
+        double by = 1 - y * y - ty * ty;
+        double bz = -y * z - ty * tz;
+        double bitangentLength = Math.sqrt(bx * bx + by * by + bz * bz);
+
+        return new double[] { tx, ty, tz, bx / bitangentLength, by / bitangentLength, bz / bitangentLength };
+    }
+
+    /**
+     * One Levenberg-Marquardt iteration for a single texel, equivalent to estimateNormals.frag.
+     * @return true if the step was accepted.
+     */
+    private boolean iterateLevenbergMarquardt(int i, double[] normals, double[] damping, double[] errors)
+    {
+        TexelState state = texelStates.get();
+        state.load(i);
+
+        double prevX = normals[3 * i];
+        double prevY = normals[3 * i + 1];
+        double prevZ = normals[3 * i + 2];
+        double[] fitting = getFittingFrame(prevX, prevY, prevZ);
+
+        double[] objectToFitting = getObjectToFitting(i, fitting, prevX, prevY, prevZ);
+
+        double dampingFactor = damping[i];
+        double jtj00 = 0.0;
+        double jtj01 = 0.0;
+        double jtj11 = 0.0;
+        double jtb0 = 0.0;
+        double jtb1 = 0.0;
+
+        double[] light = state.light;
+        double[] view = state.view;
+        double[] halfway = state.halfway;
+        double[] gradientX = state.gradientX;
+        double[] gradientY = state.gradientY;
+
+        float[] frames = samples.tangentFrames;
+        double triangleNormalX = frames[9 * i + 6];
+        double triangleNormalY = frames[9 * i + 7];
+        double triangleNormalZ = frames[9 * i + 8];
+        double resolution = settings.microfacetDistributionResolution;
+
+        for (int s = samples.sampleOffsets[i]; s < samples.sampleOffsets[i + 1]; s++)
+        {
+            int k = samples.sampleViews[s];
+
+            transform(objectToFitting,
+                samples.lightPositions[3 * k] - state.px,
+                samples.lightPositions[3 * k + 1] - state.py,
+                samples.lightPositions[3 * k + 2] - state.pz,
+                light);
+            normalize(light);
+
+            double vx = samples.cameraPositions[3 * k] - state.px;
+            double vy = samples.cameraPositions[3 * k + 1] - state.py;
+            double vz = samples.cameraPositions[3 * k + 2] - state.pz;
+            double viewDist = Math.sqrt(vx * vx + vy * vy + vz * vz);
+            double triangleNDotV = Math.max(0.0, (triangleNormalX * vx + triangleNormalY * vy + triangleNormalZ * vz) / viewDist);
+            transform(objectToFitting, vx / viewDist, vy / viewDist, vz / viewDist, view);
+
+            halfway[0] = light[0] + view[0];
+            halfway[1] = light[1] + view[1];
+            halfway[2] = light[2] + view[2];
+            normalize(halfway);
+
+            double nDotH = Math.max(0.0, halfway[2]);
+            double nDotL = Math.max(0.0, light[2]);
+            double nDotV = Math.max(0.0, view[2]);
+
+            if (samples.sampleColors[4 * s + 3] > 0 && nDotH > 0 && nDotL > 0 && nDotV > 0 && triangleNDotV > 0)
+            {
+                double hDotV = Math.max(0.0, halfway[0] * view[0] + halfway[1] * view[1] + halfway[2] * view[2]);
+                double maskingShadowing = TexelBRDF.geom(settings, state.roughness, nDotH, nDotV, nDotL, hDotV);
+                double geomFactor = maskingShadowing / (4 * nDotL * nDotV);
+
+                // n dot l is already incorporated by virtue of the fact that radiance is being optimized, not reflectance.
+                double weight = triangleNDotV * Math.sqrt(Math.max(0.0, 1 - nDotH * nDotH));
+
+                // getMFDGradient() in estimateNormals.frag
+                double wMid = TexelBRDF.getHalfwayIndex(nDotH);
+                double wLow = wMid - 1.0 / resolution;
+                double wHigh = wMid + 1.0 / resolution;
+                state.brdf.evaluateMFD(wMid, state.mfdEstimate);
+                state.brdf.evaluateMFD(wLow, state.mfdLow);
+                state.brdf.evaluateMFD(wHigh, state.mfdHigh);
+                double nDotHRange = Math.cos(wHigh * wHigh * PI / 3.0) - Math.cos(wLow * wLow * PI / 3.0);
+
+                double[] mfd = state.mfdEstimate;
+
+                double geomGradientX = 0.0;
+                double geomGradientY = 0.0;
+
+                if (settings.isSmithMaskingShadowingEnabled())
+                {
+                    // getHeightCorrelatedSmithGradient() in estimateNormals.frag
+                    double denominator = 1 + TexelBRDF.lambdaGGX(state.roughness, view[2]) + TexelBRDF.lambdaGGX(state.roughness, light[2]);
+                    double denominatorSq = denominator * denominator;
+                    geomGradientX = -(getLambdaGradient(state.roughness, view, 0) + getLambdaGradient(state.roughness, light, 0))
+                        / denominatorSq;
+                    geomGradientY = -(getLambdaGradient(state.roughness, view, 1) + getLambdaGradient(state.roughness, light, 1))
+                        / denominatorSq;
+                }
+
+                for (int c = 0; c < 3; c++)
+                {
+                    // (d NdotH / dN) * (dD / d NdotH)
+                    double mfdGradient = (state.mfdHigh[c] - state.mfdLow[c]) / nDotHRange;
+                    double specularX;
+                    double specularY;
+
+                    if (settings.isSmithMaskingShadowingEnabled())
+                    {
+                        // product rule
+                        double mfdGeomX = maskingShadowing * halfway[0] * mfdGradient + geomGradientX * mfd[c];
+                        double mfdGeomY = maskingShadowing * halfway[1] * mfdGradient + geomGradientY * mfd[c];
+
+                        // quotient rule
+                        specularX = 0.25 * (nDotV * mfdGeomX - view[0] * mfd[c] * maskingShadowing) / (nDotV * nDotV);
+                        specularY = 0.25 * (nDotV * mfdGeomY - view[1] * mfd[c] * maskingShadowing) / (nDotV * nDotV);
+                    }
+                    else if (nDotV * nDotH > 0.5 * hDotV && nDotL * nDotH > 0.5 * hDotV)
+                    {
+                        // G = 1.0
+                        // f * nDotL = DF / (4 * nDotV)
+                        specularX = 0.25 * (nDotV * halfway[0] * mfdGradient - view[0] * mfd[c]) / (nDotV * nDotV);
+                        specularY = 0.25 * (nDotV * halfway[1] * mfdGradient - view[1] * mfd[c]) / (nDotV * nDotV);
+                    }
+                    else if (nDotV < nDotL)
+                    {
+                        // G = 2 * nDotH * nDotV / hDotV
+                        // f * nDotL = DF * nDotH / (2 * hDotV)
+                        specularX = 0.5 * (nDotH * halfway[0] * mfdGradient + halfway[0] * mfd[c]) / hDotV;
+                        specularY = 0.5 * (nDotH * halfway[1] * mfdGradient + halfway[1] * mfd[c]) / hDotV;
+                    }
+                    else
+                    {
+                        // G = 2 * nDotH * nDotL / hDotV
+                        // f * nDotL = DF * nDotH * nDotL / (2 * hDotV * nDotV)
+                        double mfdNDotLX = nDotL * halfway[0] * mfdGradient + light[0] * mfd[c];
+                        double mfdNDotLY = nDotL * halfway[1] * mfdGradient + light[1] * mfd[c];
+                        double mfdGeomX = 0.5 * (nDotH * mfdNDotLX + halfway[0] * nDotL * mfd[c]) / hDotV;
+                        double mfdGeomY = 0.5 * (nDotH * mfdNDotLY + halfway[1] * nDotL * mfd[c]) / hDotV;
+                        specularX = (nDotV * mfdGeomX - view[0] * mfd[c] * maskingShadowing) / (nDotV * nDotV);
+                        specularY = (nDotV * mfdGeomY - view[1] * mfd[c] * maskingShadowing) / (nDotV * nDotV);
+                    }
+
+                    // The rows of the gradient correspond to the components of N; the columns are R/G/B.
+                    gradientX[c] = light[0] * state.brdf.getDiffuse(c) / PI + specularX;
+                    gradientY[c] = light[1] * state.brdf.getDiffuse(c) / PI + specularY;
+                }
+
+                jtj00 += weight * (gradientX[0] * gradientX[0] + gradientX[1] * gradientX[1] + gradientX[2] * gradientX[2] + dampingFactor);
+                jtj01 += weight * (gradientX[0] * gradientY[0] + gradientX[1] * gradientY[1] + gradientX[2] * gradientY[2]);
+                jtj11 += weight * (gradientY[0] * gradientY[0] + gradientY[1] * gradientY[1] + gradientY[2] * gradientY[2] + dampingFactor);
+
+                for (int c = 0; c < 3; c++)
+                {
+                    double residual = samples.sampleColors[4 * s + c] - (state.brdf.getDiffuse(c) / PI + mfd[c] * geomFactor) * nDotL;
+                    jtb0 += weight * gradientX[c] * residual;
+                    jtb1 += weight * gradientY[c] * residual;
+                }
+            }
+        }
+
+        double determinant = jtj00 * jtj11 - jtj01 * jtj01;
+
+        if (determinant > 0)
+        {
+            double deltaX = (jtj11 * jtb0 - jtj01 * jtb1) / determinant;
+            double deltaY = (jtj00 * jtb1 - jtj01 * jtb0) / determinant;
+
+            double tangentLengthSq = deltaX * deltaX + deltaY * deltaY;
+            double maxTangentLength = 0.5;
+            double tangentScale = Math.min(1.0, maxTangentLength / Math.sqrt(tangentLengthSq));
+            deltaX *= tangentScale;
+            deltaY *= tangentScale;
+            double deltaZ = Math.sqrt(Math.max(0.0, 1 - tangentLengthSq * tangentScale * tangentScale));
+
+            // fittingToTangent * delta
+            double newX = fitting[0] * deltaX + fitting[3] * deltaY + prevX * deltaZ;
+            double newY = fitting[1] * deltaX + fitting[4] * deltaY + prevY * deltaZ;
+            double newZ = fitting[2] * deltaX + fitting[5] * deltaY + prevZ * deltaZ;
+
+            double newError = toObjectSpaceError(state, i, newX, newY, newZ);
+
+            if (!Double.isNaN(newX) && !Double.isNaN(newY) && !Double.isNaN(newZ) && newError < errors[i])
+            {
+                normals[3 * i] = newX;
+                normals[3 * i + 1] = newY;
+                normals[3 * i + 2] = newZ;
+                errors[i] = newError;
+                damping[i] = Math.max(settings.getMinNormalDamping(), dampingFactor / 2.0);
+                return true;
+            }
+        }
+
+        damping[i] = dampingFactor * 2.0;
+        return false;
+    }
+
+    /**
+     * Single pass linear estimate for a single texel, equivalent to estimateNormals.frag without Levenberg-Marquardt.
+     */
+    private void estimateLinear(int i, double[] normals)
+    {
+        TexelState state = texelStates.get();
+        state.load(i);
+
+        double prevX = normals[3 * i];
+        double prevY = normals[3 * i + 1];
+        double prevZ = normals[3 * i + 2];
+        double[] fitting = getFittingFrame(prevX, prevY, prevZ);
+        double[] objectToFitting = getObjectToFitting(i, fitting, prevX, prevY, prevZ);
+
+        SimpleMatrix mATA = new SimpleMatrix(3, 3);
+        SimpleMatrix vATb = new SimpleMatrix(3, 1);
+
+        float[] frames = samples.tangentFrames;
+        double[] light = state.light;
+        double[] view = state.view;
+        double[] halfway = state.halfway;
+
+        for (int s = samples.sampleOffsets[i]; s < samples.sampleOffsets[i + 1]; s++)
+        {
+            int k = samples.sampleViews[s];
+
+            transform(objectToFitting,
+                samples.lightPositions[3 * k] - state.px,
+                samples.lightPositions[3 * k + 1] - state.py,
+                samples.lightPositions[3 * k + 2] - state.pz,
+                light);
+            normalize(light);
+
+            double vx = samples.cameraPositions[3 * k] - state.px;
+            double vy = samples.cameraPositions[3 * k + 1] - state.py;
+            double vz = samples.cameraPositions[3 * k + 2] - state.pz;
+            double viewDist = Math.sqrt(vx * vx + vy * vy + vz * vz);
+            double triangleNDotV = Math.max(0.0, (frames[9 * i + 6] * vx + frames[9 * i + 7] * vy + frames[9 * i + 8] * vz) / viewDist);
+            transform(objectToFitting, vx / viewDist, vy / viewDist, vz / viewDist, view);
+
+            halfway[0] = light[0] + view[0];
+            halfway[1] = light[1] + view[1];
+            halfway[2] = light[2] + view[2];
+            normalize(halfway);
+
+            double nDotH = Math.max(0.0, halfway[2]);
+            double nDotL = Math.max(0.0, light[2]);
+            double nDotV = Math.max(0.0, view[2]);
+
+            if (samples.sampleColors[4 * s + 3] > 0 && nDotH > 0 && nDotL > 0 && nDotV > 0 && triangleNDotV > 0)
+            {
+                double hDotV = Math.max(0.0, halfway[0] * view[0] + halfway[1] * view[1] + halfway[2] * view[2]);
+                double geomFactor = TexelBRDF.geom(settings, state.roughness, nDotH, nDotV, nDotL, hDotV) / (4 * nDotL * nDotV);
+                double weight = triangleNDotV * Math.sqrt(Math.max(0.0, 1 - nDotH * nDotH));
+
+                state.brdf.evaluateMFD(TexelBRDF.getHalfwayIndex(nDotH), state.mfdEstimate);
+
+                double estimateSq = 0.0;
+                double estimateDotActual = 0.0;
+                for (int c = 0; c < 3; c++)
+                {
+                    double estimate = state.brdf.getDiffuse(c) / PI + state.mfdEstimate[c] * geomFactor;
+                    estimateSq += estimate * estimate;
+                    estimateDotActual += estimate * samples.sampleColors[4 * s + c];
+                }
+
+                for (int row = 0; row < 3; row++)
+                {
+                    for (int col = 0; col < 3; col++)
+                    {
+                        mATA.set(row, col, mATA.get(row, col) + weight * estimateSq * light[row] * light[col]);
+                    }
+
+                    vATb.set(row, vATb.get(row) + weight * estimateDotActual * light[row]);
+                }
+            }
+        }
+
+        if (mATA.determinant() > 0)
+        {
+            SimpleMatrix normalFittingSpace = mATA.solve(vATb);
+            double length = normalFittingSpace.normF();
+
+            if (length > 0)
+            {
+                double x = normalFittingSpace.get(0) / length;
+                double y = normalFittingSpace.get(1) / length;
+                double z = normalFittingSpace.get(2) / length;
+
+                normals[3 * i] = fitting[0] * x + fitting[3] * y + prevX * z;
+                normals[3 * i + 1] = fitting[1] * x + fitting[4] * y + prevY * z;
+                normals[3 * i + 2] = fitting[2] * x + fitting[5] * y + prevZ * z;
+            }
+        }
+    }
+
+    /**
+     * Combines transpose(fittingToTangent) * transpose(tangentToObject) into a single row-major 3x3 matrix.
+     */
+    private double[] getObjectToFitting(int i, double[] fitting, double normalX, double normalY, double normalZ)
+    {
+        float[] frames = samples.tangentFrames;
+        double[][] fittingRows = { { fitting[0], fitting[1], fitting[2] }, { fitting[3], fitting[4], fitting[5] }, { normalX, normalY, normalZ } };
+        double[] result = new double[9];
+
+        for (int row = 0; row < 3; row++)
+        {
+            for (int col = 0; col < 3; col++)
+            {
+                // Column "col" of transpose(tangentToObject) is (tangent[col], bitangent[col], triangleNormal[col]).
+                result[3 * row + col] = fittingRows[row][0] * frames[9 * i + col]
+                    + fittingRows[row][1] * frames[9 * i + 3 + col]
+                    + fittingRows[row][2] * frames[9 * i + 6 + col];
+            }
+        }
+
+        return result;
+    }
+
+    private static void transform(double[] m, double x, double y, double z, double[] destination)
+    {
+        destination[0] = m[0] * x + m[1] * y + m[2] * z;
+        destination[1] = m[3] * x + m[4] * y + m[5] * z;
+        destination[2] = m[6] * x + m[7] * y + m[8] * z;
+    }
+
+    private static void normalize(double[] v)
+    {
+        double length = Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+        v[0] /= length;
+        v[1] /= length;
+        v[2] /= length;
+    }
+
+    /**
+     * Equivalent to getLambdaGradient() in estimateNormals.frag, for one component of the gradient.
+     */
+    private static double getLambdaGradient(double roughness, double[] direction, int component)
+    {
+        double roughnessSq = roughness * roughness;
+        double cosineSq = direction[2] * direction[2];
+
+        return -0.5 * roughnessSq * direction[component]
+            / (cosineSq * direction[2] * Math.sqrt(1 + roughnessSq * (1 / cosineSq - 1.0)));
+    }
+
+    /**
+     * Jacobi iterations equivalent to smoothNormals.frag, followed by encoding the normal map for a texture.
+     */
+    private float[] smooth(double[] normals)
+    {
+        int width = settings.width;
+        int height = settings.height;
+        int[] texels = samples.texelIndices;
+
+        // Tangent-space normals at full resolution; uncovered texels stay flat, as in the cleared framebuffer.
+        double[] current = new double[3 * width * height];
+        for (int p = 0; p < width * height; p++)
+        {
+            current[3 * p + 2] = 1.0;
+        }
+
+        for (int i = 0; i < texels.length; i++)
+        {
+            System.arraycopy(normals, 3 * i, current, 3 * texels[i], 3);
+        }
+
+        double[] next = current.clone();
+
+        for (int iteration = 0; iteration < settings.getNormalSmoothingIterations(); iteration++)
+        {
+            double[] prev = current;
+            double[] result = next;
+
+            IntStream.range(0, texels.length).parallel().forEach(i ->
+            {
+                int p = texels[i];
+                int x = p % width;
+                int y = p / width;
+
+                int up = Math.min(height - 1, y + 1) * width + x;
+                int down = Math.max(0, y - 1) * width + x;
+                int right = y * width + Math.min(width - 1, x + 1);
+                int left = y * width + Math.max(0, x - 1);
+
+                double newX = (prev[3 * up] + prev[3 * down] + prev[3 * right] + prev[3 * left]) * 0.25;
+                double newY = (prev[3 * up + 1] + prev[3 * down + 1] + prev[3 * right + 1] + prev[3 * left + 1]) * 0.25;
+                double newZ = Math.sqrt(Math.max(0.0, 1 - newX * newX - newY * newY));
+
+                // Mix using alpha of 0.5 since it should still include the previous normal with 50% weight.
+                double mixX = 0.5 * (newX + prev[3 * p]);
+                double mixY = 0.5 * (newY + prev[3 * p + 1]);
+                double mixZ = 0.5 * (newZ + prev[3 * p + 2]);
+                double length = Math.sqrt(mixX * mixX + mixY * mixY + mixZ * mixZ);
+
+                result[3 * p] = mixX / length;
+                result[3 * p + 1] = mixY / length;
+                result[3 * p + 2] = mixZ / length;
+            });
+
+            next = prev;
+            current = result;
+        }
+
+        // Map to the correct range for a texture.
+        float[] normalMapRGBA = new float[4 * width * height];
+        for (int p = 0; p < width * height; p++)
+        {
+            normalMapRGBA[4 * p] = (float)(current[3 * p] * 0.5 + 0.5);
+            normalMapRGBA[4 * p + 1] = (float)(current[3 * p + 1] * 0.5 + 0.5);
+            normalMapRGBA[4 * p + 2] = (float)(current[3 * p + 2] * 0.5 + 0.5);
+            normalMapRGBA[4 * p + 3] = 1.0f;
+        }
+
+        return normalMapRGBA;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.ibrelight.export.specularfit;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Fits the specular reflectivity and roughness at each texel on the CPU,
+ * producing the same results as specularRoughnessFit.frag (with a fitting gamma of 1.0) directly from the weights
+ * and basis functions of a solution.
+ * The results are stored in the same format as the framebuffer used by RoughnessOptimization,
+ * and are overwritten in place each time the fit is executed.
+ */
+final class CPURoughnessOptimization
+{
+    private final SpecularFitSettings settings;
+
+    /**
+     * Specular reflectivity (gamma-corrected) in RGB, with alpha = 1 wherever the weights are valid.
+     */
+    private final float[] reflectivityMap;
+
+    /**
+     * Square root of the roughness in RGB, with alpha = 1 wherever the weights are valid.
+     */
+    private final float[] roughnessMap;
+
+    CPURoughnessOptimization(SpecularFitSettings settings)
+    {
+        this.settings = settings;
+        this.reflectivityMap = new float[4 * settings.width * settings.height];
+        this.roughnessMap = new float[4 * settings.width * settings.height];
+
+        // Set initial assumption for roughness when calculating masking/shadowing.
+        Arrays.fill(roughnessMap, 1.0f);
+    }
+
+    float[] getReflectivityMap()
+    {
+        return reflectivityMap;
+    }
+
+    float[] getRoughnessMap()
+    {
+        return roughnessMap;
+    }
+
+    void execute(SpecularFitSolution solution)
+    {
+        int resolution = settings.microfacetDistributionResolution;
+        double gamma = settings.additional.getFloat("gamma");
+        TexelBRDF prototype = new TexelBRDF(settings, solution);
+        ThreadLocal<TexelBRDF> brdfs = ThreadLocal.withInitial(prototype::copy);
+
+        IntStream.range(0, settings.width * settings.height).parallel().forEach(p ->
+        {
+            if (!solution.areWeightsValid(p))
+            {
+                // Discarded fragment; the framebuffer is cleared to zero.
+                Arrays.fill(reflectivityMap, 4 * p, 4 * p + 4, 0.0f);
+                Arrays.fill(roughnessMap, 4 * p, 4 * p + 4, 0.0f);
+                return;
+            }
+
+            TexelBRDF brdf = brdfs.get();
+            brdf.load(p);
+
+            double[] sqrtF0 = new double[3];
+            double[] sumNumerator = new double[3];
+            double[] sumDenominator = new double[3];
+
+            for (int c = 0; c < 3; c++)
+            {
+                sqrtF0[c] = Math.sqrt(brdf.getMicrofacetDistribution(0, c));
+            }
+
+            for (int m = 1; m < resolution; m++)
+            {
+                double sqrtAngle = (double)m / (double)resolution;
+                double nDotH = Math.cos(sqrtAngle * sqrtAngle * Math.PI / 3.0);
+                double nDotHSq = nDotH * nDotH;
+
+                for (int c = 0; c < 3; c++)
+                {
+                    double sqrtF = Math.sqrt(brdf.getMicrofacetDistribution(m, c));
+                    double numerator = (1.0 - nDotHSq) * sqrtF;
+                    double denominator = sqrtF0[c] - nDotHSq * sqrtF;
+
+                    sumNumerator[c] += numerator * denominator;
+                    sumDenominator[c] += denominator * denominator;
+                }
+            }
+
+            double[] fresnel = new double[3];
+            for (int c = 0; c < 3; c++)
+            {
+                fresnel[c] = Math.PI * sqrtF0[c] * sqrtF0[c] * sumNumerator[c] / sumDenominator[c];
+            }
+
+            double roughnessSq = getLuminance(fresnel[0], fresnel[1], fresnel[2])
+                / (Math.PI * getLuminance(sqrtF0[0] * sqrtF0[0], sqrtF0[1] * sqrtF0[1], sqrtF0[2] * sqrtF0[2]));
+            float sqrtRoughness = clamp(Math.sqrt(Math.sqrt(roughnessSq)));
+
+            for (int c = 0; c < 3; c++)
+            {
+                reflectivityMap[4 * p + c] = clamp(Math.pow(fresnel[c], 1.0 / gamma));
+                roughnessMap[4 * p + c] = sqrtRoughness;
+            }
+
+            reflectivityMap[4 * p + 3] = 1.0f;
+            roughnessMap[4 * p + 3] = 1.0f;
+        });
+    }
+
+    /**
+     * Equivalent to getLuminance() in linearize.glsl.
+     */
+    private static double getLuminance(double red, double green, double blue)
+    {
+        // linearized sRGB to CIE-Y
+        return 0.2126729 * red + 0.7151522 * green + 0.0721750 * blue;
+    }
+
+    /**
+     * Clamps to the range of the fixed-point framebuffer used by the GPU implementation.
+     * NaN (i.e. if a texel has no specular reflectance) is stored as zero, as it is when converted to fixed-point.
+     */
+    private static float clamp(double value)
+    {
+        return value > 0.0 ? (float)Math.min(1.0, value) : 0.0f;
+    }
+}
@@ -17,6 +17,9 @@ import java.io.IOException;
 import java.util.Objects;
 
 import tetzlaff.gl.core.*;
+import tetzlaff.gl.nativebuffer.NativeDataType;
+import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
+import tetzlaff.gl.nativebuffer.NativeVectorBufferFactory;
 import tetzlaff.ibrelight.rendering.resources.IBRResources;
 import tetzlaff.util.ShaderHoleFill;
 
@@ -25,30 +28,37 @@ public class FinalDiffuseOptimization<ContextType extends Context<ContextType>>
     // Graphics context
     private final ContextType context;
 
-    // Final diffuse estimation program
-    private final Program<ContextType> estimationProgram;
+    // Resources used to create the final diffuse estimation program
+    private final IBRResources<ContextType> resources;
+
+    // Final diffuse estimation program; created the first time it's needed, so that none is created if the estimate is made on the CPU.
+    private Program<ContextType> estimationProgram;
 
     // Framebuffer for storing the diffuse solution
     private FramebufferObject<ContextType> framebuffer;
 
-    private final Drawable<ContextType> drawable;
+    private Drawable<ContextType> drawable;
 
     private final SpecularFitSettings settings;
 
     public FinalDiffuseOptimization(ContextType context, IBRResources<ContextType> resources, SpecularFitSettings settings)
-        throws FileNotFoundException
     {
         this.context = context;
-        estimationProgram = createDiffuseEstimationProgram(new SpecularFitProgramFactory<>(resources, settings));
+        this.resources = resources;
         framebuffer = context.buildFramebufferObject(settings.width, settings.height)
             .addColorAttachment(ColorFormat.RGBA32F)
             .createFramebufferObject();
-        drawable = resources.createDrawable(estimationProgram);
         this.settings = settings;
     }
 
-    public void execute(SpecularFitBase<ContextType> specularFit)
+    public void execute(SpecularFitBase<ContextType> specularFit) throws FileNotFoundException
     {
+        if (estimationProgram == null)
+        {
+            estimationProgram = createDiffuseEstimationProgram(new SpecularFitProgramFactory<>(resources, settings));
+            drawable = resources.createDrawable(estimationProgram);
+        }
+
         // Set up diffuse estimation shader program
         specularFit.basisResources.useWithShaderProgram(estimationProgram);
         estimationProgram.setTexture("normalEstimate", specularFit.getNormalMap());
@@ -94,10 +104,32 @@ public class FinalDiffuseOptimization<ContextType extends Context<ContextType>>
         }
     }
 
+    /**
+     * Estimates the final diffuse map on the CPU from cached reflectance samples, rather than using the shader,
+     * and then uploads it to the diffuse texture.
+     * @param solution The solution containing the weights and basis functions.
+     * @param samples The reflectance samples, as extracted by TextureSpaceReflectanceStream.extractTexelSamples().
+     * @param normalMapRGBA The normal map, in the format returned by NormalOptimization.readNormalMap().
+     * @param roughnessMapRGBA The roughness map, in the format returned by RoughnessOptimization.readRoughnessMap().
+     */
+    public void execute(SpecularFitSolution solution, TexelReflectanceSamples samples, float[] normalMapRGBA, float[] roughnessMapRGBA)
+    {
+        float[] diffuseMap = new CPUDiffuseOptimization(settings, samples).execute(solution, normalMapRGBA, roughnessMapRGBA);
+
+        NativeVectorBuffer buffer = NativeVectorBufferFactory.getInstance()
+            .createEmpty(NativeDataType.FLOAT, 4, settings.width * settings.height);
+        buffer.getBuffer().asFloatBuffer().put(diffuseMap);
+        framebuffer.getColorAttachmentTexture(0).load(buffer);
+    }
+
     @Override
     public void close()
     {
-        estimationProgram.close();
+        if (estimationProgram != null)
+        {
+            estimationProgram.close();
+        }
+
         framebuffer.close();
     }
 
@@ -19,6 +19,9 @@ import java.util.function.Function;
 import tetzlaff.gl.builders.ProgramBuilder;
 import tetzlaff.gl.builders.framebuffer.ColorAttachmentSpec;
 import tetzlaff.gl.core.*;
+import tetzlaff.gl.nativebuffer.NativeDataType;
+import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
+import tetzlaff.gl.nativebuffer.NativeVectorBufferFactory;
 import tetzlaff.optimization.ReadonlyErrorReport;
 import tetzlaff.optimization.ShaderBasedOptimization;
 
@@ -30,6 +33,9 @@ public class NormalOptimization<ContextType extends Context<ContextType>> implem
 
     private boolean firstSmooth = true;
 
+    // The normal map most recently loaded from the CPU, if the textures haven't changed since; avoids reading them back.
+    private float[] loadedNormalMap;
+
     public NormalOptimization(
         ContextType context,
         SpecularFitProgramFactory<ContextType> programFactory,
@@ -127,6 +133,8 @@ public class NormalOptimization<ContextType extends Context<ContextType>> implem
 
     public void execute(Function<Texture<ContextType>, ReadonlyErrorReport> errorCalculator, double convergenceTolerance)
     {
+        loadedNormalMap = null;
+
         if (settings.isLevenbergMarquardtEnabled())
         {
             // Set damping factor to 1.0 initially at each position.
@@ -200,7 +208,25 @@ public class NormalOptimization<ContextType extends Context<ContextType>> implem
 
     public float[] readNormalMap()
     {
-        return getNormalMapFBO().readFloatingPointColorBufferRGBA(0);
+        return loadedNormalMap != null ? loadedNormalMap : getNormalMapFBO().readFloatingPointColorBufferRGBA(0);
+    }
+
+    /**
+     * Replaces the current normal map, i.e. with a normal map estimated by CPUNormalOptimization.
+     * The normal map is loaded as both the unsmoothed and smoothed estimate, so it should already be smoothed if necessary.
+     * The array is kept and returned by readNormalMap() until the normals are estimated again, so it should not be modified.
+     * @param normalMapRGBA The normal map, in the same format as returned by readNormalMap().
+     */
+    public void loadNormalMap(float[] normalMapRGBA)
+    {
+        NativeVectorBuffer buffer = NativeVectorBufferFactory.getInstance()
+            .createEmpty(NativeDataType.FLOAT, 4, settings.width * settings.height);
+        buffer.getBuffer().asFloatBuffer().put(normalMapRGBA);
+
+        estimateNormals.getFrontFramebuffer().getColorAttachmentTexture(0).load(buffer);
+        smoothNormals.getFrontFramebuffer().getColorAttachmentTexture(0).load(buffer);
+
+        loadedNormalMap = normalMapRGBA;
     }
 
     private ProgramBuilder<ContextType> getNormalEstimationProgramBuilder(SpecularFitProgramFactory<ContextType> programFactory)
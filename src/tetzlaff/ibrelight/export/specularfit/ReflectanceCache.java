@@ -0,0 +1,438 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.ibrelight.export.specularfit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import tetzlaff.ibrelight.rendering.resources.GraphicsStream;
+import tetzlaff.ibrelight.rendering.resources.GraphicsStreamBase;
+import tetzlaff.util.ColorArrayList;
+
+/**
+ * Stores the reflectance data for every view in a compact, memory-mapped temporary file so that it can be replayed
+ * many times without re-rendering the views.
+ * Only texels that are visible in a view are stored, sorted by texel index; for each one, the texel index is stored
+ * followed by the eight values of the reflectance data (color, visibility, halfway index, geometric ratio, additional weight, n dot l).
+ * Streams over the cache can be restricted to a range of texels (i.e. a block of the weight optimization),
+ * in which case only the samples within that range are read from each view.
+ * The cache must be updated whenever the inputs to the reflectance extraction (normals, roughness) change.
+ */
+public final class ReflectanceCache implements AutoCloseable
+{
+    private static final int FLOATS_PER_SAMPLE = 8;
+    private static final int BYTES_PER_SAMPLE = Integer.BYTES + FLOATS_PER_SAMPLE * Float.BYTES;
+
+    private final int texelCount;
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+
+    private IntBuffer[] texelIndices = new IntBuffer[0];
+    private FloatBuffer[] samples = new FloatBuffer[0];
+    private int[] sampleCounts = new int[0];
+    private int viewCount;
+
+    private long reservedBytes;
+
+    private final Deque<CacheBuffer> unusedBuffers = new ConcurrentLinkedDeque<>();
+
+    /**
+     * Dense reflectance data that is filled in from the cache one view at a time.
+     * Only the visibility needs to be reset between views, since other components are ignored for texels that are not visible.
+     */
+    private static final class CacheBuffer
+    {
+        final float[] colorAndVisibility;
+        final float[] halfwayGeomWeightNDotL;
+        final ReflectanceData data;
+
+        int[] filledTexels = new int[0];
+        int filledCount = 0;
+
+        CacheBuffer(int texelCount)
+        {
+            colorAndVisibility = new float[4 * texelCount];
+            halfwayGeomWeightNDotL = new float[4 * texelCount];
+            data = new ReflectanceData(new ColorArrayList(colorAndVisibility), new ColorArrayList(halfwayGeomWeightNDotL));
+        }
+    }
+
+    /**
+     * Creates an empty cache backed by a new temporary file.
+     * @param texelCount The number of texels in the reflectance data for each view.
+     * @throws IOException Thrown if the temporary file could not be created.
+     */
+    public ReflectanceCache(int texelCount) throws IOException
+    {
+        this.texelCount = texelCount;
+        this.file = File.createTempFile("reflectance", ".cache");
+        this.file.deleteOnExit();
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+    }
+
+    /**
+     * Replaces the contents of the cache with the reflectance data from every view in a stream.
+     * Each view in the source stream is rendered and read exactly once.
+     * The order of the views in the cache is not necessarily the same as their order in the source stream.
+     * @param source The stream from which to extract reflectance data.  It may be parallel.
+     */
+    public void update(GraphicsStream<ReflectanceData> source)
+    {
+        int count = source.getCount();
+        IntBuffer[] newTexelIndices = new IntBuffer[count];
+        FloatBuffer[] newSamples = new FloatBuffer[count];
+        int[] newSampleCounts = new int[count];
+        AtomicInteger nextSlot = new AtomicInteger(0);
+
+        synchronized (this)
+        {
+            reservedBytes = 0;
+        }
+
+        source.forEach(reflectanceData ->
+        {
+            int size = Math.min(texelCount, reflectanceData.size());
+
+            int sampleCount = 0;
+            for (int p = 0; p < size; p++)
+            {
+                if (reflectanceData.getVisibility(p) > 0)
+                {
+                    sampleCount++;
+                }
+            }
+
+            int slot = nextSlot.getAndIncrement();
+            ByteBuffer buffer = map((long) sampleCount * BYTES_PER_SAMPLE);
+
+            IntBuffer indices = buffer.asIntBuffer();
+            FloatBuffer values = buffer.position(sampleCount * Integer.BYTES).slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+
+            int i = 0;
+            for (int p = 0; p < size; p++)
+            {
+                if (reflectanceData.getVisibility(p) > 0)
+                {
+                    indices.put(i, p);
+
+                    int offset = FLOATS_PER_SAMPLE * i;
+                    values.put(offset, reflectanceData.getRed(p));
+                    values.put(offset + 1, reflectanceData.getGreen(p));
+                    values.put(offset + 2, reflectanceData.getBlue(p));
+                    values.put(offset + 3, reflectanceData.getVisibility(p));
+                    values.put(offset + 4, reflectanceData.getHalfwayIndex(p));
+                    values.put(offset + 5, reflectanceData.getGeomRatio(p));
+                    values.put(offset + 6, reflectanceData.getAdditionalWeight(p));
+                    values.put(offset + 7, reflectanceData.getNDotL(p));
+
+                    i++;
+                }
+            }
+
+            newTexelIndices[slot] = indices;
+            newSamples[slot] = values;
+            newSampleCounts[slot] = sampleCount;
+        });
+
+        synchronized (this)
+        {
+            texelIndices = newTexelIndices;
+            samples = newSamples;
+            sampleCounts = newSampleCounts;
+            viewCount = nextSlot.get();
+        }
+    }
+
+    private ByteBuffer map(long size)
+    {
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IllegalStateException("Reflectance data for a single view is too large to be cached.");
+        }
+
+        long position;
+
+        synchronized (this)
+        {
+            position = reservedBytes;
+            reservedBytes += size;
+        }
+
+        try
+        {
+            return channel.map(MapMode.READ_WRITE, position, size).order(ByteOrder.nativeOrder());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Gets the number of views currently in the cache.
+     * @return The number of views.
+     */
+    public synchronized int getViewCount()
+    {
+        return viewCount;
+    }
+
+    /**
+     * Gets the total number of samples (visible texels, summed over all views) currently in the cache.
+     * @return The number of samples.
+     */
+    public synchronized long getSampleCount()
+    {
+        long total = 0;
+        for (int k = 0; k < viewCount; k++)
+        {
+            total += sampleCounts[k];
+        }
+        return total;
+    }
+
+    /**
+     * Gets a sequential stream over all of the cached views, covering every texel.
+     * @return The stream.
+     */
+    public GraphicsStream<ReflectanceData> stream()
+    {
+        return stream(0, texelCount);
+    }
+
+    /**
+     * Gets a sequential stream over all of the cached views that only contains samples for a range of texels.
+     * The reflectance data produced by the stream still covers every texel, but texels outside the range will never be visible.
+     * @param rangeStart The first texel in the range.
+     * @param rangeEnd One past the last texel in the range.
+     * @return The stream.
+     */
+    public GraphicsStream<ReflectanceData> stream(int rangeStart, int rangeEnd)
+    {
+        return new CachedStream(rangeStart, rangeEnd, 1);
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (this)
+        {
+            texelIndices = new IntBuffer[0];
+            samples = new FloatBuffer[0];
+            sampleCounts = new int[0];
+            viewCount = 0;
+        }
+
+        unusedBuffers.clear();
+
+        try
+        {
+            channel.close();
+            randomAccessFile.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        // This may fail on some platforms while the mapped buffers have not yet been garbage collected,
+        // in which case the file will be deleted when the JVM exits.
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private CacheBuffer borrowBuffer()
+    {
+        CacheBuffer buffer = unusedBuffers.poll();
+        return buffer == null ? new CacheBuffer(texelCount) : buffer;
+    }
+
+    private static int lowerBound(IntBuffer indices, int count, int texel)
+    {
+        int low = 0;
+        int high = count;
+
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (indices.get(mid) < texel)
+            {
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid;
+            }
+        }
+
+        return low;
+    }
+
+    private void processView(int k, int rangeStart, int rangeEnd, Consumer<? super ReflectanceData> action)
+    {
+        IntBuffer indices;
+        FloatBuffer values;
+        int sampleCount;
+
+        synchronized (this)
+        {
+            indices = texelIndices[k];
+            values = samples[k];
+            sampleCount = sampleCounts[k];
+        }
+
+        CacheBuffer buffer = borrowBuffer();
+
+        try
+        {
+            // Clear the samples left over from the last view that used this buffer.
+            for (int i = 0; i < buffer.filledCount; i++)
+            {
+                buffer.colorAndVisibility[4 * buffer.filledTexels[i] + 3] = 0.0f;
+            }
+
+            int first = lowerBound(indices, sampleCount, rangeStart);
+            int last = lowerBound(indices, sampleCount, rangeEnd);
+
+            if (buffer.filledTexels.length < last - first)
+            {
+                buffer.filledTexels = new int[last - first];
+            }
+
+            for (int i = first; i < last; i++)
+            {
+                int p = indices.get(i);
+                int offset = FLOATS_PER_SAMPLE * i;
+
+                for (int c = 0; c < 4; c++)
+                {
+                    buffer.colorAndVisibility[4 * p + c] = values.get(offset + c);
+                    buffer.halfwayGeomWeightNDotL[4 * p + c] = values.get(offset + 4 + c);
+                }
+
+                buffer.filledTexels[i - first] = p;
+            }
+
+            buffer.filledCount = last - first;
+
+            action.accept(buffer.data);
+        }
+        finally
+        {
+            unusedBuffers.push(buffer);
+        }
+    }
+
+    private final class CachedStream extends GraphicsStreamBase<ReflectanceData>
+    {
+        private final int rangeStart;
+        private final int rangeEnd;
+        private final int maxRunningThreads;
+
+        CachedStream(int rangeStart, int rangeEnd, int maxRunningThreads)
+        {
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+            this.maxRunningThreads = maxRunningThreads;
+        }
+
+        @Override
+        public GraphicsStream<ReflectanceData> sequential()
+        {
+            return maxRunningThreads == 1 ? this : new CachedStream(rangeStart, rangeEnd, 1);
+        }
+
+        @Override
+        public GraphicsStream<ReflectanceData> parallel()
+        {
+            return parallel(Runtime.getRuntime().availableProcessors());
+        }
+
+        @Override
+        public GraphicsStream<ReflectanceData> parallel(int maxRunningThreads)
+        {
+            return maxRunningThreads == this.maxRunningThreads ? this : new CachedStream(rangeStart, rangeEnd, maxRunningThreads);
+        }
+
+        @Override
+        public int getCount()
+        {
+            return getViewCount();
+        }
+
+        @Override
+        public int getMaxRunningThreads()
+        {
+            return maxRunningThreads;
+        }
+
+        @Override
+        public void forEach(Consumer<? super ReflectanceData> action)
+        {
+            int count = getCount();
+
+            if (maxRunningThreads <= 1)
+            {
+                for (int k = 0; k < count; k++)
+                {
+                    processView(k, rangeStart, rangeEnd, action);
+                }
+            }
+            else
+            {
+                ForkJoinPool pool = new ForkJoinPool(maxRunningThreads);
+
+                try
+                {
+                    pool.submit(() -> IntStream.range(0, count).parallel().forEach(k -> processView(k, rangeStart, rangeEnd, action))).get();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                }
+                catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof RuntimeException)
+                    {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    else
+                    {
+                        throw new IllegalStateException(e.getCause());
+                    }
+                }
+                finally
+                {
+                    pool.shutdown();
+                }
+            }
+        }
+    }
+}
@@ -15,13 +15,12 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.PrintStream;
-import java.util.stream.IntStream;
 
 import org.ejml.data.DMatrixRMaj;
 import org.ejml.simple.SimpleMatrix;
 import tetzlaff.optimization.function.BasisFunctions;
 import tetzlaff.optimization.function.MatrixBuilder;
-import tetzlaff.optimization.function.MatrixBuilderSample;
+import tetzlaff.optimization.function.MatrixBuilderSamples;
 import tetzlaff.optimization.MatrixSystem;
 
 import static org.ejml.dense.row.CommonOps_DDRM.multTransA;
@@ -32,7 +31,7 @@ import static org.ejml.dense.row.CommonOps_DDRM.multTransA;
 final class ReflectanceMatrixBuilder
 {
     // Set to true to validate the MatrixBuilder implementation (should generally be turned off for much better efficiency).
-    private static final boolean VALIDATE = false;
+    static final boolean VALIDATE = false;
 
     static final boolean DUMP_SAMPLES = false;
 
@@ -56,6 +55,11 @@ final class ReflectanceMatrixBuilder
      */
     private final MatrixBuilder matrixBuilder;
 
+    /**
+     * Scratch space for the samples from the current view, which may be reused for other views handled by the same thread.
+     */
+    private final MatrixBuilderSamples samples;
+
     /**
      * Stores both the LHS and RHS of the system to be solved.
      * LHS = A'A
@@ -65,9 +69,11 @@ final class ReflectanceMatrixBuilder
 
     /**
      * Construct by accepting matrices where the final results will be stored.
+     * The samples object will be cleared and refilled when execute() is called.
      */
     ReflectanceMatrixBuilder(ReflectanceData reflectanceData, SpecularFitSolution solution,
-                             double metallicity, BasisFunctions stepBasis, MatrixSystem contribution)
+                             double metallicity, BasisFunctions stepBasis, MatrixSystem contribution,
+                             MatrixBuilderSamples samples)
     {
         this.solution = solution;
 
@@ -80,6 +86,8 @@ final class ReflectanceMatrixBuilder
 
         // Initialize running totals
         matrixBuilder = new MatrixBuilder(settings.basisCount, 3, metallicity, stepBasis, contribution);
+
+        this.samples = samples;
     }
 
     public void execute()
@@ -87,31 +95,41 @@ final class ReflectanceMatrixBuilder
         try (PrintStream sampleDump = DUMP_SAMPLES ?
             new PrintStream(new FileOutputStream(new File(settings.outputDirectory, "sampleDump.txt"), true)) : null)
         {
-            matrixBuilder.build(
-                IntStream.range(0, reflectanceData.size())
-                    .filter(p -> reflectanceData.getVisibility(p) > 0) // Eliminate pixels without valid samples
-                    .mapToObj(p ->
+            // Only visible texels are added, so the samples grow on demand to fit this view rather than the whole texture.
+            samples.clear();
+
+            for (int p = 0; p < reflectanceData.size(); p++)
+            {
+                // Eliminate pixels without valid samples
+                if (reflectanceData.getVisibility(p) > 0)
+                {
+                    int k = samples.add(reflectanceData.getHalfwayIndex(p) * settings.microfacetDistributionResolution,
+                        reflectanceData.getGeomRatio(p), reflectanceData.getAdditionalWeight(p));
+
+                    for (int b = 0; b < settings.basisCount; b++)
                     {
-                        MatrixBuilderSample sample = new MatrixBuilderSample(
-                            reflectanceData.getHalfwayIndex(p) * settings.microfacetDistributionResolution,
-                            matrixBuilder.getBasisLibrary(), reflectanceData.getGeomRatio(p),
-                            reflectanceData.getAdditionalWeight(p), b -> solution.getWeights(p).get(b),
-                            reflectanceData.getRed(p), reflectanceData.getGreen(p), reflectanceData.getBlue(p));
+                        samples.setWeight(k, b, solution.getWeight(b, p));
+                    }
 
-                        if (DUMP_SAMPLES)
-                        {
-                            sampleDump.print(sample.actual + ": " + sample.weightByInstance.applyAsDouble(0));
+                    samples.setObserved(k, 0, reflectanceData.getRed(p));
+                    samples.setObserved(k, 1, reflectanceData.getGreen(p));
+                    samples.setObserved(k, 2, reflectanceData.getBlue(p));
 
-                            for (int i = 1; i < settings.basisCount; i++)
-                            {
-                                sampleDump.print(", " + sample.weightByInstance.applyAsDouble(i));
-                            }
+                    if (DUMP_SAMPLES)
+                    {
+                        sampleDump.print(samples.getActual(k) + ": " + samples.getWeight(k, 0));
 
-                            sampleDump.println(": " + sample.observed[0] + ", " + sample.observed[1] + ", " + sample.observed[2]);
+                        for (int i = 1; i < settings.basisCount; i++)
+                        {
+                            sampleDump.print(", " + samples.getWeight(k, i));
                         }
 
-                        return sample;
-                    }));
+                        sampleDump.println(": " + samples.getObserved(k, 0) + ", " + samples.getObserved(k, 1) + ", " + samples.getObserved(k, 2));
+                    }
+                }
+            }
+
+            matrixBuilder.build(samples);
         }
         catch (FileNotFoundException e)
         {
@@ -160,7 +178,7 @@ final class ReflectanceMatrixBuilder
                 for (int b = 0; b < settings.basisCount; b++)
                 {
                     // diffuse
-                    mA.set(p, b, addlWeight * solution.getWeights(p).get(b) * diffuseFactor);
+                    mA.set(p, b, addlWeight * solution.getWeight(b, p) * diffuseFactor);
 
                     // specular
                     if (mExact < settings.microfacetDistributionResolution)
@@ -181,7 +199,7 @@ final class ReflectanceMatrixBuilder
                             int j = settings.basisCount * (s + 1) + b;
 
                             // specular with blending between the two sampled locations.
-                            mA.set(p, j, addlWeight * geomRatio * solution.getWeights(p).get(b) * fInterp);
+                            mA.set(p, j, addlWeight * geomRatio * solution.getWeight(b, p) * fInterp);
                         }
                     }
                 }
@@ -17,19 +17,48 @@ import java.io.IOException;
 
 import tetzlaff.gl.builders.framebuffer.ColorAttachmentSpec;
 import tetzlaff.gl.core.*;
+import tetzlaff.gl.nativebuffer.NativeDataType;
+import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
+import tetzlaff.gl.nativebuffer.NativeVectorBufferFactory;
 
 public class RoughnessOptimization<ContextType extends Context<ContextType>> implements AutoCloseable
 {
     private final SpecularFitSettings settings;
 
-    private final Program<ContextType> specularRoughnessFitProgram;
+    private final ContextType context;
+    private final BasisResources<ContextType> resources;
+
+    // The shader-based fit is set up the first time it's needed, so that no program is created if the fit always runs on the CPU.
+    private Program<ContextType> specularRoughnessFitProgram;
+    private VertexBuffer<ContextType> rect;
+    private Drawable<ContextType> specularRoughnessFitDrawable;
+
     private final FramebufferObject<ContextType> specularTexFramebuffer;
-    private final VertexBuffer<ContextType> rect;
 
-    private final Drawable<ContextType> specularRoughnessFitDrawable;
+    // Fit on the CPU instead of using the shader; created the first time it's needed.
+    private CPURoughnessOptimization cpuRoughnessOptimization;
+
+    // Whether the textures currently contain the results of the CPU fit, so that they don't need to be read back.
+    private boolean cpuResultCurrent = false;
 
     public RoughnessOptimization(ContextType context, BasisResources<ContextType> resources, SpecularFitSettings settings)
-        throws FileNotFoundException
+    {
+        this.context = context;
+        this.resources = resources;
+
+        // Framebuffer for fitting and storing the specular parameter estimates (specular Fresnel color and roughness)
+        specularTexFramebuffer = context.buildFramebufferObject(settings.width, settings.height)
+            .addColorAttachment(ColorAttachmentSpec.createWithInternalFormat(ColorFormat.RGBA8).setLinearFilteringEnabled(true))
+            .addColorAttachment(ColorAttachmentSpec.createWithInternalFormat(ColorFormat.RGBA8).setLinearFilteringEnabled(true))
+            .createFramebufferObject();
+
+        // Set initial assumption for roughness when calculating masking/shadowing.
+        specularTexFramebuffer.clearColorBuffer(1, 1.0f, 1.0f, 1.0f, 1.0f);
+
+        this.settings = settings;
+    }
+
+    private void createProgram() throws FileNotFoundException
     {
         // Fit specular parameters from weighted basis functions
         specularRoughnessFitProgram = context.getShaderProgramBuilder()
@@ -42,23 +71,12 @@ public class RoughnessOptimization<ContextType extends Context<ContextType>> imp
         // Create basic rectangle vertex buffer
         rect = context.createRectangle();
 
-        // Framebuffer for fitting and storing the specular parameter estimates (specular Fresnel color and roughness)
-        specularTexFramebuffer = context.buildFramebufferObject(settings.width, settings.height)
-            .addColorAttachment(ColorAttachmentSpec.createWithInternalFormat(ColorFormat.RGBA8).setLinearFilteringEnabled(true))
-            .addColorAttachment(ColorAttachmentSpec.createWithInternalFormat(ColorFormat.RGBA8).setLinearFilteringEnabled(true))
-            .createFramebufferObject();
-
         // Set up shader program
         specularRoughnessFitDrawable = context.createDrawable(specularRoughnessFitProgram);
         specularRoughnessFitDrawable.addVertexBuffer("position", rect);
         resources.useWithShaderProgram(specularRoughnessFitProgram);
         specularRoughnessFitProgram.setUniform("gamma", settings.additional.getFloat("gamma"));
         specularRoughnessFitProgram.setUniform("fittingGamma", 1.0f);
-
-        // Set initial assumption for roughness when calculating masking/shadowing.
-        specularTexFramebuffer.clearColorBuffer(1, 1.0f, 1.0f, 1.0f, 1.0f);
-
-        this.settings = settings;
     }
 
     public Texture2D<ContextType> getReflectivityTexture()
@@ -71,14 +89,58 @@ public class RoughnessOptimization<ContextType extends Context<ContextType>> imp
         return specularTexFramebuffer.getColorAttachmentTexture(1);
     }
 
-    public void execute()
+    /**
+     * Gets the roughness map as RGBA data in texture space, with the square root of the roughness in the red channel.
+     * If the last fit was performed on the CPU, the result is returned without reading back the texture.
+     * The returned array should not be modified.
+     * @return The roughness map.
+     */
+    public float[] readRoughnessMap()
+    {
+        return cpuResultCurrent ? cpuRoughnessOptimization.getRoughnessMap() : specularTexFramebuffer.readFloatingPointColorBufferRGBA(1);
+    }
+
+    public void execute() throws FileNotFoundException
     {
+        if (specularRoughnessFitProgram == null)
+        {
+            createProgram();
+        }
+
+        cpuResultCurrent = false;
+
         // Fit specular so that we have a roughness estimate for masking/shadowing.
         specularTexFramebuffer.clearColorBuffer(0, 0.0f, 0.0f, 0.0f,0.0f);
         specularTexFramebuffer.clearColorBuffer(1, 0.0f, 0.0f, 0.0f,0.0f);
         specularRoughnessFitDrawable.draw(PrimitiveMode.TRIANGLE_FAN, specularTexFramebuffer);
     }
 
+    /**
+     * Fits the specular reflectivity and roughness on the CPU, directly from the weights and basis functions of a solution,
+     * rather than using the shader.  The results are then uploaded to the reflectivity and roughness textures.
+     * @param solution The solution containing the weights and basis functions.
+     */
+    public void execute(SpecularFitSolution solution)
+    {
+        if (cpuRoughnessOptimization == null)
+        {
+            cpuRoughnessOptimization = new CPURoughnessOptimization(settings);
+        }
+
+        cpuRoughnessOptimization.execute(solution);
+
+        NativeVectorBuffer buffer = NativeVectorBufferFactory.getInstance()
+            .createEmpty(NativeDataType.FLOAT, 4, settings.width * settings.height);
+
+        buffer.getBuffer().asFloatBuffer().put(cpuRoughnessOptimization.getReflectivityMap());
+        getReflectivityTexture().load(buffer);
+
+        buffer.getBuffer().asFloatBuffer().put(cpuRoughnessOptimization.getRoughnessMap());
+        getRoughnessTexture().load(buffer);
+
+        cpuResultCurrent = true;
+    }
+
     public void saveTextures()
     {
         try
@@ -95,8 +157,12 @@ public class RoughnessOptimization<ContextType extends Context<ContextType>> imp
     @Override
     public void close()
     {
-        specularRoughnessFitProgram.close();
+        if (specularRoughnessFitProgram != null)
+        {
+            specularRoughnessFitProgram.close();
+            rect.close();
+        }
+
         specularTexFramebuffer.close();
-        rect.close();
     }
 }
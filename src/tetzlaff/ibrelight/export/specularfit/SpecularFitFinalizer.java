@@ -114,19 +114,8 @@ public class SpecularFitFinalizer
             errorCalculator.update(errorCalcDrawable, scratchFramebuffer);
             rmseOut.println("RMSE before hole fill: " + errorCalculator.getReport().getError());
 
-            // Fill holes in the weight map
-            fillHoles(solution);
-
-            // Save the weight map and preliminary diffuse result after filling holes
-            solution.saveWeightMaps();
-            solution.saveDiffuseMap(settings.additional.getFloat("gamma"));
-
-            // Update the GPU resources with the hole-filled weight maps.
-            specularFit.basisResources.updateFromSolution(solution);
-
-            // Fit specular textures after filling holes
-            specularFit.roughnessOptimization.execute();
-            specularFit.roughnessOptimization.saveTextures();
+            // Fill holes, save the weight maps, and fit the specular textures again.
+            finishWeights(solution, specularFit);
 
             // Calculate RMSE after filling holes
             errorCalculator.update(errorCalcDrawable, scratchFramebuffer);
@@ -159,6 +148,69 @@ public class SpecularFitFinalizer
         }
     }
 
+    /**
+     * Performs the same final steps without any shader programs, for a fit where every stage ran on the CPU
+     * (see SpecularFitSettings.isCPUFitEnabled()).  The error is calculated from the reflectance samples in texture space;
+     * the error statistics that require rendering from the photographs' point of view are skipped.
+     * @param solution The solution containing the weights and basis functions.
+     * @param specularFit The GPU resources for the solution.
+     * @param lastErrorReport The error report from the last iteration of the fit.
+     * @param errorCalculator The error calculator that was used during the fit.
+     * @param <ContextType> The type of the graphics context.
+     */
+    <ContextType extends Context<ContextType>> void execute(SpecularFitSolution solution,
+        SpecularFitFromOptimization<ContextType> specularFit, ReadonlyErrorReport lastErrorReport, CPUErrorCalculator errorCalculator)
+    {
+        try (PrintStream rmseOut = new PrintStream(new File(settings.outputDirectory, "rmse.txt")))
+        {
+            // Print out RMSE from the penultimate iteration (to verify convergence)
+            rmseOut.println("Previously calculated RMSE: " + lastErrorReport.getError());
+
+            // Calculate the final RMSE from the raw result
+            errorCalculator.update(solution,
+                specularFit.normalOptimization.readNormalMap(), specularFit.roughnessOptimization.readRoughnessMap());
+            rmseOut.println("RMSE before hole fill: " + errorCalculator.getReport().getError());
+
+            // Fill holes, save the weight maps, and fit the specular textures again.
+            finishWeights(solution, specularFit);
+
+            // Calculate RMSE after filling holes
+            errorCalculator.update(solution,
+                specularFit.normalOptimization.readNormalMap(), specularFit.roughnessOptimization.readRoughnessMap());
+            rmseOut.println("RMSE after hole fill: " + errorCalculator.getReport().getError());
+        }
+        catch (FileNotFoundException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private <ContextType extends Context<ContextType>> void finishWeights(
+        SpecularFitSolution solution, SpecularFitFromOptimization<ContextType> specularFit)
+        throws FileNotFoundException
+    {
+        // Fill holes in the weight map
+        fillHoles(solution);
+
+        // Save the weight map and preliminary diffuse result after filling holes
+        solution.saveWeightMaps();
+        solution.saveDiffuseMap(settings.additional.getFloat("gamma"));
+
+        // Update the GPU resources with the hole-filled weight maps.
+        specularFit.basisResources.updateFromSolution(solution);
+
+        // Fit specular textures after filling holes
+        if (settings.isCPURoughnessOptimizationEnabled())
+        {
+            specularFit.roughnessOptimization.execute(solution);
+        }
+        else
+        {
+            specularFit.roughnessOptimization.execute();
+        }
+        specularFit.roughnessOptimization.saveTextures();
+    }
+
     /**
      * Calculates RMSE for GGX.
      * Can be used standalone (i.e. when loading the optimized specular basis from a file)
@@ -295,31 +347,31 @@ public class SpecularFitFinalizer
 
                         if (solution.areWeightsValid(left))
                         {
-                            sum += solution.getWeights(left).get(b);
+                            sum += solution.getWeight(b, left);
                             count++;
                         }
 
                         if (solution.areWeightsValid(right))
                         {
-                            sum += solution.getWeights(right).get(b);
+                            sum += solution.getWeight(b, right);
                             count++;
                         }
 
                         if (solution.areWeightsValid(up))
                         {
-                            sum += solution.getWeights(up).get(b);
+                            sum += solution.getWeight(b, up);
                             count++;
                         }
 
                         if (solution.areWeightsValid(down))
                         {
-                            sum += solution.getWeights(down).get(b);
+                            sum += solution.getWeight(b, down);
                             count++;
                         }
 
                         if (sum > 0.0)
                         {
-                            solution.getWeights(p).set(b, sum / count);
+                            solution.setWeight(b, p, sum / count);
                         }
                     }
 
@@ -75,91 +75,160 @@ public class SpecularFitInitializer<ContextType extends Context<ContextType>>
                 }
             }
 
-            float[] averages = framebuffer.readFloatingPointColorBufferRGBA(0);
+            makeClusters(solution, framebuffer.readFloatingPointColorBufferRGBA(0));
+        }
+        catch (FileNotFoundException e)
+        {
+            e.printStackTrace();
+        }
+    }
 
-            List<Vector3> centers = new KMeansClustering(new ColorArrayList(averages)).makeClusters(solution.getWeightsList());
+    /**
+     * Initializes the weights from reflectance samples that have already been extracted on the CPU, rather than using a shader.
+     * @param solution The solution to initialize.
+     * @param samples The reflectance samples, as extracted by TextureSpaceReflectanceStream.extractTexelSamples().
+     */
+    public void initialize(SpecularFitSolution solution, TexelReflectanceSamples samples)
+    {
+        System.out.println("Clustering to initialize weights...");
 
-            // Initialize weight validity.
-            IntStream.range(0, averages.length / 4)
-                .filter(p -> averages[4 * p + 3] > 0.0)
-                .forEach(p -> solution.setWeightsValidity(p, true));
+        // Same per-texel average of L*a*b* color as the shader, with the RGB reflectance scaled back up by pi.
+        float[] averages = new float[4 * settings.width * settings.height];
 
-            // Output for debugging
-            System.out.println("Refined centers:");
-            for (int b = 0; b < settings.basisCount; b++)
+        IntStream.range(0, samples.getTexelCount()).parallel().forEach(i ->
+        {
+            int start = samples.sampleOffsets[i];
+            int end = samples.sampleOffsets[i + 1];
+
+            if (end > start)
             {
-                System.out.println(centers.get(b));
+                int p = samples.texelIndices[i];
+
+                for (int s = start; s < end; s++)
+                {
+                    float[] lab = rgbToLab(
+                        samples.sampleColors[4 * s] * (float)Math.PI,
+                        samples.sampleColors[4 * s + 1] * (float)Math.PI,
+                        samples.sampleColors[4 * s + 2] * (float)Math.PI);
+
+                    averages[4 * p] += lab[0];
+                    averages[4 * p + 1] += lab[1];
+                    averages[4 * p + 2] += lab[2];
+                }
+
+                averages[4 * p] /= end - start;
+                averages[4 * p + 1] /= end - start;
+                averages[4 * p + 2] /= end - start;
+                averages[4 * p + 3] = 1.0f;
             }
+        });
 
-            if (SpecularOptimization.DEBUG)
+        makeClusters(solution, averages);
+    }
+
+    /**
+     * Converts linear RGB to L*a*b* in the same way as rgbToXYZ() and xyzToLab() in linearize.glsl (assuming illuminant D65).
+     */
+    private static float[] rgbToLab(float red, float green, float blue)
+    {
+        float x = (0.4124564f * red + 0.3575761f * green + 0.1804375f * blue) / 0.95047f;
+        float y = 0.2126729f * red + 0.7151522f * green + 0.0721750f * blue;
+        float z = (0.0193339f * red + 0.1191920f * green + 0.9503041f * blue) / 1.08883f;
+
+        float fx = labCompand(x);
+        float fy = labCompand(y);
+        float fz = labCompand(z);
+
+        return new float[] { 1.16f * fy - 0.16f, 5.0f * (fx - fy), 2.0f * (fy - fz) };
+    }
+
+    private static float labCompand(float value)
+    {
+        return value > 216.0f / 24389.0f ? (float)Math.cbrt(value) : value * (841.0f / 108.0f) + 4.0f / 29.0f;
+    }
+
+    private void makeClusters(SpecularFitSolution solution, float[] averages)
+    {
+        List<Vector3> centers = new KMeansClustering(new ColorArrayList(averages),
+            settings.getClusteringSeed(), settings.getClusteringMiniBatchSize())
+            .makeClusters(solution.getWeightMaps());
+
+        // Initialize weight validity.
+        IntStream.range(0, averages.length / 4)
+            .filter(p -> averages[4 * p + 3] > 0.0)
+            .forEach(p -> solution.setWeightsValidity(p, true));
+
+        // Output for debugging
+        System.out.println("Refined centers:");
+        for (int b = 0; b < settings.basisCount; b++)
+        {
+            System.out.println(centers.get(b));
+        }
+
+        if (SpecularOptimization.DEBUG)
+        {
+            BufferedImage weightImg = new BufferedImage(settings.width, settings.height, BufferedImage.TYPE_INT_ARGB);
+            int[] weightDataPacked = new int[settings.width * settings.height];
+            for (int p = 0; p < settings.width * settings.height; p++)
             {
-                BufferedImage weightImg = new BufferedImage(settings.width, settings.height, BufferedImage.TYPE_INT_ARGB);
-                int[] weightDataPacked = new int[settings.width * settings.height];
-                for (int p = 0; p < settings.width * settings.height; p++)
+                if (averages[4 * p + 3] > 0.0)
                 {
-                    if (averages[4 * p + 3] > 0.0)
-                    {
-                        int bSelect = -1;
+                    int bSelect = -1;
 
-                        for (int b = 0; b < settings.basisCount; b++)
+                    for (int b = 0; b < settings.basisCount; b++)
+                    {
+                        if (solution.getWeight(b, p) > 0)
                         {
-                            if (solution.getWeights(p).get(b) > 0)
-                            {
-                                bSelect = b;
-                            }
+                            bSelect = b;
                         }
+                    }
 
-                        // Flip vertically
-                        int weightDataIndex = p % settings.width + settings.width * (settings.height - p / settings.width - 1);
+                    // Flip vertically
+                    int weightDataIndex = p % settings.width + settings.width * (settings.height - p / settings.width - 1);
 
-                        switch (bSelect)
-                        {
-                            case 0:
-                                weightDataPacked[weightDataIndex] = Color.RED.getRGB();
-                                break;
-                            case 1:
-                                weightDataPacked[weightDataIndex] = Color.GREEN.getRGB();
-                                break;
-                            case 2:
-                                weightDataPacked[weightDataIndex] = Color.BLUE.getRGB();
-                                break;
-                            case 3:
-                                weightDataPacked[weightDataIndex] = Color.YELLOW.getRGB();
-                                break;
-                            case 4:
-                                weightDataPacked[weightDataIndex] = Color.CYAN.getRGB();
-                                break;
-                            case 5:
-                                weightDataPacked[weightDataIndex] = Color.MAGENTA.getRGB();
-                                break;
-                            case 6:
-                                weightDataPacked[weightDataIndex] = Color.WHITE.getRGB();
-                                break;
-                            case 7:
-                                weightDataPacked[weightDataIndex] = Color.GRAY.getRGB();
-                                break;
-                            default:
-                                weightDataPacked[weightDataIndex] = Color.BLACK.getRGB();
-                                break;
-                        }
+                    switch (bSelect)
+                    {
+                        case 0:
+                            weightDataPacked[weightDataIndex] = Color.RED.getRGB();
+                            break;
+                        case 1:
+                            weightDataPacked[weightDataIndex] = Color.GREEN.getRGB();
+                            break;
+                        case 2:
+                            weightDataPacked[weightDataIndex] = Color.BLUE.getRGB();
+                            break;
+                        case 3:
+                            weightDataPacked[weightDataIndex] = Color.YELLOW.getRGB();
+                            break;
+                        case 4:
+                            weightDataPacked[weightDataIndex] = Color.CYAN.getRGB();
+                            break;
+                        case 5:
+                            weightDataPacked[weightDataIndex] = Color.MAGENTA.getRGB();
+                            break;
+                        case 6:
+                            weightDataPacked[weightDataIndex] = Color.WHITE.getRGB();
+                            break;
+                        case 7:
+                            weightDataPacked[weightDataIndex] = Color.GRAY.getRGB();
+                            break;
+                        default:
+                            weightDataPacked[weightDataIndex] = Color.BLACK.getRGB();
+                            break;
                     }
                 }
+            }
 
-                weightImg.setRGB(0, 0, weightImg.getWidth(), weightImg.getHeight(), weightDataPacked, 0, weightImg.getWidth());
+            weightImg.setRGB(0, 0, weightImg.getWidth(), weightImg.getHeight(), weightDataPacked, 0, weightImg.getWidth());
 
-                try
-                {
-                    ImageIO.write(weightImg, "PNG", new File(settings.outputDirectory, "k-means.png"));
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
+            try
+            {
+                ImageIO.write(weightImg, "PNG", new File(settings.outputDirectory, "k-means.png"));
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
             }
-        }
-        catch (FileNotFoundException e)
-        {
-            e.printStackTrace();
         }
     }
 }
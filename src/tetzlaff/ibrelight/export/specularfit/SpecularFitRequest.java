@@ -32,8 +32,36 @@ public class SpecularFitRequest<ContextType extends Context<ContextType>> implem
     public static <ContextType extends Context<ContextType>> SpecularFitRequest<ContextType> create(
             IBRelightModels modelAccess, String... args)
     {
-        return new SpecularFitRequest<>(new SpecularFitSettings(2048, 2048,
-                8, 90, new File(args[2]), modelAccess.getSettingsModel()));
+        SpecularFitSettings settings = new SpecularFitSettings(2048, 2048,
+                8, 90, new File(args[2]), modelAccess.getSettingsModel());
+
+        // Set by the headless runner when the request will run on a CPU context.
+        if (modelAccess.getSettingsModel().existsForGet("cpuReflectanceExtractionEnabled", Boolean.class))
+        {
+            settings.setCPUReflectanceExtractionEnabled(modelAccess.getSettingsModel().getBoolean("cpuReflectanceExtractionEnabled"));
+        }
+
+        if (modelAccess.getSettingsModel().existsForGet("cpuNormalOptimizationEnabled", Boolean.class))
+        {
+            settings.setCPUNormalOptimizationEnabled(modelAccess.getSettingsModel().getBoolean("cpuNormalOptimizationEnabled"));
+        }
+
+        if (modelAccess.getSettingsModel().existsForGet("cpuRoughnessOptimizationEnabled", Boolean.class))
+        {
+            settings.setCPURoughnessOptimizationEnabled(modelAccess.getSettingsModel().getBoolean("cpuRoughnessOptimizationEnabled"));
+        }
+
+        if (modelAccess.getSettingsModel().existsForGet("cpuDiffuseOptimizationEnabled", Boolean.class))
+        {
+            settings.setCPUDiffuseOptimizationEnabled(modelAccess.getSettingsModel().getBoolean("cpuDiffuseOptimizationEnabled"));
+        }
+
+        if (modelAccess.getSettingsModel().existsForGet("stochasticErrorEstimationEnabled", Boolean.class))
+        {
+            settings.setStochasticErrorEstimationEnabled(modelAccess.getSettingsModel().getBoolean("stochasticErrorEstimationEnabled"));
+        }
+
+        return new SpecularFitRequest<>(settings);
     }
 
     public SpecularFitRequest(SpecularFitSettings settings)
@@ -110,6 +138,13 @@ public class SpecularFitRequest<ContextType extends Context<ContextType>> implem
         // Create output directory
         settings.outputDirectory.mkdirs();
 
+        if (settings.isCPUFitEnabled())
+        {
+            // Reconstructing images requires rendering with shaders; the fit itself has already been saved.
+            System.out.println("Skipping image reconstruction since the fit ran on the CPU.");
+            return;
+        }
+
         // Reconstruct images both from basis functions and from fitted roughness
         SpecularFitProgramFactory<ContextType> programFactory = new SpecularFitProgramFactory<>(resources, settings);
         FinalReconstruction<ContextType> reconstruction = new FinalReconstruction<>(resources, settings);
@@ -35,6 +35,17 @@ public class SpecularFitSettings extends TextureFitSettings
     private boolean levenbergMarquardtEnabled = true;
     private int unsuccessfulLMIterationsAllowed = 8;
 
+    private boolean cpuReflectanceExtractionEnabled = false;
+    private boolean reflectanceCacheEnabled = true;
+    private boolean cpuNormalOptimizationEnabled = false;
+    private boolean cpuRoughnessOptimizationEnabled = false;
+    private boolean cpuDiffuseOptimizationEnabled = false;
+    private boolean stochasticErrorEstimationEnabled = false;
+    private boolean weightWarmStartEnabled = true;
+
+    private long clusteringSeed = 0;
+    private int clusteringMiniBatchSize = 0;
+
     private ViewSet reconstructionViewSet = null;
     private boolean reconstructAll = false;
 
@@ -317,13 +328,227 @@ public class SpecularFitSettings extends TextureFitSettings
         this.unsuccessfulLMIterationsAllowed = unsuccessfulLMIterationsAllowed;
     }
 
+    /**
+     * The number of texels for which weights are fit in each pass over the reflectance data.
+     * The normal equations for every texel in a block are kept in memory (memory-mapped if necessary).
+     * @return
+     */
     public int getWeightBlockSize()
     {
         return weightBlockSize;
     }
 
+    /**
+     * The number of texels for which weights are fit in each pass over the reflectance data.
+     * @param weightBlockSize
+     */
     public void setWeightBlockSize(int weightBlockSize)
     {
         this.weightBlockSize = weightBlockSize;
     }
+
+    /**
+     * Whether or not to extract reflectance data from the photographs on the CPU rather than using a shader.
+     * Default is false.  Recommended when a GPU is not available, since the views will then be processed in parallel.
+     * @return
+     */
+    public boolean isCPUReflectanceExtractionEnabled()
+    {
+        return cpuReflectanceExtractionEnabled;
+    }
+
+    /**
+     * Whether or not to extract reflectance data from the photographs on the CPU rather than using a shader.
+     * Recommended when a GPU is not available, since the views will then be processed in parallel.
+     * @param cpuReflectanceExtractionEnabled
+     */
+    public void setCPUReflectanceExtractionEnabled(boolean cpuReflectanceExtractionEnabled)
+    {
+        this.cpuReflectanceExtractionEnabled = cpuReflectanceExtractionEnabled;
+    }
+
+    /**
+     * Whether or not to cache the reflectance data for all views in a memory-mapped temporary file
+     * (in the directory given by the java.io.tmpdir system property) each time the normals and roughness are updated.
+     * Default is true.  The BRDF reconstruction and every block of the weight optimization are then served from the cache
+     * rather than re-rendering and reading back every view.
+     * @return
+     */
+    public boolean isReflectanceCacheEnabled()
+    {
+        return reflectanceCacheEnabled;
+    }
+
+    /**
+     * Whether or not to cache the reflectance data for all views in a memory-mapped temporary file
+     * each time the normals and roughness are updated.
+     * @param reflectanceCacheEnabled
+     */
+    public void setReflectanceCacheEnabled(boolean reflectanceCacheEnabled)
+    {
+        this.reflectanceCacheEnabled = reflectanceCacheEnabled;
+    }
+
+    /**
+     * Whether or not to refine the normals on the CPU from reflectance samples that are extracted once from the photographs,
+     * rather than using a shader.  Only used when CPU reflectance extraction is also enabled.
+     * Default is false.  Each texel iterates independently and stops as soon as its own error stops improving.
+     * @return
+     */
+    public boolean isCPUNormalOptimizationEnabled()
+    {
+        return cpuNormalOptimizationEnabled;
+    }
+
+    /**
+     * Whether or not to refine the normals on the CPU from reflectance samples that are extracted once from the photographs,
+     * rather than using a shader.  Only used when CPU reflectance extraction is also enabled.
+     * @param cpuNormalOptimizationEnabled
+     */
+    public void setCPUNormalOptimizationEnabled(boolean cpuNormalOptimizationEnabled)
+    {
+        this.cpuNormalOptimizationEnabled = cpuNormalOptimizationEnabled;
+    }
+
+    /**
+     * Whether or not to fit the specular reflectivity and roughness on the CPU, directly from the weights and basis functions,
+     * rather than using a shader.
+     * Default is false.
+     * @return
+     */
+    public boolean isCPURoughnessOptimizationEnabled()
+    {
+        return cpuRoughnessOptimizationEnabled;
+    }
+
+    /**
+     * Whether or not to fit the specular reflectivity and roughness on the CPU, directly from the weights and basis functions,
+     * rather than using a shader.
+     * @param cpuRoughnessOptimizationEnabled
+     */
+    public void setCPURoughnessOptimizationEnabled(boolean cpuRoughnessOptimizationEnabled)
+    {
+        this.cpuRoughnessOptimizationEnabled = cpuRoughnessOptimizationEnabled;
+    }
+
+    /**
+     * Whether or not to estimate the final diffuse map on the CPU from reflectance samples that are extracted once
+     * from the photographs, rather than using a shader.  Only used when CPU reflectance extraction is also enabled.
+     * Default is false.
+     * @return
+     */
+    public boolean isCPUDiffuseOptimizationEnabled()
+    {
+        return cpuDiffuseOptimizationEnabled;
+    }
+
+    /**
+     * Whether or not to estimate the final diffuse map on the CPU from reflectance samples that are extracted once
+     * from the photographs, rather than using a shader.  Only used when CPU reflectance extraction is also enabled.
+     * @param cpuDiffuseOptimizationEnabled
+     */
+    public void setCPUDiffuseOptimizationEnabled(boolean cpuDiffuseOptimizationEnabled)
+    {
+        this.cpuDiffuseOptimizationEnabled = cpuDiffuseOptimizationEnabled;
+    }
+
+    /**
+     * Whether every stage of the fit is set to run on the CPU, in which case no shader programs are created
+     * and the fit can run on a context that only provides textures and framebuffers (i.e. a SoftwareContext).
+     * Error statistics that can only be calculated by rendering the photographs' point of view are skipped in this case.
+     * @return
+     */
+    public boolean isCPUFitEnabled()
+    {
+        return cpuReflectanceExtractionEnabled && cpuRoughnessOptimizationEnabled && cpuDiffuseOptimizationEnabled
+            && (cpuNormalOptimizationEnabled || !normalRefinementEnabled);
+    }
+
+    /**
+     * Whether or not to estimate the error from a random sample of texels (and views, when calculated on the CPU)
+     * when deciding whether to accept a new normal estimate and whether the fit has converged,
+     * only calculating the full error when the estimate is too uncertain to make the decision.
+     * Default is false.
+     * @return
+     */
+    public boolean isStochasticErrorEstimationEnabled()
+    {
+        return stochasticErrorEstimationEnabled;
+    }
+
+    /**
+     * Whether or not to estimate the error from a random sample of texels (and views, when calculated on the CPU)
+     * when deciding whether to accept a new normal estimate and whether the fit has converged,
+     * only calculating the full error when the estimate is too uncertain to make the decision.
+     * @param stochasticErrorEstimationEnabled
+     */
+    public void setStochasticErrorEstimationEnabled(boolean stochasticErrorEstimationEnabled)
+    {
+        this.stochasticErrorEstimationEnabled = stochasticErrorEstimationEnabled;
+    }
+
+    /**
+     * Whether or not to start the weight optimization for each texel from the weights found in the previous iteration,
+     * rather than from scratch.
+     * @return
+     */
+    public boolean isWeightWarmStartEnabled()
+    {
+        return weightWarmStartEnabled;
+    }
+
+    /**
+     * Whether or not to start the weight optimization for each texel from the weights found in the previous iteration,
+     * rather than from scratch.
+     * @param weightWarmStartEnabled
+     */
+    public void setWeightWarmStartEnabled(boolean weightWarmStartEnabled)
+    {
+        this.weightWarmStartEnabled = weightWarmStartEnabled;
+    }
+
+    /**
+     * The seed for the random number generator used by the k-means clustering that initializes the weights.
+     * The same seed will always produce the same clusters.
+     * @return
+     */
+    public long getClusteringSeed()
+    {
+        return clusteringSeed;
+    }
+
+    /**
+     * The seed for the random number generator used by the k-means clustering that initializes the weights.
+     * The same seed will always produce the same clusters.
+     * @param clusteringSeed
+     */
+    public void setClusteringSeed(long clusteringSeed)
+    {
+        this.clusteringSeed = clusteringSeed;
+    }
+
+    /**
+     * The number of randomly chosen texels used to update the cluster centers in each iteration of k-means
+     * when initializing the weights, or zero to use every texel in every iteration.
+     * @return
+     */
+    public int getClusteringMiniBatchSize()
+    {
+        return clusteringMiniBatchSize;
+    }
+
+    /**
+     * The number of randomly chosen texels used to update the cluster centers in each iteration of k-means
+     * when initializing the weights, or zero to use every texel in every iteration.
+     * @param clusteringMiniBatchSize
+     */
+    public void setClusteringMiniBatchSize(int clusteringMiniBatchSize)
+    {
+        if (clusteringMiniBatchSize < 0)
+        {
+            throw new IllegalArgumentException("Mini-batch size must not be negative.");
+        }
+
+        this.clusteringMiniBatchSize = clusteringMiniBatchSize;
+    }
 }
@@ -16,9 +16,6 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.List;
-import java.util.stream.IntStream;
-
 import javax.imageio.ImageIO;
 
 import org.ejml.data.DMatrixRMaj;
@@ -32,7 +29,12 @@ public class SpecularFitSolution implements SpecularBasis, SpecularBasisWeights
     private final SimpleMatrix specularRed;
     private final SimpleMatrix specularGreen;
     private final SimpleMatrix specularBlue;
-    private final SimpleMatrix[] weightsByTexel;
+
+    /**
+     * Weights stored as one contiguous array per basis function (structure-of-arrays), indexed by texel.
+     * This avoids allocating a separate object for every texel.
+     */
+    private final float[][] weightMaps;
     private final boolean[] weightsValidity;
 
     private final SpecularFitSettings settings;
@@ -52,9 +54,7 @@ public class SpecularFitSolution implements SpecularBasis, SpecularBasisWeights
         specularGreen = new SimpleMatrix(settings.microfacetDistributionResolution + 1, settings.basisCount, DMatrixRMaj.class);
         specularBlue = new SimpleMatrix(settings.microfacetDistributionResolution + 1, settings.basisCount, DMatrixRMaj.class);
 
-        weightsByTexel = IntStream.range(0, settings.width * settings.height)
-            .mapToObj(p -> new SimpleMatrix(settings.basisCount, 1, DMatrixRMaj.class))
-            .toArray(SimpleMatrix[]::new);
+        weightMaps = new float[settings.basisCount][settings.width * settings.height];
         weightsValidity = new boolean[settings.width * settings.height];
     }
 
@@ -85,7 +85,7 @@ public class SpecularFitSolution implements SpecularBasis, SpecularBasisWeights
     @Override
     public double getWeight(int b, int p)
     {
-        return weightsByTexel[p].get(b);
+        return weightMaps[b][p];
     }
 
     public DoubleVector3 getDiffuseAlbedo(int basisIndex)
@@ -113,19 +113,44 @@ public class SpecularFitSolution implements SpecularBasis, SpecularBasisWeights
         return specularBlue;
     }
 
-    public SimpleMatrix getWeights(int texelIndex)
+    public void setWeight(int b, int texelIndex, double weight)
     {
-        return weightsByTexel[texelIndex];
+        weightMaps[b][texelIndex] = (float)weight;
     }
 
+    /**
+     * Sets the weights for every basis function at a single texel.
+     * @param texelIndex The texel for which to set weights.
+     * @param weights A column vector containing at least one element for each basis function; any additional elements are ignored.
+     */
     public void setWeights(int texelIndex, SimpleMatrix weights)
     {
-        weightsByTexel[texelIndex] = weights;
+        for (int b = 0; b < settings.basisCount; b++)
+        {
+            weightMaps[b][texelIndex] = (float)weights.get(b);
+        }
+    }
+
+    /**
+     * Gets the weights for a single basis function at every texel.
+     * The array returned is the solution's own storage, so it can be read in bulk or modified in place.
+     * @param b The basis function for which to retrieve the weights.
+     * @return The weight map, indexed by texel.
+     */
+    @SuppressWarnings("AssignmentOrReturnOfFieldWithMutableType")
+    public float[] getWeightMap(int b)
+    {
+        return weightMaps[b];
     }
 
-    public List<SimpleMatrix> getWeightsList()
+    /**
+     * Gets the weight maps for all basis functions; see getWeightMap().
+     * @return An array containing the weight map for each basis function.
+     */
+    @SuppressWarnings("AssignmentOrReturnOfFieldWithMutableType")
+    public float[][] getWeightMaps()
     {
-        return Arrays.asList(weightsByTexel);
+        return weightMaps;
     }
 
     public void invalidateWeights()
@@ -166,7 +191,7 @@ public class SpecularFitSolution implements SpecularBasis, SpecularBasisWeights
             for (int b = 0; b < settings.basisCount; b++)
             {
                 diffuseSum = diffuseSum.plus(diffuseAlbedos[b].asVector4(1.0)
-                    .times(weightsByTexel[p].get(b)));
+                    .times(weightMaps[b][p]));
             }
 
             if (diffuseSum.w > 0)
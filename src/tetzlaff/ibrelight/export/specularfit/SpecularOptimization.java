@@ -28,7 +28,6 @@ import tetzlaff.ibrelight.rendering.resources.IBRResources;
 import tetzlaff.optimization.ReadonlyErrorReport;
 import tetzlaff.optimization.ShaderBasedErrorCalculator;
 import tetzlaff.optimization.function.GeneralizedSmoothStepBasis;
-import tetzlaff.util.ColorList;
 
 /**
  * Implement specular fit using algorithm described by Nam et al., 2018
@@ -80,11 +79,17 @@ public class SpecularOptimization
     {
         Instant start = Instant.now();
 
+        // Create output directory; intermediate results are saved while fitting.
+        settings.outputDirectory.mkdirs();
+
         // Get GPU context and disable back face culling since we're rendering in texture space
         ContextType context = resources.context;
         context.getState().disableBackFaceCulling();
         SpecularFitProgramFactory<ContextType> programFactory = new SpecularFitProgramFactory<>(resources, settings);
 
+        // When every stage runs on the CPU, no shader programs are created, so the fit can run on a SoftwareContext.
+        boolean cpuFitEnabled = settings.isCPUFitEnabled();
+
         // Calculate reasonable image resolution for error calculation
         int imageWidth = determineImageWidth(resources.viewSet);
         int imageHeight = determineImageHeight(resources.viewSet);
@@ -92,8 +97,45 @@ public class SpecularOptimization
         // Create space for the solution.
         SpecularFitSolution solution = new SpecularFitSolution(settings);
 
+        // Alternatively, extract reflectance on the CPU, which avoids reading back a framebuffer for every view.
+        TextureSpaceReflectanceStream cpuReflectanceStream = null;
+
+        if (settings.isCPUReflectanceExtractionEnabled())
+        {
+            cpuReflectanceStream = new TextureSpaceReflectanceStream(resources.viewSet, resources.geometry, settings);
+
+            if (resources.depthTextures != null && settings.additional.getBoolean("occlusionEnabled"))
+            {
+                cpuReflectanceStream.enableVisibilityTest(resources.depthTextures.getWidth(), resources.depthTextures.getHeight(),
+                    settings.additional.getFloat("occlusionBias"), resources.geometry);
+            }
+        }
+
+        // Refine normals and estimate the final diffuse map on the CPU from samples that only need to be extracted once.
+        boolean cpuNormalsEnabled = settings.isCPUNormalOptimizationEnabled() && settings.isNormalRefinementEnabled();
+        TexelReflectanceSamples texelSamples = null;
+        CPUNormalOptimization cpuNormalOptimization = null;
+
+        if (cpuReflectanceStream != null && (cpuNormalsEnabled || settings.isCPUDiffuseOptimizationEnabled()))
+        {
+            System.out.println("Extracting samples for normal and diffuse optimization...");
+            texelSamples = cpuReflectanceStream.extractTexelSamples();
+
+            if (cpuNormalsEnabled)
+            {
+                cpuNormalOptimization = new CPUNormalOptimization(settings, texelSamples);
+            }
+        }
+
         // Initialize weights using K-means.
-        new SpecularFitInitializer<>(resources, settings).initialize(solution);
+        if (cpuFitEnabled)
+        {
+            new SpecularFitInitializer<>(resources, settings).initialize(solution, texelSamples);
+        }
+        else
+        {
+            new SpecularFitInitializer<>(resources, settings).initialize(solution);
+        }
 
         // Complete "specular fit": includes basis representation on GPU, roughness / reflectivity fit, normal fit, and final diffuse fit.
         SpecularFitFromOptimization<ContextType> specularFit = new SpecularFitFromOptimization<>(context, resources, settings);
@@ -101,34 +143,48 @@ public class SpecularOptimization
         try
         (
             // Reflectance stream: includes a shader program and a framebuffer object for extracting reflectance data from images.
-            GraphicsStreamResource<ContextType> reflectanceStream = resources.streamAsResource(
-                getReflectanceProgramBuilder(programFactory),
-                context.buildFramebufferObject(settings.width, settings.height)
-                    .addColorAttachment(ColorFormat.RGBA32F)
-                    .addColorAttachment(ColorFormat.RGBA32F));
+            // Not needed if reflectance is extracted on the CPU.
+            GraphicsStreamResource<ContextType> reflectanceStream = cpuReflectanceStream != null ? null :
+                resources.streamAsResource(
+                    getReflectanceProgramBuilder(programFactory),
+                    context.buildFramebufferObject(settings.width, settings.height)
+                        .addColorAttachment(ColorFormat.RGBA32F)
+                        .addColorAttachment(ColorFormat.RGBA32F));
 
             // Compare fitted models against actual photographs
-            Program<ContextType> errorCalcProgram = createErrorCalcProgram(programFactory);
+            Program<ContextType> errorCalcProgram = cpuFitEnabled ? null : createErrorCalcProgram(programFactory);
 
             // Framebuffer for calculating error and reconstructing 3D renderings of the object
-            FramebufferObject<ContextType> scratchFramebuffer =
+            FramebufferObject<ContextType> scratchFramebuffer = cpuFitEnabled ? null :
                 context.buildFramebufferObject(imageWidth, imageHeight)
                     .addColorAttachment(ColorFormat.RGBA32F)
                     .addDepthAttachment()
-                    .createFramebufferObject()
+                    .createFramebufferObject();
+
+            // Reflectance data for all views, extracted once per iteration and replayed for each weight block.
+            ReflectanceCache reflectanceCache = settings.isReflectanceCacheEnabled() ?
+                new ReflectanceCache(settings.width * settings.height) : null
         )
         {
-            // Setup reflectance extraction program
-            programFactory.setupShaderProgram(reflectanceStream.getProgram());
-            reflectanceStream.getProgram().setTexture("roughnessEstimate", specularFit.getSpecularRoughnessMap());
+            if (reflectanceStream != null)
+            {
+                // Setup reflectance extraction program
+                programFactory.setupShaderProgram(reflectanceStream.getProgram());
+                reflectanceStream.getProgram().setTexture("roughnessEstimate", specularFit.getSpecularRoughnessMap());
+            }
 
-            Drawable<ContextType> errorCalcDrawable = resources.createDrawable(errorCalcProgram);
-            specularFit.basisResources.useWithShaderProgram(errorCalcProgram);
-            errorCalcProgram.setTexture("roughnessEstimate", specularFit.getSpecularRoughnessMap());
-            errorCalcProgram.setUniform("errorGamma", 1.0f);
+            Drawable<ContextType> errorCalcDrawable = errorCalcProgram != null ? resources.createDrawable(errorCalcProgram) : null;
+
+            if (errorCalcProgram != null)
+            {
+                specularFit.basisResources.useWithShaderProgram(errorCalcProgram);
+                errorCalcProgram.setTexture("roughnessEstimate", specularFit.getSpecularRoughnessMap());
+                errorCalcProgram.setUniform("errorGamma", 1.0f);
+            }
 
             // Track how the error improves over iterations of the whole algorithm.
             double previousIterationError;
+            double previousIterationUncertainty;
 
             BRDFReconstruction brdfReconstruction = new BRDFReconstruction(
                 settings,
@@ -142,25 +198,58 @@ public class SpecularOptimization
             SpecularWeightOptimization weightOptimization = new SpecularWeightOptimization(settings);
             ShaderBasedErrorCalculator errorCalculator = new ShaderBasedErrorCalculator(settings.width * settings.height);
 
+            if (settings.isStochasticErrorEstimationEnabled())
+            {
+                errorCalculator.enableStochasticEstimation(0L);
+            }
+
+            // When the normals are refined on the CPU, the error can be estimated from the same samples without rendering anything.
+            // If the whole fit runs on the CPU, the error is always calculated from the samples.
+            CPUErrorCalculator cpuErrorCalculator =
+                cpuFitEnabled || cpuNormalOptimization != null && settings.isStochasticErrorEstimationEnabled() ?
+                    new CPUErrorCalculator(settings, texelSamples, 0L) : null;
+            ReadonlyErrorReport errorReport = cpuErrorCalculator != null ? cpuErrorCalculator.getReport() : errorCalculator.getReport();
+
             // Instantiate once so that the memory buffers can be reused.
-            GraphicsStream<ColorList[]> reflectanceStreamParallel = reflectanceStream.parallel();
+            GraphicsStream<ReflectanceData> reflectanceStreamParallel = cpuReflectanceStream != null ? cpuReflectanceStream.parallel() :
+                reflectanceStream.parallel().map(framebufferData -> new ReflectanceData(framebufferData[0], framebufferData[1]));
+            GraphicsStream<ReflectanceData> reflectanceStreamSequential = cpuReflectanceStream != null ? cpuReflectanceStream.sequential() :
+                reflectanceStream.map(framebufferData -> new ReflectanceData(framebufferData[0], framebufferData[1]));
 
             do
             {
-                previousIterationError = errorCalculator.getReport().getError();
+                previousIterationError = errorReport.getError();
+                previousIterationUncertainty = errorReport.getUncertainty();
+
+                if (cpuReflectanceStream != null)
+                {
+                    cpuReflectanceStream.setNormalMap(specularFit.normalOptimization.readNormalMap());
+                    cpuReflectanceStream.setRoughnessMap(specularFit.roughnessOptimization.readRoughnessMap());
+                }
+                else
+                {
+                    // Use the current front normal buffer for extracting reflectance information.
+                    reflectanceStream.getProgram().setTexture("normalEstimate", specularFit.getNormalMap());
+                }
 
-                // Use the current front normal buffer for extracting reflectance information.
-                reflectanceStream.getProgram().setTexture("normalEstimate", specularFit.getNormalMap());
+                if (reflectanceCache != null)
+                {
+                    // Extract reflectance from every view once; the normals and roughness won't change again until the next iteration.
+                    System.out.println("Caching reflectance data...");
+                    reflectanceCache.update(reflectanceStreamParallel);
+                }
 
                 // Reconstruct the basis BRDFs.
                 // Set up a stream and pass it to the BRDF reconstruction module to give it access to the reflectance information.
                 // Operate in parallel for optimal performance.
-                brdfReconstruction.execute(
-                    reflectanceStreamParallel.map(framebufferData -> new ReflectanceData(framebufferData[0], framebufferData[1])),
+                brdfReconstruction.execute(reflectanceCache != null ? reflectanceCache.stream().parallel() : reflectanceStreamParallel,
                     solution);
 
-                // Use the current front normal buffer for calculating error.
-                errorCalcProgram.setTexture("normalEstimate", specularFit.getNormalMap());
+                if (errorCalcProgram != null)
+                {
+                    // Use the current front normal buffer for calculating error.
+                    errorCalcProgram.setTexture("normalEstimate", specularFit.getNormalMap());
+                }
 
                 // Log error in debug mode.
                 if (DEBUG)
@@ -169,16 +258,16 @@ public class SpecularOptimization
                     // Basis functions will have changed.
                     specularFit.basisResources.updateFromSolution(solution);
 
-                    System.out.println("Calculating error...");
-                    errorCalculator.update(errorCalcDrawable, scratchFramebuffer);
-                    logError(errorCalculator.getReport());
-
-                    // Save basis image visualization for reference and debugging
-                    try(BasisImageCreator<ContextType> basisImageCreator = new BasisImageCreator<>(context, settings))
+                    if (errorCalcDrawable != null)
                     {
-                        basisImageCreator.createImages(specularFit);
+                        System.out.println("Calculating error...");
+                        errorCalculator.update(errorCalcDrawable, scratchFramebuffer);
+                        logError(errorCalculator.getReport());
                     }
 
+                    // Save basis image visualization for reference and debugging
+                    saveBasisImages(context, specularFit, solution);
+
                     // write out diffuse texture for debugging
                     solution.saveDiffuseMap(settings.additional.getFloat("gamma"));
                 }
@@ -194,9 +283,15 @@ public class SpecularOptimization
                     for (int i = 0; i < blockCount; i++) // TODO: this was done quickly; may need to be refactored
                     {
                         System.out.println("Starting block " + i + "...");
-                        weightOptimization.execute(
-                            reflectanceStream.map(framebufferData -> new ReflectanceData(framebufferData[0], framebufferData[1])),
-                            solution, i * settings.getWeightBlockSize());
+
+                        int blockStart = i * settings.getWeightBlockSize();
+
+                        // When cached, only the samples within the current block need to be read from each view.
+                        weightOptimization.execute(reflectanceCache != null ?
+                                reflectanceCache.stream(blockStart,
+                                    Math.min(blockStart + settings.getWeightBlockSize(), settings.width * settings.height))
+                                : reflectanceStreamSequential,
+                            solution, blockStart);
                     }
                 }
 
@@ -210,51 +305,99 @@ public class SpecularOptimization
                 specularFit.basisResources.updateFromSolution(solution);
 
                 // Calculate the error in preparation for normal estimation.
-                errorCalculator.update(errorCalcDrawable, scratchFramebuffer);
+                if (cpuErrorCalculator != null)
+                {
+                    cpuErrorCalculator.update(solution, specularFit.normalOptimization.readNormalMap(),
+                        specularFit.roughnessOptimization.readRoughnessMap(), settings.getConvergenceTolerance());
+                }
+                else
+                {
+                    errorCalculator.update(errorCalcDrawable, scratchFramebuffer, settings.getConvergenceTolerance());
+                }
 
                 if (DEBUG)
                 {
                     // Log error in debug mode.
-                    logError(errorCalculator.getReport());
+                    logError(errorReport);
                 }
 
                 if (settings.isNormalRefinementEnabled())
                 {
                     System.out.println("Optimizing normals...");
 
-                    specularFit.normalOptimization.execute(normalMap ->
+                    if (cpuNormalOptimization != null)
                     {
-                        // Update program to use the new front buffer for error calculation.
-                        errorCalcProgram.setTexture("normalEstimate", normalMap);
+                        specularFit.normalOptimization.loadNormalMap(cpuNormalOptimization.execute(solution,
+                            specularFit.normalOptimization.readNormalMap(), specularFit.roughnessOptimization.readRoughnessMap()));
 
-                        if (DEBUG)
+                        // Calculate the error for the new normal map.
+                        if (cpuErrorCalculator != null)
                         {
-                            System.out.println("Calculating error...");
+                            cpuErrorCalculator.update(solution, specularFit.normalOptimization.readNormalMap(),
+                                specularFit.roughnessOptimization.readRoughnessMap(), settings.getConvergenceTolerance());
+                        }
+                        else
+                        {
+                            errorCalcProgram.setTexture("normalEstimate", specularFit.getNormalMap());
+                            errorCalculator.update(errorCalcDrawable, scratchFramebuffer, settings.getConvergenceTolerance());
                         }
-
-                        // Calculate the error to determine if we should stop.
-                        errorCalculator.update(errorCalcDrawable, scratchFramebuffer);
 
                         if (DEBUG)
                         {
                             // Log error in debug mode.
-                            logError(errorCalculator.getReport());
+                            logError(errorReport);
                         }
+                    }
+                    else
+                    {
+                        specularFit.normalOptimization.execute(normalMap ->
+                        {
+                            // Update program to use the new front buffer for error calculation.
+                            errorCalcProgram.setTexture("normalEstimate", normalMap);
+
+                            if (DEBUG)
+                            {
+                                System.out.println("Calculating error...");
+                            }
+
+                            // Calculate the error to determine if we should stop.
+                            errorCalculator.update(errorCalcDrawable, scratchFramebuffer, settings.getConvergenceTolerance());
+
+                            if (DEBUG)
+                            {
+                                // Log error in debug mode.
+                                logError(errorCalculator.getReport());
+                            }
+
+                            return errorCalculator.getReport();
+                        },
+                        settings.getConvergenceTolerance());
+                    }
 
-                        return errorCalculator.getReport();
-                    },
-                    settings.getConvergenceTolerance());
-
-                    if (errorCalculator.getReport().getError() > errorCalculator.getReport().getPreviousError())
+                    if (errorReport.getError() > errorReport.getPreviousError())
                     {
                         // Revert error calculations to the last accepted result.
-                        errorCalculator.reject();
+                        if (cpuErrorCalculator != null)
+                        {
+                            cpuErrorCalculator.reject();
+                        }
+                        else
+                        {
+                            errorCalculator.reject();
+                        }
                     }
                 }
 
                 // Estimate specular roughness and reflectivity.
                 // This can cause error to increase but it's unclear if that poses a problem for convergence.
-                specularFit.roughnessOptimization.execute();
+                if (settings.isCPURoughnessOptimizationEnabled())
+                {
+                    specularFit.roughnessOptimization.execute(solution);
+                }
+                else
+                {
+                    specularFit.roughnessOptimization.execute();
+                }
 
                 if (DEBUG)
                 {
@@ -262,17 +405,49 @@ public class SpecularOptimization
 
                     // Log error in debug mode.
                     specularFit.basisResources.updateFromSolution(solution);
-                    System.out.println("Calculating error...");
-                    errorCalculator.update(errorCalcDrawable, scratchFramebuffer);
-                    logError(errorCalculator.getReport());
+
+                    if (errorCalcDrawable != null)
+                    {
+                        System.out.println("Calculating error...");
+                        errorCalculator.update(errorCalcDrawable, scratchFramebuffer);
+                        logError(errorCalculator.getReport());
+                    }
+                }
+
+                if (errorReport.getUncertainty() > 0.0
+                    && Math.abs(previousIterationError - errorReport.getError() - settings.getConvergenceTolerance())
+                        <= previousIterationUncertainty + errorReport.getUncertainty())
+                {
+                    // The error was only estimated and it's too close to call whether the fit has converged.
+                    if (cpuErrorCalculator != null)
+                    {
+                        cpuErrorCalculator.update(solution, specularFit.normalOptimization.readNormalMap(),
+                            specularFit.roughnessOptimization.readRoughnessMap());
+                    }
+                    else
+                    {
+                        specularFit.basisResources.updateFromSolution(solution);
+                        errorCalcProgram.setTexture("normalEstimate", specularFit.getNormalMap());
+                        errorCalculator.update(errorCalcDrawable, scratchFramebuffer);
+                    }
                 }
             }
             while ((settings.basisCount > 1 || settings.isNormalRefinementEnabled()) &&
                 // Iteration not necessary if basisCount is 1 and normal refinement is off.
-                previousIterationError - errorCalculator.getReport().getError() > settings.getConvergenceTolerance());
+                // If the previous error was only estimated, keep going unless the fit has clearly converged.
+                previousIterationError - errorReport.getError() + previousIterationUncertainty + errorReport.getUncertainty()
+                    > settings.getConvergenceTolerance());
 
             // Calculate final diffuse map without the constraint of basis functions.
-            specularFit.diffuseOptimization.execute(specularFit);
+            if (texelSamples != null && settings.isCPUDiffuseOptimizationEnabled())
+            {
+                specularFit.diffuseOptimization.execute(solution, texelSamples,
+                    specularFit.normalOptimization.readNormalMap(), specularFit.roughnessOptimization.readRoughnessMap());
+            }
+            else
+            {
+                specularFit.diffuseOptimization.execute(specularFit);
+            }
 
             Duration duration = Duration.between(start, Instant.now());
             System.out.println("Total processing time: " + duration);
@@ -294,14 +469,18 @@ public class SpecularOptimization
             solution.saveBasisFunctions();
 
             // Save basis image visualization for reference and debugging
-            try(BasisImageCreator<ContextType> basisImageCreator = new BasisImageCreator<>(context, settings))
-            {
-                basisImageCreator.createImages(specularFit);
-            }
+            saveBasisImages(context, specularFit, solution);
 
             // Fill holes in weight maps and calculate some final error statistics.
-            new SpecularFitFinalizer(settings)
-                .execute(solution, resources, specularFit, scratchFramebuffer, errorCalculator.getReport(), errorCalcDrawable);
+            if (cpuFitEnabled)
+            {
+                new SpecularFitFinalizer(settings).execute(solution, specularFit, errorReport, cpuErrorCalculator);
+            }
+            else
+            {
+                new SpecularFitFinalizer(settings)
+                    .execute(solution, resources, specularFit, scratchFramebuffer, errorReport, errorCalcDrawable);
+            }
 
             return specularFit;
         }
@@ -330,6 +509,23 @@ public class SpecularOptimization
         return solution;
     }
 
+    private <ContextType extends Context<ContextType>> void saveBasisImages(
+        ContextType context, SpecularFitFromOptimization<ContextType> specularFit, SpecularFitSolution solution)
+        throws IOException
+    {
+        if (settings.isCPUFitEnabled())
+        {
+            BasisImageCreator.createImages(solution, settings);
+        }
+        else
+        {
+            try(BasisImageCreator<ContextType> basisImageCreator = new BasisImageCreator<>(context, settings))
+            {
+                basisImageCreator.createImages(specularFit);
+            }
+        }
+    }
+
     private static void logError(ReadonlyErrorReport report)
     {
         System.out.println("--------------------------------------------------");
@@ -14,11 +14,11 @@ package tetzlaff.ibrelight.export.specularfit;
 import java.util.function.IntFunction;
 
 import tetzlaff.gl.vecmath.DoubleVector3;
-import tetzlaff.optimization.LeastSquaresModel;
+import tetzlaff.optimization.PrimitiveLeastSquaresModel;
 
 import static java.lang.Math.PI;
 
-public class SpecularWeightModel implements LeastSquaresModel<ReflectanceData, DoubleVector3>
+public class SpecularWeightModel implements PrimitiveLeastSquaresModel<ReflectanceData, DoubleVector3>
 {
     private final SpecularFitSolution solution;
     private final SpecularFitSettings settings;
@@ -62,46 +62,75 @@ public class SpecularWeightModel implements LeastSquaresModel<ReflectanceData, D
         float halfwayIndex = sampleData.getHalfwayIndex(systemIndex);
         float geomRatio = sampleData.getGeomRatio(systemIndex);
 
-        // Precalculate frequently used values.
+        return b ->
+        {
+            double[] color = new double[3];
+            evaluateBasisFunction(b, halfwayIndex, geomRatio, color, 0);
+            return new DoubleVector3(color[0], color[1], color[2]);
+        };
+    }
+
+    /**
+     * Evaluates the basis BRDF for one basis function and writes its red, green and blue components into an array.
+     * This will run a lot of times so vector math operations are written out
+     * to avoid unnecessary allocation of Vector objects.
+     */
+    private void evaluateBasisFunction(int b, float halfwayIndex, float geomRatio, double[] out, int offset)
+    {
         double mExact = halfwayIndex * settings.microfacetDistributionResolution;
 
         int m1 = (int)Math.floor(mExact);
         int m2 = m1 + 1;
         double t = mExact - m1;
 
-        return b ->
+        DoubleVector3 diffuseAlbedo = solution.getDiffuseAlbedo(b);
+        double red = diffuseAlbedo.x / PI;
+        double green = diffuseAlbedo.y / PI;
+        double blue = diffuseAlbedo.z / PI;
+
+        if (m1 < settings.microfacetDistributionResolution)
         {
-            // Evaluate the basis BRDF.
-            // This will run a lot of times so write out vector math operations
-            // to avoid unnecessary allocation of Vector objects
-            if (m1 < settings.microfacetDistributionResolution)
-            {
-                return new DoubleVector3(
-                    solution.getDiffuseAlbedo(b).x / PI +
-                        (solution.getSpecularRed().get(m1, b) * (1 - t)
-                            + solution.getSpecularRed().get(m2, b) * t) * geomRatio,
-                    solution.getDiffuseAlbedo(b).y / PI +
-                        (solution.getSpecularGreen().get(m1, b) * (1 - t)
-                            + solution.getSpecularGreen().get(m2, b) * t) * geomRatio,
-                    solution.getDiffuseAlbedo(b).z / PI +
-                        (solution.getSpecularBlue().get(m1, b) * (1 - t)
-                            + solution.getSpecularBlue().get(m2, b) * t) * geomRatio);
-            }
-            else if (settings.getMetallicity() > 0.0f)
-            {
-                return new DoubleVector3(
-                    solution.getDiffuseAlbedo(b).x / PI +
-                        solution.getSpecularRed().get(settings.microfacetDistributionResolution, b) * geomRatio,
-                    solution.getDiffuseAlbedo(b).y / PI +
-                        solution.getSpecularGreen().get(settings.microfacetDistributionResolution, b) * geomRatio,
-                    solution.getDiffuseAlbedo(b).z / PI +
-                        solution.getSpecularBlue().get(settings.microfacetDistributionResolution, b) * geomRatio);
-            }
-            else // if metallicity == 0, then the MDF should be 0 here
-            {
-                return solution.getDiffuseAlbedo(b).dividedBy(PI);
-            }
-        };
+            red += (solution.getSpecularRed().get(m1, b) * (1 - t) + solution.getSpecularRed().get(m2, b) * t) * geomRatio;
+            green += (solution.getSpecularGreen().get(m1, b) * (1 - t) + solution.getSpecularGreen().get(m2, b) * t) * geomRatio;
+            blue += (solution.getSpecularBlue().get(m1, b) * (1 - t) + solution.getSpecularBlue().get(m2, b) * t) * geomRatio;
+        }
+        else if (settings.getMetallicity() > 0.0f)
+        {
+            red += solution.getSpecularRed().get(settings.microfacetDistributionResolution, b) * geomRatio;
+            green += solution.getSpecularGreen().get(settings.microfacetDistributionResolution, b) * geomRatio;
+            blue += solution.getSpecularBlue().get(settings.microfacetDistributionResolution, b) * geomRatio;
+        }
+        // if metallicity == 0, then the MDF should be 0 here
+
+        out[offset] = red;
+        out[offset + 1] = green;
+        out[offset + 2] = blue;
+    }
+
+    @Override
+    public int getSampleDimensions()
+    {
+        return 3;
+    }
+
+    @Override
+    public double evaluate(ReflectanceData sampleData, int systemIndex, double[] samples, double[] basisValues)
+    {
+        samples[0] = sampleData.getRed(systemIndex);
+        samples[1] = sampleData.getGreen(systemIndex);
+        samples[2] = sampleData.getBlue(systemIndex);
+
+        float halfwayIndex = sampleData.getHalfwayIndex(systemIndex);
+        float geomRatio = sampleData.getGeomRatio(systemIndex);
+
+        // Same as getBasisFunctions(), but written directly into the array.
+        for (int b = 0; b < settings.basisCount; b++)
+        {
+            evaluateBasisFunction(b, halfwayIndex, geomRatio, basisValues, 3 * b);
+        }
+
+        // Don't multiply by n dot l when optimizing reflectance (rather than radiance)
+        return sampleData.getAdditionalWeight(systemIndex);
     }
 
     @Override
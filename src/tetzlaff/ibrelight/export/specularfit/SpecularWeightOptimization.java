@@ -14,6 +14,8 @@ package tetzlaff.ibrelight.export.specularfit;
 import java.util.Collections;
 import java.util.stream.IntStream;
 
+import org.ejml.data.SingularMatrixException;
+
 import tetzlaff.ibrelight.rendering.resources.GraphicsStream;
 import tetzlaff.optimization.NonNegativeWeightOptimization;
 
@@ -27,7 +29,8 @@ public class SpecularWeightOptimization
     {
         this.settings = settings;
 
-        base = new NonNegativeWeightOptimization(settings.getWeightBlockSize(), settings.basisCount,
+        base = new NonNegativeWeightOptimization(
+            Math.min(settings.getWeightBlockSize(), settings.width * settings.height), settings.basisCount,
             Collections.singletonList(b -> 1.0), Collections.singletonList(1.0)); // Equality constraint to ensure that the weights sum up to 1.0.
     }
 
@@ -43,12 +46,13 @@ public class SpecularWeightOptimization
 
         // Dampen so that it doesn't "snap" to the optimal solution right away.
         // TODO expose the damping factor as a setting.
-//        base.dampenWithPreviousSolution(1.0, p -> b -> solution.getWeights(pStart + p).get(b));
+//        base.dampenWithPreviousSolution(1.0, p -> b -> solution.getWeight(b, pStart + p));
 
         System.out.println("Finished building matrices; solving now...");
 
         // Optimize the weights and store the result in the SpecularFitSolution.
-        if (pStart + settings.getWeightBlockSize() > settings.width * settings.height)
+        // Unless disabled, each texel starts from the weights found in the previous iteration.
+        try
         {
             base.optimizeWeights(p -> solution.areWeightsValid(pStart + p),
                 (p, weights) ->
@@ -58,20 +62,19 @@ public class SpecularWeightOptimization
 //                        weights.extractMatrix(0, weights.numRows() - 1, 0, 1).scale(0.5)
 //                            .plus(solution.getWeights(pStart + p).scale(0.5)));
                 },
-                NonNegativeWeightOptimization.DEFAULT_TOLERANCE_SCALE, settings.width * settings.height - pStart);
+                NonNegativeWeightOptimization.DEFAULT_TOLERANCE_SCALE,
+                Math.min(settings.getWeightBlockSize(), settings.width * settings.height - pStart),
+                settings.isWeightWarmStartEnabled() ? p -> b -> solution.getWeight(b, pStart + p) : null);
         }
-        else
+        catch (SingularMatrixException e)
         {
-            base.optimizeWeights(p -> solution.areWeightsValid(pStart + p),
-                (p, weights) ->
-                {
-                    solution.setWeights(pStart + p, weights);
-//                    solution.setWeights(pStart + p,
-//                        weights.extractMatrix(0, weights.numRows() - 1, 0, 1).scale(0.5)
-//                            .plus(solution.getWeights(pStart + p).scale(0.5)));
-                });
+            // Every texel still received the solution from before the system became singular, so carry on.
+            e.printStackTrace();
         }
 
+        System.out.println("Active set iterations: " + base.getLastIterationCount()
+            + " (at least " + base.getLastIterationsSaved() + " saved by warm start)");
+
         System.out.println("DONE!");
 
         if (SpecularOptimization.DEBUG)
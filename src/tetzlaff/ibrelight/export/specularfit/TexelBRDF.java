@@ -0,0 +1,197 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.ibrelight.export.specularfit;
+
+import java.util.Arrays;
+
+import org.ejml.simple.SimpleMatrix;
+import tetzlaff.gl.vecmath.DoubleVector3;
+
+/**
+ * The BRDF at a single texel, i.e. the basis functions of a solution combined using the texel's weights,
+ * for the CPU implementations of the fitting shaders.
+ * An instance is meant to be reused (one per thread) by loading each texel in turn.
+ */
+final class TexelBRDF
+{
+    private final SpecularFitSettings settings;
+
+    /**
+     * Basis functions: index (m * basisCount + b) * 3 + c.
+     */
+    private final double[] basisFunctions;
+
+    /**
+     * Diffuse albedos: index b * 3 + c.
+     */
+    private final double[] diffuseAlbedos;
+
+    private final SpecularFitSolution solution;
+
+    private final double[] diffuse = new double[3];
+    private final double[] microfacetDistribution;
+
+    /**
+     * Copies the basis functions and diffuse albedos out of a solution so that they can be combined quickly for each texel.
+     * The copies are shared by every instance created from this one using copy().
+     */
+    TexelBRDF(SpecularFitSettings settings, SpecularFitSolution solution)
+    {
+        int basisCount = settings.basisCount;
+        int resolution = settings.microfacetDistributionResolution;
+
+        SimpleMatrix red = solution.getSpecularRed();
+        SimpleMatrix green = solution.getSpecularGreen();
+        SimpleMatrix blue = solution.getSpecularBlue();
+
+        this.settings = settings;
+        this.solution = solution;
+        this.basisFunctions = new double[3 * basisCount * (resolution + 1)];
+        this.diffuseAlbedos = new double[3 * basisCount];
+        this.microfacetDistribution = new double[3 * (resolution + 1)];
+
+        for (int b = 0; b < basisCount; b++)
+        {
+            for (int m = 0; m <= resolution; m++)
+            {
+                basisFunctions[(m * basisCount + b) * 3] = red.get(m, b);
+                basisFunctions[(m * basisCount + b) * 3 + 1] = green.get(m, b);
+                basisFunctions[(m * basisCount + b) * 3 + 2] = blue.get(m, b);
+            }
+
+            DoubleVector3 diffuseAlbedo = solution.getDiffuseAlbedo(b);
+            diffuseAlbedos[3 * b] = diffuseAlbedo.x;
+            diffuseAlbedos[3 * b + 1] = diffuseAlbedo.y;
+            diffuseAlbedos[3 * b + 2] = diffuseAlbedo.z;
+        }
+    }
+
+    private TexelBRDF(TexelBRDF other)
+    {
+        this.settings = other.settings;
+        this.solution = other.solution;
+        this.basisFunctions = other.basisFunctions;
+        this.diffuseAlbedos = other.diffuseAlbedos;
+        this.microfacetDistribution = new double[other.microfacetDistribution.length];
+    }
+
+    /**
+     * Creates another instance for the same solution with its own per-texel storage, i.e. for use on another thread.
+     */
+    TexelBRDF copy()
+    {
+        return new TexelBRDF(this);
+    }
+
+    /**
+     * Combines the basis functions using the weights of a texel.
+     * @param texelIndex The index of the texel in the full texture.
+     */
+    void load(int texelIndex)
+    {
+        int basisCount = settings.basisCount;
+        int resolution = settings.microfacetDistributionResolution;
+
+        Arrays.fill(diffuse, 0.0);
+        Arrays.fill(microfacetDistribution, 0.0);
+
+        for (int b = 0; b < basisCount; b++)
+        {
+            double weight = solution.getWeight(b, texelIndex);
+
+            for (int c = 0; c < 3; c++)
+            {
+                diffuse[c] += weight * diffuseAlbedos[3 * b + c];
+            }
+
+            for (int m = 0; m <= resolution; m++)
+            {
+                for (int c = 0; c < 3; c++)
+                {
+                    microfacetDistribution[3 * m + c] += weight * basisFunctions[(m * basisCount + b) * 3 + c];
+                }
+            }
+        }
+    }
+
+    /**
+     * Equivalent to getDiffuseEstimate() in evaluateBRDF.glsl.
+     */
+    double getDiffuse(int channel)
+    {
+        return diffuse[channel];
+    }
+
+    /**
+     * The combined microfacet distribution at one of the discrete values used to define the basis functions.
+     */
+    double getMicrofacetDistribution(int m, int channel)
+    {
+        return microfacetDistribution[3 * m + channel];
+    }
+
+    /**
+     * Equivalent to getMFDEstimate() in evaluateBRDF.glsl, parameterized by the square root of the halfway angle
+     * rather than n dot h, using the same interpolation as SpecularWeightModel.
+     */
+    void evaluateMFD(double w, double[] destination)
+    {
+        int resolution = settings.microfacetDistributionResolution;
+        double mExact = Math.max(0.0, w * resolution);
+        int m1 = (int)Math.floor(mExact);
+        double t = mExact - m1;
+
+        if (m1 < resolution)
+        {
+            for (int c = 0; c < 3; c++)
+            {
+                destination[c] = microfacetDistribution[3 * m1 + c] * (1 - t) + microfacetDistribution[3 * m1 + 3 + c] * t;
+            }
+        }
+        else if (settings.getMetallicity() > 0.0f)
+        {
+            System.arraycopy(microfacetDistribution, 3 * resolution, destination, 0, 3);
+        }
+        else // if metallicity == 0, then the MDF should be 0 here
+        {
+            Arrays.fill(destination, 0.0);
+        }
+    }
+
+    /**
+     * Halfway component should be 1.0 when the angle is 60 degrees, or pi/3.
+     */
+    static double getHalfwayIndex(double nDotH)
+    {
+        return Math.sqrt(Math.max(0.0, Math.acos(Math.min(1.0, nDotH)) * 3.0 / Math.PI));
+    }
+
+    static double lambdaGGX(double roughness, double cosine)
+    {
+        return -0.5 + 0.5 * Math.sqrt(1 + roughness * roughness * (1 / (cosine * cosine) - 1.0));
+    }
+
+    /**
+     * Equivalent to geom() in reflectanceequations.glsl with PHYSICALLY_BASED_MASKING_SHADOWING enabled.
+     */
+    static double geom(SpecularFitSettings settings, double roughness, double nDotH, double nDotV, double nDotL, double hDotV)
+    {
+        if (settings.isSmithMaskingShadowingEnabled())
+        {
+            return 1 / (1 + lambdaGGX(roughness, nDotV) + lambdaGGX(roughness, nDotL));
+        }
+        else
+        {
+            return Math.min(1.0, 2.0 * nDotH * Math.min(nDotV, nDotL) / hDotV);
+        }
+    }
+}
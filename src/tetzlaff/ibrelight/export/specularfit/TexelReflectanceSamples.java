@@ -0,0 +1,95 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.ibrelight.export.specularfit;
+
+/**
+ * Reflectance samples from every view, grouped by texel, that do not depend on the current normal or roughness estimates.
+ * Each sample stores the photographed color divided by the incident radiance (the "actual reflectance times n dot l"
+ * used by estimateNormals.frag) along with the alpha of the photograph, so that the light and view directions
+ * can be recomputed in any normal-dependent frame from the per-view camera and light positions.
+ * Only samples that are visible in the photograph and face the camera (with respect to the triangle normal) are stored.
+ * The samples for texel i are at indices sampleOffsets[i] (inclusive) through sampleOffsets[i + 1] (exclusive), ordered by view.
+ * Created by TextureSpaceReflectanceStream.extractTexelSamples().
+ */
+public final class TexelReflectanceSamples
+{
+    /**
+     * Indices of the texels that are covered by the mesh in texture space.
+     */
+    final int[] texelIndices;
+
+    /**
+     * Object-space position of each covered texel.
+     */
+    final float[] positions;
+
+    /**
+     * Orthonormal tangent, bitangent, and triangle normal of each covered texel (9 components per texel).
+     */
+    final float[] tangentFrames;
+
+    /**
+     * Object-space camera position for each view.
+     */
+    final float[] cameraPositions;
+
+    /**
+     * Object-space light position for each view.
+     */
+    final float[] lightPositions;
+
+    /**
+     * Index of the first sample of each covered texel, followed by the total number of samples.
+     */
+    final int[] sampleOffsets;
+
+    /**
+     * View index of each sample.
+     */
+    final int[] sampleViews;
+
+    /**
+     * Red, green, and blue reflectance times n dot l, and alpha, of each sample.
+     */
+    final float[] sampleColors;
+
+    TexelReflectanceSamples(int[] texelIndices, float[] positions, float[] tangentFrames,
+        float[] cameraPositions, float[] lightPositions, int[] sampleOffsets, int[] sampleViews, float[] sampleColors)
+    {
+        this.texelIndices = texelIndices;
+        this.positions = positions;
+        this.tangentFrames = tangentFrames;
+        this.cameraPositions = cameraPositions;
+        this.lightPositions = lightPositions;
+        this.sampleOffsets = sampleOffsets;
+        this.sampleViews = sampleViews;
+        this.sampleColors = sampleColors;
+    }
+
+    /**
+     * Gets the number of texels covered by the mesh.
+     * @return The number of covered texels.
+     */
+    public int getTexelCount()
+    {
+        return texelIndices.length;
+    }
+
+    /**
+     * Gets the total number of samples for all texels.
+     * @return The number of samples.
+     */
+    public int getSampleCount()
+    {
+        return sampleOffsets[texelIndices.length];
+    }
+}
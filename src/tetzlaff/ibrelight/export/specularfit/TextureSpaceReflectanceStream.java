@@ -0,0 +1,1009 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.ibrelight.export.specularfit;
+
+import java.awt.Graphics;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import javax.imageio.ImageIO;
+
+import tetzlaff.gl.core.*;
+import tetzlaff.gl.software.SoftwareContext;
+import tetzlaff.gl.util.VertexGeometry;
+import tetzlaff.gl.vecmath.IntVector2;
+import tetzlaff.gl.vecmath.Matrix4;
+import tetzlaff.gl.vecmath.Vector3;
+import tetzlaff.gl.vecmath.Vector4;
+import tetzlaff.ibrelight.core.ViewSet;
+import tetzlaff.ibrelight.rendering.resources.GraphicsStream;
+import tetzlaff.ibrelight.rendering.resources.GraphicsStreamBase;
+import tetzlaff.ibrelight.rendering.resources.IBRResources;
+import tetzlaff.util.ColorArrayList;
+
+/**
+ * A stream that extracts texture-space reflectance data from each view entirely on the CPU.
+ * This produces the same data as running extractReflectance.frag over each view using a ParallelViewRenderStream,
+ * but without requiring a GPU or reading back a framebuffer for every view.
+ * The mesh is rasterized into texture space once when the stream is created; after that,
+ * each view only requires projecting the covered texels into the view's photograph.
+ * Each view is processed as an independent task, so the parallel version of the stream scales with the number of cores.
+ * Photographs are decoded the first time they are needed, and are resized to the resolution of the primary view
+ * like the texture array used on the GPU.  The most recently used photographs are kept in memory for subsequent passes,
+ * up to a quarter of the maximum heap size; any others are decoded again when they are next needed.
+ * Unlike the GPU implementation, photographs are always sampled from the base resolution using bilinear filtering (no mipmaps),
+ * and shadow tests are not supported.
+ */
+public final class TextureSpaceReflectanceStream extends GraphicsStreamBase<ReflectanceData>
+{
+    private static final float PI = (float)Math.PI;
+
+    private final SharedData shared;
+    private final int maxRunningThreads;
+
+    /**
+     * Data that is shared between the sequential and parallel versions of a stream.
+     */
+    private static final class SharedData
+    {
+        final ViewSet viewSet;
+        final SpecularFitSettings settings;
+
+        /**
+         * Indices of the texels that are covered by the mesh in texture space.
+         */
+        int[] texelIndices;
+
+        /**
+         * Object-space position of each covered texel.
+         */
+        float[] positions;
+
+        /**
+         * Orthonormal tangent, bitangent, and triangle normal of each covered texel (9 components per texel).
+         */
+        float[] tangentFrames;
+
+        /**
+         * Current estimate of the shading normal in object space at each covered texel (not normalized, like the shader).
+         */
+        float[] shadingNormals;
+
+        /**
+         * Current estimate of the roughness at each covered texel.
+         */
+        float[] roughness;
+
+        /**
+         * The resolution that photographs are decoded at.
+         */
+        final int imageWidth;
+        final int imageHeight;
+
+        /**
+         * Cache of decoded photographs by view index, in order from least to most recently used.
+         * Guarded by synchronizing on the map itself.
+         */
+        final Map<Integer, ViewImage> images = new LinkedHashMap<>(16, 0.75f, true);
+
+        /**
+         * The total size of the photographs in the cache, and the size that the cache is trimmed to.
+         */
+        long cachedImageBytes;
+        final long imageCacheCapacity = Runtime.getRuntime().maxMemory() / 4;
+
+        /**
+         * Per-view depth maps for the visibility test, or null if the visibility test is disabled.
+         */
+        float[][] depthMaps;
+        int depthWidth;
+        int depthHeight;
+        float occlusionBias;
+
+        /**
+         * Sampled decode function for custom luminance encodings, or null to use gamma.
+         */
+        final float[] luminanceMap;
+
+        /**
+         * Pool of output buffers that can be reused between views and between passes.
+         */
+        final Deque<float[][]> unusedBuffers = new ConcurrentLinkedDeque<>();
+
+        SharedData(ViewSet viewSet, SpecularFitSettings settings)
+        {
+            this.viewSet = viewSet;
+            this.settings = settings;
+
+            // Same resolution as the texture array in IBRResources.
+            try
+            {
+                File primaryImageFile = IBRResources.findImageFile(viewSet.getImageFile(viewSet.getPrimaryViewIndex()));
+                IntVector2 imageSize = IBRResources.readImageSize(primaryImageFile);
+
+                if (imageSize == null)
+                {
+                    throw new IOException(String.format("Error: Unsupported image format '%s'.", primaryImageFile.getName()));
+                }
+
+                this.imageWidth = imageSize.x;
+                this.imageHeight = imageSize.y;
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+
+            if (viewSet.hasCustomLuminanceEncoding())
+            {
+                luminanceMap = new float[256];
+                for (int i = 0; i < 256; i++)
+                {
+                    luminanceMap[i] = (float)viewSet.getLuminanceEncoding().decodeFunction.applyAsDouble(i);
+                }
+            }
+            else
+            {
+                luminanceMap = null;
+            }
+        }
+    }
+
+    /**
+     * A decoded photograph, stored with the same orientation as the original image (row 0 at the top).
+     */
+    private static final class ViewImage
+    {
+        final int width;
+        final int height;
+        final int[] argb;
+
+        ViewImage(BufferedImage image)
+        {
+            this.width = image.getWidth();
+            this.height = image.getHeight();
+            this.argb = image.getRGB(0, 0, width, height, null, 0, width);
+        }
+
+        /**
+         * Bilinear sample with clamp-to-edge wrapping, using OpenGL texture coordinates (t = 0 at the bottom of the image).
+         */
+        void sample(float s, float t, float[] destination)
+        {
+            float u = s * width - 0.5f;
+            float v = (1.0f - t) * height - 0.5f;
+            int x0 = (int)Math.floor(u);
+            int y0 = (int)Math.floor(v);
+            float fx = u - x0;
+            float fy = v - y0;
+
+            int xa = Math.max(0, Math.min(width - 1, x0));
+            int xb = Math.max(0, Math.min(width - 1, x0 + 1));
+            int ya = Math.max(0, Math.min(height - 1, y0));
+            int yb = Math.max(0, Math.min(height - 1, y0 + 1));
+
+            int c00 = argb[ya * width + xa];
+            int c10 = argb[ya * width + xb];
+            int c01 = argb[yb * width + xa];
+            int c11 = argb[yb * width + xb];
+
+            for (int i = 0; i < 4; i++)
+            {
+                // ARGB -> RGBA component order
+                int shift = i == 3 ? 24 : 16 - 8 * i;
+                float top = (1 - fx) * ((c00 >>> shift) & 0xFF) + fx * ((c10 >>> shift) & 0xFF);
+                float bottom = (1 - fx) * ((c01 >>> shift) & 0xFF) + fx * ((c11 >>> shift) & 0xFF);
+                destination[i] = ((1 - fy) * top + fy * bottom) / 255.0f;
+            }
+        }
+    }
+
+    private TextureSpaceReflectanceStream(SharedData shared, int maxRunningThreads)
+    {
+        this.shared = shared;
+        this.maxRunningThreads = maxRunningThreads;
+    }
+
+    /**
+     * Creates a new stream, rasterizing the geometry into texture space at the resolution specified by the settings.
+     * The normal map is initially flat and the roughness is initially 1.0 everywhere.
+     * @param viewSet The view set containing the camera poses, light positions, and photographs.
+     * @param geometry The geometry, which must have texture coordinates and normals.
+     * @param settings The settings for the specular fit.
+     */
+    public TextureSpaceReflectanceStream(ViewSet viewSet, VertexGeometry geometry, SpecularFitSettings settings)
+    {
+        this(new SharedData(viewSet, settings), Runtime.getRuntime().availableProcessors());
+
+        if (!geometry.hasTexCoords() || !geometry.hasNormals())
+        {
+            throw new IllegalArgumentException("Geometry must have texture coordinates and normals.");
+        }
+
+        rasterizeTextureSpace(geometry);
+        setNormalMap(null);
+        setRoughnessMap(null);
+    }
+
+    private void rasterizeTextureSpace(VertexGeometry geometry)
+    {
+        int width = shared.settings.width;
+        int height = shared.settings.height;
+
+        try (SoftwareContext context = new SoftwareContext(1, 1);
+            VertexBuffer<SoftwareContext> positionBuffer = context.createVertexBuffer().setData(geometry.getVertices());
+            VertexBuffer<SoftwareContext> texCoordBuffer = context.createVertexBuffer().setData(geometry.getTexCoords());
+            VertexBuffer<SoftwareContext> normalBuffer = context.createVertexBuffer().setData(geometry.getNormals());
+            VertexBuffer<SoftwareContext> tangentBuffer = context.createVertexBuffer().setData(geometry.getTangents());
+            IndexBuffer<SoftwareContext> indexBuffer = context.createIndexBuffer().setData(geometry.getIndices());
+            Program<SoftwareContext> program = context.getShaderProgramBuilder()
+                // Equivalent to texspace_noscale.vert
+                .addShader(context.createVertexShader(12, (p, attributes, varyings) ->
+                {
+                    Vector3 position = attributes.getVector3("position");
+                    Vector3 normal = attributes.getVector3("normal");
+                    Vector4 tangent = attributes.getVector4("tangent");
+                    Vector3 bitangent = normal.cross(tangent.getXYZ()).normalized().times(tangent.w);
+
+                    varyings[0] = position.x;
+                    varyings[1] = position.y;
+                    varyings[2] = position.z;
+                    varyings[3] = normal.x;
+                    varyings[4] = normal.y;
+                    varyings[5] = normal.z;
+                    varyings[6] = tangent.x;
+                    varyings[7] = tangent.y;
+                    varyings[8] = tangent.z;
+                    varyings[9] = bitangent.x;
+                    varyings[10] = bitangent.y;
+                    varyings[11] = bitangent.z;
+
+                    return new Vector4(
+                        2.0f * attributes.get("texCoord", 0) - 1.0f,
+                        2.0f * attributes.get("texCoord", 1) - 1.0f,
+                        0.0f, 1.0f);
+                }))
+                .addShader(context.createFragmentShader((p, fragment) ->
+                {
+                    for (int i = 0; i < 4; i++)
+                    {
+                        fragment.setColor(i, fragment.getVarying(3 * i), fragment.getVarying(3 * i + 1), fragment.getVarying(3 * i + 2), 1.0f);
+                    }
+                    return true;
+                }))
+                .createProgram();
+            FramebufferObject<SoftwareContext> framebuffer = context.buildFramebufferObject(width, height)
+                .addColorAttachments(ColorFormat.RGBA32F, 4)
+                .createFramebufferObject())
+        {
+            Drawable<SoftwareContext> drawable = context.createDrawable(program);
+            drawable.addVertexBuffer("position", positionBuffer);
+            drawable.addVertexBuffer("texCoord", texCoordBuffer);
+            drawable.addVertexBuffer("normal", normalBuffer);
+            drawable.addVertexBuffer("tangent", tangentBuffer);
+            drawable.setIndexBuffer(indexBuffer);
+
+            for (int i = 0; i < 4; i++)
+            {
+                framebuffer.clearColorBuffer(i, 0.0f, 0.0f, 0.0f, 0.0f);
+            }
+
+            drawable.draw(PrimitiveMode.TRIANGLES, framebuffer);
+
+            float[] positionData = framebuffer.readFloatingPointColorBufferRGBA(0);
+            float[] normalData = framebuffer.readFloatingPointColorBufferRGBA(1);
+            float[] tangentData = framebuffer.readFloatingPointColorBufferRGBA(2);
+            float[] bitangentData = framebuffer.readFloatingPointColorBufferRGBA(3);
+
+            int[] covered = IntStream.range(0, width * height).filter(p -> positionData[4 * p + 3] > 0.0f).toArray();
+
+            shared.texelIndices = covered;
+            shared.positions = new float[3 * covered.length];
+            shared.tangentFrames = new float[9 * covered.length];
+
+            IntStream.range(0, covered.length).parallel().forEach(i ->
+            {
+                int p = covered[i];
+                System.arraycopy(positionData, 4 * p, shared.positions, 3 * i, 3);
+
+                // Same Gram-Schmidt process as getNormalEstimate() in extractReflectance.frag
+                Vector3 triangleNormal = new Vector3(normalData[4 * p], normalData[4 * p + 1], normalData[4 * p + 2]).normalized();
+                Vector3 fTangent = new Vector3(tangentData[4 * p], tangentData[4 * p + 1], tangentData[4 * p + 2]);
+                Vector3 fBitangent = new Vector3(bitangentData[4 * p], bitangentData[4 * p + 1], bitangentData[4 * p + 2]);
+                Vector3 tangent = fTangent.minus(triangleNormal.times(triangleNormal.dot(fTangent))).normalized();
+                Vector3 bitangent = fBitangent
+                    .minus(triangleNormal.times(triangleNormal.dot(fBitangent)))
+                    .minus(tangent.times(tangent.dot(fBitangent)))
+                    .normalized();
+
+                float[] frames = shared.tangentFrames;
+                frames[9 * i] = tangent.x;
+                frames[9 * i + 1] = tangent.y;
+                frames[9 * i + 2] = tangent.z;
+                frames[9 * i + 3] = bitangent.x;
+                frames[9 * i + 4] = bitangent.y;
+                frames[9 * i + 5] = bitangent.z;
+                frames[9 * i + 6] = triangleNormal.x;
+                frames[9 * i + 7] = triangleNormal.y;
+                frames[9 * i + 8] = triangleNormal.z;
+            });
+        }
+        catch (FileNotFoundException e)
+        {
+            // Should not happen since no shader files are used.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Enables the visibility test, which discards samples where the texel is occluded from the camera.
+     * Depth images are rendered for each view on the CPU, using the same projection as IBRResources.
+     * @param depthWidth The width of the depth images.
+     * @param depthHeight The height of the depth images.
+     * @param occlusionBias The maximum difference in depth for a texel to be considered visible.
+     * @param geometry The geometry to use for rendering the depth images.
+     */
+    public void enableVisibilityTest(int depthWidth, int depthHeight, float occlusionBias, VertexGeometry geometry)
+    {
+        ViewSet viewSet = shared.viewSet;
+        float[][] depthMaps = new float[viewSet.getCameraPoseCount()][];
+
+        try (SoftwareContext context = new SoftwareContext(1, 1);
+            VertexBuffer<SoftwareContext> positionBuffer = context.createVertexBuffer().setData(geometry.getVertices());
+            IndexBuffer<SoftwareContext> indexBuffer = context.createIndexBuffer().setData(geometry.getIndices());
+            Program<SoftwareContext> program = context.getShaderProgramBuilder()
+                // Equivalent to depth.vert; the depth is also written to a floating-point color attachment to avoid quantization.
+                .addShader(context.createVertexShader(0, (p, attributes, varyings) ->
+                    p.getMatrix4("model_view_projection").times(attributes.getVector3("position").asPosition())))
+                .addShader(context.createFragmentShader((p, fragment) ->
+                {
+                    fragment.setColor(0, fragment.getDepth(), 0.0f, 0.0f, 1.0f);
+                    return true;
+                }))
+                .createProgram();
+            FramebufferObject<SoftwareContext> framebuffer = context.buildFramebufferObject(depthWidth, depthHeight)
+                .addColorAttachment(ColorFormat.R32F)
+                .addDepthAttachment()
+                .createFramebufferObject())
+        {
+            Drawable<SoftwareContext> drawable = context.createDrawable(program);
+            drawable.addVertexBuffer("position", positionBuffer);
+            drawable.setIndexBuffer(indexBuffer);
+            context.getState().enableDepthTest();
+
+            for (int k = 0; k < depthMaps.length; k++)
+            {
+                program.setUniform("model_view_projection",
+                    viewSet.getCameraProjection(viewSet.getCameraProjectionIndex(k))
+                        .getProjectionMatrix(viewSet.getRecommendedNearPlane(), viewSet.getRecommendedFarPlane())
+                        .times(viewSet.getCameraPose(k)));
+
+                framebuffer.clearColorBuffer(0, 1.0f, 0.0f, 0.0f, 1.0f);
+                framebuffer.clearDepthBuffer();
+                drawable.draw(PrimitiveMode.TRIANGLES, framebuffer);
+
+                float[] rgba = framebuffer.readFloatingPointColorBufferRGBA(0);
+                float[] depth = new float[depthWidth * depthHeight];
+                for (int p = 0; p < depth.length; p++)
+                {
+                    depth[p] = rgba[4 * p];
+                }
+                depthMaps[k] = depth;
+            }
+        }
+        catch (FileNotFoundException e)
+        {
+            // Should not happen since no shader files are used.
+            throw new IllegalStateException(e);
+        }
+
+        shared.depthWidth = depthWidth;
+        shared.depthHeight = depthHeight;
+        shared.occlusionBias = occlusionBias;
+        shared.depthMaps = depthMaps;
+    }
+
+    /**
+     * Updates the normal map used for extracting reflectance.
+     * The normal map should be in the format used by the fitting shaders:
+     * RGBA in texture space, with the X and Y components of the tangent-space normal encoded in the red and green channels.
+     * @param normalMapRGBA The normal map, as returned by NormalOptimization.readNormalMap(), or null for a flat normal map.
+     */
+    public void setNormalMap(float[] normalMapRGBA)
+    {
+        int[] texels = shared.texelIndices;
+        float[] frames = shared.tangentFrames;
+        float[] normals = new float[3 * texels.length];
+
+        IntStream.range(0, texels.length).parallel().forEach(i ->
+        {
+            float x = normalMapRGBA == null ? 0.0f : normalMapRGBA[4 * texels[i]] * 2 - 1;
+            float y = normalMapRGBA == null ? 0.0f : normalMapRGBA[4 * texels[i] + 1] * 2 - 1;
+            float z = (float)Math.sqrt(Math.max(0.0f, 1 - x * x - y * y));
+
+            for (int c = 0; c < 3; c++)
+            {
+                normals[3 * i + c] = frames[9 * i + c] * x + frames[9 * i + 3 + c] * y + frames[9 * i + 6 + c] * z;
+            }
+        });
+
+        shared.shadingNormals = normals;
+    }
+
+    /**
+     * Updates the roughness map used for computing the masking / shadowing term.
+     * @param roughnessMapRGBA The roughness map as RGBA data in texture space, with roughness in the red channel,
+     *                         or null for a roughness of 1.0 everywhere.
+     */
+    public void setRoughnessMap(float[] roughnessMapRGBA)
+    {
+        int[] texels = shared.texelIndices;
+        float[] roughness = new float[texels.length];
+
+        for (int i = 0; i < texels.length; i++)
+        {
+            roughness[i] = roughnessMapRGBA == null ? 1.0f : roughnessMapRGBA[4 * texels[i]];
+        }
+
+        shared.roughness = roughness;
+    }
+
+    @Override
+    public GraphicsStream<ReflectanceData> sequential()
+    {
+        return maxRunningThreads == 1 ? this : new TextureSpaceReflectanceStream(shared, 1);
+    }
+
+    @Override
+    public GraphicsStream<ReflectanceData> parallel()
+    {
+        return parallel(Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public GraphicsStream<ReflectanceData> parallel(int maxRunningThreads)
+    {
+        return maxRunningThreads == this.maxRunningThreads ? this : new TextureSpaceReflectanceStream(shared, maxRunningThreads);
+    }
+
+    @Override
+    public int getCount()
+    {
+        return shared.viewSet.getCameraPoseCount();
+    }
+
+    @Override
+    public int getMaxRunningThreads()
+    {
+        return maxRunningThreads;
+    }
+
+    @Override
+    public void forEach(Consumer<? super ReflectanceData> action)
+    {
+        forEachView(k -> processView(k, action));
+    }
+
+    /**
+     * Runs a task for each view, using up to maxRunningThreads threads.
+     */
+    private void forEachView(IntConsumer viewTask)
+    {
+        if (maxRunningThreads <= 1)
+        {
+            for (int k = 0; k < getCount(); k++)
+            {
+                viewTask.accept(k);
+            }
+        }
+        else
+        {
+            ForkJoinPool pool = new ForkJoinPool(maxRunningThreads);
+
+            try
+            {
+                pool.submit(() -> IntStream.range(0, getCount()).parallel().forEach(viewTask)).get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof RuntimeException)
+                {
+                    throw (RuntimeException) e.getCause();
+                }
+                else
+                {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            finally
+            {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Extracts the samples from every view that do not depend on the normal or roughness estimates, grouped by texel.
+     * Unlike the reflectance data produced by the stream itself, these samples can be reused for any number of
+     * normal estimation iterations (see CPUNormalOptimization) without going back to the photographs.
+     * Views are processed in parallel using the same number of threads as this stream.
+     * @return The samples for every covered texel.
+     */
+    public TexelReflectanceSamples extractTexelSamples()
+    {
+        ViewSet viewSet = shared.viewSet;
+        int viewCount = getCount();
+        int texelCount = shared.texelIndices.length;
+
+        float[] cameraPositions = new float[3 * viewCount];
+        float[] lightPositions = new float[3 * viewCount];
+        int[][] viewTexels = new int[viewCount][];
+        float[][] viewColors = new float[viewCount][];
+
+        forEachView(k ->
+        {
+            ViewImage image = getImage(k);
+            float[] m = getFullProjection(k);
+            Vector3 cameraPosition = getCameraPosition(k);
+            Vector3 lightPosition = getLightPosition(k);
+            Vector3 lightIntensity = viewSet.getLightIntensity(viewSet.getLightIndex(k));
+            float[] depthMap = shared.depthMaps == null ? null : shared.depthMaps[k];
+
+            cameraPositions[3 * k] = cameraPosition.x;
+            cameraPositions[3 * k + 1] = cameraPosition.y;
+            cameraPositions[3 * k + 2] = cameraPosition.z;
+            lightPositions[3 * k] = lightPosition.x;
+            lightPositions[3 * k + 1] = lightPosition.y;
+            lightPositions[3 * k + 2] = lightPosition.z;
+
+            float[] positions = shared.positions;
+            float[] frames = shared.tangentFrames;
+            int[] texels = new int[texelCount];
+            float[] colors = new float[4 * texelCount];
+            float[] color = new float[4];
+            int count = 0;
+
+            for (int i = 0; i < texelCount; i++)
+            {
+                float px = positions[3 * i];
+                float py = positions[3 * i + 1];
+                float pz = positions[3 * i + 2];
+
+                float vx = cameraPosition.x - px;
+                float vy = cameraPosition.y - py;
+                float vz = cameraPosition.z - pz;
+
+                // Samples facing away from the camera never contribute, regardless of the normal.
+                if (frames[9 * i + 6] * vx + frames[9 * i + 7] * vy + frames[9 * i + 8] * vz > 0)
+                {
+                    sampleColor(image, m, depthMap, px, py, pz, color);
+
+                    if (color[3] > 0)
+                    {
+                        float lx = lightPosition.x - px;
+                        float ly = lightPosition.y - py;
+                        float lz = lightPosition.z - pz;
+
+                        // "Light intensity" is defined in such a way that we need to multiply by pi to be properly normalized.
+                        float radianceScale = (lx * lx + ly * ly + lz * lz) / PI;
+
+                        texels[count] = i;
+                        colors[4 * count] = color[0] * radianceScale / lightIntensity.x;
+                        colors[4 * count + 1] = color[1] * radianceScale / lightIntensity.y;
+                        colors[4 * count + 2] = color[2] * radianceScale / lightIntensity.z;
+                        colors[4 * count + 3] = color[3];
+                        count++;
+                    }
+                }
+            }
+
+            viewTexels[k] = Arrays.copyOf(texels, count);
+            viewColors[k] = Arrays.copyOf(colors, 4 * count);
+        });
+
+        // Transpose from view-major to texel-major order.
+        int[] sampleOffsets = new int[texelCount + 1];
+        for (int[] texels : viewTexels)
+        {
+            for (int i : texels)
+            {
+                sampleOffsets[i + 1]++;
+            }
+        }
+
+        for (int i = 0; i < texelCount; i++)
+        {
+            sampleOffsets[i + 1] += sampleOffsets[i];
+        }
+
+        int[] sampleViews = new int[sampleOffsets[texelCount]];
+        float[] sampleColors = new float[4 * sampleOffsets[texelCount]];
+        int[] cursors = Arrays.copyOf(sampleOffsets, texelCount);
+
+        for (int k = 0; k < viewCount; k++)
+        {
+            int[] texels = viewTexels[k];
+            float[] colors = viewColors[k];
+
+            for (int j = 0; j < texels.length; j++)
+            {
+                int sample = cursors[texels[j]]++;
+                sampleViews[sample] = k;
+                System.arraycopy(colors, 4 * j, sampleColors, 4 * sample, 4);
+            }
+
+            // Release the per-view copy as soon as it has been transposed.
+            viewTexels[k] = null;
+            viewColors[k] = null;
+        }
+
+        return new TexelReflectanceSamples(shared.texelIndices, shared.positions, shared.tangentFrames,
+            cameraPositions, lightPositions, sampleOffsets, sampleViews, sampleColors);
+    }
+
+    private ViewImage getImage(int viewIndex)
+    {
+        synchronized (shared.images)
+        {
+            ViewImage image = shared.images.get(viewIndex);
+
+            if (image != null)
+            {
+                return image;
+            }
+        }
+
+        ViewImage image;
+
+        try
+        {
+            File imageFile = IBRResources.findImageFile(shared.viewSet.getImageFile(viewIndex));
+            BufferedImage bufferedImage = ImageIO.read(imageFile);
+
+            if (bufferedImage == null)
+            {
+                throw new IOException(String.format("Error: Unsupported image format '%s'.", imageFile.getName()));
+            }
+
+            if (bufferedImage.getWidth() != shared.imageWidth || bufferedImage.getHeight() != shared.imageHeight)
+            {
+                // Resize the same way as ViewImageLoader.
+                BufferedImage resized = new BufferedImage(shared.imageWidth, shared.imageHeight, BufferedImage.TYPE_INT_ARGB);
+                Graphics resizedGraphics = resized.createGraphics();
+                resizedGraphics.drawImage(
+                    bufferedImage.getScaledInstance(shared.imageWidth, shared.imageHeight, Image.SCALE_SMOOTH), 0, 0, null);
+                resizedGraphics.dispose();
+                bufferedImage = resized;
+            }
+
+            image = new ViewImage(bufferedImage);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+
+        synchronized (shared.images)
+        {
+            // If another thread loaded the image in the meantime, use that copy.
+            ViewImage existing = shared.images.putIfAbsent(viewIndex, image);
+
+            if (existing != null)
+            {
+                return existing;
+            }
+
+            shared.cachedImageBytes += 4L * image.argb.length;
+
+            // Evict the least recently used photographs, but always keep the one that was just loaded.
+            Iterator<ViewImage> iterator = shared.images.values().iterator();
+            while (shared.cachedImageBytes > shared.imageCacheCapacity && shared.images.size() > 1)
+            {
+                shared.cachedImageBytes -= 4L * iterator.next().argb.length;
+                iterator.remove();
+            }
+        }
+
+        return image;
+    }
+
+    private float linearize(float nonlinear)
+    {
+        return (float)Math.pow(nonlinear, shared.viewSet.getGamma());
+    }
+
+    /**
+     * Samples the luminance map in the same way as a linearly filtered 1D texture with 256 texels.
+     */
+    private float sampleLuminanceMap(float coordinate)
+    {
+        float u = Math.max(0.0f, Math.min(255.0f, coordinate * 256.0f - 0.5f));
+        int i = Math.min(254, (int)u);
+        float f = u - i;
+        return (1 - f) * shared.luminanceMap[i] + f * shared.luminanceMap[i + 1];
+    }
+
+    /**
+     * Equivalent to linearizeColor() in linearize.glsl.
+     */
+    private void linearizeColor(float[] color)
+    {
+        if (shared.luminanceMap == null)
+        {
+            color[0] = linearize(color[0]);
+            color[1] = linearize(color[1]);
+            color[2] = linearize(color[2]);
+        }
+        else if (color[0] <= 0.0f && color[1] <= 0.0f && color[2] <= 0.0f)
+        {
+            color[0] = 0.0f;
+            color[1] = 0.0f;
+            color[2] = 0.0f;
+        }
+        else
+        {
+            float gamma = shared.viewSet.getGamma();
+            float r = linearize(color[0]);
+            float g = linearize(color[1]);
+            float b = linearize(color[2]);
+
+            float luminanceNonlinear = 0.2126729f * r + 0.7151522f * g + 0.0721750f * b;
+            float maxLuminance = sampleLuminanceMap(1.0f);
+            float scale;
+
+            if (luminanceNonlinear > 1.0f)
+            {
+                scale = maxLuminance;
+            }
+            else
+            {
+                scale = Math.min(5.0f * maxLuminance,
+                    sampleLuminanceMap((float)Math.pow(luminanceNonlinear, 1.0 / gamma)) / luminanceNonlinear);
+            }
+
+            color[0] = r * scale;
+            color[1] = g * scale;
+            color[2] = b * scale;
+        }
+    }
+
+    private static float lambdaGGX(float roughness, float cosine)
+    {
+        return -0.5f + 0.5f * (float)Math.sqrt(1 + roughness * roughness * (1 / (cosine * cosine) - 1.0f));
+    }
+
+    /**
+     * Equivalent to geom() in reflectanceequations.glsl with PHYSICALLY_BASED_MASKING_SHADOWING enabled.
+     */
+    private float geom(float roughness, float nDotH, float nDotV, float nDotL, float hDotV)
+    {
+        if (shared.settings.isSmithMaskingShadowingEnabled())
+        {
+            return 1 / (1 + lambdaGGX(roughness, nDotV) + lambdaGGX(roughness, nDotL));
+        }
+        else
+        {
+            return Math.min(1.0f, 2.0f * nDotH * Math.min(nDotV, nDotL) / hDotV);
+        }
+    }
+
+    private float[][] borrowBuffers()
+    {
+        float[][] buffers = shared.unusedBuffers.poll();
+
+        if (buffers == null)
+        {
+            int size = 4 * shared.settings.width * shared.settings.height;
+            buffers = new float[][] { new float[size], new float[size] };
+        }
+
+        return buffers;
+    }
+
+    /**
+     * Gets the combined projection and camera pose for a view as a row-major array.
+     */
+    private float[] getFullProjection(int k)
+    {
+        ViewSet viewSet = shared.viewSet;
+        Matrix4 projection = viewSet.getCameraProjection(viewSet.getCameraProjectionIndex(k))
+            .getProjectionMatrix(viewSet.getRecommendedNearPlane(), viewSet.getRecommendedFarPlane());
+        Matrix4 fullProjection = projection.times(viewSet.getCameraPose(k));
+
+        float[] m = new float[16];
+        for (int row = 0; row < 4; row++)
+        {
+            for (int col = 0; col < 4; col++)
+            {
+                m[4 * row + col] = fullProjection.get(row, col);
+            }
+        }
+
+        return m;
+    }
+
+    /**
+     * Gets the object-space position of the camera for a view.
+     */
+    private Vector3 getCameraPosition(int k)
+    {
+        // transpose(mat3(cameraPose)) * -cameraPose[3].xyz, as in getViewVector() in colorappearance.glsl
+        Matrix4 cameraPose = shared.viewSet.getCameraPose(k);
+        return cameraPose.getUpperLeft3x3().transpose().times(cameraPose.getColumn(3).getXYZ().negated());
+    }
+
+    /**
+     * Gets the object-space position of the light for a view.
+     */
+    private Vector3 getLightPosition(int k)
+    {
+        ViewSet viewSet = shared.viewSet;
+        Matrix4 cameraPose = viewSet.getCameraPose(k);
+        return cameraPose.getUpperLeft3x3().transpose()
+            .times(viewSet.getLightPosition(viewSet.getLightIndex(k)).minus(cameraPose.getColumn(3).getXYZ()));
+    }
+
+    /**
+     * Samples the linearized color of the photograph at an object-space position, as in getColor() in imgspace.glsl.
+     * The color is set to zero if the position is outside the view or fails the visibility test.
+     */
+    private void sampleColor(ViewImage image, float[] m, float[] depthMap, float px, float py, float pz, float[] color)
+    {
+        float clipW = m[12] * px + m[13] * py + m[14] * pz + m[15];
+        float s = ((m[0] * px + m[1] * py + m[2] * pz + m[3]) / clipW + 1) / 2;
+        float t = ((m[4] * px + m[5] * py + m[6] * pz + m[7]) / clipW + 1) / 2;
+        float z = ((m[8] * px + m[9] * py + m[10] * pz + m[11]) / clipW + 1) / 2;
+
+        if (s < 0 || s > 1 || t < 0 || t > 1)
+        {
+            Arrays.fill(color, 0.0f);
+        }
+        else if (depthMap != null && z >= 0 && z <= 1
+            && Math.abs(z - depthMap[
+                Math.min(shared.depthHeight - 1, (int)(t * shared.depthHeight)) * shared.depthWidth
+                    + Math.min(shared.depthWidth - 1, (int)(s * shared.depthWidth))]) > shared.occlusionBias)
+        {
+            // Occluded
+            Arrays.fill(color, 0.0f);
+        }
+        else
+        {
+            image.sample(s, t, color);
+            linearizeColor(color);
+        }
+    }
+
+    private void processView(int k, Consumer<? super ReflectanceData> action)
+    {
+        ViewSet viewSet = shared.viewSet;
+        ViewImage image = getImage(k);
+
+        float[] m = getFullProjection(k);
+        Vector3 cameraPosition = getCameraPosition(k);
+        Vector3 lightPosition = getLightPosition(k);
+        Vector3 lightIntensity = viewSet.getLightIntensity(viewSet.getLightIndex(k));
+
+        float[] depthMap = shared.depthMaps == null ? null : shared.depthMaps[k];
+
+        int[] texels = shared.texelIndices;
+        float[] positions = shared.positions;
+        float[] frames = shared.tangentFrames;
+        float[] normals = shared.shadingNormals;
+        float[] roughnessValues = shared.roughness;
+
+        float[][] buffers = borrowBuffers();
+        float[] colorAndVisibility = buffers[0];
+        float[] halfwayGeomWeight = buffers[1];
+        float[] color = new float[4];
+
+        try
+        {
+            for (int i = 0; i < texels.length; i++)
+            {
+                int p = 4 * texels[i];
+
+                float px = positions[3 * i];
+                float py = positions[3 * i + 1];
+                float pz = positions[3 * i + 2];
+
+                sampleColor(image, m, depthMap, px, py, pz, color);
+
+                float lx = lightPosition.x - px;
+                float ly = lightPosition.y - py;
+                float lz = lightPosition.z - pz;
+                float lightDistSquared = lx * lx + ly * ly + lz * lz;
+                float lightDist = (float)Math.sqrt(lightDistSquared);
+                lx /= lightDist;
+                ly /= lightDist;
+                lz /= lightDist;
+
+                float vx = cameraPosition.x - px;
+                float vy = cameraPosition.y - py;
+                float vz = cameraPosition.z - pz;
+                float viewDist = (float)Math.sqrt(vx * vx + vy * vy + vz * vz);
+                vx /= viewDist;
+                vy /= viewDist;
+                vz /= viewDist;
+
+                float hx = lx + vx;
+                float hy = ly + vy;
+                float hz = lz + vz;
+                float halfwayLength = (float)Math.sqrt(hx * hx + hy * hy + hz * hz);
+                hx /= halfwayLength;
+                hy /= halfwayLength;
+                hz /= halfwayLength;
+
+                float nx = normals[3 * i];
+                float ny = normals[3 * i + 1];
+                float nz = normals[3 * i + 2];
+
+                float nDotL = Math.max(0.0f, nx * lx + ny * ly + nz * lz);
+                float nDotV = Math.max(0.0f, nx * vx + ny * vy + nz * vz);
+                float nDotH = Math.max(0.0f, nx * hx + ny * hy + nz * hz);
+                float triangleNDotV = Math.max(0.0f, frames[9 * i + 6] * vx + frames[9 * i + 7] * vy + frames[9 * i + 8] * vz);
+
+                if (nDotH > 0 && nDotL > 0 && nDotV > 0 && triangleNDotV > 0)
+                {
+                    float hDotV = Math.max(0.0f, hx * vx + hy * vy + hz * vz);
+
+                    // "Light intensity" is defined in such a way that we need to multiply by pi to be properly normalized.
+                    float irradianceScale = nDotL * PI / lightDistSquared;
+
+                    float maskingShadowing = geom(roughnessValues[i], nDotH, nDotV, nDotL, hDotV);
+
+                    colorAndVisibility[p] = color[0] / (irradianceScale * lightIntensity.x);
+                    colorAndVisibility[p + 1] = color[1] / (irradianceScale * lightIntensity.y);
+                    colorAndVisibility[p + 2] = color[2] / (irradianceScale * lightIntensity.z);
+                    colorAndVisibility[p + 3] = color[3];
+
+                    // Halfway component should be 1.0 when the angle is 60 degrees, or pi/3.
+                    halfwayGeomWeight[p] = (float)Math.sqrt(Math.max(0.0, Math.acos(Math.min(1.0f, nDotH)) * 3.0 / Math.PI));
+                    halfwayGeomWeight[p + 1] = maskingShadowing / (4 * nDotL * nDotV);
+                    halfwayGeomWeight[p + 2] =
+                        color[3] * triangleNDotV * nDotL * nDotL * (float)Math.sqrt(Math.max(0, 1 - nDotH * nDotH));
+                    halfwayGeomWeight[p + 3] = nDotL;
+                }
+                else
+                {
+                    // Discarded fragment.
+                    Arrays.fill(colorAndVisibility, p, p + 4, 0.0f);
+                    Arrays.fill(halfwayGeomWeight, p, p + 4, 0.0f);
+                }
+            }
+
+            action.accept(new ReflectanceData(new ColorArrayList(colorAndVisibility), new ColorArrayList(halfwayGeomWeight)));
+        }
+        finally
+        {
+            shared.unusedBuffers.push(buffers);
+        }
+    }
+}
@@ -117,6 +117,8 @@ public class IBRSubject<ContextType extends Context<ContextType>> implements Ren
         {
             this.drawable.addVertexBuffer("tangent", this.resources.tangentBuffer);
         }
+
+        this.drawable.setIndexBuffer(this.resources.indexBuffer);
     }
 
     private StandardRenderingMode getExpectedRenderingMode()
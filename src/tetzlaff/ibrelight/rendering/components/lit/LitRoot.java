@@ -13,6 +13,7 @@ package tetzlaff.ibrelight.rendering.components.lit;
 
 import tetzlaff.gl.core.Context;
 import tetzlaff.gl.core.FramebufferObject;
+import tetzlaff.gl.core.IndexBuffer;
 import tetzlaff.gl.core.VertexBuffer;
 import tetzlaff.ibrelight.core.CameraViewport;
 import tetzlaff.ibrelight.core.RenderedComponent;
@@ -118,9 +119,10 @@ public class LitRoot<ContextType extends Context<ContextType>> implements Render
     /**
      * Must be called after initialize
      * @param shadowCaster
+     * @param shadowCasterIndices
      */
-    public void setShadowCaster(VertexBuffer<ContextType> shadowCaster)
+    public void setShadowCaster(VertexBuffer<ContextType> shadowCaster, IndexBuffer<ContextType> shadowCasterIndices)
     {
-        lightingResources.setPositionBuffer(shadowCaster);
+        lightingResources.setPositionBuffer(shadowCaster, shadowCasterIndices);
     }
 }
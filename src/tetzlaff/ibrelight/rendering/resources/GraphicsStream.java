@@ -53,6 +53,13 @@ public interface GraphicsStream<T>
      */
     int getCount();
 
+    /**
+     * Gets the maximum number of elements that may be processed concurrently by a terminal operation on this stream.
+     * Like getCount(), this does not consume the stream pipeline.
+     * @return the maximum number of threads that may run an action at the same time; 1 for a sequential stream
+     */
+    int getMaxRunningThreads();
+
     /**
      * Performs an action for each element of this stream.
      * This is a terminal operation.
@@ -83,6 +83,12 @@ public abstract class GraphicsStreamBase<T> implements GraphicsStream<T>
             return base.getCount();
         }
 
+        @Override
+        public int getMaxRunningThreads()
+        {
+            return base.getMaxRunningThreads();
+        }
+
         @Override
         public <R> GraphicsStream<R> map(Function<T, ? extends R> mapper)
         {
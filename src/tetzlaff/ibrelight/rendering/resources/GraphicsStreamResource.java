@@ -89,6 +89,12 @@ public class GraphicsStreamResource<ContextType extends Context<ContextType>> im
         return base.getCount();
     }
 
+    @Override
+    public int getMaxRunningThreads()
+    {
+        return base.getMaxRunningThreads();
+    }
+
     @Override
     public void forEach(Consumer<? super ColorList[]> action)
     {
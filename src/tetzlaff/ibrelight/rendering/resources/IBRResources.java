@@ -15,9 +15,13 @@ import java.awt.image.BufferedImage;
 import java.io.*;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.stream.IntStream;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 import javax.xml.stream.XMLStreamException;
 
 import tetzlaff.gl.builders.ColorTextureBuilder;
@@ -135,6 +139,11 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
      */
     public final VertexBuffer<ContextType> tangentBuffer;
 
+    /**
+     * An index buffer containing the indices of the vertices of each triangle.
+     */
+    public final IndexBuffer<ContextType> indexBuffer;
+
     /**
      * A depth texture array containing a depth image for every view.
      */
@@ -194,6 +203,7 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
         private File imageDirectoryOverride;
         private ReadonlyLoadOptionsModel loadOptions;
         private LoadingMonitor loadingMonitor;
+        private File viewImageCacheDirectory;
 
         private float gamma;
         private double[] linearLuminanceValues;
@@ -223,6 +233,19 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
             return this;
         }
 
+        /**
+         * Sets the directory in which decoded view images are cached so that they don't need to be decoded again
+         * the next time the same view set is loaded.
+         * The cache is disabled by default; entries are never pruned, so the directory should be one that the caller manages.
+         * @param viewImageCacheDirectory The cache directory, or null to disable the cache.
+         * @return This builder.
+         */
+        public Builder<ContextType> setViewImageCacheDirectory(File viewImageCacheDirectory)
+        {
+            this.viewImageCacheDirectory = viewImageCacheDirectory;
+            return this;
+        }
+
         public Builder<ContextType> setTonemapping(float gamma, double[] linearLuminanceValues, byte[] encodedLuminanceValues)
         {
             this.gamma = gamma;
@@ -297,7 +320,8 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
                 geometry = VertexGeometry.createFromOBJFile(viewSet.getGeometryFile());
             }
 
-            return new IBRResources<>(context, viewSet, geometry, loadOptions, loadingMonitor);
+            return new IBRResources<>(context, viewSet, geometry, loadOptions, loadingMonitor,
+                viewImageCacheDirectory == null ? null : new ViewImageCache(viewImageCacheDirectory));
         }
     }
 
@@ -306,7 +330,8 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
         return new Builder<>(context);
     }
 
-    private IBRResources(ContextType context, ViewSet viewSet, VertexGeometry geometry, ReadonlyLoadOptionsModel loadOptions, LoadingMonitor loadingMonitor) throws IOException
+    private IBRResources(ContextType context, ViewSet viewSet, VertexGeometry geometry, ReadonlyLoadOptionsModel loadOptions,
+        LoadingMonitor loadingMonitor, ViewImageCache viewImageCache) throws IOException
     {
         this.context = context;
         this.viewSet = viewSet;
@@ -388,20 +413,17 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
 
             File imageFile = findImageFile(viewSet.getPrimaryViewIndex());
 
-            // Read a single image to get the dimensions for the texture array
-            try(InputStream input = new FileInputStream(imageFile)) // myZip.retrieveFile(imageFile);
-            {
-                img = ImageIO.read(input);
-            }
+            // Read the header of a single image to get the dimensions for the texture array
+            IntVector2 imageSize = readImageSize(imageFile);
 
-            if (img == null)
+            if (imageSize == null)
             {
                 throw new IOException(String.format("Error: Unsupported image format '%s'.",
                         viewSet.getImageFileName(0)));
             }
 
             ColorTextureBuilder<ContextType, ? extends Texture3D<ContextType>> textureArrayBuilder =
-                    context.getTextureFactory().build2DColorTextureArray(img.getWidth(), img.getHeight(), viewSet.getCameraPoseCount());
+                    context.getTextureFactory().build2DColorTextureArray(imageSize.x, imageSize.y, viewSet.getCameraPoseCount());
 
             if (this.eigentextures == null)
             {
@@ -448,30 +470,23 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
             }
 
             int m = viewSet.getCameraPoseCount();
-            for (int i = 0; i < viewSet.getCameraPoseCount(); i++)
+            File[] imageFiles = new File[m];
+            for (int i = 0; i < m; i++)
             {
-                System.out.printf("%d/%d", i, m);
-                System.out.println();
-                imageFile = findImageFile(i);
+                imageFiles[i] = findImageFile(i);
+            }
 
-                if (this.eigentextures == null)
-                {
-                    this.colorTextures.loadLayer(i, imageFile, true);
-                }
-                else
-                {
-                    this.colorTextures.loadLayer(i, imageFile, true );// ,
-//                        AbstractDataTypeFactory.getInstance().getSingleComponentDataType(NativeDataType.UNSIGNED_SHORT),
-//                        color -> ((0x7F & (Math.max(-63, Math.min(63, Math.round((color.getGreen() - 128) * 63.0 / 127.0))) + 64)) << 9)
-//                            | ((0x1F & (Math.max(-15, Math.min(15, Math.round((color.getBlue() - color.getGreen()) * 31.5 / 127.0))) + 16)) << 4)
-//                            | (0x0F & (Math.max(-7, Math.min(7, Math.round((color.getRed() - color.getGreen()) * 31.5 / 127.0))) + 8)));
-                }
+            // Decode and convert the images on worker threads (or read them from the cache); only the uploads happen on this thread.
+            new ViewImageLoader(viewImageCache).load(this.colorTextures, imageFiles, true, loadedCount ->
+            {
+                System.out.printf("%d/%d", loadedCount, m);
+                System.out.println();
 
-                if(loadingMonitor != null)
+                if (loadingMonitor != null)
                 {
-                    loadingMonitor.setProgress(i+1);
+                    loadingMonitor.setProgress(loadedCount);
                 }
-            }
+            });
 
             System.out.println("View Set textures loaded in " + (new Date().getTime() - timestamp.getTime()) + " milliseconds.");
         }
@@ -566,6 +581,7 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
         if (geometry != null)
         {
             this.positionBuffer = context.createVertexBuffer().setData(geometry.getVertices());
+            this.indexBuffer = context.createIndexBuffer().setData(geometry.getIndices());
 
             if (loadOptions.getDepthImageWidth() != 0 && loadOptions.getDepthImageHeight() != 0)
             {
@@ -585,6 +601,7 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
                 {
                     Drawable<ContextType> depthDrawable = context.createDrawable(depthRenderingProgram);
                     depthDrawable.addVertexBuffer("position", positionBuffer);
+                    depthDrawable.setIndexBuffer(indexBuffer);
 
                     double minDepth = viewSet.getRecommendedFarPlane();
 
@@ -670,6 +687,7 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
         else
         {
             this.positionBuffer = null;
+            this.indexBuffer = null;
             this.depthTextures = null;
             primaryViewDistance = 0.0;
         }
@@ -939,6 +957,7 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
                 deferredDrawable.addVertexBuffer("texCoord", this.texCoordBuffer);
                 deferredDrawable.addVertexBuffer("normal", this.normalBuffer);
                 deferredDrawable.addVertexBuffer("tangent", this.tangentBuffer);
+                deferredDrawable.setIndexBuffer(this.indexBuffer);
 
 //                deferredProgram.setUniform("useNormalMap", this.normalTexture != null);
 //                deferredProgram.setTexture("normalMap", this.normalTexture);
@@ -1113,6 +1132,37 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
         return getIBRShaderProgramBuilder(StandardRenderingMode.IMAGE_BASED);
     }
 
+    /**
+     * Reads the dimensions of an image from its header without decoding the image.
+     * @param imageFile The image file.
+     * @return The width and height of the image, or null if the image format is not supported.
+     * @throws IOException Upon a File I/O problem while reading the image.
+     */
+    public static IntVector2 readImageSize(File imageFile) throws IOException
+    {
+        try (ImageInputStream input = ImageIO.createImageInputStream(imageFile))
+        {
+            Iterator<ImageReader> readers = input == null ? Collections.emptyIterator() : ImageIO.getImageReaders(input);
+
+            if (!readers.hasNext())
+            {
+                return null;
+            }
+
+            ImageReader reader = readers.next();
+
+            try
+            {
+                reader.setInput(input, true, true);
+                return new IntVector2(reader.getWidth(0), reader.getHeight(0));
+            }
+            finally
+            {
+                reader.dispose();
+            }
+        }
+    }
+
     public static File findImageFile(File requestedFile) throws FileNotFoundException
     {
         if (requestedFile.exists())
@@ -1185,6 +1235,7 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
             {
                 Drawable<ContextType> depthDrawable = context.createDrawable(depthRenderingProgram);
                 depthDrawable.addVertexBuffer("position", this.positionBuffer);
+                depthDrawable.setIndexBuffer(this.indexBuffer);
 
                 // Flatten the camera pose matrices into 16-component vectors and store them in the vertex list data structure.
                 NativeVectorBuffer flattenedShadowMatrices = NativeVectorBufferFactory.getInstance().createEmpty(NativeDataType.FLOAT, 16, this.viewSet.getCameraPoseCount());
@@ -1460,6 +1511,7 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
         drawable.addVertexBuffer("texCoord", texCoordBuffer);
         drawable.addVertexBuffer("normal", normalBuffer);
         drawable.addVertexBuffer("tangent", tangentBuffer);
+        drawable.setIndexBuffer(indexBuffer);
         return drawable;
     }
 
@@ -1782,6 +1834,11 @@ public final class IBRResources<ContextType extends Context<ContextType>> implem
             this.positionBuffer.close();
         }
 
+        if (this.indexBuffer != null)
+        {
+            this.indexBuffer.close();
+        }
+
         if (this.texCoordBuffer != null)
         {
             this.texCoordBuffer.close();
@@ -102,12 +102,14 @@ public class LightingResources<ContextType extends Context<ContextType>> impleme
 
     /**
      * Used for generating shadow maps.
-     * Does not take ownership of this buffer.
+     * Does not take ownership of these buffers.
      * @param positionBuffer
+     * @param indexBuffer The indices of the vertices of each triangle, or null if the position buffer is not indexed.
      */
-    public void setPositionBuffer(VertexBuffer<ContextType> positionBuffer)
+    public void setPositionBuffer(VertexBuffer<ContextType> positionBuffer, IndexBuffer<ContextType> indexBuffer)
     {
         shadowDrawable.addVertexBuffer("position", positionBuffer);
+        shadowDrawable.setIndexBuffer(indexBuffer);
     }
 
     public Matrix4 getLightProjection(int lightIndex)
@@ -90,6 +90,12 @@ public class ParallelViewRenderStream<ContextType extends Context<ContextType>>
         return viewCount;
     }
 
+    @Override
+    public int getMaxRunningThreads()
+    {
+        return maxRunningThreads;
+    }
+
     @Override
     public void forEach(Consumer<? super ColorList[]> action)
     {
@@ -64,6 +64,12 @@ public class SequentialViewRenderStream<ContextType extends Context<ContextType>
         return viewCount;
     }
 
+    @Override
+    public int getMaxRunningThreads()
+    {
+        return 1;
+    }
+
     @Override
     public void forEach(Consumer<? super ColorList[]> action)
     {
@@ -0,0 +1,250 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.ibrelight.rendering.resources;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * An on-disk cache of view images that have already been decoded, scaled to the size of the texture array, and converted
+ * to 8-bit RGBA texels, so that reopening the same view set only needs to read the texels back rather than decode the images again.
+ * Each entry is a separate file consisting of a fixed-size header followed by the raw texels, so that the texels could also be
+ * memory-mapped directly.
+ * Entries are keyed by the source file's path, size, and modification time, along with the options that affect the decoded texels
+ * (the dimensions and whether the image is flipped), so an entry is never used once its source image changes.
+ * Mipmaps and compression are applied by the graphics driver when a layer is uploaded, so they are not cached.
+ */
+final class ViewImageCache
+{
+    private static final int MAGIC = 0x43524249; // "IBRC" in little-endian order
+    private static final int VERSION = 1;
+
+    /**
+     * Size of the header before the texels; a multiple of 64 bytes so that mapped texels are aligned.
+     */
+    private static final int HEADER_SIZE = 64;
+
+    private final File directory;
+    private volatile boolean writable = true;
+
+    /**
+     * Creates a cache that stores entries in the specified directory, which will be created when the first entry is written.
+     * @param directory The cache directory.
+     */
+    ViewImageCache(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Reads the cached texels for an image, if there is a valid entry for it.
+     * Any problem reading the entry is treated the same as a missing entry, and an entry that doesn't match the image is deleted.
+     * @param imageFile The source image file.
+     * @param width The width of the texture array.
+     * @param height The height of the texture array.
+     * @param flipVertical Whether or not the image was flipped vertically.
+     * @param destination The buffer to fill with 4 * width * height bytes of RGBA texels, starting at position zero.
+     * @return true if the texels were read from the cache; false if the image needs to be decoded.
+     */
+    boolean read(File imageFile, int width, int height, boolean flipVertical, ByteBuffer destination)
+    {
+        long texelBytes = 4L * width * height;
+        File entryFile = getEntryFile(imageFile, width, height, flipVertical);
+
+        if (entryFile == null || !entryFile.isFile())
+        {
+            return false;
+        }
+
+        boolean stale;
+
+        try (FileChannel channel = FileChannel.open(entryFile.toPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            if (channel.size() == HEADER_SIZE + texelBytes)
+            {
+                readFully(channel, header);
+                header.flip();
+            }
+
+            stale = !header.equals(createHeader(imageFile, width, height, flipVertical));
+
+            if (!stale)
+            {
+                ByteBuffer texels = destination.duplicate();
+                texels.position(0).limit((int) texelBytes);
+                readFully(channel, texels);
+                return true;
+            }
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+
+        // The entry is truncated or was written for a different image, so it will never be used; remove it rather than leave it on disk.
+        delete(entryFile.toPath());
+        return false;
+    }
+
+    /**
+     * Stores the texels for an image in the cache, replacing any existing entry.
+     * The entry is written to a temporary file first so that a partially written entry is never read.
+     * If the cache directory can't be written to, a warning is printed and the cache stops trying to store entries.
+     * @param imageFile The source image file.
+     * @param width The width of the texture array.
+     * @param height The height of the texture array.
+     * @param flipVertical Whether or not the image was flipped vertically.
+     * @param texels The buffer containing 4 * width * height bytes of RGBA texels, starting at position zero.
+     */
+    void write(File imageFile, int width, int height, boolean flipVertical, ByteBuffer texels)
+    {
+        File entryFile = writable ? getEntryFile(imageFile, width, height, flipVertical) : null;
+
+        if (entryFile == null)
+        {
+            return;
+        }
+
+        Path tempFile = null;
+
+        try
+        {
+            Files.createDirectories(directory.toPath());
+            tempFile = Files.createTempFile(directory.toPath(), entryFile.getName(), ".tmp");
+
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE))
+            {
+                writeFully(channel, createHeader(imageFile, width, height, flipVertical));
+
+                ByteBuffer source = texels.duplicate();
+                source.position(0).limit(4 * width * height);
+                writeFully(channel, source);
+            }
+
+            try
+            {
+                Files.move(tempFile, entryFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e)
+            {
+                Files.move(tempFile, entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e)
+        {
+            if (writable)
+            {
+                writable = false;
+                System.err.println("Warning: unable to write to the view image cache in " + directory + ": " + e);
+            }
+
+            if (tempFile != null)
+            {
+                delete(tempFile);
+            }
+        }
+    }
+
+    private static void delete(Path file)
+    {
+        try
+        {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException ignored)
+        {
+        }
+    }
+
+    private static ByteBuffer createHeader(File imageFile, int width, int height, boolean flipVertical)
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(flipVertical ? 1 : 0);
+        header.putInt(0); // padding
+        header.putLong(imageFile.length());
+        header.putLong(imageFile.lastModified());
+        header.position(HEADER_SIZE);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Gets the file for the cache entry for an image, named by a hash of the image's absolute path, size, modification time,
+     * and the load options.  The header of the entry is also checked when reading it, so a hash collision would only cause a miss
+     * if any of those properties differ.
+     * @return The entry file, or null if the source image doesn't exist.
+     */
+    private File getEntryFile(File imageFile, int width, int height, boolean flipVertical)
+    {
+        if (!imageFile.isFile())
+        {
+            return null;
+        }
+
+        String key = String.format("%s|%d|%d|%dx%d|%b|%d", imageFile.getAbsolutePath(),
+            imageFile.length(), imageFile.lastModified(), width, height, flipVertical, VERSION);
+
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(2 * 20 + 4);
+
+            for (int i = 0; i < 20; i++)
+            {
+                name.append(String.format("%02x", digest[i]));
+            }
+
+            return new File(directory, name.append(".rgba").toString());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) < 0)
+            {
+                throw new IOException("Unexpected end of cached view image.");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.ibrelight.rendering.resources;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+import javax.imageio.ImageIO;
+
+import tetzlaff.gl.core.Context;
+import tetzlaff.gl.core.Texture3D;
+import tetzlaff.gl.nativebuffer.NativeDataType;
+import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
+import tetzlaff.gl.nativebuffer.NativeVectorBufferFactory;
+import tetzlaff.util.ImageBufferConverter;
+import tetzlaff.util.ImageBufferConverter.ChannelOrder;
+
+/**
+ * Loads a set of image files into the layers of a texture array.
+ * A pool of worker threads decodes, validates, and converts the images into native buffers ahead of time,
+ * while the calling thread (which must be the thread that owns the graphics context) only uploads each layer, in order.
+ * The number of converted images waiting to be uploaded (including those being decoded) is bounded by a memory budget.
+ * If a cache is provided, images that were converted previously are read from the cache instead of being decoded,
+ * and newly converted images are added to the cache.
+ */
+final class ViewImageLoader
+{
+    /**
+     * Default upper bound on the memory used by converted images waiting to be uploaded.
+     */
+    static final long DEFAULT_MEMORY_BUDGET = 1L << 30;
+
+    private final int threadCount;
+    private final long memoryBudget;
+    private final ViewImageCache cache;
+
+    /**
+     * Creates a loader with one worker thread per processor, the default memory budget, and no cache.
+     */
+    ViewImageLoader()
+    {
+        this(null);
+    }
+
+    /**
+     * Creates a loader with one worker thread per processor and the default memory budget.
+     * @param cache The cache of previously converted images, or null to always decode the images.
+     */
+    ViewImageLoader(ViewImageCache cache)
+    {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_MEMORY_BUDGET, cache);
+    }
+
+    /**
+     * Creates a loader.
+     * @param threadCount The number of worker threads decoding images.
+     * @param memoryBudget The upper bound, in bytes, on the memory used by converted images waiting to be uploaded.
+     *                     At least one image is always allowed to be in flight regardless of the budget.
+     * @param cache The cache of previously converted images, or null to always decode the images.
+     */
+    ViewImageLoader(int threadCount, long memoryBudget, ViewImageCache cache)
+    {
+        if (threadCount <= 0)
+        {
+            throw new IllegalArgumentException("Thread count must be positive.");
+        }
+
+        this.threadCount = threadCount;
+        this.memoryBudget = memoryBudget;
+        this.cache = cache;
+    }
+
+    /**
+     * Loads each image file into the corresponding layer of a texture array.
+     * Images whose dimensions don't match the texture are scaled to fit, as with Texture3D.loadLayer().
+     * @param texture The texture array to load into.
+     * @param imageFiles The image file for each layer, starting with layer 0.
+     * @param flipVertical Whether or not to flip all of the pixels vertically.
+     * @param progressCallback Called on the calling thread with the number of layers loaded so far after each layer is uploaded.
+     * @param <ContextType> The type of the graphics context.
+     * @throws IOException Upon a File I/O problem while loading any of the images,
+     * or if an image is in an unsupported format.
+     */
+    <ContextType extends Context<ContextType>> void load(Texture3D<ContextType> texture, File[] imageFiles, boolean flipVertical,
+        IntConsumer progressCallback) throws IOException
+    {
+        int width = texture.getWidth();
+        int height = texture.getHeight();
+        long bytesPerImage = 4L * width * height;
+        int maxInFlight = (int)Math.max(1, Math.min(imageFiles.length, memoryBudget / bytesPerImage));
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threadCount, maxInFlight), runnable ->
+        {
+            Thread thread = new Thread(runnable, "View image decoder");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try
+        {
+            List<Future<NativeVectorBuffer>> pending = new ArrayList<>(imageFiles.length);
+            int nextToSubmit = 0;
+
+            for (int i = 0; i < imageFiles.length; i++)
+            {
+                // Keep the workers busy with as many images as the memory budget allows.
+                while (nextToSubmit < imageFiles.length && nextToSubmit - i < maxInFlight)
+                {
+                    File imageFile = imageFiles[nextToSubmit];
+                    pending.add(executor.submit(() -> decode(imageFile, width, height, flipVertical)));
+                    nextToSubmit++;
+                }
+
+                NativeVectorBuffer layer = await(pending.get(i), imageFiles[i]);
+                pending.set(i, null);
+
+                texture.loadLayer(i, layer);
+
+                if (progressCallback != null)
+                {
+                    progressCallback.accept(i + 1);
+                }
+            }
+        }
+        finally
+        {
+            // Stop decoding any remaining images if an image failed to load.
+            executor.shutdownNow();
+        }
+    }
+
+    private static NativeVectorBuffer await(Future<NativeVectorBuffer> future, File imageFile) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + imageFile, e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+            {
+                throw (IOException)e.getCause();
+            }
+            else if (e.getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException)e.getCause();
+            }
+            else
+            {
+                throw new IOException("Error loading " + imageFile, e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Decodes an image file into a native buffer of 8-bit RGBA texels, scaling it to the specified dimensions if necessary,
+     * or reads the texels from the cache if the image has been decoded before.
+     */
+    private NativeVectorBuffer decode(File imageFile, int width, int height, boolean flipVertical) throws IOException
+    {
+        NativeVectorBuffer buffer = NativeVectorBufferFactory.getInstance().createEmpty(NativeDataType.UNSIGNED_BYTE, 4, width * height);
+
+        if (cache != null && cache.read(imageFile, width, height, flipVertical, buffer.getBuffer()))
+        {
+            return buffer;
+        }
+
+        BufferedImage image = ImageIO.read(imageFile);
+
+        if (image == null)
+        {
+            throw new IOException(String.format("Error: Unsupported image format '%s'.", imageFile.getName()));
+        }
+
+        if (image.getWidth() != width || image.getHeight() != height)
+        {
+            BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            Graphics resizedGraphics = resized.createGraphics();
+            resizedGraphics.drawImage(image.getScaledInstance(width, height, Image.SCALE_SMOOTH), 0, 0, null);
+            resizedGraphics.dispose();
+            image = resized;
+        }
+
+        ImageBufferConverter.convert(image, null, flipVertical, ChannelOrder.RGBA, buffer.getBuffer());
+
+        if (cache != null)
+        {
+            cache.write(imageFile, width, height, flipVertical, buffer.getBuffer());
+        }
+
+        return buffer;
+    }
+}
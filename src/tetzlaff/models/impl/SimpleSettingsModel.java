@@ -0,0 +1,141 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.models.impl;
+
+import java.util.*;
+import java.util.Map.Entry;
+
+/**
+ * A settings model that stores its settings in a plain map, for use where the JavaFX-backed settings model is not available
+ * (i.e. when running requests without a user interface).
+ */
+public class SimpleSettingsModel extends SettingsModelBase
+{
+    private static final class SettingEntry
+    {
+        final Class<?> type;
+        Object value;
+
+        SettingEntry(Class<?> type, Object value)
+        {
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    private final Map<String, SettingEntry> settingsMap = new LinkedHashMap<>(32);
+
+    @Override
+    protected Object getUnchecked(String name)
+    {
+        return settingsMap.get(name).value;
+    }
+
+    @Override
+    protected void setUnchecked(String name, Object value)
+    {
+        settingsMap.get(name).value = value;
+    }
+
+    @Override
+    public Class<?> getType(String name)
+    {
+        if (this.exists(name))
+        {
+            return settingsMap.get(name).type;
+        }
+        else
+        {
+            throw new NoSuchElementException("No setting called \"" + name + " exists");
+        }
+    }
+
+    @Override
+    public boolean exists(String name)
+    {
+        return settingsMap.containsKey(name);
+    }
+
+    @Override
+    public Iterator<Setting> iterator()
+    {
+        return new Iterator<Setting>()
+        {
+            private final Iterator<Entry<String, SettingEntry>> innerIterator = settingsMap.entrySet().iterator();
+
+            @Override
+            public boolean hasNext()
+            {
+                return innerIterator.hasNext();
+            }
+
+            @Override
+            public Setting next()
+            {
+                Entry<String, SettingEntry> nextEntry = innerIterator.next();
+
+                return new Setting()
+                {
+                    @Override
+                    public String getName()
+                    {
+                        return nextEntry.getKey();
+                    }
+
+                    @Override
+                    public Class<?> getType()
+                    {
+                        return nextEntry.getValue().type;
+                    }
+
+                    @Override
+                    public Object getValue()
+                    {
+                        return nextEntry.getValue().value;
+                    }
+                };
+            }
+        };
+    }
+
+    private void createObjectSettingInternal(String name, Class<?> settingType, Object initialValue)
+    {
+        if (settingsMap.containsKey(name))
+        {
+            throw new IllegalArgumentException("The setting to be created already exists.");
+        }
+        else
+        {
+            settingsMap.put(name, new SettingEntry(settingType, initialValue));
+        }
+    }
+
+    public void createBooleanSetting(String name, boolean initialValue)
+    {
+        createObjectSettingInternal(name, Boolean.class, initialValue);
+    }
+
+    public void createNumericSetting(String name, Number initialValue)
+    {
+        createObjectSettingInternal(name, Number.class, initialValue);
+    }
+
+    public void createObjectSetting(String name, Object initialValue)
+    {
+        createObjectSettingInternal(name, initialValue.getClass(), initialValue);
+    }
+
+    public <T> void createObjectSetting(String name, Class<T> settingType, T initialValue)
+    {
+        createObjectSettingInternal(name, settingType, initialValue);
+    }
+}
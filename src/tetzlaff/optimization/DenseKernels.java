@@ -0,0 +1,311 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+
+package tetzlaff.optimization;
+
+import java.util.stream.IntStream;
+
+/**
+ * Cache-blocked dense matrix kernels for large symmetric systems (thousands of unknowns), parallelized over blocks.
+ * Matrices are row-major primitive arrays, as in the backing array of an EJML DMatrixRMaj.
+ * Each block of the output is written by exactly one task, so the results do not depend on the number of threads.
+ * Small problems are run on the calling thread, where the overhead of parallelization would dominate.
+ */
+public final class DenseKernels
+{
+    /**
+     * The number of rows and columns in each block.
+     */
+    private static final int BLOCK_SIZE = 64;
+
+    /**
+     * The approximate number of floating-point operations below which a kernel runs on a single thread.
+     */
+    private static final long PARALLEL_THRESHOLD = 1L << 18;
+
+    private DenseKernels()
+    {
+    }
+
+    private static IntStream blocks(int count, long work)
+    {
+        IntStream stream = IntStream.range(0, count);
+        return work >= PARALLEL_THRESHOLD ? stream.parallel() : stream;
+    }
+
+    private static int blockCount(int size)
+    {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    /**
+     * Adds one array into another element by element (target += source).
+     * @param target The array to add into.
+     * @param source The array to add.
+     */
+    public static void addEquals(double[] target, double[] source)
+    {
+        if (target.length != source.length)
+        {
+            throw new IllegalArgumentException("Arrays must be the same length.");
+        }
+
+        int chunkSize = BLOCK_SIZE * BLOCK_SIZE;
+        int chunkCount = (target.length + chunkSize - 1) / chunkSize;
+
+        blocks(chunkCount, target.length).forEach(chunk ->
+        {
+            int end = Math.min(target.length, (chunk + 1) * chunkSize);
+            for (int i = chunk * chunkSize; i < end; i++)
+            {
+                target[i] += source[i];
+            }
+        });
+    }
+
+    /**
+     * Computes the symmetric rank-k product C = A'A.
+     * Only the blocks on or above the diagonal are computed; the lower triangle is then filled in by symmetry.
+     * @param a The matrix A, row-major.
+     * @param rows The number of rows in A (k).
+     * @param cols The number of columns in A, which is also the number of rows and columns in C.
+     * @param c The array into which to store C, row-major, with a length of at least cols * cols.
+     */
+    public static void multTransA(double[] a, int rows, int cols, double[] c)
+    {
+        int blockCount = blockCount(cols);
+
+        // Enumerate the blocks on or above the diagonal.
+        int[] blockRows = new int[blockCount * (blockCount + 1) / 2];
+        int[] blockCols = new int[blockRows.length];
+
+        for (int bi = 0, t = 0; bi < blockCount; bi++)
+        {
+            for (int bj = bi; bj < blockCount; bj++, t++)
+            {
+                blockRows[t] = bi;
+                blockCols[t] = bj;
+            }
+        }
+
+        blocks(blockRows.length, (long) rows * cols * cols).forEach(t ->
+        {
+            int iStart = blockRows[t] * BLOCK_SIZE;
+            int iEnd = Math.min(cols, iStart + BLOCK_SIZE);
+            int jStart = blockCols[t] * BLOCK_SIZE;
+            int jEnd = Math.min(cols, jStart + BLOCK_SIZE);
+
+            for (int i = iStart; i < iEnd; i++)
+            {
+                for (int j = Math.max(i, jStart); j < jEnd; j++)
+                {
+                    c[i * cols + j] = 0.0;
+                }
+            }
+
+            // Work through A a block of rows at a time so that the parts of A being used stay in cache.
+            for (int rStart = 0; rStart < rows; rStart += BLOCK_SIZE)
+            {
+                int rEnd = Math.min(rows, rStart + BLOCK_SIZE);
+
+                for (int i = iStart; i < iEnd; i++)
+                {
+                    int cOffset = i * cols;
+                    int jFirst = Math.max(i, jStart);
+
+                    for (int r = rStart; r < rEnd; r++)
+                    {
+                        int aOffset = r * cols;
+                        double ai = a[aOffset + i];
+
+                        if (ai != 0.0)
+                        {
+                            for (int j = jFirst; j < jEnd; j++)
+                            {
+                                c[cOffset + j] += ai * a[aOffset + j];
+                            }
+                        }
+                    }
+                }
+            }
+        });
+
+        // Fill in the lower triangle.
+        blocks(blockCount, (long) cols * cols).forEach(bi ->
+        {
+            int iEnd = Math.min(cols, (bi + 1) * BLOCK_SIZE);
+            for (int i = bi * BLOCK_SIZE; i < iEnd; i++)
+            {
+                for (int j = 0; j < i; j++)
+                {
+                    c[i * cols + j] = c[j * cols + i];
+                }
+            }
+        });
+    }
+
+    /**
+     * Computes the Cholesky factorization A = LL' of a symmetric positive definite matrix in place,
+     * using a blocked right-looking algorithm: each block column is factored, and then the remaining submatrix
+     * is updated in parallel, one block at a time.
+     * Only the lower triangle of A is read, and L is stored in the lower triangle; the upper triangle is not modified.
+     * @param a The matrix A, row-major, which will be overwritten with L.
+     * @param n The number of rows and columns in A.
+     * @return true if the factorization succeeded; false if the matrix is not positive definite,
+     *         in which case the contents of the array are undefined.
+     */
+    public static boolean choleskyLower(double[] a, int n)
+    {
+        for (int k0 = 0; k0 < n; k0 += BLOCK_SIZE)
+        {
+            int k1 = Math.min(n, k0 + BLOCK_SIZE);
+
+            // Factor the diagonal block (the contributions of earlier block columns have already been subtracted).
+            for (int j = k0; j < k1; j++)
+            {
+                int jOffset = j * n;
+                double d = a[jOffset + j];
+
+                for (int p = k0; p < j; p++)
+                {
+                    d -= a[jOffset + p] * a[jOffset + p];
+                }
+
+                if (!(d > 0.0))
+                {
+                    return false;
+                }
+
+                d = Math.sqrt(d);
+                a[jOffset + j] = d;
+
+                for (int i = j + 1; i < k1; i++)
+                {
+                    a[i * n + j] = (a[i * n + j] - dot(a, i * n, jOffset, k0, j)) / d;
+                }
+            }
+
+            int kStart = k0;
+            int kEnd = k1;
+            int panelStart = k1;
+            int panelBlockCount = blockCount(n - panelStart);
+
+            // Solve for the rest of the block column, one block of rows per task.
+            blocks(panelBlockCount, (long) (n - panelStart) * BLOCK_SIZE * BLOCK_SIZE).forEach(bi ->
+            {
+                int iEnd = Math.min(n, panelStart + (bi + 1) * BLOCK_SIZE);
+
+                for (int i = panelStart + bi * BLOCK_SIZE; i < iEnd; i++)
+                {
+                    int iOffset = i * n;
+
+                    for (int j = kStart; j < kEnd; j++)
+                    {
+                        a[iOffset + j] = (a[iOffset + j] - dot(a, iOffset, j * n, kStart, j)) / a[j * n + j];
+                    }
+                }
+            });
+
+            // Symmetric rank-k update of the remaining lower triangle, one block per task.
+            int[] blockRows = new int[panelBlockCount * (panelBlockCount + 1) / 2];
+            int[] blockCols = new int[blockRows.length];
+
+            for (int bi = 0, t = 0; bi < panelBlockCount; bi++)
+            {
+                for (int bj = 0; bj <= bi; bj++, t++)
+                {
+                    blockRows[t] = bi;
+                    blockCols[t] = bj;
+                }
+            }
+
+            blocks(blockRows.length, (long) (n - panelStart) * (n - panelStart) * BLOCK_SIZE).forEach(t ->
+            {
+                int iStart = panelStart + blockRows[t] * BLOCK_SIZE;
+                int iEnd = Math.min(n, iStart + BLOCK_SIZE);
+                int jStart = panelStart + blockCols[t] * BLOCK_SIZE;
+                int jEnd = Math.min(n, jStart + BLOCK_SIZE);
+
+                for (int i = iStart; i < iEnd; i++)
+                {
+                    int iOffset = i * n;
+                    int jLast = Math.min(jEnd, i + 1);
+
+                    for (int j = jStart; j < jLast; j++)
+                    {
+                        a[iOffset + j] -= dot(a, iOffset, j * n, kStart, kEnd);
+                    }
+                }
+            });
+        }
+
+        return true;
+    }
+
+    /**
+     * Solves LL'x = b in place, given a Cholesky factor from choleskyLower().
+     * @param l The lower triangular factor L, row-major.
+     * @param n The number of rows and columns in L.
+     * @param b The vector b, which will be overwritten with the solution x.
+     */
+    public static void solveCholesky(double[] l, int n, double[] b)
+    {
+        // Forward substitution: Ly = b
+        for (int i = 0; i < n; i++)
+        {
+            b[i] = (b[i] - dot(l, i * n, b, 0, i)) / l[i * n + i];
+        }
+
+        // Back substitution: L'x = y
+        for (int i = n - 1; i >= 0; i--)
+        {
+            double sum = b[i];
+
+            for (int j = i + 1; j < n; j++)
+            {
+                sum -= l[j * n + i] * b[j];
+            }
+
+            b[i] = sum / l[i * n + i];
+        }
+    }
+
+    /**
+     * Dot product of two row segments of the same array, from column start (inclusive) to end (exclusive).
+     */
+    private static double dot(double[] a, int offset1, int offset2, int start, int end)
+    {
+        double sum = 0.0;
+
+        for (int p = start; p < end; p++)
+        {
+            sum += a[offset1 + p] * a[offset2 + p];
+        }
+
+        return sum;
+    }
+
+    /**
+     * Dot product of a row segment of a matrix and a segment of a vector, from index start (inclusive) to end (exclusive).
+     */
+    private static double dot(double[] a, int offset, double[] v, int start, int end)
+    {
+        double sum = 0.0;
+
+        for (int p = start; p < end; p++)
+        {
+            sum += a[offset + p] * v[p];
+        }
+
+        return sum;
+    }
+}
@@ -24,6 +24,12 @@ public class ErrorReport extends ReadonlyErrorReport
         super.setError(newError);
     }
 
+    @Override
+    public void setError(double newError, double newUncertainty)
+    {
+        super.setError(newError, newUncertainty);
+    }
+
     @Override
     public void reject()
     {
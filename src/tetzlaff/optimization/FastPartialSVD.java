@@ -22,8 +22,11 @@ import org.ejml.simple.SimpleMatrix;
 import static org.ejml.dense.row.CommonOps_FDRM.*;
 
 /**
- * Fast SVD using power iterations for when only a few singular values are needed.
- * Fairly standard algorithm; implemented using the appendix of Chen et al., "Light Field Mapping" for reference.
+ * Fast SVD for when only a few singular values are needed.
+ * By default, every singular vector is found together using RandomizedPartialSVD.
+ * Alternatively, if a tolerance is specified, power iterations are used instead to find each singular vector separately
+ * (fairly standard algorithm; implemented using the appendix of Chen et al., "Light Field Mapping" for reference).
+ * Either way, the matrix is deflated in place, leaving the residual that is returned by getError().
  */
 public final class FastPartialSVD
 {
@@ -40,7 +43,9 @@ public final class FastPartialSVD
 
     public static FastPartialSVD compute(SimpleMatrix matrix, int singularValueCount)
     {
-        return compute(matrix, singularValueCount, Math.ulp(1.0f), 1000, 3);
+        FastPartialSVD svd = new FastPartialSVD(matrix, singularValueCount, Math.ulp(1.0f), 1000, 3);
+        svd.computeRandomized();
+        return svd;
     }
 
     public static FastPartialSVD compute(SimpleMatrix matrix, int singularValueCount, float tolerance, int maxIterations, int maxAttempts)
@@ -86,6 +91,37 @@ public final class FastPartialSVD
         this.singularValues = new float[singularValueCount];
     }
 
+    private void computeRandomized()
+    {
+        RandomizedPartialSVD svd = RandomizedPartialSVD.compute(matrix, singularValueCount);
+        double[] values = svd.getSingularValues();
+
+        // u and v are swapped if the matrix is wider than it is tall.
+        SimpleMatrix actualU = transpose ? v : u;
+        SimpleMatrix actualV = transpose ? u : v;
+
+        FMatrixRMaj scaledU = new FMatrixRMaj(actualU.numRows(), singularValueCount);
+
+        for (int k = 0; k < singularValueCount; k++)
+        {
+            singularValues[k] = (float) values[k];
+
+            for (int i = 0; i < actualU.numRows(); i++)
+            {
+                actualU.set(i, k, svd.getU().get(i, k));
+                scaledU.set(i, k, (float) (svd.getU().get(i, k) * values[k]));
+            }
+
+            for (int i = 0; i < actualV.numRows(); i++)
+            {
+                actualV.set(i, k, svd.getV().get(i, k));
+            }
+        }
+
+        // Update original matrix M (using procedural framework for efficiency)
+        multAddTransB(-1.0f, scaledU, actualV.getMatrix(), matrix.getMatrix());
+    }
+
     private void compute()
     {
         if (this.matrix != null)
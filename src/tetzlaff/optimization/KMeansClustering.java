@@ -9,194 +9,409 @@
  *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
  */
 
+
 package tetzlaff.optimization;
 
-import java.security.SecureRandom;
-import java.util.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 import java.util.stream.IntStream;
 
-import org.ejml.simple.SimpleMatrix;
 import tetzlaff.gl.vecmath.Vector3;
-import tetzlaff.gl.vecmath.Vector4;
 import tetzlaff.util.ColorArrayList;
 
+/**
+ * Clusters colors using k-means, with k-means++ initialization.
+ * The random number generator is seeded so that the clusters are identical on every run with the same seed.
+ * The colors are split into fixed-size chunks that are processed in parallel and combined in a fixed order,
+ * so the results also do not depend on the number of threads.
+ */
 public class KMeansClustering
 {
     private static final double TOLERANCE = 0.0001;
 
-    private final ColorArrayList colorMap;
+    /**
+     * The number of colors in each chunk that is processed by a single task.
+     */
+    private static final int CHUNK_SIZE = 16384;
 
+    /**
+     * The number of iterations to run when using mini-batches.
+     */
+    private static final int MINI_BATCH_ITERATIONS = 100;
+
+    private final ColorArrayList colorMap;
+    private final long seed;
+    private final int miniBatchSize;
+
+    /**
+     * Indices into the color map of the colors that are valid (non-zero alpha).
+     */
+    private int[] validIndices;
+
+    /**
+     * The red, green, and blue components of each valid color, in the same order as validIndices.
+     */
+    private float[] colors;
+
+    /**
+     * Creates a clustering with a seed of zero that uses every color in every iteration.
+     * @param colorMap The colors to cluster; colors with an alpha of zero are ignored.
+     */
     public KMeansClustering(ColorArrayList colorMap)
     {
+        this(colorMap, 0L, 0);
+    }
+
+    /**
+     * Creates a clustering.
+     * @param colorMap The colors to cluster; colors with an alpha of zero are ignored.
+     * @param seed The seed for the random number generator.
+     * @param miniBatchSize The number of randomly chosen colors used to update the centers in each iteration,
+     *                      or zero to use every color in every iteration.
+     */
+    public KMeansClustering(ColorArrayList colorMap, long seed, int miniBatchSize)
+    {
+        if (miniBatchSize < 0)
+        {
+            throw new IllegalArgumentException("Mini-batch size must not be negative.");
+        }
+
         //noinspection AssignmentOrReturnOfFieldWithMutableType
         this.colorMap = colorMap;
+        this.seed = seed;
+        this.miniBatchSize = miniBatchSize;
     }
 
-    public List<Vector3> makeClusters(List<SimpleMatrix> solutionOut)
+    /**
+     * Clusters the colors using k-means, with k-means++ initialization.
+     * @param weightMapsOut One array per cluster, indexed by color, into which the cluster assignments will be written:
+     *                      1.0 for colors belonging to that cluster and 0.0 otherwise.
+     *                      The number of arrays determines the number of clusters.
+     * @return The cluster centers.
+     */
+    public List<Vector3> makeClusters(float[][] weightMapsOut)
     {
-        // k-means++ initialization
-        Random random = new SecureRandom();
+        extractValidColors();
 
-        // Randomly choose the first center.
-        int firstCenterIndex;
+        if (validIndices.length == 0)
+        {
+            throw new IllegalArgumentException("There are no valid colors to cluster.");
+        }
 
-        do
+        Random random = new Random(seed);
+
+        int basisCount = weightMapsOut.length;
+        double[] centers = initializeCenters(random, basisCount);
+
+        System.out.println("Initial centers:");
+        for (int b = 0; b < basisCount; b++)
         {
-            firstCenterIndex = random.nextInt(colorMap.size());
+            System.out.println(getCenter(centers, b));
         }
-        while(colorMap.getAlpha(firstCenterIndex) < 1.0); // Make sure the center chosen is valid.
 
-        int basisCount = solutionOut.get(0).getNumElements();
-        Vector3[] centers = new Vector3[basisCount];
-        centers[0] = colorMap.getRGB(firstCenterIndex);
+        // Initialization is done; now it's time to iterate.
+        if (miniBatchSize > 0)
+        {
+            iterateMiniBatch(random, centers, basisCount);
+        }
+        else
+        {
+            iterate(centers, basisCount);
+        }
+
+        // Set weight to one for the cluster that each pixel belongs to, and zero for the others.
+        IntStream.range(0, colorMap.size()).parallel().forEach(p ->
+        {
+            for (float[] weightMap : weightMapsOut)
+            {
+                weightMap[p] = 0.0f;
+            }
+        });
+
+        IntStream.range(0, validIndices.length).parallel().forEach(i ->
+            weightMapsOut[findNearestCenter(centers, basisCount, i)][validIndices[i]] = 1.0f);
+
+        // weightMapsOut now contain the final clusters.
+
+        // Return the cluster centers.
+        List<Vector3> centerList = new ArrayList<>(basisCount);
+        for (int b = 0; b < basisCount; b++)
+        {
+            centerList.add(getCenter(centers, b));
+        }
+        return centerList;
+    }
+
+    private void extractValidColors()
+    {
+        int[] indices = IntStream.range(0, colorMap.size())
+            .filter(p -> colorMap.getAlpha(p) > 0.0)
+            .toArray();
+
+        float[] rgb = new float[indices.length * 3];
+
+        IntStream.range(0, indices.length).parallel().forEach(i ->
+        {
+            rgb[3 * i] = colorMap.getRed(indices[i]);
+            rgb[3 * i + 1] = colorMap.getGreen(indices[i]);
+            rgb[3 * i + 2] = colorMap.getBlue(indices[i]);
+        });
+
+        validIndices = indices;
+        colors = rgb;
+    }
+
+    private static Vector3 getCenter(double[] centers, int b)
+    {
+        return new Vector3((float)centers[3 * b], (float)centers[3 * b + 1], (float)centers[3 * b + 2]);
+    }
+
+    private double distanceSquared(double[] centers, int b, int i)
+    {
+        double dr = colors[3 * i] - centers[3 * b];
+        double dg = colors[3 * i + 1] - centers[3 * b + 1];
+        double db = colors[3 * i + 2] - centers[3 * b + 2];
+        return dr * dr + dg * dg + db * db;
+    }
+
+    private int findNearestCenter(double[] centers, int basisCount, int i)
+    {
+        int bMin = 0;
+        double minDistance = distanceSquared(centers, 0, i);
+
+        for (int b = 1; b < basisCount; b++)
+        {
+            double distance = distanceSquared(centers, b, i);
+            if (distance < minDistance)
+            {
+                minDistance = distance;
+                bMin = b;
+            }
+        }
+
+        return bMin;
+    }
+
+    private int getChunkCount()
+    {
+        return (validIndices.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    }
+
+    private void setCenter(double[] centers, int b, int i)
+    {
+        centers[3 * b] = colors[3 * i];
+        centers[3 * b + 1] = colors[3 * i + 1];
+        centers[3 * b + 2] = colors[3 * i + 2];
+    }
+
+    /**
+     * k-means++ initialization: each new center is chosen randomly with probability proportional to
+     * the squared distance from each color to the nearest center chosen so far.
+     */
+    private double[] initializeCenters(Random random, int basisCount)
+    {
+        int colorCount = validIndices.length;
+        int chunkCount = getChunkCount();
+
+        double[] centers = new double[basisCount * 3];
 
-        // Populate a CDF for the purpose of randomly selecting from a weighted probability distribution.
-        double[] cdf = new double[colorMap.size() + 1];
+        // Randomly choose the first center.
+        setCenter(centers, 0, random.nextInt(colorCount));
+
+        // The squared distance from each color to the nearest center so far, and the total for each chunk.
+        double[] minDistances = new double[colorCount];
+        double[] chunkTotals = new double[chunkCount];
 
         for (int b = 1; b < basisCount; b++)
         {
-            cdf[0] = 0.0;
+            int newestCenter = b - 1;
 
-            for (int p = 0; p < colorMap.size(); p++)
+            IntStream.range(0, chunkCount).parallel().forEach(chunk ->
             {
-                if (colorMap.getAlpha(p) > 0.0)
+                int start = chunk * CHUNK_SIZE;
+                int end = Math.min(colorCount, start + CHUNK_SIZE);
+                double total = 0.0;
+
+                for (int i = start; i < end; i++)
                 {
-                    Vector3 sample = colorMap.getRGB(p);
-
-                    // Find the minimum distance from the sample to any of the current centers.
-                    double minDistance = IntStream.range(0, b)
-                        .mapToDouble(b2 -> centers[b2].distance(sample))
-                        .min()
-                        .orElse(Double.MAX_VALUE);
-                    cdf[p + 1] = cdf[p] + minDistance * minDistance;
+                    double distance = distanceSquared(centers, newestCenter, i);
+
+                    if (newestCenter == 0 || distance < minDistances[i])
+                    {
+                        minDistances[i] = distance;
+                    }
+
+                    total += minDistances[i];
                 }
-            }
 
-            double x = random.nextDouble() * cdf[colorMap.size() - 1];
+                chunkTotals[chunk] = total;
+            });
 
-            //noinspection FloatingPointEquality
-            if (x >= cdf[colorMap.size() - 1]) // It's possible but extremely unlikely that floating-point rounding would cause this to happen.
+            double grandTotal = 0.0;
+            for (double chunkTotal : chunkTotals)
             {
-                // In that extremely rare case, just set x to 0.0.
-                x = 0.0;
+                grandTotal += chunkTotal;
             }
 
-            // binarySearch returns index of a match if its found, or -insertionPoint - 1 if not (the more likely scenario).
-            // insertionPoint is defined to be the index of the first element greater than the number searched for (the randomly generated value).
-            int index = Arrays.binarySearch(cdf, x);
+            double x = random.nextDouble() * grandTotal;
 
-            if (index < 0) // The vast majority of the time this condition will be true, since floating-point matches are unlikely.
+            if (grandTotal > 0.0)
             {
-                // We actually want insertionPoint - 1 since the CDF is offset by one from the actual array of colors.
-                // i.e. if the random value falls between indices 3 and 4 in the CDF, the differential between those two indices is due to the color
-                // at index 3, so we want to use 3 as are index.
-                index = -index - 2;
-            }
+                // Find the chunk containing the randomly generated value, and then the color within the chunk.
+                int chunk = -1;
+                for (int c = 0; c < chunkCount; c++)
+                {
+                    if (chunkTotals[c] > 0.0)
+                    {
+                        // If rounding causes x to be past the end, this will be the last chunk with a non-zero total.
+                        chunk = c;
 
-            assert index < cdf.length - 1;
+                        if (x < chunkTotals[c])
+                        {
+                            break;
+                        }
 
-            // If the index was actually positive to begin with, that's probably fine; just make sure that it's a valid location.
-            // It's also possible in theory for the index to be zero if the random number generator produced 0.0.
-            while (index < 0 || colorMap.getAlpha(index) == 0.0)
-            {
-                // Search forward until a valid index is found.
-                index++;
+                        x -= chunkTotals[c];
+                    }
+                }
 
-                // We shouldn't ever fail to find an index since x should have been less than the final (un-normalized) CDF total.
-                // This means that there has to be some place where the CDF went up, corresponding to a valid index.
-                assert index < cdf.length - 1;
-            }
+                int end = Math.min(colorCount, (chunk + 1) * CHUNK_SIZE);
+                int index = chunk * CHUNK_SIZE;
 
-            // We've found a new center.
-            centers[b] = colorMap.getRGB(index);
-        }
+                // Skip colors with zero probability, and stop at the last one with a non-zero probability
+                // in case floating-point rounding causes x to be at least the total for the chunk.
+                int lastNonZero = -1;
+                for (; index < end; index++)
+                {
+                    if (minDistances[index] > 0.0)
+                    {
+                        lastNonZero = index;
 
-        System.out.println("Initial centers:");
-        for (int b = 0; b < basisCount; b++)
-        {
-            System.out.println(centers[b]);
+                        if (x < minDistances[index])
+                        {
+                            break;
+                        }
+
+                        x -= minDistances[index];
+                    }
+                }
+
+                // We've found a new center.
+                setCenter(centers, b, index < end ? index : lastNonZero);
+            }
+            else
+            {
+                // Every color is already a center, so there's nothing better than picking one at random.
+                setCenter(centers, b, random.nextInt(colorCount));
+            }
         }
 
-        // Initialization is done; now it's time to iterate.
+        return centers;
+    }
+
+    /**
+     * Standard k-means iterations using every color, until the centers stop moving.
+     */
+    private void iterate(double[] centers, int basisCount)
+    {
+        int colorCount = validIndices.length;
+        int chunkCount = getChunkCount();
+
+        // Red, green, and blue sums and the number of colors assigned to each cluster, for each chunk.
+        double[][] chunkSums = new double[chunkCount][basisCount * 4];
+
         boolean changed;
         do
         {
-            Vector4[] sums = IntStream.range(0, colorMap.size())
-                .parallel()
-                .collect(
-                    // Supplier:
-                    () -> IntStream.range(0, basisCount)
-                        .mapToObj(i -> Vector4.ZERO) // Initialize sums to zero.
-                        .toArray(Vector4[]::new),
-                    // Accumulator:
-                    (partialSums, p) ->
-                    {
-                        if (colorMap.getAlpha(p) > 0.0)
-                        {
-                            int bMin = -1;
-
-                            double minDistance = Double.MAX_VALUE;
-
-                            for (int b = 0; b < basisCount; b++)
-                            {
-                                double distance = centers[b].distance(colorMap.getRGB(p));
-                                if (distance < minDistance)
-                                {
-                                    minDistance = distance;
-                                    bMin = b;
-                                }
-                            }
-
-                            partialSums[bMin] = partialSums[bMin]
-                                .plus(new Vector4(colorMap.getRed(p), colorMap.getGreen(p), colorMap.getBlue(p), 1.0f));
-                        }
-                    },
-                    // Combiner:
-                    (sums1, sums2) -> IntStream.range(0, basisCount)
-                        .forEach(b -> sums1[b] = sums1[b].plus(sums2[b])));
+            IntStream.range(0, chunkCount).parallel().forEach(chunk ->
+            {
+                double[] sums = chunkSums[chunk];
+                Arrays.fill(sums, 0.0);
+
+                int end = Math.min(colorCount, (chunk + 1) * CHUNK_SIZE);
+
+                for (int i = chunk * CHUNK_SIZE; i < end; i++)
+                {
+                    int bMin = findNearestCenter(centers, basisCount, i);
+                    sums[4 * bMin] += colors[3 * i];
+                    sums[4 * bMin + 1] += colors[3 * i + 1];
+                    sums[4 * bMin + 2] += colors[3 * i + 2];
+                    sums[4 * bMin + 3] += 1.0;
+                }
+            });
 
             changed = false;
             for (int b = 0; b < basisCount; b++)
             {
-                if (sums[b].w > 0.0)
+                double red = 0.0;
+                double green = 0.0;
+                double blue = 0.0;
+                double count = 0.0;
+
+                // Combine the chunks in order so that the result does not depend on scheduling.
+                for (double[] sums : chunkSums)
                 {
-                    Vector3 newCenter = sums[b].getXYZ().dividedBy(sums[b].w);
-                    changed = changed || newCenter.distance(centers[b]) > TOLERANCE;
-                    centers[b] = newCenter;
+                    red += sums[4 * b];
+                    green += sums[4 * b + 1];
+                    blue += sums[4 * b + 2];
+                    count += sums[4 * b + 3];
+                }
+
+                if (count > 0.0)
+                {
+                    double newRed = red / count;
+                    double newGreen = green / count;
+                    double newBlue = blue / count;
+
+                    double dr = newRed - centers[3 * b];
+                    double dg = newGreen - centers[3 * b + 1];
+                    double db = newBlue - centers[3 * b + 2];
+                    changed = changed || Math.sqrt(dr * dr + dg * dg + db * db) > TOLERANCE;
+
+                    centers[3 * b] = newRed;
+                    centers[3 * b + 1] = newGreen;
+                    centers[3 * b + 2] = newBlue;
                 }
             }
         }
         while (changed);
+    }
 
-        for (int p = 0; p < colorMap.size(); p++)
-        {
-            // Initialize weights to zero.
-            solutionOut.get(p).zero();
+    /**
+     * Mini-batch k-means: each iteration moves the centers towards a small random sample of the colors,
+     * with a learning rate for each center that decreases as more colors are assigned to it.
+     */
+    private void iterateMiniBatch(Random random, double[] centers, int basisCount)
+    {
+        int[] batch = new int[miniBatchSize];
+        int[] assignments = new int[miniBatchSize];
+        long[] counts = new long[basisCount];
 
-            if (colorMap.get(p).w > 0.0)
+        for (int iteration = 0; iteration < MINI_BATCH_ITERATIONS; iteration++)
+        {
+            for (int j = 0; j < miniBatchSize; j++)
             {
-                int bMin = -1;
+                batch[j] = random.nextInt(validIndices.length);
+            }
 
-                double minDistance = Double.MAX_VALUE;
+            // Assign the batch to the current centers before moving any of them.
+            IntStream.range(0, miniBatchSize).parallel().forEach(j ->
+                assignments[j] = findNearestCenter(centers, basisCount, batch[j]));
 
-                for (int b = 0; b < basisCount; b++)
-                {
-                    double distance = centers[b].distance(colorMap.get(p).getXYZ());
-                    if (distance < minDistance)
-                    {
-                        minDistance = distance;
-                        bMin = b;
-                    }
-                }
+            for (int j = 0; j < miniBatchSize; j++)
+            {
+                int b = assignments[j];
+                int i = batch[j];
+
+                counts[b]++;
+                double learningRate = 1.0 / counts[b];
 
-                // Set weight to one for the cluster that each pixel belongs to.
-                solutionOut.get(p).set(bMin, 1.0);
+                centers[3 * b] += learningRate * (colors[3 * i] - centers[3 * b]);
+                centers[3 * b + 1] += learningRate * (colors[3 * i + 1] - centers[3 * b + 1]);
+                centers[3 * b + 2] += learningRate * (colors[3 * i + 2] - centers[3 * b + 2]);
             }
         }
-
-        // weightMapsOut now contain the final clusters.
-
-        // Return the cluster centers.
-        return Arrays.asList(centers);
     }
 }
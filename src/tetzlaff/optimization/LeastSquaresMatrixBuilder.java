@@ -34,13 +34,25 @@ import tetzlaff.util.Counter;
 @SuppressWarnings("PublicField")
 public class LeastSquaresMatrixBuilder
 {
-    public final SimpleMatrix[] weightsQTQAugmented;
-    public final SimpleMatrix[] weightsQTrAugmented;
-
     public final int systemCount;
     public final int weightCount;
     public final int constraintCount;
 
+    /**
+     * The normal equations for each system, excluding the constraints.
+     */
+    private final PackedMatrixSystems systems;
+
+    /**
+     * The coefficients of the constraints, which are the same for every system, indexed by constraint and then by weight.
+     */
+    private final double[][] constraintLHS;
+
+    /**
+     * The RHS of the constraints, which is the same for every system.
+     */
+    private final double[] constraintRHS;
+
     private int viewCount;
 
     /**
@@ -64,42 +76,20 @@ public class LeastSquaresMatrixBuilder
         this.weightCount = weightCount;
         this.constraintCount = constraintWeights.size();
 
-        weightsQTQAugmented = IntStream.range(0, systemCount)
-            .mapToObj(p ->
-            {
-                SimpleMatrix mQTQAugmented = new SimpleMatrix(
-                    weightCount + constraintWeights.size(),
-                    weightCount + constraintWeights.size(),
-                    DMatrixRMaj.class);
-
-                // Set up LHS of constraints
-                for (int i = 0; i < constraintWeights.size(); i++)
-                {
-                    for (int b = 0; b < weightCount; b++)
-                    {
-                        double constraintValue = constraintWeights.get(i).applyAsDouble(b);
-                        mQTQAugmented.set(b, weightCount + i, constraintValue);
-                        mQTQAugmented.set(weightCount + i, b, constraintValue);
-                    }
-                }
+        systems = new PackedMatrixSystems(systemCount, weightCount);
 
-                return mQTQAugmented;
-            })
-            .toArray(SimpleMatrix[]::new);
+        constraintLHS = new double[constraintCount][weightCount];
+        constraintRHS = new double[constraintCount];
 
-        weightsQTrAugmented = IntStream.range(0, systemCount)
-            .mapToObj(p ->
+        for (int i = 0; i < constraintCount; i++)
+        {
+            for (int b = 0; b < weightCount; b++)
             {
-                SimpleMatrix mQTrAugmented = new SimpleMatrix(weightCount + constraintWeights.size(), 1, DMatrixRMaj.class);
+                constraintLHS[i][b] = constraintWeights.get(i).applyAsDouble(b);
+            }
 
-                // Set up RHS of constraints
-                for (int i = 0; i < constraintWeights.size(); i++)
-                {
-                    mQTrAugmented.set(weightCount + i, constraintsRHS.get(i));
-                }
-                return mQTrAugmented;
-            })
-            .toArray(SimpleMatrix[]::new);
+            constraintRHS[i] = constraintsRHS.get(i);
+        }
     }
 
     /**
@@ -144,22 +134,20 @@ public class LeastSquaresMatrixBuilder
     {
         Counter counter = new Counter();
 
-        // Zero out all the matrices, except for the constraints.
-        for (int p = 0; p < weightsQTQAugmented.length; p++)
-        {
-            for (int i = 0; i < weightCount; i++)
-            {
-                for (int j = 0; j < weightCount; j++)
-                {
-                    weightsQTQAugmented[p].set(i, j, 0);
-                }
-
-                weightsQTrAugmented[p].set(i, 0);
-            }
-        }
+        // Zero out all the matrices (the constraints are stored separately).
+        systems.zero();
 
         viewCount = viewStream.getCount();
 
+        // Models that support it are evaluated into scratch arrays, one set for each worker thread.
+        ThreadLocal<double[][]> primitiveScratch = leastSquaresModel instanceof PrimitiveLeastSquaresModel
+            ? ThreadLocal.withInitial(() ->
+            {
+                int dimensions = ((PrimitiveLeastSquaresModel<S, T>) leastSquaresModel).getSampleDimensions();
+                return new double[][] { new double[dimensions], new double[weightCount * dimensions] };
+            })
+            : null;
+
         viewStream.forEach(reflectanceData ->
         {
             // Update matrix for each pixel.
@@ -172,37 +160,14 @@ public class LeastSquaresMatrixBuilder
                     // Any time we have a visible, valid sample, mark that the corresponding texel is valid.
                     sampleValidator.accept(p);
 
-                    double weight = leastSquaresModel.getSampleWeight(reflectanceData, p);
-
-                    // Evaluate sampler (get the ground truth value)
-                    T fActual = leastSquaresModel.getSamples(reflectanceData, p);
-
-                    // Evaluate the "basisCalculator" to get another function that can provide the actual basis function values.
-                    IntFunction<T> basisFunctions = leastSquaresModel.getBasisFunctions(reflectanceData, p);
-
-                    ArrayList<T> basisEval = new ArrayList<T>(weightCount);
-
-                    for (int b = 0; b < weightCount; b++)
+                    if (primitiveScratch != null)
                     {
-                        // Evaluate the basis function.
-                        basisEval.add(basisFunctions.apply(b));
+                        addSamplePrimitive((PrimitiveLeastSquaresModel<S, T>) leastSquaresModel, reflectanceData, p, p - rangeStart,
+                            primitiveScratch.get());
                     }
-
-                    for (int b1 = 0; b1 < weightCount; b1++)
+                    else
                     {
-                        T f1 = basisEval.get(b1);
-
-                        // Store the weighted product of the basis function and the actual sample in the vector.
-                        weightsQTrAugmented[p - rangeStart].set(b1, weightsQTrAugmented[p - rangeStart].get(b1) + weight * leastSquaresModel.innerProduct(f1, fActual));
-
-                        for (int b2 = 0; b2 < weightCount; b2++)
-                        {
-                            T f2 = basisEval.get(b2);
-
-                            // Store the weighted product of the two basis functions in the matrix.
-                            weightsQTQAugmented[p - rangeStart].set(b1, b2,
-                                weightsQTQAugmented[p - rangeStart].get(b1, b2) + weight * leastSquaresModel.innerProduct(f1, f2));
-                        }
+                        addSample(leastSquaresModel, reflectanceData, p, p - rangeStart);
                     }
                 }
             });
@@ -215,6 +180,151 @@ public class LeastSquaresMatrixBuilder
         });
     }
 
+    private <S, T> void addSample(LeastSquaresModel<S, T> leastSquaresModel, S sampleData, int p, int system)
+    {
+        double weight = leastSquaresModel.getSampleWeight(sampleData, p);
+
+        // Evaluate sampler (get the ground truth value)
+        T fActual = leastSquaresModel.getSamples(sampleData, p);
+
+        // Evaluate the "basisCalculator" to get another function that can provide the actual basis function values.
+        IntFunction<T> basisFunctions = leastSquaresModel.getBasisFunctions(sampleData, p);
+
+        ArrayList<T> basisEval = new ArrayList<T>(weightCount);
+
+        for (int b = 0; b < weightCount; b++)
+        {
+            // Evaluate the basis function.
+            basisEval.add(basisFunctions.apply(b));
+        }
+
+        for (int b1 = 0; b1 < weightCount; b1++)
+        {
+            T f1 = basisEval.get(b1);
+
+            // Store the weighted product of the basis function and the actual sample in the vector.
+            systems.addToRHS(system, b1, weight * leastSquaresModel.innerProduct(f1, fActual));
+
+            // The matrix is symmetric, so only the upper triangle needs to be computed.
+            for (int b2 = b1; b2 < weightCount; b2++)
+            {
+                T f2 = basisEval.get(b2);
+
+                // Store the weighted product of the two basis functions in the matrix.
+                systems.addToLHS(system, b1, b2, weight * leastSquaresModel.innerProduct(f1, f2));
+            }
+        }
+    }
+
+    private <S, T> void addSamplePrimitive(PrimitiveLeastSquaresModel<S, T> leastSquaresModel, S sampleData, int p, int system,
+        double[][] scratch)
+    {
+        double[] samples = scratch[0];
+        double[] basisValues = scratch[1];
+        int dimensions = samples.length;
+
+        double weight = leastSquaresModel.evaluate(sampleData, p, samples, basisValues);
+
+        for (int b1 = 0; b1 < weightCount; b1++)
+        {
+            int offset1 = b1 * dimensions;
+
+            double rhs = 0.0;
+            for (int c = 0; c < dimensions; c++)
+            {
+                rhs += basisValues[offset1 + c] * samples[c];
+            }
+
+            systems.addToRHS(system, b1, weight * rhs);
+
+            for (int b2 = b1; b2 < weightCount; b2++)
+            {
+                int offset2 = b2 * dimensions;
+
+                double lhs = 0.0;
+                for (int c = 0; c < dimensions; c++)
+                {
+                    lhs += basisValues[offset1 + c] * basisValues[offset2 + c];
+                }
+
+                systems.addToLHS(system, b1, b2, weight * lhs);
+            }
+        }
+    }
+
+    /**
+     * Gets the storage for the normal equations of every system, excluding the constraints.
+     * This can be used to modify the systems after they have been built (i.e. for damping).
+     * @return The packed systems.
+     */
+    public PackedMatrixSystems getSystems()
+    {
+        return systems;
+    }
+
+    /**
+     * Copies the LHS of a system, augmented with the constraints, into a dense matrix.
+     * @param system The index of the system.
+     * @param out A square matrix with weightCount + constraintCount rows and columns.
+     */
+    public void getAugmentedLHS(int system, DMatrixRMaj out)
+    {
+        systems.copyLHS(system, out);
+
+        for (int i = 0; i < constraintCount; i++)
+        {
+            for (int b = 0; b < weightCount; b++)
+            {
+                out.unsafe_set(b, weightCount + i, constraintLHS[i][b]);
+                out.unsafe_set(weightCount + i, b, constraintLHS[i][b]);
+            }
+
+            for (int j = 0; j < constraintCount; j++)
+            {
+                out.unsafe_set(weightCount + i, weightCount + j, 0.0);
+            }
+        }
+    }
+
+    /**
+     * Copies the RHS of a system, augmented with the constraints, into a dense column vector.
+     * @param system The index of the system.
+     * @param out A column vector with weightCount + constraintCount rows.
+     */
+    public void getAugmentedRHS(int system, DMatrixRMaj out)
+    {
+        systems.copyRHS(system, out);
+
+        for (int i = 0; i < constraintCount; i++)
+        {
+            out.unsafe_set(weightCount + i, 0, constraintRHS[i]);
+        }
+    }
+
+    /**
+     * Gets a newly allocated copy of the LHS of a system, augmented with the constraints.
+     * @param system The index of the system.
+     * @return The augmented LHS.
+     */
+    public SimpleMatrix getAugmentedLHS(int system)
+    {
+        DMatrixRMaj lhs = new DMatrixRMaj(weightCount + constraintCount, weightCount + constraintCount);
+        getAugmentedLHS(system, lhs);
+        return SimpleMatrix.wrap(lhs);
+    }
+
+    /**
+     * Gets a newly allocated copy of the RHS of a system, augmented with the constraints.
+     * @param system The index of the system.
+     * @return The augmented RHS.
+     */
+    public SimpleMatrix getAugmentedRHS(int system)
+    {
+        DMatrixRMaj rhs = new DMatrixRMaj(weightCount + constraintCount, 1);
+        getAugmentedRHS(system, rhs);
+        return SimpleMatrix.wrap(rhs);
+    }
+
     public int getViewCount()
     {
         return viewCount;
@@ -11,7 +11,7 @@
 
 package tetzlaff.optimization;
 
-import org.ejml.dense.row.CommonOps_DDRM;
+import org.ejml.data.DMatrixRMaj;
 import org.ejml.simple.SimpleMatrix;
 
 import java.util.Arrays;
@@ -30,48 +30,172 @@ public class MatrixSystem
      */
     public final SimpleMatrix[] rhs;
 
-    public MatrixSystem(int matrixSize, int vectorCount, Class<?> matrixType)
+    /**
+     * Backing array of the LHS matrix (row-major).
+     */
+    private final double[] lhsData;
+
+    /**
+     * Backing arrays of each RHS vector.
+     */
+    private final double[][] rhsData;
+
+    private final int matrixSize;
+
+    /**
+     * Creates a new system with all elements initialized to zero.
+     * @param matrixSize The number of rows and columns in the LHS matrix.
+     * @param vectorCount The number of RHS vectors.
+     */
+    public MatrixSystem(int matrixSize, int vectorCount)
     {
-        lhs = new SimpleMatrix(matrixSize, matrixSize, matrixType);
+        this.matrixSize = matrixSize;
+
+        // Always row-major dense matrices, since the elements are updated in the backing arrays directly.
+        lhs = new SimpleMatrix(matrixSize, matrixSize, DMatrixRMaj.class);
         rhs = new SimpleMatrix[vectorCount];
-        Arrays.setAll(rhs, i -> new SimpleMatrix(matrixSize, 1, matrixType));
+        Arrays.setAll(rhs, i -> new SimpleMatrix(matrixSize, 1, DMatrixRMaj.class));
+
+        lhsData = ((DMatrixRMaj) lhs.getMatrix()).data;
+        rhsData = new double[vectorCount][];
+        Arrays.setAll(rhsData, i -> ((DMatrixRMaj) rhs[i].getMatrix()).data);
     }
 
     public void addContribution(MatrixSystem contribution)
     {
         // Add the contribution into the main matrix and vectors.
-        CommonOps_DDRM.addEquals(this.lhs.getMatrix(), contribution.lhs.getMatrix());
+        DenseKernels.addEquals(this.lhsData, contribution.lhsData);
         for (int i = 0; i < rhs.length; i++)
         {
-            CommonOps_DDRM.addEquals(this.rhs[i].getMatrix(), contribution.rhs[i].getMatrix());
+            DenseKernels.addEquals(this.rhsData[i], contribution.rhsData[i]);
+        }
+    }
+
+    /**
+     * Resets every element of the LHS and RHS to zero so that the system can be reused.
+     */
+    public void zero()
+    {
+        Arrays.fill(lhsData, 0.0);
+
+        for (double[] vector : rhsData)
+        {
+            Arrays.fill(vector, 0.0);
         }
     }
 
     public void addToLHS(int row, int column, double amount)
     {
-        lhs.set(row, column, lhs.get(row, column) + amount);
+        lhsData[row * matrixSize + column] += amount;
+    }
+
+    /**
+     * Adds the same amount to an element of the LHS matrix and to the element with the row and column swapped.
+     * If the row and column are the same, the amount is only added once.
+     * @param row The row of the element.
+     * @param column The column of the element.
+     * @param amount The amount to add.
+     */
+    public void addToLHSSymmetric(int row, int column, double amount)
+    {
+        lhsData[row * matrixSize + column] += amount;
+
+        if (row != column)
+        {
+            lhsData[column * matrixSize + row] += amount;
+        }
+    }
+
+    /**
+     * Adds the same amount to a sequence of evenly spaced elements in a row of the LHS matrix,
+     * as well as the corresponding elements of the same column.
+     * The row itself must not be one of the columns in the sequence.
+     * @param row The row to update.
+     * @param columnStart The first column to update.
+     * @param columnStride The spacing between consecutive columns to update.
+     * @param count The number of columns to update.
+     * @param amount The amount to add.
+     */
+    public void addToLHSSymmetricStrided(int row, int columnStart, int columnStride, int count, double amount)
+    {
+        int rowStart = row * matrixSize;
+
+        for (int k = 0, column = columnStart; k < count; k++, column += columnStride)
+        {
+            lhsData[rowStart + column] += amount;
+            lhsData[column * matrixSize + row] += amount;
+        }
     }
 
     public void addToRHS(int row, int vectorIndex, double amount)
     {
-        rhs[vectorIndex].set(row, 0, rhs[vectorIndex].get(row, 0) + amount);
+        rhsData[vectorIndex][row] += amount;
     }
 
     public SimpleMatrix solve(int rhsIndex)
     {
-        return lhs.solve(rhs[rhsIndex]);
+        double[] factor = factorLHS();
+        return factor == null ? lhs.solve(rhs[rhsIndex]) : solveFactored(factor, rhsIndex);
+    }
+
+    /**
+     * Solves the system for every RHS vector, factoring the LHS only once.
+     * @return The solution for each RHS vector.
+     */
+    public SimpleMatrix[] solve()
+    {
+        double[] factor = factorLHS();
+
+        return IntStream.range(0, rhs.length)
+            .mapToObj(i -> factor == null ? lhs.solve(rhs[i]) : solveFactored(factor, i))
+            .toArray(SimpleMatrix[]::new);
+    }
+
+    /**
+     * The LHS is symmetric and normally positive definite, so a Cholesky factorization can be used.
+     * @return The Cholesky factor, or null if the LHS is not positive definite.
+     */
+    private double[] factorLHS()
+    {
+        double[] factor = lhsData.clone();
+        return DenseKernels.choleskyLower(factor, matrixSize) ? factor : null;
+    }
+
+    private SimpleMatrix solveFactored(double[] factor, int rhsIndex)
+    {
+        double[] solution = rhsData[rhsIndex].clone();
+        DenseKernels.solveCholesky(factor, matrixSize, solution);
+        return SimpleMatrix.wrap(DMatrixRMaj.wrap(matrixSize, 1, solution));
     }
 
     public SimpleMatrix solveNonNegative(int rhsIndex, double toleranceScale)
     {
-        double medianATy = IntStream.range(0, rhs[rhsIndex].getNumElements())
+        return NonNegativeLeastSquares.solvePremultiplied(lhs, rhs[rhsIndex], toleranceScale * getMedianPositiveRHS(rhsIndex));
+    }
+
+    /**
+     * Solves the system with a non-negativity constraint for every RHS vector at once.
+     * The LHS is shared rather than copied for each RHS, and the solves run in parallel.
+     * @param toleranceScale The tolerance of the solver, relative to the median of each RHS vector.
+     * @return The solution for each RHS vector.
+     */
+    public SimpleMatrix[] solveNonNegative(double toleranceScale)
+    {
+        double[] epsilon = IntStream.range(0, rhs.length)
+            .mapToDouble(i -> toleranceScale * getMedianPositiveRHS(i))
+            .toArray();
+
+        return NonNegativeLeastSquares.solvePremultiplied(lhs, rhs, epsilon);
+    }
+
+    private double getMedianPositiveRHS(int rhsIndex)
+    {
+        return IntStream.range(0, rhs[rhsIndex].getNumElements())
                 .mapToDouble(rhs[rhsIndex]::get)
                 .sorted()
                 .skip(rhs[rhsIndex].getNumElements() / 2)
                 .filter(x -> x > 0)
                 .findFirst()
                 .orElse(1.0);
-
-        return NonNegativeLeastSquares.solvePremultiplied(lhs, rhs[rhsIndex],toleranceScale * medianATy);
     }
 }
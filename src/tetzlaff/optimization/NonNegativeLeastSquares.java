@@ -12,9 +12,11 @@
 package tetzlaff.optimization;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.IntStream;
 
+import org.ejml.data.DMatrixRMaj;
 import org.ejml.data.SingularMatrixException;
 import org.ejml.dense.row.CommonOps_DDRM;
 import org.ejml.simple.SimpleMatrix;
@@ -96,7 +98,17 @@ public final class NonNegativeLeastSquares
         SimpleMatrix vATb = new SimpleMatrix(mA.numCols(), 1);
 
         // Low level operations to avoid using unnecessary memory.
-        multTransA(mA.getMatrix(), mA.getMatrix(), mATA.getMatrix());
+        if (mA.getMatrix() instanceof DMatrixRMaj)
+        {
+            // Blocked, parallel symmetric product for dense matrices.
+            DenseKernels.multTransA(((DMatrixRMaj) mA.getMatrix()).data, mA.numRows(), mA.numCols(),
+                ((DMatrixRMaj) mATA.getMatrix()).data);
+        }
+        else
+        {
+            multTransA(mA.getMatrix(), mA.getMatrix(), mATA.getMatrix());
+        }
+
         multTransA(mA.getMatrix(), b.getMatrix(), vATb.getMatrix());
 
         return solvePremultiplied(mATA, vATb, epsilon);
@@ -104,6 +116,9 @@ public final class NonNegativeLeastSquares
 
     /**
      * Solves a non-negative least squares problem that minimizes ||Ax - b||^2, using the premultiplied form A'Ax - A'b.
+     * Since there are no equality constraints, the submatrix of A'A for the free variables is positive definite,
+     * so a Cholesky factor is kept and updated incrementally, making each change to the set of free variables
+     * cost O(n^2) rather than O(n^3).
      * @param mATA The matrix product A' (A transpose) times A.
      * @param vATb The product A' (A transpose) times b.
      * @param epsilon The allowed tolerance at which the algorithm will terminate.
@@ -111,7 +126,451 @@ public final class NonNegativeLeastSquares
      */
     public static SimpleMatrix solvePremultiplied(SimpleMatrix mATA, SimpleMatrix vATb, double epsilon)
     {
-        return solvePremultipliedWithEqualityConstraints(mATA, vATb, epsilon, 0);
+        if (mATA.numCols() != mATA.numRows())
+        {
+            throw new IllegalArgumentException("A'A must be a square matrix.");
+        }
+
+        if (vATb.numCols() != 1 || vATb.numRows() != mATA.numRows())
+        {
+            throw new IllegalArgumentException("A'b must be a column vector with the same number of rows as matrix A'A.");
+        }
+
+        if (epsilon <= 0.0)
+        {
+            throw new IllegalArgumentException("Epsilon must be greater than zero.");
+        }
+
+        int n = mATA.numRows();
+
+        double[] x = solvePremultiplied(getRowMajorData(mATA), n, getColumnData(vATb), epsilon);
+        return SimpleMatrix.wrap(DMatrixRMaj.wrap(n, 1, x));
+    }
+
+    /**
+     * Solves several non-negative least squares problems that share the same matrix A, using the premultiplied form,
+     * for example one for each color channel.
+     * A'A is shared by every problem rather than copied for each one, and the problems are solved in parallel.
+     * Each problem still keeps its own Cholesky factor, since it depends on that problem's set of free variables.
+     * @param mATA The matrix product A' (A transpose) times A, which is the same for every problem.
+     * @param vATb The product A' (A transpose) times b, for each problem.
+     * @param epsilon The allowed tolerance at which the algorithm will terminate, for each problem.
+     * @return The non-negative least squares solution for each problem.
+     */
+    public static SimpleMatrix[] solvePremultiplied(SimpleMatrix mATA, SimpleMatrix[] vATb, double[] epsilon)
+    {
+        if (mATA.numCols() != mATA.numRows())
+        {
+            throw new IllegalArgumentException("A'A must be a square matrix.");
+        }
+
+        if (vATb.length != epsilon.length)
+        {
+            throw new IllegalArgumentException("There must be one epsilon for each A'b vector.");
+        }
+
+        for (int i = 0; i < vATb.length; i++)
+        {
+            if (vATb[i].numCols() != 1 || vATb[i].numRows() != mATA.numRows())
+            {
+                throw new IllegalArgumentException("A'b must be a column vector with the same number of rows as matrix A'A.");
+            }
+
+            if (epsilon[i] <= 0.0)
+            {
+                throw new IllegalArgumentException("Epsilon must be greater than zero.");
+            }
+        }
+
+        int n = mATA.numRows();
+        double[] ata = getRowMajorData(mATA);
+
+        return IntStream.range(0, vATb.length)
+            .parallel()
+            .mapToObj(i -> SimpleMatrix.wrap(DMatrixRMaj.wrap(n, 1, solvePremultiplied(ata, n, getColumnData(vATb[i]), epsilon[i]))))
+            .toArray(SimpleMatrix[]::new);
+    }
+
+    /**
+     * Gets the elements of a matrix as a row-major array, which is the backing array itself (not to be modified)
+     * if the matrix is already dense and row-major.
+     */
+    private static double[] getRowMajorData(SimpleMatrix matrix)
+    {
+        if (matrix.getMatrix() instanceof DMatrixRMaj)
+        {
+            return ((DMatrixRMaj) matrix.getMatrix()).data;
+        }
+        else
+        {
+            int rows = matrix.numRows();
+            int cols = matrix.numCols();
+            double[] data = new double[rows * cols];
+
+            for (int i = 0; i < rows; i++)
+            {
+                for (int j = 0; j < cols; j++)
+                {
+                    data[i * cols + j] = matrix.get(i, j);
+                }
+            }
+
+            return data;
+        }
+    }
+
+    /**
+     * Copies the elements of a column vector into a new array.
+     */
+    private static double[] getColumnData(SimpleMatrix vector)
+    {
+        double[] data = new double[vector.numRows()];
+
+        for (int i = 0; i < data.length; i++)
+        {
+            data[i] = vector.get(i);
+        }
+
+        return data;
+    }
+
+    /**
+     * Solves a non-negative least squares problem in premultiplied form, given A'A as a row-major array (which is not modified).
+     */
+    private static double[] solvePremultiplied(double[] ata, int n, double[] atb, double epsilon)
+    {
+        // Keep track of the set of free variables (where p[i] is true)
+        // All other variables are fixed at zero.
+        boolean[] p = new boolean[n];
+
+        // Keep track of the number of free variables.
+        int sizeP = 0;
+
+        double[] x = new double[n];
+        double[] s = new double[n];
+        double[] w = atb.clone();
+
+        // Solution for the free variables only, in the order of the rows of the Cholesky factor.
+        double[] sP = new double[n];
+
+        // Without equality constraints, the submatrix of A'A for the free variables is positive definite (unless singular),
+        // so its Cholesky factor can be updated incrementally as variables are freed or fixed at zero.
+        IncrementalCholesky factor = new IncrementalCholesky(ata, n);
+
+        int k = -1;
+        double maxW;
+
+        int iterations = 0;
+        int maxIterations = n * n; // Heuristic for how many iterations until timeout.
+
+        do
+        {
+            maxW = -1.0;
+
+            for (int i = 0; i < n; i++)
+            {
+                if (!p[i] && w[i] > maxW)
+                {
+                    k = i;
+                    maxW = w[i];
+                }
+            }
+
+            // Iterate until effectively no values of w are positive.
+            if (maxW > epsilon || sizeP == 0)
+            {
+                Arrays.fill(s, 0.0);
+
+                if (factor.insert(k))
+                {
+                    p[k] = true;
+
+                    // Solves the system and copies it into s and sP.
+                    factor.solve(atb, sP, s);
+                    sizeP = factor.size();
+
+                    // Make sure that none of the free variables went negative.
+                    while (sizeP > 0 && min(sP, sizeP) < 0.0)
+                    {
+                        double alpha = 1.0;
+                        int j = -1;
+                        for (int i = 0; i < sizeP; i++)
+                        {
+                            double sVal = sP[i];
+
+                            if (sVal <= 0.0)
+                            {
+                                double xVal = x[factor.getVariable(i)];
+                                double alphaCandidate = xVal / (xVal - sVal);
+                                if (alphaCandidate <= alpha)
+                                {
+                                    alpha = alphaCandidate;
+                                    j = factor.getVariable(i);
+                                }
+                            }
+                        }
+
+                        // x = x + alpha * (s - x)
+                        for (int i = 0; i < n; i++)
+                        {
+                            x[i] += alpha * (s[i] - x[i]);
+                        }
+
+                        // Make sure that at least one previously positive value is set to zero.
+                        // Because of round-off error, this is not necessarily guaranteed.
+                        p[j] = false;
+                        x[j] = 0.0;
+                        factor.remove(j);
+
+                        if (j == k)
+                        {
+                            // Avoid an infinite loop; treat all remaining values in w as insignificant.
+                            maxW = 0.0;
+                        }
+                        else
+                        {
+                            for (int i = 0; i < n; i++)
+                            {
+                                if (p[i] && x[i] <= 0.0)
+                                {
+                                    p[i] = false;
+                                    x[i] = 0.0; // Just in case it went slightly negative due to round-off error.
+                                    factor.remove(i);
+                                }
+                            }
+                        }
+
+                        Arrays.fill(s, 0.0);
+                        factor.solve(atb, sP, s);
+                        sizeP = factor.size();
+                    }
+                }
+                else
+                {
+                    // The new variable would make the system singular.
+                    // Roll back (by not freeing it) and finish.
+                    factor.solve(atb, sP, s);
+                    sizeP = factor.size();
+
+                    // Avoid an infinite loop; treat all remaining values in w as insignificant.
+                    maxW = 0.0;
+                }
+
+                // x = s; w = A'b - A'A * x
+                System.arraycopy(s, 0, x, 0, n);
+
+                for (int i = 0; i < n; i++)
+                {
+                    double sum = atb[i];
+                    int rowStart = i * n;
+
+                    for (int j = 0; j < n; j++)
+                    {
+                        sum -= ata[rowStart + j] * x[j];
+                    }
+
+                    w[i] = sum;
+                }
+            }
+
+            iterations++;
+        }
+        while(sizeP < n && maxW > epsilon && iterations < maxIterations);
+        // The second condition makes the loop terminate if the earlier if-statement with the same condition evaluated to false.
+
+        if (sizeP < n && maxW > epsilon)
+        {
+            // Loop timed out.
+            System.err.println("Not technically a singular matrix, but NNLS failed to converge.");
+        }
+
+        return x;
+    }
+
+    private static double min(double[] values, int count)
+    {
+        double min = Double.POSITIVE_INFINITY;
+
+        for (int i = 0; i < count; i++)
+        {
+            min = Math.min(min, values[i]);
+        }
+
+        return min;
+    }
+
+    /**
+     * Cholesky factor of the submatrix of A'A corresponding to the free variables, which is updated in O(n^2) time
+     * whenever a variable is freed or fixed at zero, rather than rebuilding and refactoring the submatrix in O(n^3) time.
+     * The rows of the factor are in the order in which the variables were freed.
+     */
+    static final class IncrementalCholesky
+    {
+        /**
+         * Pivots smaller than this (relative to the corresponding diagonal element of A'A) are considered singular.
+         */
+        private static final double SINGULARITY_TOLERANCE = 1.0e-14;
+
+        private final double[] ata;
+        private final int n;
+
+        /**
+         * Lower triangular factor L, where L L' is the submatrix of A'A; row-major with a stride of n.
+         */
+        private final double[] lower;
+
+        /**
+         * The variable corresponding to each row of the factor.
+         */
+        private final int[] variables;
+
+        /**
+         * The row of the factor for each variable, or -1 if the variable is not free.
+         */
+        private final int[] rows;
+
+        private final double[] forward;
+
+        private int size = 0;
+
+        IncrementalCholesky(double[] ata, int n)
+        {
+            this.ata = ata;
+            this.n = n;
+            this.lower = new double[n * n];
+            this.variables = new int[n];
+            this.rows = new int[n];
+            this.forward = new double[n];
+            Arrays.fill(rows, -1);
+        }
+
+        int size()
+        {
+            return size;
+        }
+
+        int getVariable(int row)
+        {
+            return variables[row];
+        }
+
+        /**
+         * Adds a variable as a new last row and column of the submatrix.
+         * @return false (leaving the factor unchanged) if the submatrix would be singular.
+         */
+        boolean insert(int variable)
+        {
+            int newRow = size * n;
+            double diagonal = ata[variable * n + variable];
+            double sumSquares = 0.0;
+
+            // Solve L * l = a for the new row, where a is the column of A'A for the new variable.
+            for (int i = 0; i < size; i++)
+            {
+                double sum = ata[variables[i] * n + variable];
+                int row = i * n;
+
+                for (int j = 0; j < i; j++)
+                {
+                    sum -= lower[row + j] * lower[newRow + j];
+                }
+
+                double value = sum / lower[row + i];
+                lower[newRow + i] = value;
+                sumSquares += value * value;
+            }
+
+            double pivotSquared = diagonal - sumSquares;
+
+            if (!(pivotSquared > SINGULARITY_TOLERANCE * diagonal)) // Also catches NaN.
+            {
+                return false;
+            }
+
+            lower[newRow + size] = Math.sqrt(pivotSquared);
+            variables[size] = variable;
+            rows[variable] = size;
+            size++;
+            return true;
+        }
+
+        /**
+         * Removes a variable from the submatrix, restoring the triangular form with Givens rotations.
+         */
+        void remove(int variable)
+        {
+            int removed = rows[variable];
+            rows[variable] = -1;
+
+            // Shift the following rows up, leaving them with one element above the diagonal.
+            for (int i = removed + 1; i < size; i++)
+            {
+                System.arraycopy(lower, i * n, lower, (i - 1) * n, i + 1);
+                variables[i - 1] = variables[i];
+                rows[variables[i - 1]] = i - 1;
+            }
+
+            size--;
+
+            // Rotate pairs of columns to eliminate the elements above the diagonal.
+            for (int j = removed; j < size; j++)
+            {
+                double a = lower[j * n + j];
+                double b = lower[j * n + j + 1];
+                double r = Math.sqrt(a * a + b * b);
+
+                if (r > 0.0)
+                {
+                    double c = a / r;
+                    double s = b / r;
+
+                    for (int i = j; i < size; i++)
+                    {
+                        double left = lower[i * n + j];
+                        double right = lower[i * n + j + 1];
+                        lower[i * n + j] = c * left + s * right;
+                        lower[i * n + j + 1] = c * right - s * left;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Solves the submatrix system for the free variables.
+         * @param atb The full vector A'b.
+         * @param solutionPartial Receives the solution in the order of the rows of the factor.
+         * @param solutionFull Receives the solution at the index of each free variable (other elements are untouched).
+         */
+        void solve(double[] atb, double[] solutionPartial, double[] solutionFull)
+        {
+            // Forward substitution: L y = b
+            for (int i = 0; i < size; i++)
+            {
+                double sum = atb[variables[i]];
+                int row = i * n;
+
+                for (int j = 0; j < i; j++)
+                {
+                    sum -= lower[row + j] * forward[j];
+                }
+
+                forward[i] = sum / lower[row + i];
+            }
+
+            // Back substitution: L' z = y
+            for (int i = size - 1; i >= 0; i--)
+            {
+                double sum = forward[i];
+
+                for (int j = i + 1; j < size; j++)
+                {
+                    sum -= lower[j * n + i] * solutionPartial[j];
+                }
+
+                solutionPartial[i] = sum / lower[i * n + i];
+                solutionFull[variables[i]] = solutionPartial[i];
+            }
+        }
     }
 
     /**
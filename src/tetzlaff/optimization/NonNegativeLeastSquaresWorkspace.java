@@ -0,0 +1,654 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+
+package tetzlaff.optimization;
+
+import java.util.Arrays;
+import java.util.function.IntToDoubleFunction;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.SingularMatrixException;
+
+/**
+ * Preallocated scratch space for solving many small non-negative least squares problems one after another,
+ * such as one per texel when optimizing weight maps.
+ * This implements the same active set algorithm as NonNegativeLeastSquares.solvePremultipliedWithEqualityConstraints(),
+ * but works directly on primitive arrays that are allocated once, so that solving a system creates no new objects.
+ * An instance should only be used by one thread at a time; to solve systems in parallel, create one instance per worker.
+ */
+public final class NonNegativeLeastSquaresWorkspace
+{
+    /**
+     * The number of rows and columns in the augmented system (including equality constraints).
+     */
+    private final int size;
+
+    /**
+     * The number of equality constraints at the bottom and right of the augmented system.
+     */
+    private final int constraintCount;
+
+    /**
+     * The set of free variables (where passive[i] is true); all other variables are fixed at zero.
+     */
+    private final boolean[] passive;
+
+    /**
+     * Mapping from the set of free variables (followed by the constraints) to the set of all variables.
+     */
+    private final int[] mapping;
+
+    private final double[] x;
+    private final double[] s;
+    private final double[] w;
+
+    /**
+     * Solution of the system restricted to the free variables.
+     */
+    private final double[] sPartial;
+
+    /**
+     * LHS of the system restricted to the free variables; overwritten by Gaussian elimination.
+     */
+    private final double[] partialLHS;
+
+    /**
+     * Scratch space used to find the median of the RHS.
+     */
+    private final double[] selectScratch;
+
+    /**
+     * The result of the most recent solve, which is overwritten by the next solve.
+     */
+    private final DMatrixRMaj solution;
+
+    /**
+     * The number of active set iterations used by the most recent solve.
+     */
+    private int iterationCount;
+
+    /**
+     * The number of variables that were still free at the end of the most recent solve
+     * after having been freed immediately by a warm start.
+     */
+    private int warmStartCount;
+
+    /**
+     * The variables that were freed by the warm start and remained free after restoring feasibility.
+     */
+    private final boolean[] warmStarted;
+
+    /**
+     * Set when restoring feasibility removed the variable that was most recently freed.
+     */
+    private boolean enteringVariableDropped;
+
+    /**
+     * The exception that was recovered from during the most recent solve, if the system turned out to be singular.
+     */
+    private SingularMatrixException singularMatrixException;
+
+    /**
+     * Allocates space for solving systems of a particular size.
+     * @param size The number of rows and columns in the augmented system (including equality constraints).
+     * @param constraintCount The number of equality constraints at the bottom and right of the augmented system.
+     */
+    public NonNegativeLeastSquaresWorkspace(int size, int constraintCount)
+    {
+        if (constraintCount < 0 || constraintCount >= size)
+        {
+            throw new IllegalArgumentException("The number of constraints must be non-negative and less than the size of the system.");
+        }
+
+        this.size = size;
+        this.constraintCount = constraintCount;
+
+        passive = new boolean[size - constraintCount];
+        warmStarted = new boolean[size - constraintCount];
+        mapping = new int[size];
+        x = new double[size];
+        s = new double[size];
+        w = new double[size];
+        sPartial = new double[size];
+        partialLHS = new double[size * size];
+        selectScratch = new double[size];
+        solution = new DMatrixRMaj(size, 1);
+    }
+
+    /**
+     * Finds a value to calibrate the tolerance of the solver: the median of the RHS if it is positive,
+     * or otherwise the smallest positive value, or 1.0 if there are no positive values.
+     * This matches sorting the values and taking the first positive value at or after the median, but uses quickselect.
+     * @param augmentedATb The RHS of the system.
+     * @return The median positive value.
+     */
+    public double medianPositive(DMatrixRMaj augmentedATb)
+    {
+        int n = augmentedATb.getNumElements();
+        System.arraycopy(augmentedATb.data, 0, selectScratch, 0, n);
+
+        double median = select(selectScratch, n, n / 2);
+
+        if (median > 0)
+        {
+            return median;
+        }
+        else
+        {
+            // Every positive value comes after the median in sorted order, so use the smallest one.
+            double minPositive = Double.POSITIVE_INFINITY;
+
+            for (int i = 0; i < n; i++)
+            {
+                double value = augmentedATb.data[i];
+
+                if (value > 0 && value < minPositive)
+                {
+                    minPositive = value;
+                }
+            }
+
+            return Double.isInfinite(minPositive) ? 1.0 : minPositive;
+        }
+    }
+
+    /**
+     * Finds the k-th smallest of the first n values, partially reordering the array.
+     */
+    private static double select(double[] values, int n, int k)
+    {
+        int left = 0;
+        int right = n - 1;
+
+        while (left < right)
+        {
+            double pivot = values[(left + right) >>> 1];
+            int i = left;
+            int j = right;
+
+            while (i <= j)
+            {
+                while (values[i] < pivot)
+                {
+                    i++;
+                }
+
+                while (values[j] > pivot)
+                {
+                    j--;
+                }
+
+                if (i <= j)
+                {
+                    double temp = values[i];
+                    values[i] = values[j];
+                    values[j] = temp;
+                    i++;
+                    j--;
+                }
+            }
+
+            if (k <= j)
+            {
+                right = j;
+            }
+            else if (k >= i)
+            {
+                left = i;
+            }
+            else
+            {
+                return values[k];
+            }
+        }
+
+        return values[k];
+    }
+
+    /**
+     * Solves a non-negative least squares problem in the premultiplied form A'Ax - A'b, with optional equality constraints.
+     * See NonNegativeLeastSquares.solvePremultipliedWithEqualityConstraints() for the layout of the augmented system.
+     * @param augmentedATA The augmented matrix A'A (must have the size specified when this workspace was created).
+     * @param augmentedATb The augmented vector A'b.
+     * @param epsilon The allowed tolerance at which the algorithm will terminate.
+     * @return The non-negative least squares solution, augmented with the Lagrange multipliers for the equality constraints.
+     * This matrix belongs to the workspace and will be overwritten by the next call to this method.
+     */
+    public DMatrixRMaj solvePremultipliedWithEqualityConstraints(DMatrixRMaj augmentedATA, DMatrixRMaj augmentedATb, double epsilon)
+    {
+        return solvePremultipliedWithEqualityConstraints(augmentedATA, augmentedATb, epsilon, null);
+    }
+
+    /**
+     * Solves a non-negative least squares problem in the premultiplied form A'Ax - A'b, with optional equality constraints,
+     * starting from a prior solution (typically the solution to a similar system from a previous iteration).
+     * The variables that are positive in the prior solution are freed immediately rather than one per iteration,
+     * so if the prior solution has the correct set of free variables, the algorithm will terminate after a single solve.
+     * @param augmentedATA The augmented matrix A'A (must have the size specified when this workspace was created).
+     * @param augmentedATb The augmented vector A'b.
+     * @param epsilon The allowed tolerance at which the algorithm will terminate.
+     * @param initialSolution The prior solution for each (non-constraint) variable, or null to start from zero.
+     * @return The non-negative least squares solution, augmented with the Lagrange multipliers for the equality constraints.
+     * This matrix belongs to the workspace and will be overwritten by the next call to this method.
+     */
+    public DMatrixRMaj solvePremultipliedWithEqualityConstraints(DMatrixRMaj augmentedATA, DMatrixRMaj augmentedATb, double epsilon,
+        IntToDoubleFunction initialSolution)
+    {
+        if (augmentedATA.numRows != size || augmentedATA.numCols != size)
+        {
+            throw new IllegalArgumentException("A'A must be a square matrix with the same size as the workspace.");
+        }
+
+        if (augmentedATb.numCols != 1 || augmentedATb.numRows != size)
+        {
+            throw new IllegalArgumentException("A'b must be a column vector with the same number of rows as matrix A'A.");
+        }
+
+        if (epsilon <= 0.0)
+        {
+            throw new IllegalArgumentException("Epsilon must be greater than zero.");
+        }
+
+        double[] ata = augmentedATA.data;
+        double[] atb = augmentedATb.data;
+        int unconstrainedCount = passive.length;
+
+        Arrays.fill(passive, false);
+        Arrays.fill(x, 0.0);
+        System.arraycopy(atb, 0, w, 0, size);
+
+        // Keep track of the number of free variables.
+        int sizeP = 0;
+
+        int k = -1;
+        double maxW;
+
+        int iterations = 0;
+        Arrays.fill(warmStarted, false);
+        singularMatrixException = null;
+
+        if (initialSolution != null)
+        {
+            sizeP = warmStart(ata, atb, initialSolution);
+        }
+
+        int maxIterations = unconstrainedCount * unconstrainedCount; // Heuristic for how many iterations until timeout.
+
+        do
+        {
+            maxW = -1.0;
+
+            for (int i = 0; i < unconstrainedCount; i++)
+            {
+                if (!passive[i] && w[i] > maxW)
+                {
+                    k = i;
+                    maxW = w[i];
+                }
+            }
+
+            // Iterate until effectively no values of w are positive.
+            if (maxW > epsilon || sizeP == 0)
+            {
+                passive[k] = true;
+                Arrays.fill(s, 0.0);
+
+                try
+                {
+                    // Solves the system for the free variables and copies it into s.
+                    sizeP = solvePartial(ata, atb) - constraintCount;
+
+                    // Make sure that none of the free variables went negative.
+                    sizeP = restoreFeasibility(ata, atb, sizeP, k);
+
+                    if (enteringVariableDropped)
+                    {
+                        // Avoid an infinite loop; treat all remaining values in w as insignificant.
+                        maxW = 0.0;
+                    }
+                }
+                catch (SingularMatrixException e)
+                {
+                    // Leave it to the caller to report, since this may be running on a worker thread.
+                    singularMatrixException = e;
+
+                    // Roll back and finish.
+                    passive[k] = false;
+                    x[k] = 0.0;
+
+                    Arrays.fill(s, 0.0);
+                    sizeP = solvePartial(ata, atb) - constraintCount;
+
+                    // Avoid an infinite loop; treat all remaining values in w as insignificant.
+                    maxW = 0.0;
+                }
+
+                acceptPartialSolution(ata, atb);
+            }
+
+            iterations++;
+        }
+        while (sizeP < unconstrainedCount && maxW > epsilon && iterations < maxIterations);
+        // The second condition makes the loop terminate if the earlier if-statement with the same condition evaluated to false.
+
+        if (sizeP < unconstrainedCount && maxW > epsilon)
+        {
+            // Loop timed out.
+            System.err.println("Not technically a singular matrix, but NNLS failed to converge.");
+        }
+
+        iterationCount = iterations;
+
+        // Only count warm-started variables that turned out to belong in the final set of free variables.
+        warmStartCount = 0;
+        for (int i = 0; i < unconstrainedCount; i++)
+        {
+            if (passive[i] && warmStarted[i])
+            {
+                warmStartCount++;
+            }
+        }
+
+        System.arraycopy(x, 0, solution.data, 0, size);
+        return solution;
+    }
+
+    /**
+     * Gets the number of active set iterations used by the most recent solve.
+     * @return The iteration count.
+     */
+    public int getIterationCount()
+    {
+        return iterationCount;
+    }
+
+    /**
+     * Gets the number of variables that were freed immediately by the warm start in the most recent solve and were
+     * still free at the end.  Without a warm start, each of these would have required its own active set iteration,
+     * so this is a lower bound on the number of iterations saved.
+     * @return The number of warm-started variables.
+     */
+    public int getWarmStartCount()
+    {
+        return warmStartCount;
+    }
+
+    /**
+     * Gets the exception that was caught if the most recent solve ran into a singular system.
+     * In that case, the solver rolled back the last variable to be freed and returned the solution up to that point.
+     * @return The exception, or null if the system was not singular.
+     */
+    public SingularMatrixException getSingularMatrixException()
+    {
+        return singularMatrixException;
+    }
+
+    /**
+     * Frees every variable that is positive in the initial solution and then solves for those variables,
+     * moving back towards the initial solution as necessary to keep every free variable positive.
+     * If the system restricted to those variables is singular, the warm start is abandoned.
+     * @return The number of free variables after the warm start.
+     */
+    private int warmStart(double[] ata, double[] atb, IntToDoubleFunction initialSolution)
+    {
+        int count = 0;
+
+        for (int i = 0; i < passive.length; i++)
+        {
+            double value = initialSolution.applyAsDouble(i);
+
+            if (value > 0.0)
+            {
+                passive[i] = true;
+                x[i] = value;
+                count++;
+            }
+        }
+
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        Arrays.fill(s, 0.0);
+
+        try
+        {
+            int sizeP = restoreFeasibility(ata, atb, solvePartial(ata, atb) - constraintCount, -1);
+            acceptPartialSolution(ata, atb);
+            System.arraycopy(passive, 0, warmStarted, 0, passive.length);
+            return sizeP;
+        }
+        catch (SingularMatrixException e)
+        {
+            // Start from scratch instead.
+            Arrays.fill(passive, false);
+            Arrays.fill(x, 0.0);
+            System.arraycopy(atb, 0, w, 0, size);
+            return 0;
+        }
+    }
+
+    /**
+     * Moves x towards s until none of the free variables are negative, fixing variables at zero as they reach it
+     * and re-solving for the remaining free variables each time.
+     * @param sizeP The current number of free variables.
+     * @param k The variable that was most recently freed, or -1.
+     * @return The number of free variables once the solution is feasible.
+     */
+    private int restoreFeasibility(double[] ata, double[] atb, int sizeP, int k)
+    {
+        int unconstrainedCount = passive.length;
+        enteringVariableDropped = false;
+
+        while (sizeP > 0 && minPartial(sizeP) < 0.0)
+        {
+            double alpha = 1.0;
+            int j = -1;
+            for (int i = 0; i < sizeP; i++)
+            {
+                double sVal = sPartial[i];
+
+                if (sVal <= 0.0)
+                {
+                    double xVal = x[mapping[i]];
+                    double alphaCandidate = xVal / (xVal - sVal);
+                    if (alphaCandidate <= alpha)
+                    {
+                        alpha = alphaCandidate;
+                        j = mapping[i];
+                    }
+                }
+            }
+
+            // x = x + alpha * (s - x)
+            for (int i = 0; i < size; i++)
+            {
+                x[i] += alpha * (s[i] - x[i]);
+            }
+
+            // Make sure that at least one previously positive value is set to zero.
+            // Because of round-off error, this is not necessarily guaranteed.
+            passive[j] = false;
+            x[j] = 0.0;
+
+            if (j == k)
+            {
+                enteringVariableDropped = true;
+            }
+            else
+            {
+                for (int i = 0; i < unconstrainedCount; i++)
+                {
+                    if (passive[i] && x[i] <= 0.0)
+                    {
+                        passive[i] = false;
+                        x[i] = 0.0; // Just in case it went slightly negative due to round-off error.
+                    }
+                }
+            }
+
+            Arrays.fill(s, 0.0);
+            sizeP = solvePartial(ata, atb) - constraintCount;
+        }
+
+        return sizeP;
+    }
+
+    /**
+     * Sets x = s and updates the gradient w = A'b - A'A * x.
+     */
+    private void acceptPartialSolution(double[] ata, double[] atb)
+    {
+        System.arraycopy(s, 0, x, 0, size);
+
+        for (int i = 0; i < size; i++)
+        {
+            double sum = atb[i];
+            int rowStart = i * size;
+
+            for (int j = 0; j < size; j++)
+            {
+                sum -= ata[rowStart + j] * x[j];
+            }
+
+            w[i] = sum;
+        }
+    }
+
+    private double minPartial(int count)
+    {
+        double min = Double.POSITIVE_INFINITY;
+
+        for (int i = 0; i < count; i++)
+        {
+            min = Math.min(min, sPartial[i]);
+        }
+
+        return min;
+    }
+
+    /**
+     * Solves the system restricted to the free variables (and the constraints) using Gaussian elimination
+     * with partial pivoting, and copies the result into s.
+     * @return The number of variables in the restricted system, including the constraints.
+     */
+    private int solvePartial(double[] ata, double[] atb)
+    {
+        int mappingSize = 0;
+
+        for (int index = 0; index < passive.length; index++)
+        {
+            if (passive[index])
+            {
+                mapping[mappingSize] = index;
+                mappingSize++;
+            }
+        }
+
+        // Add equality constraints if there are any.
+        for (int i = size - constraintCount; i < size; i++)
+        {
+            mapping[mappingSize] = i;
+            mappingSize++;
+        }
+
+        int n = mappingSize;
+
+        // Create versions of A'A and A'b containing only the rows and columns corresponding to the free variables.
+        for (int i = 0; i < n; i++)
+        {
+            int sourceRow = mapping[i] * size;
+            sPartial[i] = atb[mapping[i]];
+
+            for (int j = 0; j < n; j++)
+            {
+                partialLHS[i * n + j] = ata[sourceRow + mapping[j]];
+            }
+        }
+
+        // Forward elimination.
+        for (int col = 0; col < n; col++)
+        {
+            int pivotRow = col;
+            double pivotMagnitude = Math.abs(partialLHS[col * n + col]);
+
+            for (int row = col + 1; row < n; row++)
+            {
+                double magnitude = Math.abs(partialLHS[row * n + col]);
+                if (magnitude > pivotMagnitude)
+                {
+                    pivotRow = row;
+                    pivotMagnitude = magnitude;
+                }
+            }
+
+            if (pivotMagnitude == 0.0)
+            {
+                throw new SingularMatrixException();
+            }
+
+            if (pivotRow != col)
+            {
+                for (int j = col; j < n; j++)
+                {
+                    double temp = partialLHS[col * n + j];
+                    partialLHS[col * n + j] = partialLHS[pivotRow * n + j];
+                    partialLHS[pivotRow * n + j] = temp;
+                }
+
+                double temp = sPartial[col];
+                sPartial[col] = sPartial[pivotRow];
+                sPartial[pivotRow] = temp;
+            }
+
+            double pivot = partialLHS[col * n + col];
+
+            for (int row = col + 1; row < n; row++)
+            {
+                double factor = partialLHS[row * n + col] / pivot;
+
+                if (factor != 0.0)
+                {
+                    for (int j = col + 1; j < n; j++)
+                    {
+                        partialLHS[row * n + j] -= factor * partialLHS[col * n + j];
+                    }
+
+                    sPartial[row] -= factor * sPartial[col];
+                }
+            }
+        }
+
+        // Back substitution.
+        for (int row = n - 1; row >= 0; row--)
+        {
+            double sum = sPartial[row];
+
+            for (int j = row + 1; j < n; j++)
+            {
+                sum -= partialLHS[row * n + j] * sPartial[j];
+            }
+
+            sPartial[row] = sum / partialLHS[row * n + row];
+        }
+
+        // Copy the solution for the free variables into a vector containing the full solution,
+        // including the variables fixed at zero.
+        for (int i = 0; i < n; i++)
+        {
+            s[mapping[i]] = sPartial[i];
+        }
+
+        return n;
+    }
+}
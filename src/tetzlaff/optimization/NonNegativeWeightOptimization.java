@@ -13,9 +13,12 @@ package tetzlaff.optimization;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.*;
 import java.util.stream.IntStream;
 
+import org.ejml.data.DMatrixRMaj;
 import org.ejml.data.SingularMatrixException;
 import org.ejml.simple.SimpleMatrix;
 import tetzlaff.ibrelight.rendering.resources.GraphicsStream;
@@ -24,8 +27,16 @@ public class NonNegativeWeightOptimization
 {
     public static final double DEFAULT_TOLERANCE_SCALE = 0.000000000001;
 
+    /**
+     * The number of systems solved by a worker thread using the same workspace.
+     */
+    private static final int BATCH_SIZE = 256;
+
     private final LeastSquaresMatrixBuilder matrixBuilder;
 
+    private long lastIterationCount;
+    private long lastIterationsSaved;
+
     public NonNegativeWeightOptimization(int sampleCount, int weightCount, List<IntToDoubleFunction> constraintWeights, List<Double> constraintsRHS)
     {
         matrixBuilder = new LeastSquaresMatrixBuilder(sampleCount, weightCount, constraintWeights, constraintsRHS);
@@ -58,16 +69,17 @@ public class NonNegativeWeightOptimization
     {
         if (dampingFactor > 0.0)
         {
+            PackedMatrixSystems systems = matrixBuilder.getSystems();
+
             for (int p = 0; p < matrixBuilder.systemCount; p++)
             {
                 for (int b = 0; b < matrixBuilder.weightCount; b++)
                 {
                     // Diagonal LHS
-                    matrixBuilder.weightsQTQAugmented[p].set(b, b,matrixBuilder.weightsQTQAugmented[p].get(b, b) + dampingFactor);
+                    systems.addToLHS(p, b, b, dampingFactor);
 
                     // RHS
-                    matrixBuilder.weightsQTrAugmented[p].set(b,
-                        matrixBuilder.weightsQTrAugmented[p].get(b) + dampingFactor * previousSolution.apply(p).applyAsDouble(b));
+                    systems.addToRHS(p, b, dampingFactor * previousSolution.apply(p).applyAsDouble(b));
                 }
             }
         }
@@ -81,27 +93,106 @@ public class NonNegativeWeightOptimization
     public void optimizeWeights(IntPredicate areWeightsValid, BiConsumer<Integer, SimpleMatrix> weightSolutionConsumer, double toleranceScale,
         int systemCount)
     {
-        for (int p = 0; p < systemCount; p++)
+        optimizeWeights(areWeightsValid, weightSolutionConsumer, toleranceScale, systemCount, null);
+    }
+
+    /**
+     * Solves the non-negative least squares system for each valid texel.
+     * Systems are solved in parallel in batches, with each batch reusing a single preallocated workspace,
+     * so the consumer may be invoked concurrently from multiple threads (but never twice for the same system).
+     * The solution matrix passed to the consumer is reused for the next system in the same batch, so it should be
+     * copied if it needs to be retained after the consumer returns.
+     * @param areWeightsValid Whether or not the system for a particular texel should be solved.
+     * @param weightSolutionConsumer Receives the solution for each system that is solved.
+     * @param toleranceScale The tolerance of the solver, relative to the median of the RHS of each system.
+     * @param systemCount The number of systems to solve, which may be less than the number allocated.
+     * @param previousSolution The solution for each system from a previous iteration, used to warm start the solver
+     *                         with the weights that were positive in that solution; may be null to start from scratch.
+     * @throws SingularMatrixException if any of the systems was singular.  This is only thrown once every batch has finished,
+     * so the consumer will still have received a (rolled back) solution for every system; any further exceptions are suppressed.
+     */
+    public void optimizeWeights(IntPredicate areWeightsValid, BiConsumer<Integer, SimpleMatrix> weightSolutionConsumer, double toleranceScale,
+        int systemCount, IntFunction<IntToDoubleFunction> previousSolution)
+    {
+        int batchCount = (systemCount + BATCH_SIZE - 1) / BATCH_SIZE;
+        int systemSize = matrixBuilder.weightCount + matrixBuilder.constraintCount;
+
+        LongAdder iterations = new LongAdder();
+        LongAdder iterationsSaved = new LongAdder();
+        AtomicReference<SingularMatrixException> singularMatrixException = new AtomicReference<>();
+
+        IntStream.range(0, batchCount).parallel().forEach(batch ->
         {
-            if (areWeightsValid.test(p))
+            NonNegativeLeastSquaresWorkspace workspace =
+                new NonNegativeLeastSquaresWorkspace(systemSize, matrixBuilder.constraintCount);
+
+            DMatrixRMaj lhs = new DMatrixRMaj(systemSize, systemSize);
+            DMatrixRMaj rhs = new DMatrixRMaj(systemSize, 1);
+
+            int batchEnd = Math.min(systemCount, (batch + 1) * BATCH_SIZE);
+            long batchIterations = 0;
+            long batchIterationsSaved = 0;
+
+            for (int p = batch * BATCH_SIZE; p < batchEnd; p++)
             {
-                // Find the median value in the RHS of the system to help calibrate the tolerance scale.
-                double median = IntStream.range(0, matrixBuilder.weightsQTrAugmented[p].getNumElements())
-                    .mapToDouble(matrixBuilder.weightsQTrAugmented[p]::get)
-                    .sorted()
-                    .skip(matrixBuilder.weightsQTrAugmented[p].getNumElements() / 2)
-                    .filter(x -> x > 0)
-                    .findFirst()
-                    .orElse(1.0);
-
-                // Solve the system.
-                weightSolutionConsumer.accept(p, NonNegativeLeastSquares.solvePremultipliedWithEqualityConstraints(
-                    matrixBuilder.weightsQTQAugmented[p], matrixBuilder.weightsQTrAugmented[p],
-                    median * toleranceScale, matrixBuilder.constraintCount));
+                if (areWeightsValid.test(p))
+                {
+                    matrixBuilder.getAugmentedLHS(p, lhs);
+                    matrixBuilder.getAugmentedRHS(p, rhs);
+
+                    // Find the median value in the RHS of the system to help calibrate the tolerance scale.
+                    double median = workspace.medianPositive(rhs);
+
+                    // Solve the system.
+                    DMatrixRMaj solution = workspace.solvePremultipliedWithEqualityConstraints(lhs, rhs, median * toleranceScale,
+                        previousSolution == null ? null : previousSolution.apply(p));
+
+                    batchIterations += workspace.getIterationCount();
+                    batchIterationsSaved += workspace.getWarmStartCount();
+
+                    SingularMatrixException e = workspace.getSingularMatrixException();
+                    if (e != null && !singularMatrixException.compareAndSet(null, e))
+                    {
+                        singularMatrixException.get().addSuppressed(e);
+                    }
+
+                    weightSolutionConsumer.accept(p, SimpleMatrix.wrap(solution));
+                }
             }
+
+            iterations.add(batchIterations);
+            iterationsSaved.add(batchIterationsSaved);
+        });
+
+        lastIterationCount = iterations.sum();
+        lastIterationsSaved = iterationsSaved.sum();
+
+        if (singularMatrixException.get() != null)
+        {
+            throw singularMatrixException.get();
         }
     }
 
+    /**
+     * Gets the total number of active set iterations used by all the systems in the most recent call to optimizeWeights().
+     * @return The iteration count.
+     */
+    public long getLastIterationCount()
+    {
+        return lastIterationCount;
+    }
+
+    /**
+     * Gets a lower bound on the number of active set iterations that were saved by warm starting in the most recent
+     * call to optimizeWeights(): the total number of weights that were freed immediately by a warm start and that
+     * remained in the final solution.
+     * @return The number of iterations saved.
+     */
+    public long getLastIterationsSaved()
+    {
+        return lastIterationsSaved;
+    }
+
     public void optimizeWeights(IntPredicate areWeightsValid, BiConsumer<Integer, SimpleMatrix> weightSolutionConsumer)
     {
         optimizeWeights(areWeightsValid, weightSolutionConsumer, DEFAULT_TOLERANCE_SCALE);
@@ -0,0 +1,290 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+
+package tetzlaff.optimization;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+import org.ejml.data.DMatrixRMaj;
+
+/**
+ * Stores the normal equations (A'A and A'b) for a large number of small least squares systems of the same size,
+ * such as one per texel.  Since A'A is symmetric, only its upper triangle is stored.
+ * The elements of each system are contiguous (the upper triangle of A'A, packed row by row, followed by A'b),
+ * so there is no per-system object overhead and adding a sample to a system touches only a few cache lines.
+ * Systems are grouped into as few buffers as possible; when the buffers would take up a large fraction of the heap,
+ * they are instead memory-mapped from a temporary file.
+ * Different systems may be updated concurrently from different threads.
+ */
+public final class PackedMatrixSystems
+{
+    /**
+     * If the buffers would take up more than this fraction of the maximum heap size, they will be memory-mapped by default.
+     */
+    private static final double MEMORY_MAP_HEAP_FRACTION = 0.25;
+
+    private final int systemCount;
+    private final int weightCount;
+    private final int packedSize;
+    private final boolean memoryMapped;
+
+    /**
+     * The number of elements stored for each system: the packed upper triangle of A'A followed by A'b.
+     */
+    private final int stride;
+
+    /**
+     * The base-2 logarithm of the number of systems in each buffer (except possibly the last one),
+     * so that finding the buffer for a system is just a shift.
+     */
+    private final int systemsPerBufferLog2;
+
+    /**
+     * The number of systems in each buffer (except possibly the last one).
+     */
+    private final int systemsPerBuffer;
+
+    /**
+     * The elements of every system, with consecutive systems stored one after another.
+     */
+    private final DoubleBuffer[] buffers;
+
+    /**
+     * Allocates storage (initialized to zero) for a number of systems, memory-mapping it if it would be too large for the heap.
+     * @param systemCount The number of systems.
+     * @param weightCount The number of unknowns in each system.
+     */
+    public PackedMatrixSystems(int systemCount, int weightCount)
+    {
+        this(systemCount, weightCount, getByteCount(systemCount, weightCount) > MEMORY_MAP_HEAP_FRACTION * Runtime.getRuntime().maxMemory());
+    }
+
+    /**
+     * Allocates storage (initialized to zero) for a number of systems.
+     * @param systemCount The number of systems.
+     * @param weightCount The number of unknowns in each system.
+     * @param memoryMapped Whether to memory-map the storage from a temporary file rather than allocating it on the heap.
+     */
+    public PackedMatrixSystems(int systemCount, int weightCount, boolean memoryMapped)
+    {
+        this.systemCount = systemCount;
+        this.weightCount = weightCount;
+        this.packedSize = weightCount * (weightCount + 1) / 2;
+        this.stride = packedSize + weightCount;
+        this.memoryMapped = memoryMapped;
+
+        // A single buffer is limited by the maximum array length on the heap, or by the maximum mapping size in bytes.
+        int maxElements = memoryMapped ? Integer.MAX_VALUE / Double.BYTES : Integer.MAX_VALUE - 8;
+        this.systemsPerBufferLog2 = 31 - Integer.numberOfLeadingZeros(Math.max(1, maxElements / stride));
+        this.systemsPerBuffer = 1 << systemsPerBufferLog2;
+
+        buffers = new DoubleBuffer[(systemCount + systemsPerBuffer - 1) / systemsPerBuffer];
+
+        if (memoryMapped)
+        {
+            mapBuffers();
+        }
+        else
+        {
+            for (int i = 0; i < buffers.length; i++)
+            {
+                buffers[i] = DoubleBuffer.allocate(getBufferSystemCount(i) * stride);
+            }
+        }
+    }
+
+    private static long getByteCount(int systemCount, int weightCount)
+    {
+        return (long) systemCount * (weightCount * (weightCount + 1) / 2 + weightCount) * Double.BYTES;
+    }
+
+    /**
+     * Gets the number of systems stored in a particular buffer.
+     */
+    private int getBufferSystemCount(int bufferIndex)
+    {
+        return Math.min(systemsPerBuffer, systemCount - bufferIndex * systemsPerBuffer);
+    }
+
+    private void mapBuffers()
+    {
+        try
+        {
+            File file = File.createTempFile("systems", ".tmp");
+            file.deleteOnExit();
+
+            // A mapping remains valid after the channel used to create it has been closed.
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+                FileChannel channel = randomAccessFile.getChannel())
+            {
+                long position = 0;
+
+                for (int i = 0; i < buffers.length; i++)
+                {
+                    long bufferBytes = (long) getBufferSystemCount(i) * stride * Double.BYTES;
+                    buffers[i] = channel.map(MapMode.READ_WRITE, position, bufferBytes).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+                    position += bufferBytes;
+                }
+            }
+
+            // This may fail on some platforms while the file is still mapped,
+            // in which case the file will be deleted when the JVM exits.
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Gets the index in the packed upper triangle for an element of A'A (the row and column may be in either order).
+     */
+    private int packedIndex(int row, int column)
+    {
+        int r = Math.min(row, column);
+        int c = Math.max(row, column);
+        return r * weightCount - r * (r - 1) / 2 + (c - r);
+    }
+
+    /**
+     * Gets the buffer containing a system.
+     */
+    private DoubleBuffer getBuffer(int system)
+    {
+        return buffers[system >>> systemsPerBufferLog2];
+    }
+
+    /**
+     * Gets the index within its buffer of the first element of a system.
+     */
+    private int getOffset(int system)
+    {
+        return (system & (systemsPerBuffer - 1)) * stride;
+    }
+
+    public int getSystemCount()
+    {
+        return systemCount;
+    }
+
+    public int getWeightCount()
+    {
+        return weightCount;
+    }
+
+    public boolean isMemoryMapped()
+    {
+        return memoryMapped;
+    }
+
+    /**
+     * Resets every system to zero.
+     */
+    public void zero()
+    {
+        for (int i = 0; i < buffers.length; i++)
+        {
+            DoubleBuffer buffer = buffers[i];
+            int elementCount = getBufferSystemCount(i) * stride;
+
+            if (buffer.hasArray())
+            {
+                Arrays.fill(buffer.array(), buffer.arrayOffset(), buffer.arrayOffset() + elementCount, 0.0);
+            }
+            else
+            {
+                for (int j = 0; j < elementCount; j++)
+                {
+                    buffer.put(j, 0.0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds to an element of A'A for a system.  Since only one triangle is stored, this also affects the transposed element.
+     * @param system The index of the system.
+     * @param row The row of the element.
+     * @param column The column of the element.
+     * @param amount The amount to add.
+     */
+    public void addToLHS(int system, int row, int column, double amount)
+    {
+        DoubleBuffer buffer = getBuffer(system);
+        int index = getOffset(system) + packedIndex(row, column);
+        buffer.put(index, buffer.get(index) + amount);
+    }
+
+    public double getLHS(int system, int row, int column)
+    {
+        return getBuffer(system).get(getOffset(system) + packedIndex(row, column));
+    }
+
+    public void addToRHS(int system, int row, double amount)
+    {
+        DoubleBuffer buffer = getBuffer(system);
+        int index = getOffset(system) + packedSize + row;
+        buffer.put(index, buffer.get(index) + amount);
+    }
+
+    public double getRHS(int system, int row)
+    {
+        return getBuffer(system).get(getOffset(system) + packedSize + row);
+    }
+
+    /**
+     * Copies A'A for a system into the top left corner of a dense matrix, filling in both triangles.
+     * @param system The index of the system.
+     * @param out The matrix to copy into, which must have at least as many rows and columns as there are weights.
+     */
+    public void copyLHS(int system, DMatrixRMaj out)
+    {
+        DoubleBuffer buffer = getBuffer(system);
+        int index = getOffset(system);
+
+        for (int row = 0; row < weightCount; row++)
+        {
+            for (int column = row; column < weightCount; column++, index++)
+            {
+                double value = buffer.get(index);
+                out.unsafe_set(row, column, value);
+                out.unsafe_set(column, row, value);
+            }
+        }
+    }
+
+    /**
+     * Copies A'b for a system into the top of a dense column vector.
+     * @param system The index of the system.
+     * @param out The vector to copy into, which must have at least as many rows as there are weights.
+     */
+    public void copyRHS(int system, DMatrixRMaj out)
+    {
+        DoubleBuffer buffer = getBuffer(system);
+        int index = getOffset(system) + packedSize;
+
+        for (int row = 0; row < weightCount; row++)
+        {
+            out.unsafe_set(row, 0, buffer.get(index + row));
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+
+package tetzlaff.optimization;
+
+/**
+ * A least squares model that can also be evaluated without allocating an object for each sample or basis function.
+ * When a model implements this interface, LeastSquaresMatrixBuilder will call evaluate() with scratch arrays owned
+ * by the builder rather than calling getSampleWeight(), getSamples() and getBasisFunctions().
+ * Both ways of evaluating the model must give the same results.
+ * @param <S> The type of the data bundles coming from the graphics stream.
+ * @param <T> The type of a sample and the evaluated basis functions when using the generic (object-based) methods.
+ */
+public interface PrimitiveLeastSquaresModel<S, T> extends LeastSquaresModel<S, T>
+{
+    /**
+     * Gets the number of components of each sample and each evaluated basis function
+     * (for instance, 3 for a color with red, green, and blue components).
+     * The inner product used by the builder is the sum of the products of the corresponding components.
+     * @return The number of components.
+     */
+    int getSampleDimensions();
+
+    /**
+     * Evaluates the weight, the samples, and every basis function for a particular system.
+     * It can be assumed that if this function is being evaluated, isValid(sampleData, systemIndex) is true.
+     * @param sampleData The bundled input data
+     * @param systemIndex The index of the system for which to evaluate the model.
+     * @param samples An array to be filled with the components of the samples (the "ground truth" data),
+     *                with a length of at least getSampleDimensions().
+     * @param basisValues An array to be filled with the components of each evaluated basis function,
+     *                    where component c of basis function b is stored at index b * getSampleDimensions() + c.
+     *                    The length is at least getBasisFunctionCount() * getSampleDimensions().
+     * @return The weight for all of the samples in the current data bundle for the specified system.
+     */
+    double evaluate(S sampleData, int systemIndex, double[] samples, double[] basisValues);
+}
@@ -0,0 +1,443 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+
+package tetzlaff.optimization;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.FMatrixRMaj;
+import org.ejml.dense.row.SingularOps_DDRM;
+import org.ejml.dense.row.factory.DecompositionFactory_DDRM;
+import org.ejml.interfaces.decomposition.QRDecomposition;
+import org.ejml.interfaces.decomposition.SingularValueDecomposition_F64;
+import org.ejml.simple.SimpleMatrix;
+
+import static org.ejml.dense.row.CommonOps_DDRM.*;
+
+/**
+ * Randomized SVD for when only a few singular values are needed, computing all of them together rather than one at a time.
+ * A random projection finds an orthonormal basis Q for (approximately) the range of the matrix,
+ * optionally refined by a few power iterations, and then a small dense SVD of Q'A gives the singular vectors.
+ * See Halko et al., "Finding Structure with Randomness: Probabilistic Algorithms for Constructing Approximate Matrix Decompositions."
+ * The matrix is read one block of columns at a time from a ColumnSource, so it does not need to fit in memory,
+ * and the products with each block are computed in parallel.
+ */
+public final class RandomizedPartialSVD
+{
+    /**
+     * A matrix that can be read one block of columns at a time.
+     */
+    public interface ColumnSource
+    {
+        int getRowCount();
+
+        int getColumnCount();
+
+        /**
+         * Reads a block of consecutive columns.
+         * @param start The index of the first column to read.
+         * @param count The number of columns to read.
+         * @param out An array to be filled with the columns, in column-major order
+         *            (element i of column start + c is at index c * getRowCount() + i).
+         */
+        void readColumns(int start, int count, float[] out);
+    }
+
+    public static final int DEFAULT_OVERSAMPLING = 10;
+    public static final int DEFAULT_POWER_ITERATIONS = 2;
+
+    /**
+     * The approximate number of matrix elements in each block of columns that is read at once.
+     */
+    private static final int BLOCK_ELEMENTS = 1 << 24;
+
+    /**
+     * The number of rows processed by a single task when computing a product with a block of columns.
+     */
+    private static final int ROW_CHUNK_SIZE = 4096;
+
+    private final SimpleMatrix u;
+    private final SimpleMatrix v;
+    private final double[] singularValues;
+
+    private RandomizedPartialSVD(SimpleMatrix u, SimpleMatrix v, double[] singularValues)
+    {
+        this.u = u;
+        this.v = v;
+        this.singularValues = singularValues;
+    }
+
+    public SimpleMatrix getU()
+    {
+        return u;
+    }
+
+    public SimpleMatrix getV()
+    {
+        return v;
+    }
+
+    public double[] getSingularValues()
+    {
+        return Arrays.copyOf(singularValues, singularValues.length);
+    }
+
+    /**
+     * Wraps a matrix that is already in memory so that it can be decomposed.
+     * @param matrix The matrix.
+     * @return A column source that reads from the matrix.
+     */
+    public static ColumnSource fromMatrix(SimpleMatrix matrix)
+    {
+        return new ColumnSource()
+        {
+            @Override
+            public int getRowCount()
+            {
+                return matrix.numRows();
+            }
+
+            @Override
+            public int getColumnCount()
+            {
+                return matrix.numCols();
+            }
+
+            @Override
+            public void readColumns(int start, int count, float[] out)
+            {
+                int rowCount = matrix.numRows();
+                int columnCount = matrix.numCols();
+
+                if (matrix.getMatrix() instanceof FMatrixRMaj)
+                {
+                    // Read the row-major array directly rather than through get().
+                    float[] data = ((FMatrixRMaj) matrix.getMatrix()).data;
+
+                    for (int i = 0; i < rowCount; i++)
+                    {
+                        for (int c = 0; c < count; c++)
+                        {
+                            out[c * rowCount + i] = data[i * columnCount + start + c];
+                        }
+                    }
+                }
+                else if (matrix.getMatrix() instanceof DMatrixRMaj)
+                {
+                    double[] data = ((DMatrixRMaj) matrix.getMatrix()).data;
+
+                    for (int i = 0; i < rowCount; i++)
+                    {
+                        for (int c = 0; c < count; c++)
+                        {
+                            out[c * rowCount + i] = (float) data[i * columnCount + start + c];
+                        }
+                    }
+                }
+                else
+                {
+                    for (int c = 0; c < count; c++)
+                    {
+                        for (int i = 0; i < rowCount; i++)
+                        {
+                            out[c * rowCount + i] = (float) matrix.get(i, start + c);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Streams a matrix from a file of 32-bit floats stored one column after another, with no header.
+     * @param file The file containing the matrix.
+     * @param rowCount The number of rows in the matrix (the length of each column).
+     * @param columnCount The number of columns in the matrix.
+     * @param byteOrder The byte order of the floats in the file.
+     * @return A column source that reads from the file.
+     */
+    public static ColumnSource fromFile(File file, int rowCount, int columnCount, ByteOrder byteOrder)
+    {
+        return new ColumnSource()
+        {
+            @Override
+            public int getRowCount()
+            {
+                return rowCount;
+            }
+
+            @Override
+            public int getColumnCount()
+            {
+                return columnCount;
+            }
+
+            @Override
+            public void readColumns(int start, int count, float[] out)
+            {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(count * rowCount * Float.BYTES).order(byteOrder);
+
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+                {
+                    long position = (long) start * rowCount * Float.BYTES;
+
+                    while (buffer.hasRemaining())
+                    {
+                        if (channel.read(buffer, position + buffer.position()) < 0)
+                        {
+                            throw new IOException("Unexpected end of file: " + file);
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new UncheckedIOException(e);
+                }
+
+                buffer.flip();
+                buffer.asFloatBuffer().get(out, 0, count * rowCount);
+            }
+        };
+    }
+
+    public static RandomizedPartialSVD compute(SimpleMatrix matrix, int singularValueCount)
+    {
+        return compute(fromMatrix(matrix), singularValueCount);
+    }
+
+    public static RandomizedPartialSVD compute(ColumnSource matrix, int singularValueCount)
+    {
+        return compute(matrix, singularValueCount, DEFAULT_OVERSAMPLING, DEFAULT_POWER_ITERATIONS, 0L);
+    }
+
+    /**
+     * Computes a partial SVD.
+     * @param matrix The matrix to decompose.
+     * @param singularValueCount The number of singular values and vectors to compute.
+     * @param oversampling The number of extra random samples of the range to take, which improves accuracy.
+     * @param powerIterations The number of power iterations used to refine the basis for the range,
+     *                        which improves accuracy when the singular values decay slowly.
+     *                        Each iteration requires two additional passes over the matrix.
+     * @param seed The seed for the random projection.
+     * @return The partial SVD.
+     */
+    public static RandomizedPartialSVD compute(ColumnSource matrix, int singularValueCount, int oversampling, int powerIterations, long seed)
+    {
+        int rowCount = matrix.getRowCount();
+        int columnCount = matrix.getColumnCount();
+
+        if (singularValueCount <= 0 || singularValueCount > Math.min(rowCount, columnCount))
+        {
+            throw new IllegalArgumentException("Singular value count must be positive and no greater than the smaller dimension of the matrix.");
+        }
+        else if (oversampling < 0 || powerIterations < 0)
+        {
+            throw new IllegalArgumentException("Oversampling and power iterations must not be negative.");
+        }
+
+        int sampleCount = Math.min(singularValueCount + oversampling, Math.min(rowCount, columnCount));
+
+        // Random Gaussian test matrix (one row per column of the matrix).
+        Random random = new Random(seed);
+        DMatrixRMaj omega = new DMatrixRMaj(columnCount, sampleCount);
+        for (int i = 0; i < omega.data.length; i++)
+        {
+            omega.data[i] = random.nextGaussian();
+        }
+
+        BlockProducts products = new BlockProducts(matrix, sampleCount);
+
+        // Range finder: Q = orth(A * omega), refined by power iterations Q = orth(A * orth(A' * Q)).
+        DMatrixRMaj q = orthonormalize(products.multiply(omega));
+
+        for (int iteration = 0; iteration < powerIterations; iteration++)
+        {
+            q = orthonormalize(products.multiply(orthonormalize(products.multiplyTransposed(q))));
+        }
+
+        // B = Q'A, so B' = A'Q, which is only as wide as the number of samples.
+        DMatrixRMaj bTranspose = products.multiplyTransposed(q);
+
+        // If B' = U_b * S * V_b', then A ~ Q * B = (Q * V_b) * S * U_b'.
+        SingularValueDecomposition_F64<DMatrixRMaj> svd =
+            DecompositionFactory_DDRM.svd(bTranspose.numRows, bTranspose.numCols, true, true, true);
+
+        if (!svd.decompose(bTranspose))
+        {
+            throw new IllegalStateException("SVD of the projected matrix failed.");
+        }
+
+        DMatrixRMaj uB = svd.getU(null, false);
+        DMatrixRMaj vB = svd.getV(null, false);
+        DMatrixRMaj w = svd.getW(null);
+        SingularOps_DDRM.descendingOrder(uB, false, w, vB, false);
+
+        DMatrixRMaj vTruncated = extract(uB, 0, uB.numRows, 0, singularValueCount);
+        DMatrixRMaj uTruncated = new DMatrixRMaj(rowCount, singularValueCount);
+        mult(q, extract(vB, 0, vB.numRows, 0, singularValueCount), uTruncated);
+
+        double[] singularValues = new double[singularValueCount];
+        for (int k = 0; k < singularValueCount; k++)
+        {
+            singularValues[k] = w.get(k, k);
+        }
+
+        return new RandomizedPartialSVD(SimpleMatrix.wrap(uTruncated), SimpleMatrix.wrap(vTruncated), singularValues);
+    }
+
+    private static DMatrixRMaj orthonormalize(DMatrixRMaj matrix)
+    {
+        QRDecomposition<DMatrixRMaj> qr = DecompositionFactory_DDRM.qr(matrix.numRows, matrix.numCols);
+
+        if (!qr.decompose(matrix))
+        {
+            throw new IllegalStateException("QR decomposition failed.");
+        }
+
+        return qr.getQ(null, true);
+    }
+
+    /**
+     * Computes products of the matrix with tall, thin dense matrices in a single pass over the columns.
+     */
+    private static final class BlockProducts
+    {
+        private final ColumnSource matrix;
+        private final int rowCount;
+        private final int columnCount;
+        private final int width;
+        private final int blockColumns;
+        private final float[] block;
+
+        BlockProducts(ColumnSource matrix, int width)
+        {
+            this.matrix = matrix;
+            this.rowCount = matrix.getRowCount();
+            this.columnCount = matrix.getColumnCount();
+            this.width = width;
+            this.blockColumns = Math.max(1, Math.min(columnCount, BLOCK_ELEMENTS / rowCount));
+            this.block = new float[blockColumns * rowCount];
+        }
+
+        private int getRowChunkCount()
+        {
+            return (rowCount + ROW_CHUNK_SIZE - 1) / ROW_CHUNK_SIZE;
+        }
+
+        /**
+         * Computes A * x, where x has one row for each column of A.
+         */
+        DMatrixRMaj multiply(DMatrixRMaj x)
+        {
+            DMatrixRMaj result = new DMatrixRMaj(rowCount, width);
+            double[] y = result.data;
+
+            for (int start = 0; start < columnCount; start += blockColumns)
+            {
+                int count = Math.min(blockColumns, columnCount - start);
+                matrix.readColumns(start, count, block);
+                int blockStart = start;
+
+                // Each task owns a range of rows of the result.
+                IntStream.range(0, getRowChunkCount()).parallel().forEach(chunk ->
+                {
+                    int rowStart = chunk * ROW_CHUNK_SIZE;
+                    int rowEnd = Math.min(rowCount, rowStart + ROW_CHUNK_SIZE);
+
+                    for (int c = 0; c < count; c++)
+                    {
+                        int xOffset = (blockStart + c) * width;
+
+                        for (int i = rowStart; i < rowEnd; i++)
+                        {
+                            double a = block[c * rowCount + i];
+
+                            if (a != 0.0)
+                            {
+                                int yOffset = i * width;
+                                for (int j = 0; j < width; j++)
+                                {
+                                    y[yOffset + j] += a * x.data[xOffset + j];
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+
+            return result;
+        }
+
+        /**
+         * Computes A' * q, where q has one row for each row of A.
+         */
+        DMatrixRMaj multiplyTransposed(DMatrixRMaj q)
+        {
+            DMatrixRMaj result = new DMatrixRMaj(columnCount, width);
+            int chunkCount = getRowChunkCount();
+            double[][] partials = new double[chunkCount][blockColumns * width];
+
+            for (int start = 0; start < columnCount; start += blockColumns)
+            {
+                int count = Math.min(blockColumns, columnCount - start);
+                matrix.readColumns(start, count, block);
+
+                // Each task computes the contribution of a range of rows, which are then added in order.
+                IntStream.range(0, chunkCount).parallel().forEach(chunk ->
+                {
+                    double[] partial = partials[chunk];
+                    Arrays.fill(partial, 0.0);
+
+                    int rowStart = chunk * ROW_CHUNK_SIZE;
+                    int rowEnd = Math.min(rowCount, rowStart + ROW_CHUNK_SIZE);
+
+                    for (int c = 0; c < count; c++)
+                    {
+                        for (int i = rowStart; i < rowEnd; i++)
+                        {
+                            double a = block[c * rowCount + i];
+
+                            if (a != 0.0)
+                            {
+                                int qOffset = i * width;
+                                for (int j = 0; j < width; j++)
+                                {
+                                    partial[c * width + j] += a * q.data[qOffset + j];
+                                }
+                            }
+                        }
+                    }
+                });
+
+                for (double[] partial : partials)
+                {
+                    for (int k = 0; k < count * width; k++)
+                    {
+                        result.data[start * width + k] += partial[k];
+                    }
+                }
+            }
+
+            return result;
+        }
+    }
+}
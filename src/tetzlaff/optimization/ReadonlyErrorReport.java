@@ -15,6 +15,8 @@ public class ReadonlyErrorReport
 {
     private double previousError = Double.POSITIVE_INFINITY;
     private double error = Double.POSITIVE_INFINITY;
+    private double previousUncertainty = 0.0;
+    private double uncertainty = 0.0;
     private final int sampleCount;
 
     public ReadonlyErrorReport(int sampleCount)
@@ -32,17 +34,36 @@ public class ReadonlyErrorReport
         return error;
     }
 
+    /**
+     * If the error was estimated from a random subset of the samples, the half-width of the confidence interval
+     * for the estimate; zero if the error was calculated exactly.
+     * @return The uncertainty of the stochastic error estimate, in terms of its standard error
+     * (scaled to the half-width of the confidence interval), or 0 if the estimate was exhaustive.
+     */
+    public double getUncertainty()
+    {
+        return uncertainty;
+    }
+
     public int getSampleCount() { return sampleCount; }
 
     protected void setError(double newError)
+    {
+        setError(newError, 0.0);
+    }
+
+    protected void setError(double newError, double newUncertainty)
     {
         this.previousError = this.error;
+        this.previousUncertainty = this.uncertainty;
         this.error = newError;
+        this.uncertainty = newUncertainty;
     }
 
     protected void reject()
     {
         // Roll back to previous error calculation.
         error = previousError;
+        uncertainty = previousUncertainty;
     }
 }
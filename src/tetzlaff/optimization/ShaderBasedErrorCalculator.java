@@ -16,12 +16,33 @@ import java.util.stream.IntStream;
 import tetzlaff.gl.core.Context;
 import tetzlaff.gl.core.Drawable;
 import tetzlaff.gl.core.Framebuffer;
+import tetzlaff.gl.core.FramebufferSize;
 import tetzlaff.gl.core.PrimitiveMode;
 
 public class ShaderBasedErrorCalculator
 {
+    /**
+     * Width and height of the tiles that are read back from the framebuffer when estimating the error.
+     */
+    private static final int TILE_SIZE = 32;
+
+    /**
+     * Number of horizontal bands of tiles from which tiles are sampled.
+     */
+    private static final int STRATA_COUNT = 16;
+
+    /**
+     * Number of tiles sampled from each band.
+     */
+    private static final int TILES_PER_STRATUM = 8;
+
     private final ErrorReport report;
 
+    private boolean stochasticEstimationEnabled = false;
+    private long seed = 0;
+    private StochasticErrorEstimator estimator;
+    private FramebufferSize estimatorSize;
+
     public ShaderBasedErrorCalculator(int sampleCount)
     {
         this.report = new ErrorReport(sampleCount);
@@ -45,7 +66,93 @@ public class ShaderBasedErrorCalculator
         }
     }
 
+    /**
+     * Enables estimating the error from a random sample of tiles of the framebuffer when the full error isn't needed
+     * to decide whether a new solution is better or worse than the previous one
+     * (see update(Drawable, Framebuffer, double)), to avoid reading back and reducing the entire framebuffer.
+     * @param seed The seed for the random number generator used to choose tiles.
+     */
+    public void enableStochasticEstimation(long seed)
+    {
+        this.stochasticEstimationEnabled = true;
+        this.seed = seed;
+        this.estimator = null;
+    }
+
     public <ContextType extends Context<ContextType>> void update(Drawable<ContextType> drawable, Framebuffer<ContextType> framebuffer)
+    {
+        render(drawable, framebuffer);
+        updateFull(framebuffer);
+    }
+
+    /**
+     * Updates the error for a new solution that will be accepted or rejected based on whether the error got worse,
+     * and counted as progress based on whether it improved by more than the convergence tolerance.
+     * If stochastic estimation is enabled, the error is estimated from a random sample of tiles of the framebuffer,
+     * and the full framebuffer is only read back if the estimate is too uncertain to make either decision.
+     * @param drawable The drawable for the error calculation program.
+     * @param framebuffer The framebuffer in which to calculate the per-pixel error.
+     * @param convergenceTolerance The minimum improvement in error that counts as progress.
+     * @param <ContextType> The type of the graphics context.
+     */
+    public <ContextType extends Context<ContextType>> void update(Drawable<ContextType> drawable, Framebuffer<ContextType> framebuffer,
+        double convergenceTolerance)
+    {
+        render(drawable, framebuffer);
+
+        if (stochasticEstimationEnabled)
+        {
+            FramebufferSize size = framebuffer.getSize();
+            int tileColumns = (size.width + TILE_SIZE - 1) / TILE_SIZE;
+            int tileRows = (size.height + TILE_SIZE - 1) / TILE_SIZE;
+
+            if (estimator == null || estimatorSize.width != size.width || estimatorSize.height != size.height)
+            {
+                // Tiles are numbered in row-major order so that each stratum is a horizontal band.
+                estimator = new StochasticErrorEstimator(tileColumns * tileRows, STRATA_COUNT, TILES_PER_STRATUM, seed);
+                estimatorSize = size;
+            }
+
+            if (!estimator.isExhaustive())
+            {
+                int[] sample = estimator.drawSample();
+                double[] errors = new double[sample.length];
+                double[] weights = new double[sample.length];
+
+                for (int j = 0; j < sample.length; j++)
+                {
+                    int x = (sample[j] % tileColumns) * TILE_SIZE;
+                    int y = (sample[j] / tileColumns) * TILE_SIZE;
+
+                    // Copy only the tile from GPU to main memory.
+                    float[] tileErrors = framebuffer.readFloatingPointColorBufferRGBA(0, x, y,
+                        Math.min(TILE_SIZE, size.width - x), Math.min(TILE_SIZE, size.height - y));
+
+                    for (int p = 0; p < tileErrors.length / 4; p++)
+                    {
+                        if (tileErrors[4 * p + 3] > 0)
+                        {
+                            errors[j] += tileErrors[4 * p];
+                            weights[j] += tileErrors[4 * p + 3];
+                        }
+                    }
+                }
+
+                StochasticErrorEstimator.Estimate estimate = estimator.estimate(errors, weights);
+
+                if (!StochasticErrorEstimator.isDecisionAmbiguous(estimate, report, convergenceTolerance))
+                {
+                    report.setError(estimate.getError(), estimate.getUncertainty());
+                    return;
+                }
+            }
+        }
+
+        // Too close to call (or not estimating); use the full error.
+        updateFull(framebuffer);
+    }
+
+    private <ContextType extends Context<ContextType>> void render(Drawable<ContextType> drawable, Framebuffer<ContextType> framebuffer)
     {
         // Clear framebuffer
         framebuffer.clearDepthBuffer();
@@ -53,7 +160,10 @@ public class ShaderBasedErrorCalculator
 
         // Run shader program to fill framebuffer with per-pixel error.
         drawable.draw(PrimitiveMode.TRIANGLES, framebuffer);
+    }
 
+    private <ContextType extends Context<ContextType>> void updateFull(Framebuffer<ContextType> framebuffer)
+    {
         // Copy framebuffer from GPU to main memory.
         float[] pixelErrors = framebuffer.readFloatingPointColorBufferRGBA(0);
 
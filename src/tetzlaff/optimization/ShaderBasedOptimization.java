@@ -12,6 +12,7 @@
 package tetzlaff.optimization;
 
 import java.io.FileNotFoundException;
+import java.io.UncheckedIOException;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.Objects;
@@ -30,12 +31,16 @@ import tetzlaff.gl.core.*;
  */
 public class ShaderBasedOptimization<ContextType extends Context<ContextType>> implements AutoCloseable
 {
-    private final Program<ContextType> estimationProgram;
+    // The program and drawable are created the first time the optimization runs, so that the framebuffers can be used
+    // on their own (i.e. to hold a solution computed on the CPU) without a context that supports shaders.
+    private final ProgramBuilder<ContextType> estimationProgramBuilder;
+    private final Function<Program<ContextType>, Drawable<ContextType>> drawableFactory;
+    private Program<ContextType> estimationProgram;
+    private Drawable<ContextType> estimationDrawable;
+
     private final FramebufferObject<ContextType> framebuffer1;
     private final FramebufferObject<ContextType> framebuffer2;
 
-    private final Drawable<ContextType> estimationDrawable;
-
     // References to the two framebuffers that can swap (double-buffering)
     private FramebufferObject<ContextType> frontFramebuffer;
     private FramebufferObject<ContextType> backFramebuffer;
@@ -52,8 +57,8 @@ public class ShaderBasedOptimization<ContextType extends Context<ContextType>> i
         Function<Program<ContextType>, Drawable<ContextType>> drawableFactory)
         throws FileNotFoundException
     {
-        // Normal estimation program
-        estimationProgram = estimationProgramBuilder.createProgram();
+        this.estimationProgramBuilder = estimationProgramBuilder;
+        this.drawableFactory = drawableFactory;
 
         // Framebuffers (double-buffered) for estimating normals on the GPU
         framebuffer1 = framebufferObjectBuilder.createFramebufferObject();
@@ -65,8 +70,6 @@ public class ShaderBasedOptimization<ContextType extends Context<ContextType>> i
         // Double buffering since we need the previous normal estimate to generate the next normal estimate.
         frontFramebuffer = framebuffer1;
         backFramebuffer = framebuffer2;
-
-        estimationDrawable = drawableFactory.apply(estimationProgram);
     }
 
     /**
@@ -77,7 +80,10 @@ public class ShaderBasedOptimization<ContextType extends Context<ContextType>> i
         if (!finished)
         {
             // We're done with the estimation program.
-            estimationProgram.close();
+            if (estimationProgram != null)
+            {
+                estimationProgram.close();
+            }
 
             // Close only the back framebuffer as we are done fitting but may still use the front framebuffer as a texture.
             backFramebuffer.close();
@@ -88,7 +94,7 @@ public class ShaderBasedOptimization<ContextType extends Context<ContextType>> i
     @Override
     public void close()
     {
-        if (!finished)
+        if (!finished && estimationProgram != null)
         {
             estimationProgram.close();
         }
@@ -129,6 +135,20 @@ public class ShaderBasedOptimization<ContextType extends Context<ContextType>> i
             throw new IllegalStateException("Attempt to run optimization after finish() has been called.");
         }
 
+        if (estimationProgram == null)
+        {
+            try
+            {
+                estimationProgram = estimationProgramBuilder.createProgram();
+            }
+            catch (FileNotFoundException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+
+            estimationDrawable = drawableFactory.apply(estimationProgram);
+        }
+
         // Opportunity to set up shader parameters and uniform inputs and clear the framebuffer if necessary.
         for (BiConsumer<Program<ContextType>, FramebufferObject<ContextType>> callback : setupCallbacks)
         {
@@ -0,0 +1,280 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.optimization;
+
+import java.util.Random;
+
+/**
+ * Estimates a weighted RMS error (the square root of total squared error over total weight) from a stratified random sample
+ * of "units" (i.e. texels or tiles of texels) rather than from every unit, along with a confidence interval for the estimate.
+ * The units are split into strata of consecutive indices, and the same number of distinct units is drawn from each stratum,
+ * so that spatially coherent regions of a texture are all represented in every sample.
+ * The confidence interval is used to decide whether an error is clearly better or worse than a previous error;
+ * only if the decision is ambiguous does the full error need to be calculated.
+ * The random number generator is seeded so that the same sequence of samples is drawn on every run with the same seed.
+ */
+public class StochasticErrorEstimator
+{
+    /**
+     * Number of standard errors on either side of an estimate for the confidence interval (about 99.7% for a normal distribution).
+     */
+    private static final double CONFIDENCE_Z = 3.0;
+
+    private final int unitCount;
+    private final int strataCount;
+    private final int unitsPerStratum;
+    private final Random random;
+
+    /**
+     * The result of estimating the error from a sample.
+     */
+    public static final class Estimate
+    {
+        private final double error;
+        private final double lowerBound;
+        private final double upperBound;
+
+        private Estimate(double error, double lowerBound, double upperBound)
+        {
+            this.error = error;
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+        }
+
+        /**
+         * @return The estimated RMS error.
+         */
+        public double getError()
+        {
+            return error;
+        }
+
+        /**
+         * @return The lower bound of the confidence interval for the RMS error.
+         */
+        public double getLowerBound()
+        {
+            return lowerBound;
+        }
+
+        /**
+         * @return The upper bound of the confidence interval for the RMS error.
+         */
+        public double getUpperBound()
+        {
+            return upperBound;
+        }
+
+        /**
+         * @return The largest distance from the estimate to either bound of the confidence interval.
+         */
+        public double getUncertainty()
+        {
+            return Math.max(error - lowerBound, upperBound - error);
+        }
+
+        /**
+         * Whether it is unclear if the RMS error is above or below the specified threshold,
+         * given the confidence interval for this estimate widened by the uncertainty of the threshold itself
+         * (i.e. if the threshold was derived from another estimate).
+         * @param threshold The error threshold for a decision.
+         * @param thresholdUncertainty The uncertainty of the threshold, or zero if it is exact.
+         * @return true if the threshold lies within the widened confidence interval.
+         */
+        public boolean isAmbiguous(double threshold, double thresholdUncertainty)
+        {
+            return !Double.isFinite(error) || Double.isFinite(threshold)
+                && threshold >= lowerBound - thresholdUncertainty && threshold <= upperBound + thresholdUncertainty;
+        }
+    }
+
+    /**
+     * Creates an estimator.
+     * @param unitCount The total number of units.
+     * @param strataCount The number of strata into which the units are split.
+     *                    This is reduced if necessary so that every stratum contains at least unitsPerStratum units.
+     * @param unitsPerStratum The number of units drawn from each stratum; at least two so that the variance can be estimated.
+     * @param seed The seed for the random number generator.
+     */
+    public StochasticErrorEstimator(int unitCount, int strataCount, int unitsPerStratum, long seed)
+    {
+        if (unitCount <= 0 || strataCount <= 0)
+        {
+            throw new IllegalArgumentException("Unit count and strata count must be positive.");
+        }
+
+        if (unitsPerStratum < 2)
+        {
+            throw new IllegalArgumentException("At least two units must be drawn from each stratum.");
+        }
+
+        this.unitCount = unitCount;
+        this.strataCount = Math.max(1, Math.min(strataCount, unitCount / unitsPerStratum));
+        this.unitsPerStratum = Math.min(unitsPerStratum, unitCount);
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @return The number of units in each sample; less than the total number of units unless the units are too few to sample.
+     */
+    public int getSampleSize()
+    {
+        return strataCount * unitsPerStratum;
+    }
+
+    /**
+     * @return Whether a sample would contain every unit, in which case the full error might as well be calculated.
+     */
+    public boolean isExhaustive()
+    {
+        return getSampleSize() >= unitCount;
+    }
+
+    /**
+     * @return A random number generator that can be used to subsample within the units of a sample.
+     */
+    public Random getRandom()
+    {
+        return random;
+    }
+
+    private int getStratumStart(int stratum)
+    {
+        return (int)((long)stratum * unitCount / strataCount);
+    }
+
+    /**
+     * Draws a new stratified sample of distinct units.
+     * @return The indices of the units in the sample, grouped by stratum, with unitsPerStratum units from each stratum.
+     */
+    public int[] drawSample()
+    {
+        int[] sample = new int[getSampleSize()];
+
+        for (int h = 0; h < strataCount; h++)
+        {
+            int start = getStratumStart(h);
+            int size = getStratumStart(h + 1) - start;
+
+            // Floyd's algorithm for choosing distinct indices within the stratum.
+            for (int j = 0; j < unitsPerStratum; j++)
+            {
+                int candidate = random.nextInt(size - unitsPerStratum + j + 1);
+
+                for (int k = 0; k < j; k++)
+                {
+                    if (sample[h * unitsPerStratum + k] == start + candidate)
+                    {
+                        candidate = size - unitsPerStratum + j;
+                        break;
+                    }
+                }
+
+                sample[h * unitsPerStratum + j] = start + candidate;
+            }
+        }
+
+        return sample;
+    }
+
+    /**
+     * Estimates the RMS error from the squared error and weight totals of each unit in a sample.
+     * The squared error over weight ratio is estimated using the stratified totals, and its variance is estimated by linearization,
+     * treating each unit as a cluster (so that any subsampling within the units contributes to the measured variance).
+     * @param errors The total squared error of each unit in the sample, in the same order as returned by drawSample().
+     * @param weights The total weight of each unit in the sample, in the same order as returned by drawSample().
+     * @return The estimate with its confidence interval.
+     */
+    public Estimate estimate(double[] errors, double[] weights)
+    {
+        if (errors.length != getSampleSize() || weights.length != getSampleSize())
+        {
+            throw new IllegalArgumentException("Sample totals do not match the sample size.");
+        }
+
+        double errorTotal = 0.0;
+        double weightTotal = 0.0;
+
+        for (int h = 0; h < strataCount; h++)
+        {
+            double expansion = (double)(getStratumStart(h + 1) - getStratumStart(h)) / unitsPerStratum;
+
+            for (int j = h * unitsPerStratum; j < (h + 1) * unitsPerStratum; j++)
+            {
+                errorTotal += expansion * errors[j];
+                weightTotal += expansion * weights[j];
+            }
+        }
+
+        if (weightTotal <= 0.0)
+        {
+            return new Estimate(Double.NaN, Double.NaN, Double.NaN);
+        }
+
+        double ratio = errorTotal / weightTotal;
+        double ratioVariance = 0.0;
+
+        for (int h = 0; h < strataCount; h++)
+        {
+            int stratumSize = getStratumStart(h + 1) - getStratumStart(h);
+
+            // A single unit can only be drawn when there are too few units to sample (i.e. only one unit in total),
+            // so the stratum is exhaustive and contributes no variance (and the sample variance would divide by zero).
+            if (unitsPerStratum < 2 || stratumSize <= unitsPerStratum)
+            {
+                continue;
+            }
+
+            // Residuals of the linearized ratio: e - R * w
+            double mean = 0.0;
+            for (int j = h * unitsPerStratum; j < (h + 1) * unitsPerStratum; j++)
+            {
+                mean += errors[j] - ratio * weights[j];
+            }
+            mean /= unitsPerStratum;
+
+            double sumSquares = 0.0;
+            for (int j = h * unitsPerStratum; j < (h + 1) * unitsPerStratum; j++)
+            {
+                double deviation = errors[j] - ratio * weights[j] - mean;
+                sumSquares += deviation * deviation;
+            }
+
+            double sampleVariance = sumSquares / (unitsPerStratum - 1);
+            double finitePopulationCorrection = 1.0 - (double)unitsPerStratum / stratumSize;
+            ratioVariance += (double)stratumSize * stratumSize * finitePopulationCorrection * sampleVariance / unitsPerStratum;
+        }
+
+        ratioVariance /= weightTotal * weightTotal;
+
+        double halfWidth = CONFIDENCE_Z * Math.sqrt(ratioVariance);
+        return new Estimate(Math.sqrt(ratio), Math.sqrt(Math.max(0.0, ratio - halfWidth)), Math.sqrt(ratio + halfWidth));
+    }
+
+    /**
+     * Whether an estimated error is close enough to the thresholds used for accepting or rejecting a new solution
+     * that the full error should be calculated before deciding:
+     * either the threshold for the error getting worse (the previous error)
+     * or the threshold for counting as an improvement (the previous error minus the convergence tolerance).
+     * @param estimate The estimate for the new solution.
+     * @param previous The error report for the previous solution.
+     * @param convergenceTolerance The minimum improvement in error that counts as progress.
+     * @return true if either decision is ambiguous, or if there is no previous error,
+     * in which case the full error should be calculated to provide an exact baseline for later decisions.
+     */
+    public static boolean isDecisionAmbiguous(Estimate estimate, ReadonlyErrorReport previous, double convergenceTolerance)
+    {
+        return !Double.isFinite(previous.getError())
+            || estimate.isAmbiguous(previous.getError(), previous.getUncertainty())
+            || estimate.isAmbiguous(previous.getError() - convergenceTolerance, previous.getUncertainty());
+    }
+}
@@ -183,8 +183,7 @@ public class GeneralizedSmoothStepBasis implements BasisFunctions
                                 + (1 - metallicity) * sums.getWeightedAnalytic(b1, b2));
 
                     // The matrix is symmetric so we also need to swap row and column and update that way.
-                    fittingSystem.addToLHS(i, b2, constNonConstCrossCoeff);
-                    fittingSystem.addToLHS(b2, i, constNonConstCrossCoeff);
+                    fittingSystem.addToLHSSymmetric(i, b2, constNonConstCrossCoeff);
 
 
                     // Bottom right partition of the matrix: row and column both correspond to non-constant:
@@ -210,16 +209,15 @@ public class GeneralizedSmoothStepBasis implements BasisFunctions
 
                     // Matrix coefficients where row is in the transition range but column isn't, and vice-versa.
                     // Need to consider every library function that comes after transitionEnd.
-                    for (int k2 = transitionEnd + 1; k2 < resolution; k2++) {
-                        int j = instanceCount * (k2 + 1) + b2;
-
+                    if (transitionEnd + 1 < resolution)
+                    {
                         double coeff = lerpHelper(fLower, fUpper,
                                 sums.getWeightedAnalyticSquaredBlended(b1, b2),
                                 sums.getWeightedAnalyticSquared(b1, b2));
 
                         // The matrix is symmetric so we also need to swap row and column and update that way.
-                        fittingSystem.addToLHS(i, j, coeff);
-                        fittingSystem.addToLHS(j, i, coeff);
+                        fittingSystem.addToLHSSymmetricStrided(i, instanceCount * (transitionEnd + 2) + b2, instanceCount,
+                                resolution - transitionEnd - 1, coeff);
                     }
                 }
             }
@@ -245,12 +243,9 @@ public class GeneralizedSmoothStepBasis implements BasisFunctions
                     // Top right and bottom left partitions of the matrix:
                     // row corresponds to diffuse coefficients and column corresponds to specular, or vice-versa.
                     // The matrix is symmetric so we also need to swap row and column and update that way.
-                    fittingSystem.addToLHS(i, b2,
+                    fittingSystem.addToLHSSymmetric(i, b2,
                             metallicity * sums.getWeightedAnalyticSquaredCumulative(b1, b2)
                                     + (1 - metallicity) * sums.getWeightedAnalyticCumulative(b1, b2));
-                    fittingSystem.addToLHS(b2, i,
-                            metallicity * sums.getWeightedAnalyticSquaredCumulative(b2, b1)
-                                    + (1 - metallicity) * sums.getWeightedAnalyticCumulative(b2, b1));
 
                     // Bottom right partition of the matrix: row and column both correspond to specular.
 
@@ -262,15 +257,10 @@ public class GeneralizedSmoothStepBasis implements BasisFunctions
                     // Visit every element of the microfacet distribution that comes after m1.
                     // This is because the form of ATA is such that the values in the matrix are determined by the lower
                     // of the two values.
-                    for (int m2 = m1 + 1; m2 < resolution; m2++)
-                    {
-                        j = instanceCount * (m2 + 1) + b2;
-
-                        // Add the current running total to the appropriate location in the matrix.
-                        // The matrix is symmetric so we also need to swap row and column and update that way.
-                        fittingSystem.addToLHS(i, j, sums.getWeightedAnalyticSquaredCumulative(b1, b2));
-                        fittingSystem.addToLHS(j, i, sums.getWeightedAnalyticSquaredCumulative(b2, b1));
-                    }
+                    // Add the current running total to the appropriate location in the matrix.
+                    // The matrix is symmetric so we also need to swap row and column and update that way.
+                    fittingSystem.addToLHSSymmetricStrided(i, instanceCount * (m1 + 2) + b2, instanceCount,
+                            resolution - m1 - 1, sums.getWeightedAnalyticSquaredCumulative(b1, b2));
                 }
             }
         }
@@ -13,6 +13,7 @@ package tetzlaff.optimization.function;
 
 import tetzlaff.optimization.MatrixSystem;
 
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.stream.Stream;
 
@@ -42,6 +43,24 @@ public class MatrixBuilder
 
     private final MatrixBuilderSums sums;
 
+    /**
+     * Running total of the contributions to the top left partition of the LHS matrix, where row and column both
+     * correspond to constant-term coefficients.  Since this partition is symmetric, only the upper triangle is stored
+     * (packed row by row).  These are added to the matrix system once all samples have been processed.
+     */
+    private final double[] constantTermLHS;
+
+    /**
+     * Running total of the contributions to the RHS for the constant-term coefficients,
+     * with instanceCount consecutive elements per observation.
+     */
+    private final double[] constantTermRHS;
+
+    /**
+     * Scratch space used to unpack the weights of a MatrixBuilderSample.
+     */
+    private final double[] sampleWeights;
+
     /**
      * Stores both the LHS and RHS of the system to be solved.
      * LHS = A'A
@@ -86,6 +105,9 @@ public class MatrixBuilder
 
         // Initialize running totals
         sums = new MatrixBuilderSums(instanceCount, observationCount);
+        constantTermLHS = new double[instanceCount * (instanceCount + 1) / 2];
+        constantTermRHS = new double[observationCount * instanceCount];
+        sampleWeights = new double[instanceCount];
     }
 
     /**=
@@ -152,6 +174,63 @@ public class MatrixBuilder
         finish();
     }
 
+    /**
+     * Builds the matrix from a collection of samples stored in primitive arrays.
+     * The samples will be binned using a counting sort and then applied to the matrix system,
+     * without creating any objects for individual samples.
+     * This function should only be called once per instance of this class.
+     * @param samples The samples to process.
+     */
+    public void build(MatrixBuilderSamples samples)
+    {
+        if (samples.getInstanceCount() != instanceCount || samples.getObservationCount() != observationCount)
+        {
+            throw new IllegalArgumentException("The samples do not have the same number of instances and observations as the matrix builder.");
+        }
+
+        int domainSize = basisLibrary.getOptimizedDomainSize();
+        int[] order = samples.sortByFloor(domainSize);
+        double[] weights = samples.getWeightArray();
+        double[] observed = samples.getObservedArray();
+
+        int floorPrevious = 0;
+
+        for (int k = 0; k < samples.size(); k++)
+        {
+            int index = order[k];
+            int floor = samples.getFloor(index);
+            double actual = samples.getActual(index);
+            double analytic = samples.getAnalytic(index);
+            double sampleWeight = samples.getSampleWeight(index);
+            int weightOffset = index * instanceCount;
+            int observedOffset = index * observationCount;
+
+            // Same logic as processSample(), but reading from the primitive arrays.
+            if (floor > floorPrevious)
+            {
+                basisLibrary.contributeToFittingSystem(floorPrevious, floor, instanceCount, sums, contribution);
+                sums.clearNonCumulativeSums();
+            }
+
+            if (actual < domainSize)
+            {
+                double blendingWeight = Math.max(0.0, 1.0 + floor - actual);
+                sums.accept(analytic, sampleWeight, blendingWeight, weights, weightOffset, observed, observedOffset);
+            }
+
+            accumulateConstantTerm(getConstantTerm(analytic), sampleWeight, weights, weightOffset, observed, observedOffset);
+
+            floorPrevious = floor;
+        }
+
+        if (samples.size() > 0)
+        {
+            basisLibrary.contributeToFittingSystem(floorPrevious, domainSize - 1, instanceCount, sums, contribution);
+        }
+
+        flushConstantTerm();
+    }
+
     /**
      * Processes an individual sample and adds its contributions to the running totals.
      * When the sample's "bin" changes, these running totals will be applied to the matrix system.
@@ -180,9 +259,6 @@ public class MatrixBuilder
             sums.clearNonCumulativeSums();
         }
 
-        double constantTerm = getConstantTerm(sample.analytic);
-        double constantTermSquared = constantTerm * constantTerm;
-
         if (sample.inOptimizedDomain)
         {
             // Update running totals
@@ -190,28 +266,15 @@ public class MatrixBuilder
             sums.accept(sample);
         }
 
-        // Regardless of whether sample.floor changed: Update for constant term,
-        // where no work is saved by deferring the update to the matrix or vector.
+        // Regardless of whether sample.floor changed: Update running totals for the constant term,
+        // which will be added to the matrix and vector once all samples have been processed.
         for (int b1 = 0; b1 < instanceCount; b1++)
         {
-            // Update to ATy
-            for (int i = 0; i < observationCount; i++)
-            {
-                contribution.addToRHS(b1, i, sample.weightByInstance.applyAsDouble(b1)
-                        * sample.sampleWeight * sample.observed[i] * constantTerm);
-            }
-
-            for (int b2 = 0; b2 < instanceCount; b2++)
-            {
-                // Updates to ATA
-                // Top left partition of the matrix: row and column both correspond to constant-term coefficients
-                // (i.e. diffuse for reflectance)
-                double weightProduct = sample.weightByInstance.applyAsDouble(b1)
-                        * sample.weightByInstance.applyAsDouble(b2) * sample.sampleWeight;
-                contribution.addToLHS(b1, b2, weightProduct * constantTermSquared);
-            }
+            sampleWeights[b1] = sample.weightByInstance.applyAsDouble(b1);
         }
 
+        accumulateConstantTerm(getConstantTerm(sample.analytic), sample.sampleWeight, sampleWeights, 0, sample.observed, 0);
+
         // Update reference to previous sample.
         samplePrevious = sample;
     }
@@ -229,5 +292,68 @@ public class MatrixBuilder
             basisLibrary.contributeToFittingSystem(samplePrevious.floor,
                     basisLibrary.getOptimizedDomainSize() - 1, instanceCount, sums, contribution);
         }
+
+        flushConstantTerm();
+    }
+
+    /**
+     * Adds a sample's contribution to the running totals for the constant term.
+     * @param constantTerm The constant term evaluated for the sample.
+     * @param sampleWeight A weight for the sample (in the sense of weighted least squares).
+     * @param weightByInstance An array containing the weight of each basis function for the sample.
+     * @param weightOffset The index in weightByInstance of the weight for the first basis function.
+     * @param observed An array containing the observations for the sample.
+     * @param observedOffset The index in observed of the first observation.
+     */
+    private void accumulateConstantTerm(double constantTerm, double sampleWeight,
+                                        double[] weightByInstance, int weightOffset, double[] observed, int observedOffset)
+    {
+        double constantTermSquared = constantTerm * constantTerm;
+        int p = 0; // Index in the packed upper triangle.
+
+        for (int b1 = 0; b1 < instanceCount; b1++)
+        {
+            double weightedSample = weightByInstance[weightOffset + b1] * sampleWeight;
+
+            // Update to ATy
+            double weightedConstantTerm = weightedSample * constantTerm;
+            for (int i = 0, q = b1; i < observationCount; i++, q += instanceCount)
+            {
+                constantTermRHS[q] += weightedConstantTerm * observed[observedOffset + i];
+            }
+
+            // Updates to ATA
+            // Top left partition of the matrix: row and column both correspond to constant-term coefficients
+            // (i.e. diffuse for reflectance)
+            double weightedConstantTermSquared = weightedSample * constantTermSquared;
+            for (int b2 = b1; b2 < instanceCount; b2++, p++)
+            {
+                constantTermLHS[p] += weightedConstantTermSquared * weightByInstance[weightOffset + b2];
+            }
+        }
+    }
+
+    /**
+     * Adds the running totals for the constant term to the matrix system.
+     */
+    private void flushConstantTerm()
+    {
+        int p = 0;
+
+        for (int b1 = 0; b1 < instanceCount; b1++)
+        {
+            for (int i = 0, q = b1; i < observationCount; i++, q += instanceCount)
+            {
+                contribution.addToRHS(b1, i, constantTermRHS[q]);
+            }
+
+            for (int b2 = b1; b2 < instanceCount; b2++, p++)
+            {
+                contribution.addToLHSSymmetric(b1, b2, constantTermLHS[p]);
+            }
+        }
+
+        Arrays.fill(constantTermLHS, 0.0);
+        Arrays.fill(constantTermRHS, 0.0);
     }
 }
@@ -0,0 +1,287 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+
+package tetzlaff.optimization.function;
+
+import java.util.Arrays;
+
+/**
+ * A reusable collection of samples for optimization problems where the goal is to find a set of optimal basis functions
+ * which are themselves in turn a linear combination of an underlying set of "library" basis functions.
+ * This holds the same information as a list of MatrixBuilderSample objects, but stores it in parallel primitive arrays
+ * so that no objects need to be created for each sample.  The arrays only ever grow, so an instance can be cleared
+ * and refilled many times (i.e. once per view) without any further allocation once it is large enough.
+ */
+public class MatrixBuilderSamples
+{
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * The number of "instances" being optimized in the fitting system.
+     */
+    private final int instanceCount;
+
+    /**
+     * The number of RHS observations per sample, i.e. the number of channels (like R,G,B for color).
+     */
+    private final int observationCount;
+
+    /**
+     * The number of samples currently stored.
+     */
+    private int size;
+
+    /**
+     * The actual value of the parameter serving as the input to the function being optimized, for each sample.
+     */
+    private double[] actual;
+
+    /**
+     * The analytic factor evaluated for each sample.
+     */
+    private double[] analytic;
+
+    /**
+     * A weight for each sample (in the sense of weighted least squares).
+     */
+    private double[] sampleWeight;
+
+    /**
+     * The weight of each basis function to be optimized, with instanceCount consecutive elements per sample.
+     */
+    private double[] weightByInstance;
+
+    /**
+     * The observations (i.e. an RGB color), with observationCount consecutive elements per sample.
+     */
+    private double[] observed;
+
+    /**
+     * Scratch space used by MatrixBuilder to store the bin of each sample.
+     */
+    private int[] floor;
+
+    /**
+     * Scratch space used by MatrixBuilder to store the order in which to visit the samples.
+     */
+    private int[] order;
+
+    /**
+     * Scratch space used by MatrixBuilder to store the start of each bin; grows to fit the largest domain that has been sorted.
+     */
+    private int[] binStart = new int[0];
+
+    /**
+     * Creates an empty collection of samples.
+     * @param instanceCount The number of "instances" being optimized in the fitting system.
+     * @param observationCount The number of RHS observations per sample, i.e. the number of channels (like R,G,B for color).
+     */
+    public MatrixBuilderSamples(int instanceCount, int observationCount)
+    {
+        this.instanceCount = instanceCount;
+        this.observationCount = observationCount;
+        allocate(DEFAULT_CAPACITY);
+    }
+
+    private void allocate(int capacity)
+    {
+        actual = new double[capacity];
+        analytic = new double[capacity];
+        sampleWeight = new double[capacity];
+        weightByInstance = new double[capacity * instanceCount];
+        observed = new double[capacity * observationCount];
+        floor = new int[capacity];
+        order = new int[capacity];
+    }
+
+    /**
+     * Ensures that the specified number of samples can be stored without reallocating any arrays.
+     * Any samples that are currently stored will be preserved.
+     * @param capacity The number of samples that should fit.
+     */
+    public void ensureCapacity(int capacity)
+    {
+        if (capacity > actual.length)
+        {
+            int newCapacity = Math.max(capacity, actual.length + (actual.length >> 1));
+
+            actual = Arrays.copyOf(actual, newCapacity);
+            analytic = Arrays.copyOf(analytic, newCapacity);
+            sampleWeight = Arrays.copyOf(sampleWeight, newCapacity);
+            weightByInstance = Arrays.copyOf(weightByInstance, newCapacity * instanceCount);
+            observed = Arrays.copyOf(observed, newCapacity * observationCount);
+            floor = new int[newCapacity];
+            order = new int[newCapacity];
+        }
+    }
+
+    /**
+     * Removes all samples without releasing any memory.
+     */
+    public void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * Adds a new sample.
+     * The weights and observations for the new sample should then be filled in using setWeight() and setObserved().
+     * @param actualValue The actual value of the parameter serving as the input to the function being optimized.
+     * @param analyticValue The analytic factor evaluated for the sample.
+     * @param weight A weight for the sample (in the sense of weighted least squares).
+     * @return The index of the new sample.
+     */
+    public int add(double actualValue, double analyticValue, double weight)
+    {
+        ensureCapacity(size + 1);
+
+        int index = size;
+        actual[index] = actualValue;
+        analytic[index] = analyticValue;
+        sampleWeight[index] = weight;
+        size++;
+        return index;
+    }
+
+    /**
+     * Sets the weight of a basis function to be optimized for a particular sample.
+     * @param sampleIndex The index of the sample.
+     * @param instanceIndex The index of the basis function.
+     * @param weight The weight of the basis function for the sample.
+     */
+    public void setWeight(int sampleIndex, int instanceIndex, double weight)
+    {
+        weightByInstance[sampleIndex * instanceCount + instanceIndex] = weight;
+    }
+
+    /**
+     * Sets an observation (i.e. a color channel) for a particular sample.
+     * @param sampleIndex The index of the sample.
+     * @param observationIndex The index of the observation.
+     * @param value The observed value.
+     */
+    public void setObserved(int sampleIndex, int observationIndex, double value)
+    {
+        observed[sampleIndex * observationCount + observationIndex] = value;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int getInstanceCount()
+    {
+        return instanceCount;
+    }
+
+    public int getObservationCount()
+    {
+        return observationCount;
+    }
+
+    public double getActual(int sampleIndex)
+    {
+        return actual[sampleIndex];
+    }
+
+    public double getAnalytic(int sampleIndex)
+    {
+        return analytic[sampleIndex];
+    }
+
+    public double getSampleWeight(int sampleIndex)
+    {
+        return sampleWeight[sampleIndex];
+    }
+
+    public double getWeight(int sampleIndex, int instanceIndex)
+    {
+        return weightByInstance[sampleIndex * instanceCount + instanceIndex];
+    }
+
+    public double getObserved(int sampleIndex, int observationIndex)
+    {
+        return observed[sampleIndex * observationCount + observationIndex];
+    }
+
+    /**
+     * Gets the backing array of weights, with instanceCount consecutive elements per sample.
+     * @return The weights array, which may be longer than the number of samples.
+     */
+    double[] getWeightArray()
+    {
+        //noinspection AssignmentOrReturnOfFieldWithMutableType
+        return weightByInstance;
+    }
+
+    /**
+     * Gets the backing array of observations, with observationCount consecutive elements per sample.
+     * @return The observations array, which may be longer than the number of samples.
+     */
+    double[] getObservedArray()
+    {
+        //noinspection AssignmentOrReturnOfFieldWithMutableType
+        return observed;
+    }
+
+    /**
+     * Sorts the samples into bins using a counting sort (which is O(n) since the number of bins is small and fixed).
+     * Samples are not moved; instead, the returned array lists the sample indices in ascending order of their bins.
+     * The order of samples within a bin is unspecified, which is fine since the contributions of samples in the same
+     * bin are simply added together.
+     * @param domainSize The number of bins; samples at or beyond the last bin are placed in the last bin
+     *                   (and samples before the first bin are placed in the first bin).
+     * @return An array of sample indices in bin order; only the first size() elements are meaningful.
+     */
+    int[] sortByFloor(int domainSize)
+    {
+        if (binStart.length < domainSize + 1)
+        {
+            binStart = new int[domainSize + 1];
+        }
+        else
+        {
+            Arrays.fill(binStart, 0, domainSize + 1, 0);
+        }
+
+        for (int k = 0; k < size; k++)
+        {
+            int bin = Math.max(0, Math.min(domainSize - 1, (int) Math.floor(actual[k])));
+            floor[k] = bin;
+            binStart[bin + 1]++;
+        }
+
+        for (int bin = 0; bin < domainSize; bin++)
+        {
+            binStart[bin + 1] += binStart[bin];
+        }
+
+        for (int k = 0; k < size; k++)
+        {
+            order[binStart[floor[k]]++] = k;
+        }
+
+        //noinspection AssignmentOrReturnOfFieldWithMutableType
+        return order;
+    }
+
+    /**
+     * Gets the bin of a sample, as computed by the most recent call to sortByFloor().
+     * @param sampleIndex The index of the sample.
+     * @return The bin that the sample falls into.
+     */
+    int getFloor(int sampleIndex)
+    {
+        return floor[sampleIndex];
+    }
+}
@@ -11,9 +11,6 @@
 
 package tetzlaff.optimization.function;
 
-import org.ejml.data.DMatrixRMaj;
-import org.ejml.simple.SimpleMatrix;
-
 import java.util.Arrays;
 
 /**
@@ -25,69 +22,89 @@ import java.util.Arrays;
  * w_b are weights, which are assumed to be fixed for this step.
  * g is an analytic function, which is assumed to be fixed for this step.
  * y is the observed value to be fitted to.
+ * The totals for each pair of basis functions are symmetric, so only the upper triangle is stored (packed row by row)
+ * and only computed once for each pair.
  */
 public class MatrixBuilderSums
 {
+    /**
+     * The number of function "instances" being optimized.
+     */
+    private final int instanceCount;
+
+    /**
+     * The number of observations for each sample (i.e. 3 for RGB colors)
+     */
+    private final int observationCount;
+
     /**
      * Stores a running total (for each pair of basis functions) of the weighted sum of analytic functions.
      * This total will NOT be cleared when clearNonCumulativeSums() is called.
      */
-    private final SimpleMatrix weightedAnalyticCumulative;
+    private final double[] weightedAnalyticCumulative;
+
     /**
      * Stores a running total (for each pair of basis functions) of the weighted sum of analytic functions.
      * This total WILL be cleared when clearNonCumulativeSums() is called.
      */
-    private final SimpleMatrix weightedAnalytic;
+    private final double[] weightedAnalytic;
 
     /**
      * Stores a running total (for each pair of basis functions) of the weighted sum of analytic functions.
      * This total WILL be cleared when clearNonCumulativeSums() is called.
      */
-    private final SimpleMatrix weightedAnalyticBlended;
+    private final double[] weightedAnalyticBlended;
 
     /**
      * Stores a running total (for each pair of basis functions) of the weighted sum of squared analytic functions.
      * This total will NOT be cleared when clearNonCumulativeSums() is called.
      */
-    private final SimpleMatrix weightedAnalyticSquaredCumulative;
+    private final double[] weightedAnalyticSquaredCumulative;
 
     /**
      * Stores a running total (for each pair of basis functions) of the weighted sum of squared analytic functions.
      * This total WILL be cleared when clearNonCumulativeSums() is called.
      */
-    private final SimpleMatrix weightedAnalyticSquared;
+    private final double[] weightedAnalyticSquared;
 
     /**
      *  Stores a running total (for each pair of basis functions) of the weighted sum of squared analytic functions
      *  with additional linear interpolation weights.
      * This total WILL be cleared when clearNonCumulativeSums() is called.
      */
-    private final SimpleMatrix weightedAnalyticSquaredBlended;
+    private final double[] weightedAnalyticSquaredBlended;
     /**
      *  Stores a running total (for each pair of basis functions) of the weighted sum of squared analytic functions
      *  with additional linear interpolation weights which are squared (i.e. multiplication by t^2).
      * This total WILL be cleared when clearNonCumulativeSums() is called.
      */
-    private final SimpleMatrix weightedAnalyticSquaredBlendedSquared;
+    private final double[] weightedAnalyticSquaredBlendedSquared;
 
     /**
-     * Stores a running total (for each basis function) of the weighted sum of observed values times the analytic function.
+     * Stores a running total (for each observation and basis function) of the weighted sum of observed values times
+     * the analytic function.
      * This total will NOT be cleared when clearNonCumulativeSums() is called.
      */
-    private final SimpleMatrix[] weightedAnalyticTimesObservedCumulative;
+    private final double[] weightedAnalyticTimesObservedCumulative;
 
     /**
-     * Stores a running total (for each basis function) of the weighted sum of observed values times the analytic function.
+     * Stores a running total (for each observation and basis function) of the weighted sum of observed values times
+     * the analytic function.
      * This total WILL be cleared when clearNonCumulativeSums() is called.
      */
-    private final SimpleMatrix[] weightedAnalyticTimesObserved;
+    private final double[] weightedAnalyticTimesObserved;
 
     /**
-     * Stores a running total (for each basis function) of the weighted sum of observed values times the analytic function
-     * with additional linear interpolation weights.
+     * Stores a running total (for each observation and basis function) of the weighted sum of observed values times
+     * the analytic function with additional linear interpolation weights.
      * This total WILL be cleared when clearNonCumulativeSums() is called.
      */
-    private final SimpleMatrix[] weightedAnalyticTimesObservedBlended;
+    private final double[] weightedAnalyticTimesObservedBlended;
+
+    /**
+     * Scratch space used to unpack the weights of a MatrixBuilderSample.
+     */
+    private final double[] sampleWeights;
 
     /**
      * Initialize running totals.
@@ -97,58 +114,95 @@ public class MatrixBuilderSums
      */
     public MatrixBuilderSums(int instanceCount, int observationCount)
     {
-        weightedAnalyticCumulative = new SimpleMatrix(instanceCount, instanceCount, DMatrixRMaj.class);
-        weightedAnalytic = new SimpleMatrix(instanceCount, instanceCount, DMatrixRMaj.class);
-        weightedAnalyticBlended = new SimpleMatrix(instanceCount, instanceCount, DMatrixRMaj.class);
-        weightedAnalyticSquaredCumulative = new SimpleMatrix(instanceCount, instanceCount, DMatrixRMaj.class);
-        weightedAnalyticSquared = new SimpleMatrix(instanceCount, instanceCount, DMatrixRMaj.class);
-        weightedAnalyticSquaredBlended = new SimpleMatrix(instanceCount, instanceCount, DMatrixRMaj.class);
-        weightedAnalyticSquaredBlendedSquared = new SimpleMatrix(instanceCount, instanceCount, DMatrixRMaj.class);
-
-        weightedAnalyticTimesObservedCumulative = new SimpleMatrix[observationCount];
-        Arrays.setAll(weightedAnalyticTimesObservedCumulative, i -> new SimpleMatrix(instanceCount, 1, DMatrixRMaj.class));
-
-        weightedAnalyticTimesObserved = new SimpleMatrix[observationCount];
-        Arrays.setAll(weightedAnalyticTimesObserved, i -> new SimpleMatrix(instanceCount, 1, DMatrixRMaj.class));
-
-        weightedAnalyticTimesObservedBlended = new SimpleMatrix[observationCount];
-        Arrays.setAll(weightedAnalyticTimesObservedBlended, i -> new SimpleMatrix(instanceCount, 1, DMatrixRMaj.class));
+        this.instanceCount = instanceCount;
+        this.observationCount = observationCount;
+
+        int packedSize = instanceCount * (instanceCount + 1) / 2;
+
+        weightedAnalyticCumulative = new double[packedSize];
+        weightedAnalytic = new double[packedSize];
+        weightedAnalyticBlended = new double[packedSize];
+        weightedAnalyticSquaredCumulative = new double[packedSize];
+        weightedAnalyticSquared = new double[packedSize];
+        weightedAnalyticSquaredBlended = new double[packedSize];
+        weightedAnalyticSquaredBlendedSquared = new double[packedSize];
+
+        weightedAnalyticTimesObservedCumulative = new double[observationCount * instanceCount];
+        weightedAnalyticTimesObserved = new double[observationCount * instanceCount];
+        weightedAnalyticTimesObservedBlended = new double[observationCount * instanceCount];
+
+        sampleWeights = new double[instanceCount];
+    }
+
+    /**
+     * Gets the index in the packed upper triangle for a pair of basis functions (in either order).
+     */
+    private int packedIndex(int row, int column)
+    {
+        int r = Math.min(row, column);
+        int c = Math.max(row, column);
+        return r * instanceCount - r * (r - 1) / 2 + (c - r);
     }
 
     public void accept(MatrixBuilderSample sample)
     {
-        int instanceCount = weightedAnalyticCumulative.numRows();
+        for (int b = 0; b < instanceCount; b++)
+        {
+            sampleWeights[b] = sample.weightByInstance.applyAsDouble(b);
+        }
+
+        accept(sample.analytic, sample.sampleWeight, sample.blendingWeight, sampleWeights, 0, sample.observed, 0);
+    }
+
+    /**
+     * Updates the running totals for a single sample that is stored in primitive form rather than as a MatrixBuilderSample.
+     * @param analytic The analytic factor evaluated for the sample.
+     * @param sampleWeight A weight for the sample (in the sense of weighted least squares).
+     * @param blendingWeight The linear interpolation weight for the sample (see MatrixBuilderSample.blendingWeight).
+     * @param weightByInstance An array containing the weight of each basis function for the sample.
+     * @param weightOffset The index in weightByInstance of the weight for the first basis function.
+     * @param observed An array containing the observations for the sample.
+     * @param observedOffset The index in observed of the first observation.
+     */
+    public void accept(double analytic, double sampleWeight, double blendingWeight,
+                       double[] weightByInstance, int weightOffset, double[] observed, int observedOffset)
+    {
+        int p = 0; // Index in the packed upper triangle.
 
         for (int b1 = 0; b1 < instanceCount; b1++)
         {
-            double singleWeightedAnalyticSample = sample.analytic * sample.weightByInstance.applyAsDouble(b1) * sample.sampleWeight;
+            double singleWeightedAnalyticSample = analytic * weightByInstance[weightOffset + b1] * sampleWeight;
 
-            for (int i = 0; i < weightedAnalyticTimesObservedCumulative.length; i++)
+            for (int i = 0, q = b1; i < observationCount; i++, q += instanceCount)
             {
-                double weightedAnalyticTimesObservedSample = singleWeightedAnalyticSample * sample.observed[i];
-                addWeightedAnalyticTimesObserved(i, b1, weightedAnalyticTimesObservedSample);
-                addWeightedAnalyticTimesObservedBlended(i, b1, sample.blendingWeight * weightedAnalyticTimesObservedSample);
+                double weightedAnalyticTimesObservedSample = singleWeightedAnalyticSample * observed[observedOffset + i];
+                weightedAnalyticTimesObserved[q] += weightedAnalyticTimesObservedSample;
+                weightedAnalyticTimesObservedCumulative[q] += weightedAnalyticTimesObservedSample;
+                weightedAnalyticTimesObservedBlended[q] += blendingWeight * weightedAnalyticTimesObservedSample;
             }
 
-            for (int b2 = 0; b2 < instanceCount; b2++)
+            // Only visit the upper triangle since all the totals are symmetric.
+            for (int b2 = b1; b2 < instanceCount; b2++, p++)
             {
                 // Update non-squared totals without blending weight.
-                double weightedAnalyticSample = singleWeightedAnalyticSample * sample.weightByInstance.applyAsDouble(b2);
-                addWeightedAnalytic(b1, b2, weightedAnalyticSample);
+                double weightedAnalyticSample = singleWeightedAnalyticSample * weightByInstance[weightOffset + b2];
+                weightedAnalytic[p] += weightedAnalyticSample;
+                weightedAnalyticCumulative[p] += weightedAnalyticSample;
 
                 // Update non-squared total with blending weight.
-                addWeightedAnalyticBlended(b1, b2, sample.blendingWeight * weightedAnalyticSample);
+                weightedAnalyticBlended[p] += blendingWeight * weightedAnalyticSample;
 
                 // Update squared totals without blending weight.
-                double weightedAnalyticSquared = weightedAnalyticSample * sample.analytic;
-                addWeightedAnalyticSquared(b1, b2, weightedAnalyticSquared);
+                double weightedAnalyticSquaredSample = weightedAnalyticSample * analytic;
+                weightedAnalyticSquared[p] += weightedAnalyticSquaredSample;
+                weightedAnalyticSquaredCumulative[p] += weightedAnalyticSquaredSample;
 
                 // Update squared total with blending weight.
-                double weightedAnalyticSquaredBlendedSample = sample.blendingWeight * weightedAnalyticSquared;
-                addWeightedAnalyticSquaredBlended(b1, b2, weightedAnalyticSquaredBlendedSample);
+                double weightedAnalyticSquaredBlendedSample = blendingWeight * weightedAnalyticSquaredSample;
+                weightedAnalyticSquaredBlended[p] += weightedAnalyticSquaredBlendedSample;
 
                 // Update squared total with blending weight squared.
-                addWeightedAnalyticSquaredBlendedSquared(b1, b2, sample.blendingWeight * weightedAnalyticSquaredBlendedSample);
+                weightedAnalyticSquaredBlendedSquared[p] += blendingWeight * weightedAnalyticSquaredBlendedSample;
             }
         }
     }
@@ -160,108 +214,63 @@ public class MatrixBuilderSums
      */
     public void clearNonCumulativeSums()
     {
-        weightedAnalytic.zero();
-        weightedAnalyticBlended.zero();
-        weightedAnalyticSquared.zero();
-        weightedAnalyticSquaredBlended.zero();
-        weightedAnalyticSquaredBlendedSquared.zero();
-        for (SimpleMatrix vector : weightedAnalyticTimesObserved)
-        {
-            vector.zero();
-        }
-        for (SimpleMatrix vector : weightedAnalyticTimesObservedBlended)
-        {
-            vector.zero();
-        }
+        Arrays.fill(weightedAnalytic, 0.0);
+        Arrays.fill(weightedAnalyticBlended, 0.0);
+        Arrays.fill(weightedAnalyticSquared, 0.0);
+        Arrays.fill(weightedAnalyticSquaredBlended, 0.0);
+        Arrays.fill(weightedAnalyticSquaredBlendedSquared, 0.0);
+        Arrays.fill(weightedAnalyticTimesObserved, 0.0);
+        Arrays.fill(weightedAnalyticTimesObservedBlended, 0.0);
     }
 
     public double getWeightedAnalyticCumulative(int row, int column)
     {
-        return weightedAnalyticCumulative.get(row, column);
+        return weightedAnalyticCumulative[packedIndex(row, column)];
     }
 
     public double getWeightedAnalytic(int row, int column)
     {
-        return weightedAnalytic.get(row, column);
+        return weightedAnalytic[packedIndex(row, column)];
     }
 
     public double getWeightedAnalyticBlended(int row, int column)
     {
-        return weightedAnalyticBlended.get(row, column);
+        return weightedAnalyticBlended[packedIndex(row, column)];
     }
 
     public double getWeightedAnalyticSquaredCumulative(int row, int column)
     {
-        return weightedAnalyticSquaredCumulative.get(row, column);
+        return weightedAnalyticSquaredCumulative[packedIndex(row, column)];
     }
 
     public double getWeightedAnalyticSquared(int row, int column)
     {
-        return weightedAnalyticSquared.get(row, column);
+        return weightedAnalyticSquared[packedIndex(row, column)];
     }
 
     public double getWeightedAnalyticSquaredBlended(int row, int column)
     {
-        return weightedAnalyticSquaredBlended.get(row, column);
+        return weightedAnalyticSquaredBlended[packedIndex(row, column)];
     }
 
     public double getWeightedAnalyticSquaredBlendedSquared(int row, int column)
     {
-        return weightedAnalyticSquaredBlendedSquared.get(row, column);
+        return weightedAnalyticSquaredBlendedSquared[packedIndex(row, column)];
     }
 
     public double getWeightedAnalyticTimesObservedCumulative(int observationIndex, int instanceIndex)
     {
-        return weightedAnalyticTimesObservedCumulative[observationIndex].get(instanceIndex, 0);
+        return weightedAnalyticTimesObservedCumulative[observationIndex * instanceCount + instanceIndex];
     }
 
     public double getWeightedAnalyticTimesObserved(int observationIndex, int instanceIndex)
     {
-        return weightedAnalyticTimesObserved[observationIndex].get(instanceIndex, 0);
+        return weightedAnalyticTimesObserved[observationIndex * instanceCount + instanceIndex];
     }
 
     public double getWeightedAnalyticTimesObservedBlended(int observationIndex, int instanceIndex)
     {
-        return weightedAnalyticTimesObservedBlended[observationIndex].get(instanceIndex, 0);
-    }
-
-    /**
-     * Updates both cumulative and non-cumulative totals.
-     * @param row
-     * @param column
-     * @param amount
-     */
-    private void addWeightedAnalytic(int row, int column, double amount)
-    {
-        weightedAnalytic.set(row, column, weightedAnalytic.get(row, column) + amount);
-        weightedAnalyticCumulative.set(row, column, weightedAnalyticCumulative.get(row, column) + amount);
-    }
-
-    private void addWeightedAnalyticBlended(int row, int column, double amount)
-    {
-        weightedAnalyticBlended.set(row, column, weightedAnalyticBlended.get(row, column) + amount);
-    }
-
-    /**
-     * Updates both cumulative and non-cumulative totals.
-     * @param row
-     * @param column
-     * @param amount
-     */
-    private void addWeightedAnalyticSquared(int row, int column, double amount)
-    {
-        weightedAnalyticSquared.set(row, column, weightedAnalyticSquared.get(row, column) + amount);
-        weightedAnalyticSquaredCumulative.set(row, column, weightedAnalyticSquaredCumulative.get(row, column) + amount);
-    }
-
-    private void addWeightedAnalyticSquaredBlended(int row, int column, double amount)
-    {
-        weightedAnalyticSquaredBlended.set(row, column, weightedAnalyticSquaredBlended.get(row, column) + amount);
-    }
-
-    private void addWeightedAnalyticSquaredBlendedSquared(int row, int column, double amount)
-    {
-        weightedAnalyticSquaredBlendedSquared.set(row, column, weightedAnalyticSquaredBlendedSquared.get(row, column) + amount);
+        return weightedAnalyticTimesObservedBlended[observationIndex * instanceCount + instanceIndex];
     }
 
     /**
@@ -272,15 +281,12 @@ public class MatrixBuilderSums
      */
     public void addWeightedAnalyticTimesObserved(int observationIndex, int instanceIndex, double amount)
     {
-        weightedAnalyticTimesObserved[observationIndex].set(instanceIndex, 0,
-            weightedAnalyticTimesObserved[observationIndex].get(instanceIndex, 0) + amount);
-        weightedAnalyticTimesObservedCumulative[observationIndex].set(instanceIndex, 0,
-            weightedAnalyticTimesObservedCumulative[observationIndex].get(instanceIndex, 0) + amount);
+        weightedAnalyticTimesObserved[observationIndex * instanceCount + instanceIndex] += amount;
+        weightedAnalyticTimesObservedCumulative[observationIndex * instanceCount + instanceIndex] += amount;
     }
 
     public void addWeightedAnalyticTimesObservedBlended(int observationIndex, int instanceIndex, double amount)
     {
-        weightedAnalyticTimesObservedBlended[observationIndex].set(instanceIndex, 0,
-            weightedAnalyticTimesObservedBlended[observationIndex].get(instanceIndex, 0) + amount);
+        weightedAnalyticTimesObservedBlended[observationIndex * instanceCount + instanceIndex] += amount;
     }
 }
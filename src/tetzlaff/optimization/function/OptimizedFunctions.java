@@ -53,13 +53,8 @@ public class OptimizedFunctions
      */
     public static OptimizedFunctions solveSystem(BasisFunctions basisFunctions, MatrixSystem system)
     {
-        SimpleMatrix[] solutions = new SimpleMatrix[system.rhs.length];
-        for (int i = 0; i < solutions.length; i++)
-        {
-            solutions[i] = system.solve(i);
-        }
-
-        return new OptimizedFunctions(basisFunctions, solutions);
+        // Solve every channel at once so that the LHS is only factored once.
+        return new OptimizedFunctions(basisFunctions, system.solve());
     }
 
     /**
@@ -74,13 +69,8 @@ public class OptimizedFunctions
     public static OptimizedFunctions solveSystemNonNegative(
             BasisFunctions basisFunctions, MatrixSystem system, double toleranceScale)
     {
-        SimpleMatrix[] solutions = new SimpleMatrix[system.rhs.length];
-        for (int i = 0; i < solutions.length; i++)
-        {
-            solutions[i] = system.solveNonNegative(i, toleranceScale);
-        }
-
-        return new OptimizedFunctions(basisFunctions, solutions);
+        // Solve every channel at once so that the LHS is shared and the channels are solved in parallel.
+        return new OptimizedFunctions(basisFunctions, system.solveNonNegative(toleranceScale));
     }
 
     /**
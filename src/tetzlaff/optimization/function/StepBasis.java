@@ -78,10 +78,7 @@ public class StepBasis implements BasisFunctions
                 // Top right and bottom left partitions of the matrix:
                 // row corresponds to diffuse coefficients and column corresponds to specular, or vice-versa.
                 // The matrix is symmetric so we also need to swap row and column and update that way.
-                fittingSystem.addToLHS(i, b2,
-                        metallicity * sums.getWeightedAnalyticSquaredBlended(b1, b2)
-                                + (1 - metallicity) * sums.getWeightedAnalyticBlended(b1, b2));
-                fittingSystem.addToLHS(b2, i,
+                fittingSystem.addToLHSSymmetric(i, b2,
                         metallicity * sums.getWeightedAnalyticSquaredBlended(b1, b2)
                                 + (1 - metallicity) * sums.getWeightedAnalyticBlended(b1, b2));
 
@@ -92,16 +89,11 @@ public class StepBasis implements BasisFunctions
 
                 // Visit every element of the microfacet distribution that comes after the current value.
                 // This is because the form of ATA is such that the values in the matrix are determined by the lower of the two values.
-                for (int m2 = valueCurrent + 1; m2 < resolution; m2++)
-                {
-                    j = instanceCount * (m2 + 1) + b2;
-
-                    // Add the current running total with blending (linear interpolation) weights
-                    // to the appropriate location in the matrix.
-                    // The matrix is symmetric so we also need to swap row and column and update that way.
-                    fittingSystem.addToLHS(i, j, sums.getWeightedAnalyticSquaredBlended(b1, b2));
-                    fittingSystem.addToLHS(j, i, sums.getWeightedAnalyticSquaredBlended(b2, b1));
-                }
+                // Add the current running total with blending (linear interpolation) weights
+                // to the appropriate location in the matrix.
+                // The matrix is symmetric so we also need to swap row and column and update that way.
+                fittingSystem.addToLHSSymmetricStrided(i, instanceCount * (valueCurrent + 2) + b2, instanceCount,
+                        resolution - valueCurrent - 1, sums.getWeightedAnalyticSquaredBlended(b1, b2));
             }
 
             // Update the matrix for rows and columns corresponding to the next value and any values in between
@@ -122,12 +114,9 @@ public class StepBasis implements BasisFunctions
                     // Top right and bottom left partitions of the matrix:
                     // row corresponds to diffuse coefficients and column corresponds to specular, or vice-versa.
                     // The matrix is symmetric so we also need to swap row and column and update that way.
-                    fittingSystem.addToLHS(i, b2,
+                    fittingSystem.addToLHSSymmetric(i, b2,
                             metallicity * sums.getWeightedAnalyticSquaredCumulative(b1, b2)
                                     + (1 - metallicity) * sums.getWeightedAnalyticCumulative(b1, b2));
-                    fittingSystem.addToLHS(b2, i,
-                            metallicity * sums.getWeightedAnalyticSquaredCumulative(b2, b1)
-                                    + (1 - metallicity) * sums.getWeightedAnalyticCumulative(b2, b1));
 
                     // Bottom right partition of the matrix: row and column both correspond to specular.
 
@@ -139,15 +128,10 @@ public class StepBasis implements BasisFunctions
                     // Visit every element of the microfacet distribution that comes after m1.
                     // This is because the form of ATA is such that the values in the matrix are determined by the lower
                     // of the two values.
-                    for (int m2 = m1 + 1; m2 < resolution; m2++)
-                    {
-                        j = instanceCount * (m2 + 1) + b2;
-
-                        // Add the current running total to the appropriate location in the matrix.
-                        // The matrix is symmetric so we also need to swap row and column and update that way.
-                        fittingSystem.addToLHS(i, j, sums.getWeightedAnalyticSquaredCumulative(b1, b2));
-                        fittingSystem.addToLHS(j, i, sums.getWeightedAnalyticSquaredCumulative(b2, b1));
-                    }
+                    // Add the current running total to the appropriate location in the matrix.
+                    // The matrix is symmetric so we also need to swap row and column and update that way.
+                    fittingSystem.addToLHSSymmetricStrided(i, instanceCount * (m1 + 2) + b2, instanceCount,
+                            resolution - m1 - 1, sums.getWeightedAnalyticSquaredCumulative(b1, b2));
                 }
             }
         }
@@ -0,0 +1,141 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.util;
+
+import java.util.stream.IntStream;
+
+/**
+ * CPU equivalent of ShaderHoleFill (holefill.frag), for images that are already in main memory.
+ * Each pass is parallelized over rows, and passes stop as soon as nothing changes
+ * rather than always running as many passes as the width or height of the image.
+ */
+public final class HoleFill
+{
+    private HoleFill()
+    {
+    }
+
+    /**
+     * Fills the texels with an alpha less than 1.0 using the alpha-weighted average of their neighbors,
+     * repeating until every texel reachable from a texel with an alpha of 1.0 has been filled.
+     * @param rgba The image, in RGBA order with row 0 first.  This array may be modified.
+     * @param width The width of the image.
+     * @param height The height of the image.
+     * @return The filled image, which is either rgba or a new array.
+     */
+    public static float[] execute(float[] rgba, int width, int height)
+    {
+        float[] front = rgba;
+        float[] back = rgba.clone();
+        boolean[] changed = new boolean[height];
+        int iterations = Math.max(width, height);
+
+        for (int i = 0; i < iterations; i++)
+        {
+            float[] input = front;
+            float[] output = back;
+
+            IntStream.range(0, height).parallel().forEach(y -> changed[y] = fillRow(input, output, width, height, y));
+
+            front = output;
+            back = input;
+
+            boolean anyChanged = false;
+            for (boolean rowChanged : changed)
+            {
+                anyChanged |= rowChanged;
+            }
+
+            if (!anyChanged)
+            {
+                break;
+            }
+        }
+
+        return front;
+    }
+
+    /**
+     * Equivalent to fill() in holefill.frag with a minimum fill alpha of zero, for one row.
+     * @return true if any texel in the row changed.
+     */
+    private static boolean fillRow(float[] input, float[] output, int width, int height, int y)
+    {
+        boolean changed = false;
+
+        for (int x = 0; x < width; x++)
+        {
+            int p = 4 * (y * width + x);
+            float centralAlpha = input[p + 3];
+
+            if (centralAlpha >= 1.0f)
+            {
+                // Keep the pixel if it already has an alpha of 1.0
+                System.arraycopy(input, p, output, p, 4);
+                continue;
+            }
+
+            // Sample the neighboring pixels, clamping to the edge of the image.
+            int[] neighbors =
+            {
+                4 * (Math.min(height - 1, y + 1) * width + x),
+                4 * (Math.max(0, y - 1) * width + x),
+                4 * (y * width + Math.min(width - 1, x + 1)),
+                4 * (y * width + Math.max(0, x - 1))
+            };
+
+            float sumRed = 0.0f;
+            float sumGreen = 0.0f;
+            float sumBlue = 0.0f;
+            float sumAlpha = 0.0f;
+
+            for (int n : neighbors)
+            {
+                float alpha = input[n + 3];
+                sumRed += alpha * input[n];
+                sumGreen += alpha * input[n + 1];
+                sumBlue += alpha * input[n + 2];
+                sumAlpha += alpha;
+            }
+
+            if (sumAlpha >= 1.0f - centralAlpha)
+            {
+                output[p] = centralAlpha * input[p] + (1.0f - centralAlpha) * sumRed / sumAlpha;
+                output[p + 1] = centralAlpha * input[p + 1] + (1.0f - centralAlpha) * sumGreen / sumAlpha;
+                output[p + 2] = centralAlpha * input[p + 2] + (1.0f - centralAlpha) * sumBlue / sumAlpha;
+                output[p + 3] = 1.0f;
+            }
+            else if (centralAlpha + sumAlpha > 0)
+            {
+                float totalAlpha = centralAlpha + sumAlpha;
+                output[p] = (centralAlpha * input[p] + sumRed) / totalAlpha;
+                output[p + 1] = (centralAlpha * input[p + 1] + sumGreen) / totalAlpha;
+                output[p + 2] = (centralAlpha * input[p + 2] + sumBlue) / totalAlpha;
+                output[p + 3] = totalAlpha;
+            }
+            else
+            {
+                output[p] = 0.0f;
+                output[p + 1] = 0.0f;
+                output[p + 2] = 0.0f;
+                output[p + 3] = 0.0f;
+            }
+
+            for (int c = 0; c < 4; c++)
+            {
+                changed |= output[p + c] != input[p + c];
+            }
+        }
+
+        return changed;
+    }
+}
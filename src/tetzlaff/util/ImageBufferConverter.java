@@ -0,0 +1,345 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.util;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+import org.lwjgl.*;
+
+/**
+ * Converts BufferedImages into native buffers of texels for uploading to textures, without requiring a graphics context.
+ * For the layouts that ImageIO typically produces (packed int ARGB / RGB, interleaved 8-bit BGR / ABGR, 8-bit and 16-bit gray,
+ * and 16-bit RGB / RGBA), the image's raster is read directly, with any color conversion done by lookup tables
+ * that are sampled from the image's color model, so the results are identical to BufferedImage.getRGB().
+ * Other layouts fall back to reading a row at a time using getRGB().
+ * Rows are converted in parallel.
+ */
+public final class ImageBufferConverter
+{
+    /**
+     * The order in which the channels of each texel are written.
+     */
+    public enum ChannelOrder
+    {
+        /**
+         * Blue, green, red, alpha (i.e. for GL_BGRA).
+         */
+        BGRA,
+
+        /**
+         * Red, green, blue, alpha (i.e. for GL_RGBA).
+         */
+        RGBA
+    }
+
+    /**
+     * Reads one row of an image into ARGB integers in the default sRGB color space, as with BufferedImage.getRGB().
+     */
+    @FunctionalInterface
+    private interface RowReader
+    {
+        void read(int y, int[] argbRow);
+    }
+
+    private ImageBufferConverter()
+    {
+    }
+
+    /**
+     * Converts an image (and optionally a mask) into a new native buffer of 8-bit texels.
+     * @param colorImg The color image.
+     * @param maskImg An optional mask image whose green channel is used for alpha, or null to use the color image's alpha.
+     * @param flipVertical Whether or not to flip all of the pixels vertically.
+     * @param channelOrder The order in which the channels of each texel are written.
+     * @return A buffer containing four bytes for each texel.
+     */
+    public static ByteBuffer convert(BufferedImage colorImg, BufferedImage maskImg, boolean flipVertical, ChannelOrder channelOrder)
+    {
+        ByteBuffer buffer = BufferUtils.createByteBuffer(colorImg.getWidth() * colorImg.getHeight() * 4);
+        convert(colorImg, maskImg, flipVertical, channelOrder, buffer);
+        return buffer;
+    }
+
+    /**
+     * Converts an image (and optionally a mask) into 8-bit texels, starting at the beginning of a destination buffer.
+     * The position of the destination buffer is not changed.
+     * @param colorImg The color image.
+     * @param maskImg An optional mask image whose green channel is used for alpha, or null to use the color image's alpha.
+     * @param flipVertical Whether or not to flip all of the pixels vertically.
+     * @param channelOrder The order in which the channels of each texel are written.
+     * @param destination The buffer to write into, which must have room for four bytes for each texel.
+     */
+    public static void convert(BufferedImage colorImg, BufferedImage maskImg, boolean flipVertical, ChannelOrder channelOrder,
+        ByteBuffer destination)
+    {
+        int width = colorImg.getWidth();
+        int height = colorImg.getHeight();
+
+        validate(colorImg, maskImg);
+
+        if (destination.capacity() < 4 * width * height)
+        {
+            throw new IllegalArgumentException("The destination buffer is too small for the image.");
+        }
+
+        RowReader colorReader = createRowReader(colorImg);
+        RowReader maskReader = maskImg == null ? null : createRowReader(maskImg);
+        int redOffset = channelOrder == ChannelOrder.BGRA ? 2 : 0;
+        int blueOffset = 2 - redOffset;
+
+        IntStream.range(0, height).parallel().forEach(y ->
+        {
+            int sourceY = flipVertical ? height - 1 - y : y;
+            int[] row = new int[width];
+            int[] maskRow = maskReader == null ? null : new int[width];
+
+            colorReader.read(sourceY, row);
+
+            if (maskReader != null)
+            {
+                maskReader.read(sourceY, maskRow);
+            }
+
+            int index = 4 * y * width;
+            for (int x = 0; x < width; x++, index += 4)
+            {
+                int argb = row[x];
+                destination.put(index + redOffset, (byte)(argb >>> 16));
+                destination.put(index + 1, (byte)(argb >>> 8));
+                destination.put(index + blueOffset, (byte)argb);
+
+                // Use green channel of the mask image for alpha
+                destination.put(index + 3, (byte)(maskRow == null ? argb >>> 24 : maskRow[x] >>> 8));
+            }
+        });
+    }
+
+    /**
+     * Converts an image (and optionally a mask) into a new native buffer using an arbitrary mapping of each color.
+     * @param colorImg The color image.
+     * @param maskImg An optional mask image whose green channel is used for alpha, or null to use the color image's alpha.
+     * @param flipVertical Whether or not to flip all of the pixels vertically.
+     * @param bufferWrapperFunction Wraps a buffer (a slice of the result for one row) in a consumer that writes mapped colors to it
+     *                              sequentially.  Rows are converted concurrently, so the mapping must be thread-safe.
+     * @param mappedColorLength The number of bytes written for each color.
+     * @return The buffer containing the mapped colors.
+     */
+    public static ByteBuffer convertMapped(BufferedImage colorImg, BufferedImage maskImg, boolean flipVertical,
+        Function<ByteBuffer, Consumer<Color>> bufferWrapperFunction, int mappedColorLength)
+    {
+        int width = colorImg.getWidth();
+        int height = colorImg.getHeight();
+
+        validate(colorImg, maskImg);
+
+        ByteBuffer buffer = BufferUtils.createByteBuffer(width * height * mappedColorLength);
+        RowReader colorReader = createRowReader(colorImg);
+        RowReader maskReader = maskImg == null ? null : createRowReader(maskImg);
+
+        IntStream.range(0, height).parallel().forEach(y ->
+        {
+            int sourceY = flipVertical ? height - 1 - y : y;
+            int[] row = new int[width];
+            colorReader.read(sourceY, row);
+
+            if (maskReader != null)
+            {
+                int[] maskRow = new int[width];
+                maskReader.read(sourceY, maskRow);
+
+                for (int x = 0; x < width; x++)
+                {
+                    // Use green channel of the mask image for alpha
+                    row[x] = (row[x] & 0x00ffffff) | ((maskRow[x] & 0x0000ff00) << 16);
+                }
+            }
+
+            ByteBuffer rowBuffer = buffer.duplicate();
+            rowBuffer.position(y * width * mappedColorLength);
+            rowBuffer.limit((y + 1) * width * mappedColorLength);
+            Consumer<Color> wrappedBuffer = bufferWrapperFunction.apply(rowBuffer.slice().order(buffer.order()));
+
+            for (int x = 0; x < width; x++)
+            {
+                wrappedBuffer.accept(new Color(row[x], true));
+            }
+        });
+
+        return buffer;
+    }
+
+    private static void validate(BufferedImage colorImg, BufferedImage maskImg)
+    {
+        if (maskImg != null && (maskImg.getWidth() != colorImg.getWidth() || maskImg.getHeight() != colorImg.getHeight()))
+        {
+            throw new IllegalArgumentException("Color image and mask image must have the same dimensions.");
+        }
+    }
+
+    private static RowReader createRowReader(BufferedImage image)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        DataBuffer dataBuffer = raster.getDataBuffer();
+
+        boolean untranslated = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0
+            && raster.getMinX() == 0 && raster.getMinY() == 0 && dataBuffer.getNumBanks() == 1;
+
+        if (untranslated && (image.getType() == BufferedImage.TYPE_INT_ARGB || image.getType() == BufferedImage.TYPE_INT_RGB)
+            && sampleModel instanceof SinglePixelPackedSampleModel)
+        {
+            int[] data = ((DataBufferInt)dataBuffer).getData();
+            int offset = dataBuffer.getOffset();
+            int scanlineStride = ((SinglePixelPackedSampleModel)sampleModel).getScanlineStride();
+            int alphaMask = image.getType() == BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0;
+
+            return (y, argbRow) ->
+            {
+                int start = offset + y * scanlineStride;
+                for (int x = 0; x < width; x++)
+                {
+                    argbRow[x] = data[start + x] | alphaMask;
+                }
+            };
+        }
+        else if (untranslated && sampleModel instanceof ComponentSampleModel
+            && image.getColorModel() instanceof ComponentColorModel && !image.getColorModel().isAlphaPremultiplied()
+            && (dataBuffer.getDataType() == DataBuffer.TYPE_BYTE || dataBuffer.getDataType() == DataBuffer.TYPE_USHORT)
+            // The lookup tables are only worth building if they're smaller than the image.
+            && (dataBuffer.getDataType() == DataBuffer.TYPE_BYTE || (long)width * height > 65536))
+        {
+            RowReader reader = createComponentRowReader(image, (ComponentSampleModel)sampleModel, dataBuffer);
+
+            if (reader != null)
+            {
+                return reader;
+            }
+        }
+
+        // Fallback for any other layout.
+        return (y, argbRow) -> image.getRGB(0, y, width, 1, argbRow, 0, width);
+    }
+
+    /**
+     * Creates a reader for an 8-bit or 16-bit gray or sRGB image with its components stored in a single bank,
+     * with or without alpha, using lookup tables sampled from the color model for each component.
+     * @return The reader, or null if the layout isn't supported.
+     */
+    private static RowReader createComponentRowReader(BufferedImage image, ComponentSampleModel sampleModel, DataBuffer dataBuffer)
+    {
+        ColorModel colorModel = image.getColorModel();
+        int componentCount = colorModel.getNumComponents();
+        int colorComponentCount = colorModel.getNumColorComponents();
+        boolean gray = colorComponentCount == 1 && colorModel.getColorSpace().getType() == ColorSpace.TYPE_GRAY;
+        boolean rgb = colorComponentCount == 3 && colorModel.getColorSpace().isCS_sRGB();
+
+        if (!gray && !rgb || sampleModel.getNumBands() != componentCount)
+        {
+            return null;
+        }
+
+        for (int bankIndex : sampleModel.getBankIndices())
+        {
+            if (bankIndex != 0)
+            {
+                return null;
+            }
+        }
+
+        boolean isShort = dataBuffer.getDataType() == DataBuffer.TYPE_USHORT;
+        int valueCount = isShort ? 65536 : 256;
+        int maxValue = valueCount - 1;
+
+        // For each component, the contribution of each possible value to the ARGB result.
+        // Components are separable for gray and sRGB color models without premultiplied alpha.
+        int[][] tables = new int[componentCount][valueCount];
+        Object pixel = isShort ? new short[componentCount] : new byte[componentCount];
+
+        for (int c = 0; c < componentCount; c++)
+        {
+            boolean isAlpha = c >= colorComponentCount;
+            int mask = isAlpha ? 0xff000000 : gray ? 0x00ffffff : 0x00ff0000 >>> (8 * c);
+
+            for (int v = 0; v < valueCount; v++)
+            {
+                for (int k = 0; k < componentCount; k++)
+                {
+                    // Other components are zero except alpha, which is opaque.
+                    int value = k == c ? v : k >= colorComponentCount ? maxValue : 0;
+
+                    if (isShort)
+                    {
+                        ((short[])pixel)[k] = (short)value;
+                    }
+                    else
+                    {
+                        ((byte[])pixel)[k] = (byte)value;
+                    }
+                }
+
+                tables[c][v] = colorModel.getRGB(pixel) & mask;
+            }
+        }
+
+        int opaque = colorModel.hasAlpha() ? 0 : 0xff000000;
+        int[] bandOffsets = sampleModel.getBandOffsets();
+        int pixelStride = sampleModel.getPixelStride();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int offset = dataBuffer.getOffset();
+        int width = image.getWidth();
+
+        if (isShort)
+        {
+            short[] data = ((DataBufferUShort)dataBuffer).getData();
+
+            return (y, argbRow) ->
+            {
+                int start = offset + y * scanlineStride;
+                for (int x = 0; x < width; x++)
+                {
+                    int argb = opaque;
+                    for (int c = 0; c < componentCount; c++)
+                    {
+                        argb |= tables[c][data[start + x * pixelStride + bandOffsets[c]] & 0xFFFF];
+                    }
+                    argbRow[x] = argb;
+                }
+            };
+        }
+        else
+        {
+            byte[] data = ((DataBufferByte)dataBuffer).getData();
+
+            return (y, argbRow) ->
+            {
+                int start = offset + y * scanlineStride;
+                for (int x = 0; x < width; x++)
+                {
+                    int argb = opaque;
+                    for (int c = 0; c < componentCount; c++)
+                    {
+                        argb |= tables[c][data[start + x * pixelStride + bandOffsets[c]] & 0xFF];
+                    }
+                    argbRow[x] = argb;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,630 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.gl.util;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import tetzlaff.gl.nativebuffer.NativeVectorBuffer;
+import tetzlaff.gl.vecmath.Vector2;
+import tetzlaff.gl.vecmath.Vector3;
+import tetzlaff.gl.vecmath.Vector4;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares ParsedOBJFile, and VertexGeometry with its shared vertices expanded through the index buffer,
+ * against the Scanner-based loader that VertexGeometry used before, which is kept here as a reference.
+ */
+public class ParsedOBJFileTest
+{
+    /**
+     * Chunk sizes small enough that chunk boundaries fall in the middle of faces and of vertex lines.
+     */
+    private static final int[] CHUNK_SIZES = { 1, 7, 64, 1000 };
+
+    private static final String MATERIAL_LIBRARY = "newmtl first\nKd 1 0 0\n\nnewmtl second\nKd 0 1 0\n";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private enum FaceFormat
+    {
+        FULL, // v/vt/vn
+        NO_TEX_COORDS, // v//vn
+        POSITION_ONLY, // v
+        NO_NORMALS // v/vt
+    }
+
+    /**
+     * The contents of an OBJ file as loaded by the old VertexGeometry, one element for each corner of each face.
+     */
+    private static final class ScannerOBJLoader
+    {
+        boolean hasNormals = true;
+        boolean hasTexCoords = true;
+        String materialFileName;
+        String materialName;
+
+        final List<Vector3> vertexList = new ArrayList<>();
+        final List<Vector3> normalList = new ArrayList<>();
+        final List<Vector2> texCoordList = new ArrayList<>();
+        final List<Integer> vertexIndexList = new ArrayList<>();
+        final List<Integer> normalIndexList = new ArrayList<>();
+        final List<Integer> texCoordIndexList = new ArrayList<>();
+        final Map<List<Integer>, Vector3> tangentMap = new HashMap<>();
+        final Map<List<Integer>, Vector3> bitangentMap = new HashMap<>();
+
+        Vector3 centroid;
+        Vector3 boundingBoxCenter;
+        Vector3 boundingBoxSize;
+        float boundingRadius;
+
+        static ScannerOBJLoader load(String contents)
+        {
+            ScannerOBJLoader inst = new ScannerOBJLoader();
+            Vector3 sum = Vector3.ZERO;
+
+            // The old loader used the default locale; pin it so that the reference doesn't depend on where the test runs.
+            try (Scanner scanner = new Scanner(contents).useLocale(Locale.US))
+            {
+                while (scanner.hasNext())
+                {
+                    String id = scanner.next();
+                    switch (id)
+                    {
+                        case "mtllib":
+                            if (inst.materialFileName == null)
+                            {
+                                inst.materialFileName = scanner.next();
+                            }
+                            break;
+                        case "usemtl":
+                            if (inst.materialName == null)
+                            {
+                                inst.materialName = scanner.next();
+                            }
+                            break;
+                        case "v":
+                            float x = scanner.nextFloat();
+                            float y = scanner.nextFloat();
+                            float z = scanner.nextFloat();
+                            sum = sum.plus(new Vector3(x, y, z));
+                            inst.vertexList.add(new Vector3(x, y, z));
+                            break;
+                        case "vt":
+                            if (inst.hasTexCoords)
+                            {
+                                inst.texCoordList.add(new Vector2(scanner.nextFloat(), scanner.nextFloat()));
+                            }
+                            break;
+                        case "vn":
+                            if (inst.hasNormals)
+                            {
+                                float nx = scanner.nextFloat();
+                                float ny = scanner.nextFloat();
+                                float nz = scanner.nextFloat();
+                                inst.normalList.add(new Vector3(nx, ny, nz).normalized());
+                            }
+                            break;
+                        case "f":
+                            inst.parseFace(scanner);
+                            break;
+                        default:
+                            break;
+                    }
+
+                    // Always advance to the next line.
+                    scanner.nextLine();
+                }
+            }
+
+            inst.centroid = sum.dividedBy(inst.vertexList.size());
+
+            float boundingBoxMinX = 0.0f;
+            float boundingBoxMinY = 0.0f;
+            float boundingBoxMinZ = 0.0f;
+            float boundingBoxMaxX = 0.0f;
+            float boundingBoxMaxY = 0.0f;
+            float boundingBoxMaxZ = 0.0f;
+
+            for (int k : inst.vertexIndexList)
+            {
+                Vector3 vertex = inst.vertexList.get(k);
+
+                boundingBoxMinX = Math.min(boundingBoxMinX, vertex.x);
+                boundingBoxMinY = Math.min(boundingBoxMinY, vertex.y);
+                boundingBoxMinZ = Math.min(boundingBoxMinZ, vertex.z);
+
+                boundingBoxMaxX = Math.max(boundingBoxMaxX, vertex.x);
+                boundingBoxMaxY = Math.max(boundingBoxMaxY, vertex.y);
+                boundingBoxMaxZ = Math.max(boundingBoxMaxZ, vertex.z);
+
+                inst.boundingRadius = Math.max(inst.boundingRadius, vertex.minus(inst.centroid).length());
+            }
+
+            inst.boundingBoxCenter = new Vector3((boundingBoxMinX + boundingBoxMaxX) / 2, (boundingBoxMinY + boundingBoxMaxY) / 2, (boundingBoxMinZ + boundingBoxMaxZ) / 2);
+            inst.boundingBoxSize = new Vector3(boundingBoxMaxX - boundingBoxMinX, boundingBoxMaxY - boundingBoxMinY, boundingBoxMaxZ - boundingBoxMinZ);
+
+            return inst;
+        }
+
+        private void parseFace(Scanner scanner)
+        {
+            for (int i = 0; i < 3; i++) // Only support triangles
+            {
+                String[] parts = scanner.next().split("\\/");
+
+                int vertexIndex = Integer.parseInt(parts[0]);
+                vertexIndexList.add(vertexIndex < 0 ? vertexList.size() + vertexIndex : vertexIndex - 1);
+
+                if (parts.length < 2 || parts[1].isEmpty())
+                {
+                    hasTexCoords = false;
+                }
+                else if (hasTexCoords)
+                {
+                    int texCoordIndex = Integer.parseInt(parts[1]);
+                    texCoordIndexList.add(texCoordIndex < 0 ? texCoordIndexList.size() + texCoordIndex : texCoordIndex - 1);
+                }
+
+                if (parts.length < 3 || parts[2].isEmpty())
+                {
+                    hasNormals = false;
+                }
+                else if (hasNormals)
+                {
+                    int normalIndex = Integer.parseInt(parts[2]);
+                    normalIndexList.add(normalIndex < 0 ? normalIndexList.size() + normalIndex : normalIndex - 1);
+                }
+            }
+
+            if (hasTexCoords && hasNormals)
+            {
+                int last = vertexIndexList.size() - 1;
+                Vector3 position0 = vertexList.get(vertexIndexList.get(last - 2));
+                Vector3 position1 = vertexList.get(vertexIndexList.get(last - 1));
+                Vector3 position2 = vertexList.get(vertexIndexList.get(last));
+
+                Vector2 texCoords0 = texCoordList.get(texCoordIndexList.get(last - 2));
+                Vector2 texCoords1 = texCoordList.get(texCoordIndexList.get(last - 1));
+                Vector2 texCoords2 = texCoordList.get(texCoordIndexList.get(last));
+
+                float s1 = texCoords1.x - texCoords0.x;
+                float s2 = texCoords2.x - texCoords0.x;
+                float t1 = texCoords1.y - texCoords0.y;
+                float t2 = texCoords2.y - texCoords0.y;
+
+                float r = 1.0f / (s1 * t2 - s2 * t1);
+
+                Vector3 q1 = position1.minus(position0);
+                Vector3 q2 = position2.minus(position0);
+
+                Vector3 tangent = q1.times(r * t2).plus(q2.times(r * -t1));
+                Vector3 bitangent = q1.times(r * -s2).plus(q2.times(r * s1));
+
+                for (int k = last - 2; k <= last; k++)
+                {
+                    List<Integer> pair = Arrays.asList(normalIndexList.get(k), texCoordIndexList.get(k));
+                    tangentMap.put(pair, tangentMap.getOrDefault(pair, Vector3.ZERO).plus(tangent));
+                    bitangentMap.put(pair, bitangentMap.getOrDefault(pair, Vector3.ZERO).plus(bitangent));
+                }
+            }
+        }
+
+        Vector4 getTangent(int corner)
+        {
+            List<Integer> pair = Arrays.asList(normalIndexList.get(corner), texCoordIndexList.get(corner));
+            Vector3 normal = normalList.get(pair.get(0));
+            Vector3 tangent = tangentMap.get(pair);
+            Vector3 bitangent = bitangentMap.get(pair);
+
+            Vector3 orthoTangent = tangent.minus(normal.times(normal.dot(tangent))).normalized();
+            Vector3 orthoBitangent = bitangent.minus(normal.times(normal.dot(bitangent)).minus(orthoTangent.times(orthoTangent.dot(bitangent)))).normalized();
+
+            return orthoTangent.asVector4(orthoBitangent.dot(normal.cross(orthoTangent)));
+        }
+    }
+
+    /**
+     * Writes a number in one of the formats that exporters produce.
+     */
+    private static String randomNumber(Random random)
+    {
+        float value = (random.nextFloat() - 0.5f) * (float)Math.pow(10, random.nextInt(7) - 3);
+
+        switch (random.nextInt(7))
+        {
+            case 0: return Float.toString(value);
+            case 1: return String.format(Locale.ROOT, "%.6f", value);
+            case 2: return String.format(Locale.ROOT, "%.9e", value);
+            case 3: return String.format(Locale.ROOT, "%.15f", (double)value);
+            case 4: return '+' + String.format(Locale.ROOT, "%.3f", Math.abs(value));
+            case 5: return random.nextBoolean() ? "-0" : "0.000";
+            default: return Integer.toString(random.nextInt(2000) - 1000);
+        }
+    }
+
+    private static String formatIndex(int index, int count, boolean relative)
+    {
+        return Integer.toString(relative ? index - count : index + 1);
+    }
+
+    /**
+     * Creates the contents of an OBJ file with random vertices and faces, with half of the vertices after the first batch of faces.
+     * @param format The format of the faces starting with formatChangeFace; faces before it have positions, texture coordinates, and normals.
+     * @param relative Whether to write some of the indices relative to the end of the lists.
+     */
+    private static String randomOBJ(Random random, int vertexCount, int faceCount, FaceFormat format, int formatChangeFace, boolean relative)
+    {
+        StringBuilder builder = new StringBuilder("# header\r\nmtllib test.mtl\n\nmtllib other.mtl\no object\n");
+        int positionCount = 0;
+        int corners = 0;
+
+        for (int batch = 0; batch < 2; batch++)
+        {
+            for (int i = 0; i < vertexCount / 2; i++, positionCount++)
+            {
+                builder.append(random.nextInt(10) == 0 ? "\t v " : "v ")
+                    .append(randomNumber(random)).append(' ').append(randomNumber(random)).append(' ').append(randomNumber(random))
+                    .append(random.nextInt(5) == 0 ? " 0.5 0.5 0.5" : "")
+                    .append(random.nextBoolean() ? "\r\n" : "\n");
+                builder.append("vt ").append(randomNumber(random)).append("  ").append(randomNumber(random))
+                    .append(random.nextInt(5) == 0 ? " 0\n" : "\n");
+                builder.append("vn ").append(randomNumber(random)).append(' ').append(randomNumber(random)).append(' ').append(randomNumber(random))
+                    .append('\n');
+
+                if (random.nextInt(50) == 0)
+                {
+                    builder.append("vp 1 2\n\n# comment\n");
+                }
+            }
+
+            builder.append(batch == 0 ? "usemtl first\ns 1\nusemtl second\n" : "g group\n");
+
+            for (int f = batch * faceCount / 2; f < (batch + 1) * faceCount / 2; f++)
+            {
+                builder.append('f');
+                FaceFormat faceFormat = f < formatChangeFace ? FaceFormat.FULL : format;
+
+                // Some quads, whose fourth vertex is ignored.
+                int faceCorners = random.nextInt(6) == 0 ? 4 : 3;
+
+                for (int c = 0; c < faceCorners; c++, corners++)
+                {
+                    // Texture coordinate and normal indices can only be relative to the number of preceding corners.
+                    boolean relativeAttributes = relative && random.nextBoolean() && corners > 0 && c < 3;
+                    int maxAttribute = relativeAttributes ? Math.min(corners, positionCount) : positionCount;
+
+                    String position = formatIndex(random.nextInt(positionCount), positionCount, relative && random.nextBoolean());
+                    String texCoord = formatIndex(random.nextInt(maxAttribute), corners, relativeAttributes);
+                    String normal = formatIndex(random.nextInt(maxAttribute), corners, relativeAttributes);
+
+                    builder.append(random.nextBoolean() ? " " : "  ");
+
+                    switch (faceFormat)
+                    {
+                        case FULL: builder.append(position).append('/').append(texCoord).append('/').append(normal); break;
+                        case NO_TEX_COORDS: builder.append(position).append("//").append(normal); break;
+                        case POSITION_ONLY: builder.append(position); break;
+                        case NO_NORMALS: builder.append(position).append('/').append(texCoord); break;
+                    }
+                }
+
+                // Only the first three corners count.
+                corners -= faceCorners - 3;
+
+                builder.append('\n');
+            }
+        }
+
+        return builder.toString();
+    }
+
+    private File write(String contents) throws IOException
+    {
+        File file = folder.newFile();
+        Files.write(file.toPath(), contents.getBytes(StandardCharsets.US_ASCII));
+
+        try (PrintWriter out = new PrintWriter(new File(file.getParentFile(), "test.mtl"), "US-ASCII"))
+        {
+            out.print(MATERIAL_LIBRARY);
+        }
+
+        return file;
+    }
+
+    private static void assertSameFloat(String message, float expected, float actual)
+    {
+        if (Float.floatToIntBits(expected) != Float.floatToIntBits(actual))
+        {
+            fail(message + ": expected " + expected + " but was " + actual);
+        }
+    }
+
+    private static void assertSameVector(String message, Vector3 expected, Vector3 actual)
+    {
+        assertSameFloat(message + ".x", expected.x, actual.x);
+        assertSameFloat(message + ".y", expected.y, actual.y);
+        assertSameFloat(message + ".z", expected.z, actual.z);
+    }
+
+    private static void assertIndicesEqual(String message, List<Integer> expected, int[] actual)
+    {
+        assertEquals(message, expected.size(), actual.length);
+
+        for (int i = 0; i < actual.length; i++)
+        {
+            assertEquals(message + " corner " + i, expected.get(i).intValue(), actual[i]);
+        }
+    }
+
+    private static void assertMatchesReference(String message, ScannerOBJLoader expected, ParsedOBJFile actual)
+    {
+        assertEquals(message, expected.materialFileName, actual.materialFileName);
+        assertEquals(message, expected.materialName, actual.materialName);
+        assertEquals(message, expected.hasTexCoords, actual.texCoordIndices != null);
+        assertEquals(message, expected.hasNormals, actual.normalIndices != null);
+
+        assertEquals(message, 3 * expected.vertexList.size(), actual.positions.length);
+        for (int i = 0; i < expected.vertexList.size(); i++)
+        {
+            assertSameFloat(message + " position " + i, expected.vertexList.get(i).x, actual.positions[3 * i]);
+            assertSameFloat(message + " position " + i, expected.vertexList.get(i).y, actual.positions[3 * i + 1]);
+            assertSameFloat(message + " position " + i, expected.vertexList.get(i).z, actual.positions[3 * i + 2]);
+        }
+
+        assertIndicesEqual(message + " positions", expected.vertexIndexList, actual.vertexIndices);
+
+        // The reference stops reading texture coordinates and normals once it finds that a face is missing them.
+        if (expected.hasTexCoords)
+        {
+            assertEquals(message, 2 * expected.texCoordList.size(), actual.texCoords.length);
+            for (int i = 0; i < expected.texCoordList.size(); i++)
+            {
+                assertSameFloat(message + " texCoord " + i, expected.texCoordList.get(i).x, actual.texCoords[2 * i]);
+                assertSameFloat(message + " texCoord " + i, expected.texCoordList.get(i).y, actual.texCoords[2 * i + 1]);
+            }
+
+            assertIndicesEqual(message + " texCoords", expected.texCoordIndexList, actual.texCoordIndices);
+        }
+
+        if (expected.hasNormals)
+        {
+            assertEquals(message, 3 * expected.normalList.size(), actual.normals.length);
+            for (int i = 0; i < expected.normalList.size(); i++)
+            {
+                assertSameFloat(message + " normal " + i, expected.normalList.get(i).x, actual.normals[3 * i]);
+                assertSameFloat(message + " normal " + i, expected.normalList.get(i).y, actual.normals[3 * i + 1]);
+                assertSameFloat(message + " normal " + i, expected.normalList.get(i).z, actual.normals[3 * i + 2]);
+            }
+
+            assertIndicesEqual(message + " normals", expected.normalIndexList, actual.normalIndices);
+        }
+    }
+
+    /**
+     * Checks a mesh against the reference by looking up the shared vertex of each corner in the index buffer.
+     */
+    private static void assertMatchesReference(String message, ScannerOBJLoader expected, VertexGeometry actual)
+    {
+        assertEquals(message, expected.hasTexCoords, actual.hasTexCoords());
+        assertEquals(message, expected.hasNormals, actual.hasNormals());
+        assertEquals(message, expected.materialFileName, actual.getMaterialFileName());
+
+        if (expected.materialFileName == null)
+        {
+            assertNull(message, actual.getMaterial());
+        }
+        else
+        {
+            assertEquals(message, expected.materialName, actual.getMaterial().getName());
+        }
+
+        assertSameVector(message + " centroid", expected.centroid, actual.getCentroid());
+        assertSameVector(message + " bounding box center", expected.boundingBoxCenter, actual.getBoundingBoxCenter());
+        assertSameVector(message + " bounding box size", expected.boundingBoxSize, actual.getBoundingBoxSize());
+        assertSameFloat(message + " bounding radius", expected.boundingRadius, actual.getBoundingRadius());
+
+        int[] indices = actual.getIndices();
+        assertEquals(message, expected.vertexIndexList.size(), indices.length);
+
+        // Vertices should be shared exactly when the position, texture coordinate, and normal indices are all the same.
+        Map<List<Integer>, Integer> distinctCorners = new HashMap<>();
+        for (int i = 0; i < indices.length; i++)
+        {
+            List<Integer> key = Arrays.asList(expected.vertexIndexList.get(i),
+                expected.hasTexCoords ? expected.texCoordIndexList.get(i) : 0,
+                expected.hasNormals ? expected.normalIndexList.get(i) : 0);
+            Integer previous = distinctCorners.putIfAbsent(key, indices[i]);
+            assertEquals(message + " corner " + i, previous == null ? distinctCorners.size() - 1 : previous, indices[i]);
+        }
+
+        NativeVectorBuffer vertices = actual.getVertices();
+        NativeVectorBuffer texCoords = actual.getTexCoords();
+        NativeVectorBuffer normals = actual.getNormals();
+        NativeVectorBuffer tangents = actual.getTangents();
+
+        assertEquals(message, distinctCorners.size(), vertices.getCount());
+        assertEquals(message, expected.hasTexCoords, texCoords != null);
+        assertEquals(message, expected.hasNormals, normals != null);
+        assertEquals(message, expected.hasTexCoords && expected.hasNormals, tangents != null);
+
+        for (int i = 0; i < indices.length; i++)
+        {
+            int vertex = indices[i];
+            String corner = message + " corner " + i;
+
+            Vector3 position = expected.vertexList.get(expected.vertexIndexList.get(i));
+            assertSameFloat(corner, position.x, vertices.get(vertex, 0).floatValue());
+            assertSameFloat(corner, position.y, vertices.get(vertex, 1).floatValue());
+            assertSameFloat(corner, position.z, vertices.get(vertex, 2).floatValue());
+
+            if (texCoords != null)
+            {
+                Vector2 texCoord = expected.texCoordList.get(expected.texCoordIndexList.get(i));
+                assertSameFloat(corner, texCoord.x, texCoords.get(vertex, 0).floatValue());
+                assertSameFloat(corner, texCoord.y, texCoords.get(vertex, 1).floatValue());
+            }
+
+            if (normals != null)
+            {
+                Vector3 normal = expected.normalList.get(expected.normalIndexList.get(i));
+                assertSameFloat(corner, normal.x, normals.get(vertex, 0).floatValue());
+                assertSameFloat(corner, normal.y, normals.get(vertex, 1).floatValue());
+                assertSameFloat(corner, normal.z, normals.get(vertex, 2).floatValue());
+            }
+
+            if (tangents != null)
+            {
+                Vector4 tangent = expected.getTangent(i);
+                assertSameFloat(corner, tangent.x, tangents.get(vertex, 0).floatValue());
+                assertSameFloat(corner, tangent.y, tangents.get(vertex, 1).floatValue());
+                assertSameFloat(corner, tangent.z, tangents.get(vertex, 2).floatValue());
+                assertSameFloat(corner, tangent.w, tangents.get(vertex, 3).floatValue());
+            }
+        }
+    }
+
+    private void checkFile(String message, String contents) throws IOException
+    {
+        // The reference requires a line break after the last line.
+        ScannerOBJLoader expected = ScannerOBJLoader.load(contents.endsWith("\n") ? contents : contents + '\n');
+        File file = write(contents);
+
+        assertMatchesReference(message, expected, ParsedOBJFile.parse(file));
+
+        for (int chunkSize : CHUNK_SIZES)
+        {
+            assertMatchesReference(message + ", chunk size " + chunkSize, expected, ParsedOBJFile.parse(file, chunkSize));
+        }
+
+        assertMatchesReference(message, expected, VertexGeometry.createFromOBJFile(file));
+    }
+
+    @Test
+    public void fullFacesMatchScannerLoader() throws IOException
+    {
+        Random random = new Random(50);
+        checkFile("absolute", randomOBJ(random, 200, 400, FaceFormat.FULL, 0, false));
+        checkFile("relative", randomOBJ(random, 200, 400, FaceFormat.FULL, 0, true));
+    }
+
+    @Test
+    public void facesWithoutTexCoordsOrNormalsMatchScannerLoader() throws IOException
+    {
+        Random random = new Random(51);
+
+        for (FaceFormat format : new FaceFormat[] { FaceFormat.NO_TEX_COORDS, FaceFormat.POSITION_ONLY, FaceFormat.NO_NORMALS })
+        {
+            for (int formatChangeFace : new int[] { 0, 150, 399 })
+            {
+                for (boolean relative : new boolean[] { false, true })
+                {
+                    checkFile(format + " from face " + formatChangeFace + ", relative " + relative,
+                        randomOBJ(random, 200, 400, format, formatChangeFace, relative));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void negativeIndicesAreRelativeToPrecedingElements() throws IOException
+    {
+        String contents =
+            "v 0 0 0\nv 1 0 0\nv 0 1 0\n" +
+            "vt 0 0\nvt 1 0\nvt 0 1\nvt 1 1\n" +
+            "vn 0 0 2\nvn 0 0 -1\nvn 1 0 0\nvn 0 1 0\n" +
+            "usemtl first\n" +
+            "f -3/1/1 -2/2/1 -1/3/1\n" +
+            "v 1 1 0\n" +
+            // Positions count back from the latest position; texture coordinates and normals count back from the number of corners.
+            "f -3/-1/-3 -2/-2/-3 -1/-3/-3\n" +
+            "f 2/4/2 -1/+3/-6 +1/1/4\n";
+
+        ScannerOBJLoader expected = ScannerOBJLoader.load(contents);
+        assertEquals(Arrays.asList(0, 1, 2, 1, 2, 3, 1, 3, 0), expected.vertexIndexList);
+        assertEquals(Arrays.asList(0, 1, 2, 2, 2, 2, 3, 2, 0), expected.texCoordIndexList);
+        assertEquals(Arrays.asList(0, 0, 0, 0, 1, 2, 1, 1, 3), expected.normalIndexList);
+
+        checkFile("negative indices", contents);
+    }
+
+    @Test
+    public void missingTrailingNewlineMatchesScannerLoader() throws IOException
+    {
+        Random random = new Random(52);
+        String contents = randomOBJ(random, 100, 200, FaceFormat.FULL, 0, false);
+
+        // End in the middle of a face line, and in the middle of a vertex line.
+        checkFile("face without newline", contents.substring(0, contents.length() - 1));
+        checkFile("vertex without newline", "usemtl second\nv 1 2 3\nvt 0 0\nvn 0 0 1\nf 1/1/1 1/1/1 1/1/1\nv 4 5 6");
+        checkFile("CRLF without newline", "v 1 2 3\r\nv 4 5 6\r\nv 7 8 9\r\nf 1 2 3\r\n\r\nvn 1 0 0\r");
+    }
+
+    @Test
+    public void everyChunkBoundaryGivesTheSameResult() throws IOException
+    {
+        String contents = "v 1.5 -2 3e-1\nv 4 5 6\r\nv 7 8 9\n" +
+            "vt 0.25 0.75\nvt 1 0\nvt 0 1\n" +
+            "vn 0 0 1\nvn 0 1 0\nvn 1 0 0\n" +
+            "mtllib test.mtl\nusemtl second\n" +
+            "f 1/1/1  2/2/2 3/3/3\n" +
+            "f -1/3/3\t-2/-3/-3 -3/2/2 1/1/1\n" +
+            "v 10 11 12\n" +
+            "f -1/1/1 -2/2/2 -3/3/3\n";
+
+        ScannerOBJLoader expected = ScannerOBJLoader.load(contents);
+        File file = write(contents);
+
+        // Every possible position of the first boundary, and so many boundaries inside faces, numbers, and line breaks.
+        for (int chunkSize = 1; chunkSize <= contents.length(); chunkSize++)
+        {
+            assertMatchesReference("chunk size " + chunkSize, expected, ParsedOBJFile.parse(file, chunkSize));
+        }
+    }
+
+    @Test
+    public void sharedVerticesAreNumberedInOrderOfFirstUse() throws IOException
+    {
+        String contents =
+            "v 0 0 0\nv 1 0 0\nv 0 1 0\nv 1 1 0\n" +
+            "vt 0 0\nvt 1 0\nvt 0 1\nvt 1 1\n" +
+            "vn 0 0 1\nvn 0 0 -1\n" +
+            "f 1/1/1 2/2/1 3/3/1\n" +
+            "f 3/3/1 2/2/1 4/4/1\n" +
+            // Same position, different normal: a new vertex.
+            "f 1/1/2 3/3/2 2/2/2\n";
+
+        File file = write(contents);
+        VertexGeometry geometry = VertexGeometry.createFromOBJFile(file);
+
+        assertArrayEquals(new int[] { 0, 1, 2, 2, 1, 3, 4, 5, 6 }, geometry.getIndices());
+        assertEquals(7, geometry.getVertices().getCount());
+
+        checkFile("shared vertices", contents);
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void missingFileIsReported() throws FileNotFoundException
+    {
+        ParsedOBJFile.parse(new File(folder.getRoot(), "missing.obj"));
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.optimization;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.dense.row.CommonOps_DDRM;
+import org.ejml.dense.row.RandomMatrices_DDRM;
+import org.ejml.dense.row.factory.DecompositionFactory_DDRM;
+import org.ejml.dense.row.factory.LinearSolverFactory_DDRM;
+import org.ejml.interfaces.decomposition.CholeskyDecomposition_F64;
+import org.ejml.interfaces.linsol.LinearSolver;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares DenseKernels against the EJML operations that it replaces.
+ * Sizes are chosen around multiples of the 64-element block size, and large enough for the parallel paths to be taken.
+ */
+public class DenseKernelsTest
+{
+    private static final int[] SIZES = { 1, 5, 63, 64, 65, 130, 200 };
+
+    private static DMatrixRMaj symmetricPositiveDefinite(Random random, int n)
+    {
+        DMatrixRMaj a = RandomMatrices_DDRM.rectangle(n + 3, n, -1, 1, random);
+        DMatrixRMaj ata = new DMatrixRMaj(n, n);
+        CommonOps_DDRM.multTransA(a, a, ata);
+        return ata;
+    }
+
+    private static void assertMatrixEquals(DMatrixRMaj expected, double[] actual, double tolerance)
+    {
+        for (int i = 0; i < expected.numRows; i++)
+        {
+            for (int j = 0; j < expected.numCols; j++)
+            {
+                assertEquals("(" + i + ", " + j + ')', expected.get(i, j), actual[i * expected.numCols + j],
+                    tolerance * Math.max(1.0, Math.abs(expected.get(i, j))));
+            }
+        }
+    }
+
+    @Test
+    public void multTransAMatchesEJML()
+    {
+        Random random = new Random(30);
+
+        for (int cols : SIZES)
+        {
+            for (int rows : new int[] { 1, 70, 300 })
+            {
+                DMatrixRMaj a = RandomMatrices_DDRM.rectangle(rows, cols, -1, 1, random);
+
+                // Some exact zeros, which are skipped.
+                for (int i = 0; i < a.data.length; i += 7)
+                {
+                    a.data[i] = 0.0;
+                }
+
+                DMatrixRMaj expected = new DMatrixRMaj(cols, cols);
+                CommonOps_DDRM.multTransA(a, a, expected);
+
+                double[] actual = new double[cols * cols];
+                Arrays.fill(actual, Double.NaN); // Every element should be overwritten.
+                DenseKernels.multTransA(a.data, rows, cols, actual);
+
+                assertMatrixEquals(expected, actual, 1.0e-12);
+
+                // Exactly symmetric.
+                for (int i = 0; i < cols; i++)
+                {
+                    for (int j = 0; j < i; j++)
+                    {
+                        assertEquals(actual[j * cols + i], actual[i * cols + j], 0.0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void choleskyLowerMatchesEJML()
+    {
+        Random random = new Random(31);
+
+        for (int n : SIZES)
+        {
+            DMatrixRMaj matrix = symmetricPositiveDefinite(random, n);
+
+            CholeskyDecomposition_F64<DMatrixRMaj> cholesky = DecompositionFactory_DDRM.chol(n, true);
+            assertTrue(cholesky.decompose(matrix.copy()));
+            DMatrixRMaj expected = cholesky.getT(null);
+
+            double[] actual = matrix.data.clone();
+            assertTrue(DenseKernels.choleskyLower(actual, n));
+
+            // Only compare the lower triangle; the upper triangle should be left alone.
+            for (int i = 0; i < n; i++)
+            {
+                for (int j = 0; j <= i; j++)
+                {
+                    assertEquals("n = " + n + ", (" + i + ", " + j + ')', expected.get(i, j), actual[i * n + j],
+                        1.0e-9 * Math.max(1.0, Math.abs(expected.get(i, j))));
+                }
+
+                for (int j = i + 1; j < n; j++)
+                {
+                    assertEquals(matrix.get(i, j), actual[i * n + j], 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void solveCholeskyMatchesEJML()
+    {
+        Random random = new Random(32);
+
+        for (int n : SIZES)
+        {
+            DMatrixRMaj matrix = symmetricPositiveDefinite(random, n);
+            DMatrixRMaj b = RandomMatrices_DDRM.rectangle(n, 1, -1, 1, random);
+
+            LinearSolver<DMatrixRMaj> solver = LinearSolverFactory_DDRM.chol(n);
+            assertTrue(solver.setA(matrix.copy()));
+            DMatrixRMaj expected = new DMatrixRMaj(n, 1);
+            solver.solve(b.copy(), expected);
+
+            double[] factor = matrix.data.clone();
+            assertTrue(DenseKernels.choleskyLower(factor, n));
+            double[] actual = b.data.clone();
+            DenseKernels.solveCholesky(factor, n, actual);
+
+            assertMatrixEquals(expected, actual, 1.0e-7);
+        }
+    }
+
+    @Test
+    public void choleskyLowerRejectsMatricesThatAreNotPositiveDefinite()
+    {
+        Random random = new Random(33);
+
+        for (int n : new int[] { 2, 65, 130 })
+        {
+            // Positive semidefinite: an unused column makes A'A exactly singular, which EJML also rejects.
+            DMatrixRMaj a = RandomMatrices_DDRM.rectangle(n + 3, n, -1, 1, random);
+            for (int r = 0; r < a.numRows; r++)
+            {
+                a.set(r, n / 2, 0.0);
+            }
+
+            DMatrixRMaj singular = new DMatrixRMaj(n, n);
+            DenseKernels.multTransA(a.data, a.numRows, n, singular.data);
+            assertFalse(DecompositionFactory_DDRM.chol(n, true).decompose(singular.copy()));
+            assertFalse(DenseKernels.choleskyLower(singular.data.clone(), n));
+
+            // Indefinite: negating a diagonal element in the last block means that the failure is found late.
+            DMatrixRMaj indefinite = symmetricPositiveDefinite(random, n);
+            indefinite.set(n - 1, n - 1, -1.0);
+            assertFalse(DenseKernels.choleskyLower(indefinite.data.clone(), n));
+
+            // Negative definite, which fails immediately.
+            DMatrixRMaj negative = symmetricPositiveDefinite(random, n);
+            CommonOps_DDRM.scale(-1.0, negative);
+            assertFalse(DenseKernels.choleskyLower(negative.data.clone(), n));
+
+            // NaN should never be accepted.
+            DMatrixRMaj nan = symmetricPositiveDefinite(random, n);
+            nan.set(n / 2, n / 2, Double.NaN);
+            assertFalse(DenseKernels.choleskyLower(nan.data.clone(), n));
+        }
+    }
+
+    @Test
+    public void addEqualsMatchesEJML()
+    {
+        Random random = new Random(34);
+
+        for (int length : new int[] { 1, 4095, 4096, 4097, 300000 })
+        {
+            DMatrixRMaj target = RandomMatrices_DDRM.rectangle(length, 1, -1, 1, random);
+            DMatrixRMaj source = RandomMatrices_DDRM.rectangle(length, 1, -1, 1, random);
+
+            DMatrixRMaj expected = new DMatrixRMaj(length, 1);
+            CommonOps_DDRM.add(target, source, expected);
+
+            DenseKernels.addEquals(target.data, source.data);
+            assertArrayEquals(expected.data, target.data, 0.0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addEqualsRejectsDifferentLengths()
+    {
+        DenseKernels.addEquals(new double[3], new double[4]);
+    }
+}
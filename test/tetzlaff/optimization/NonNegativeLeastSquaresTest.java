@@ -0,0 +1,343 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.optimization;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.FMatrixRMaj;
+import org.ejml.simple.SimpleMatrix;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static tetzlaff.optimization.NonNegativeLeastSquaresWorkspaceTest.randomMatrix;
+import static tetzlaff.optimization.NonNegativeLeastSquaresWorkspaceTest.residual;
+
+/**
+ * Compares the unconstrained NNLS solver, which updates a Cholesky factor incrementally,
+ * against solving the submatrix for the free variables from scratch with EJML.
+ */
+public class NonNegativeLeastSquaresTest
+{
+    /**
+     * Solves the submatrix of A'A for a set of variables with EJML, as the solver did before the factor was updated incrementally.
+     */
+    private static SimpleMatrix solveSubmatrix(SimpleMatrix ata, SimpleMatrix atb, List<Integer> variables)
+    {
+        SimpleMatrix ataP = new SimpleMatrix(variables.size(), variables.size());
+        SimpleMatrix atbP = new SimpleMatrix(variables.size(), 1);
+
+        for (int i = 0; i < variables.size(); i++)
+        {
+            atbP.set(i, atb.get(variables.get(i)));
+
+            for (int j = 0; j < variables.size(); j++)
+            {
+                ataP.set(i, j, ata.get(variables.get(i), variables.get(j)));
+            }
+        }
+
+        return ataP.solve(atbP);
+    }
+
+    private static void assertFactorSolves(NonNegativeLeastSquares.IncrementalCholesky factor, SimpleMatrix ata, SimpleMatrix atb)
+    {
+        int n = ata.numRows();
+        List<Integer> variables = new ArrayList<>(factor.size());
+
+        for (int i = 0; i < factor.size(); i++)
+        {
+            variables.add(factor.getVariable(i));
+        }
+
+        double[] partial = new double[n];
+        double[] full = new double[n];
+        factor.solve(((DMatrixRMaj) atb.getMatrix()).data, partial, full);
+
+        SimpleMatrix expected = solveSubmatrix(ata, atb, variables);
+
+        for (int i = 0; i < variables.size(); i++)
+        {
+            double tolerance = 1.0e-8 * Math.max(1.0, Math.abs(expected.get(i)));
+            assertEquals("row " + i, expected.get(i), partial[i], tolerance);
+            assertEquals("variable " + variables.get(i), expected.get(i), full[variables.get(i)], tolerance);
+        }
+    }
+
+    @Test
+    public void incrementalCholeskyMatchesRefactoring()
+    {
+        Random random = new Random(10);
+
+        // Includes sizes that are not multiples of the block size used by DenseKernels, for good measure.
+        for (int n : new int[] { 1, 2, 5, 13, 70 })
+        {
+            SimpleMatrix a = randomMatrix(random, n + 10, n);
+            SimpleMatrix ata = a.transpose().mult(a);
+            SimpleMatrix atb = a.transpose().mult(randomMatrix(random, n + 10, 1));
+
+            NonNegativeLeastSquares.IncrementalCholesky factor =
+                new NonNegativeLeastSquares.IncrementalCholesky(((DMatrixRMaj) ata.getMatrix()).data, n);
+
+            List<Integer> order = new ArrayList<>(n);
+            for (int i = 0; i < n; i++)
+            {
+                order.add(i);
+            }
+            Collections.shuffle(order, random);
+
+            // Insert every variable in a random order, checking the solution each time.
+            for (int variable : order)
+            {
+                assertTrue(factor.insert(variable));
+                assertFactorSolves(factor, ata, atb);
+            }
+
+            // Remove half of them (from the start, middle and end of the factor), then put some back.
+            for (int i = 0; i < n / 2; i++)
+            {
+                int row = i % 3 == 0 ? 0 : i % 3 == 1 ? factor.size() / 2 : factor.size() - 1;
+                factor.remove(factor.getVariable(row));
+                assertFactorSolves(factor, ata, atb);
+            }
+
+            for (int variable : order)
+            {
+                boolean free = false;
+
+                for (int i = 0; i < factor.size(); i++)
+                {
+                    free = free || factor.getVariable(i) == variable;
+                }
+
+                if (!free && random.nextBoolean())
+                {
+                    assertTrue(factor.insert(variable));
+                    assertFactorSolves(factor, ata, atb);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void incrementalCholeskyRejectsSingularVariable()
+    {
+        Random random = new Random(11);
+        int n = 6;
+
+        // The last column is a copy of the first, so freeing both would make the submatrix singular.
+        SimpleMatrix a = randomMatrix(random, n + 4, n);
+        for (int r = 0; r < a.numRows(); r++)
+        {
+            a.set(r, n - 1, a.get(r, 0));
+        }
+
+        SimpleMatrix ata = a.transpose().mult(a);
+        SimpleMatrix atb = a.transpose().mult(randomMatrix(random, n + 4, 1));
+
+        NonNegativeLeastSquares.IncrementalCholesky factor =
+            new NonNegativeLeastSquares.IncrementalCholesky(((DMatrixRMaj) ata.getMatrix()).data, n);
+
+        for (int i = 0; i < n - 1; i++)
+        {
+            assertTrue(factor.insert(i));
+        }
+
+        assertFalse(factor.insert(n - 1));
+
+        // The factor should be unchanged.
+        assertEquals(n - 1, factor.size());
+        assertFactorSolves(factor, ata, atb);
+    }
+
+    @Test
+    public void incrementalCholeskyRejectsNonPositiveDiagonal()
+    {
+        double[] ata = { 1.0, 0.0, 0.0, -1.0 };
+        NonNegativeLeastSquares.IncrementalCholesky factor = new NonNegativeLeastSquares.IncrementalCholesky(ata, 2);
+
+        assertFalse(factor.insert(1));
+        assertTrue(factor.insert(0));
+        assertFalse(factor.insert(1));
+        assertEquals(1, factor.size());
+    }
+
+    @Test
+    public void solvePremultipliedMatchesReference()
+    {
+        Random random = new Random(12);
+
+        for (int n : new int[] { 1, 3, 8, 20, 65 })
+        {
+            for (int trial = 0; trial < 10; trial++)
+            {
+                SimpleMatrix a = randomMatrix(random, n + 10, n).minus(0.25);
+                SimpleMatrix b = randomMatrix(random, n + 10, 1);
+                SimpleMatrix ata = a.transpose().mult(a);
+                SimpleMatrix atb = a.transpose().mult(b);
+
+                // With no constraints, this still solves the submatrix from scratch with EJML.
+                SimpleMatrix expected = NonNegativeLeastSquares.solvePremultipliedWithEqualityConstraints(ata, atb, 1.0e-12, 0);
+                SimpleMatrix actual = NonNegativeLeastSquares.solvePremultiplied(ata, atb, 1.0e-12);
+
+                for (int i = 0; i < n; i++)
+                {
+                    assertEquals("n = " + n + ", element " + i,
+                        expected.get(i), actual.get(i), 1.0e-8 * Math.max(1.0, Math.abs(expected.get(i))));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void solvePremultipliedRankDeficientMatchesReferenceObjective()
+    {
+        Random random = new Random(13);
+        int n = 8;
+
+        for (int trial = 0; trial < 20; trial++)
+        {
+            SimpleMatrix a = randomMatrix(random, n + 4, n);
+            for (int r = 0; r < a.numRows(); r++)
+            {
+                a.set(r, n - 1, a.get(r, 0));
+                a.set(r, n - 2, 0.5 * (a.get(r, 1) + a.get(r, 2)));
+            }
+
+            SimpleMatrix b = randomMatrix(random, n + 4, 1);
+            SimpleMatrix ata = a.transpose().mult(a);
+            SimpleMatrix atb = a.transpose().mult(b);
+
+            SimpleMatrix expected = NonNegativeLeastSquares.solvePremultipliedWithEqualityConstraints(ata, atb, 1.0e-12, 0);
+            SimpleMatrix actual = NonNegativeLeastSquares.solvePremultiplied(ata, atb, 1.0e-12);
+
+            for (int i = 0; i < n; i++)
+            {
+                assertTrue(actual.get(i) >= 0.0);
+            }
+
+            assertEquals(residual(a, b, expected), residual(a, b, actual), 1.0e-9);
+        }
+    }
+
+    @Test
+    public void multipleRightHandSidesMatchSeparateSolves()
+    {
+        Random random = new Random(14);
+
+        for (int n : new int[] { 1, 7, 70, 130 })
+        {
+            SimpleMatrix a = randomMatrix(random, n + 10, n).minus(0.25);
+            SimpleMatrix ata = a.transpose().mult(a);
+
+            SimpleMatrix[] atb = new SimpleMatrix[3];
+            double[] epsilon = new double[atb.length];
+
+            for (int c = 0; c < atb.length; c++)
+            {
+                atb[c] = a.transpose().mult(randomMatrix(random, n + 10, 1));
+                epsilon[c] = 1.0e-12 * (c + 1);
+            }
+
+            SimpleMatrix[] actual = NonNegativeLeastSquares.solvePremultiplied(ata, atb, epsilon);
+            assertEquals(atb.length, actual.length);
+
+            for (int c = 0; c < atb.length; c++)
+            {
+                SimpleMatrix single = NonNegativeLeastSquares.solvePremultiplied(ata, atb[c], epsilon[c]);
+                SimpleMatrix reference = NonNegativeLeastSquares.solvePremultipliedWithEqualityConstraints(ata, atb[c], epsilon[c], 0);
+
+                for (int i = 0; i < n; i++)
+                {
+                    // Each problem is solved independently, so the result should be identical to solving it alone.
+                    assertEquals(single.get(i), actual[c].get(i), 0.0);
+                    assertEquals("n = " + n + ", channel " + c + ", element " + i,
+                        reference.get(i), actual[c].get(i), 1.0e-8 * Math.max(1.0, Math.abs(reference.get(i))));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void multipleRightHandSidesRankDeficientMatchesReferenceObjective()
+    {
+        Random random = new Random(15);
+        int n = 9;
+
+        SimpleMatrix a = randomMatrix(random, n + 4, n);
+        for (int r = 0; r < a.numRows(); r++)
+        {
+            a.set(r, n - 1, a.get(r, 0));
+        }
+
+        SimpleMatrix ata = a.transpose().mult(a);
+        SimpleMatrix[] b = new SimpleMatrix[4];
+        SimpleMatrix[] atb = new SimpleMatrix[b.length];
+        double[] epsilon = new double[b.length];
+
+        for (int c = 0; c < b.length; c++)
+        {
+            b[c] = randomMatrix(random, n + 4, 1);
+            atb[c] = a.transpose().mult(b[c]);
+            epsilon[c] = 1.0e-12;
+        }
+
+        SimpleMatrix[] actual = NonNegativeLeastSquares.solvePremultiplied(ata, atb, epsilon);
+
+        for (int c = 0; c < b.length; c++)
+        {
+            SimpleMatrix reference = NonNegativeLeastSquares.solvePremultipliedWithEqualityConstraints(ata, atb[c], epsilon[c], 0);
+            assertEquals(residual(a, b[c], reference), residual(a, b[c], actual[c]), 1.0e-9);
+        }
+    }
+
+    @Test
+    public void multipleRightHandSidesAcceptSinglePrecisionMatrix()
+    {
+        Random random = new Random(16);
+        int n = 5;
+
+        SimpleMatrix a = randomMatrix(random, n + 4, n);
+        SimpleMatrix ata = a.transpose().mult(a);
+        SimpleMatrix atb = a.transpose().mult(randomMatrix(random, n + 4, 1));
+
+        // Not backed by a row-major double array, so it has to be copied.
+        SimpleMatrix ataFloat = new SimpleMatrix(n, n, FMatrixRMaj.class);
+        SimpleMatrix ataRounded = new SimpleMatrix(n, n);
+        for (int i = 0; i < n; i++)
+        {
+            for (int j = 0; j < n; j++)
+            {
+                ataFloat.set(i, j, ata.get(i, j));
+                ataRounded.set(i, j, (float) ata.get(i, j));
+            }
+        }
+
+        SimpleMatrix[] actual = NonNegativeLeastSquares.solvePremultiplied(ataFloat, new SimpleMatrix[] { atb }, new double[] { 1.0e-12 });
+        SimpleMatrix expected = NonNegativeLeastSquares.solvePremultiplied(ataRounded, atb, 1.0e-12);
+
+        for (int i = 0; i < n; i++)
+        {
+            assertEquals(expected.get(i), actual[0].get(i), 0.0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void multipleRightHandSidesRequireOneEpsilonEach()
+    {
+        NonNegativeLeastSquares.solvePremultiplied(SimpleMatrix.identity(2),
+            new SimpleMatrix[] { new SimpleMatrix(2, 1), new SimpleMatrix(2, 1) }, new double[] { 1.0 });
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.optimization;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.simple.SimpleMatrix;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares NonNegativeLeastSquaresWorkspace against the SimpleMatrix implementation in NonNegativeLeastSquares,
+ * which it replaces for per-texel weight systems.
+ */
+public class NonNegativeLeastSquaresWorkspaceTest
+{
+    private static final double TOLERANCE_SCALE = 1.0e-12;
+
+    /**
+     * The median as it was calculated before the workspace existed, by sorting.
+     */
+    private static double sortedMedianPositive(DMatrixRMaj values)
+    {
+        return IntStream.range(0, values.getNumElements())
+            .mapToDouble(values::get)
+            .sorted()
+            .skip(values.getNumElements() / 2)
+            .filter(x -> x > 0)
+            .findFirst()
+            .orElse(1.0);
+    }
+
+    @Test
+    public void medianPositiveMatchesSorting()
+    {
+        Random random = new Random(0);
+
+        for (int n = 1; n <= 33; n++)
+        {
+            NonNegativeLeastSquaresWorkspace workspace = new NonNegativeLeastSquaresWorkspace(n, 0);
+
+            for (int trial = 0; trial < 50; trial++)
+            {
+                DMatrixRMaj values = new DMatrixRMaj(n, 1);
+
+                for (int i = 0; i < n; i++)
+                {
+                    // Mix of negative, zero, positive and duplicate values; some trials have no positive values at all.
+                    switch (random.nextInt(4))
+                    {
+                        case 0: values.set(i, 0.0); break;
+                        case 1: values.set(i, trial % 5 == 0 ? -random.nextDouble() : random.nextInt(3)); break;
+                        case 2: values.set(i, -random.nextDouble()); break;
+                        default: values.set(i, trial % 5 == 0 ? -1.0 : random.nextDouble()); break;
+                    }
+                }
+
+                assertEquals("n = " + n + ", trial = " + trial,
+                    sortedMedianPositive(values), workspace.medianPositive(values), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void medianPositiveDoesNotModifyInput()
+    {
+        DMatrixRMaj values = new DMatrixRMaj(new double[][] { { 5 }, { -1 }, { 3 }, { 0 }, { 2 } });
+        DMatrixRMaj copy = values.copy();
+
+        new NonNegativeLeastSquaresWorkspace(5, 0).medianPositive(values);
+
+        assertArrayEquals(copy.data, values.data, 0.0);
+    }
+
+    @Test
+    public void unconstrainedMatchesReference()
+    {
+        Random random = new Random(1);
+
+        for (int n = 1; n <= 12; n++)
+        {
+            NonNegativeLeastSquaresWorkspace workspace = new NonNegativeLeastSquaresWorkspace(n, 0);
+
+            for (int trial = 0; trial < 20; trial++)
+            {
+                // The reference implementation requires some element of A'b to be positive when there are no constraints.
+                SimpleMatrix a = randomMatrix(random, n + 4, n).minus(0.25);
+                SimpleMatrix b = randomMatrix(random, n + 4, 1);
+                assertMatchesReference(workspace, a.transpose().mult(a), a.transpose().mult(b), 0);
+            }
+        }
+    }
+
+    @Test
+    public void sumToOneConstraintMatchesReference()
+    {
+        Random random = new Random(2);
+
+        for (int n = 1; n <= 12; n++)
+        {
+            NonNegativeLeastSquaresWorkspace workspace = new NonNegativeLeastSquaresWorkspace(n + 1, 1);
+
+            for (int trial = 0; trial < 20; trial++)
+            {
+                SimpleMatrix a = randomMatrix(random, n + 4, n);
+                SimpleMatrix b = randomMatrix(random, n + 4, 1);
+                assertMatchesReference(workspace, augmentWithSumToOne(a.transpose().mult(a)), augmentRHS(a.transpose().mult(b)), 1);
+            }
+        }
+    }
+
+    @Test
+    public void rankDeficientSystemMatchesReferenceObjective()
+    {
+        Random random = new Random(3);
+        int n = 6;
+        NonNegativeLeastSquaresWorkspace workspace = new NonNegativeLeastSquaresWorkspace(n, 0);
+
+        for (int trial = 0; trial < 20; trial++)
+        {
+            // Duplicate a column so that A'A is singular; the solution is not unique, but the objective should be the same.
+            SimpleMatrix a = randomMatrix(random, n + 4, n);
+            for (int r = 0; r < a.numRows(); r++)
+            {
+                a.set(r, n - 1, a.get(r, 0));
+            }
+
+            SimpleMatrix b = randomMatrix(random, n + 4, 1);
+            SimpleMatrix ata = a.transpose().mult(a);
+            SimpleMatrix atb = a.transpose().mult(b);
+
+            double epsilon = TOLERANCE_SCALE * workspace.medianPositive(atb.getMatrix());
+            SimpleMatrix expected = NonNegativeLeastSquares.solvePremultipliedWithEqualityConstraints(ata, atb, epsilon, 0);
+            DMatrixRMaj actual = workspace.solvePremultipliedWithEqualityConstraints(ata.getMatrix(), atb.getMatrix(), epsilon);
+
+            for (int i = 0; i < n; i++)
+            {
+                assertTrue(actual.get(i) >= 0.0);
+            }
+
+            assertEquals(residual(a, b, expected), residual(a, b, SimpleMatrix.wrap(actual)), 1.0e-9);
+        }
+    }
+
+    @Test
+    public void workspaceCanBeReused()
+    {
+        Random random = new Random(4);
+        int n = 8;
+        NonNegativeLeastSquaresWorkspace reused = new NonNegativeLeastSquaresWorkspace(n + 1, 1);
+
+        for (int trial = 0; trial < 20; trial++)
+        {
+            SimpleMatrix a = randomMatrix(random, n + 4, n);
+            SimpleMatrix b = randomMatrix(random, n + 4, 1);
+            DMatrixRMaj ata = augmentWithSumToOne(a.transpose().mult(a)).getMatrix();
+            DMatrixRMaj atb = augmentRHS(a.transpose().mult(b)).getMatrix();
+
+            DMatrixRMaj expected = new NonNegativeLeastSquaresWorkspace(n + 1, 1)
+                .solvePremultipliedWithEqualityConstraints(ata, atb, 1.0e-12);
+            DMatrixRMaj actual = reused.solvePremultipliedWithEqualityConstraints(ata, atb, 1.0e-12);
+
+            assertArrayEquals(expected.data, actual.data, 0.0);
+        }
+    }
+
+    @Test
+    public void warmStartFromOwnSolutionConvergesImmediately()
+    {
+        Random random = new Random(5);
+        int n = 8;
+        NonNegativeLeastSquaresWorkspace workspace = new NonNegativeLeastSquaresWorkspace(n + 1, 1);
+
+        for (int trial = 0; trial < 20; trial++)
+        {
+            SimpleMatrix a = randomMatrix(random, n + 4, n);
+            SimpleMatrix b = randomMatrix(random, n + 4, 1);
+            DMatrixRMaj ata = augmentWithSumToOne(a.transpose().mult(a)).getMatrix();
+            DMatrixRMaj atb = augmentRHS(a.transpose().mult(b)).getMatrix();
+
+            DMatrixRMaj cold = workspace.solvePremultipliedWithEqualityConstraints(ata, atb, 1.0e-12).copy();
+            int coldIterations = workspace.getIterationCount();
+            int positiveCount = (int) IntStream.range(0, n).filter(i -> cold.get(i) > 0.0).count();
+
+            DMatrixRMaj warm = workspace.solvePremultipliedWithEqualityConstraints(ata, atb, 1.0e-12, cold::get);
+
+            assertArrayEquals(cold.data, warm.data, 1.0e-10);
+            assertTrue(workspace.getIterationCount() <= coldIterations);
+            assertEquals(positiveCount, workspace.getWarmStartCount());
+        }
+    }
+
+    @Test
+    public void warmStartFromOtherSolutionMatchesReference()
+    {
+        Random random = new Random(6);
+        int n = 8;
+        NonNegativeLeastSquaresWorkspace workspace = new NonNegativeLeastSquaresWorkspace(n + 1, 1);
+        double[] previous = new double[n];
+
+        for (int trial = 0; trial < 40; trial++)
+        {
+            SimpleMatrix a = randomMatrix(random, n + 4, n);
+            SimpleMatrix b = randomMatrix(random, n + 4, 1);
+            SimpleMatrix ata = augmentWithSumToOne(a.transpose().mult(a));
+            SimpleMatrix atb = augmentRHS(a.transpose().mult(b));
+
+            // Alternate between the previous system's solution and a prior where every weight is positive.
+            double[] prior = trial % 2 == 0 ? previous.clone() : IntStream.range(0, n).mapToDouble(i -> 1.0).toArray();
+
+            SimpleMatrix expected = NonNegativeLeastSquares.solvePremultipliedWithEqualityConstraints(ata, atb, 1.0e-12, 1);
+            DMatrixRMaj actual = workspace.solvePremultipliedWithEqualityConstraints(ata.getMatrix(), atb.getMatrix(), 1.0e-12,
+                i -> prior[i]);
+
+            for (int i = 0; i <= n; i++)
+            {
+                assertEquals("element " + i, expected.get(i), actual.get(i), 1.0e-8 * Math.max(1.0, Math.abs(expected.get(i))));
+            }
+
+            for (int i = 0; i < n; i++)
+            {
+                previous[i] = actual.get(i);
+            }
+        }
+    }
+
+    @Test
+    public void singularWarmStartFallsBackToColdStart()
+    {
+        Random random = new Random(7);
+        int n = 6;
+        NonNegativeLeastSquaresWorkspace workspace = new NonNegativeLeastSquaresWorkspace(n, 0);
+
+        for (int trial = 0; trial < 20; trial++)
+        {
+            // With two identical columns both positive in the prior, the warm-started system is singular.
+            SimpleMatrix a = randomMatrix(random, n + 4, n);
+            for (int r = 0; r < a.numRows(); r++)
+            {
+                a.set(r, n - 1, a.get(r, 0));
+            }
+
+            SimpleMatrix b = randomMatrix(random, n + 4, 1);
+            SimpleMatrix ata = a.transpose().mult(a);
+            SimpleMatrix atb = a.transpose().mult(b);
+
+            SimpleMatrix expected = NonNegativeLeastSquares.solvePremultipliedWithEqualityConstraints(ata, atb, 1.0e-12, 0);
+            DMatrixRMaj actual = workspace.solvePremultipliedWithEqualityConstraints(ata.getMatrix(), atb.getMatrix(), 1.0e-12,
+                i -> 1.0);
+
+            for (int i = 0; i < n; i++)
+            {
+                assertTrue(actual.get(i) >= 0.0);
+            }
+
+            assertEquals(residual(a, b, expected), residual(a, b, SimpleMatrix.wrap(actual)), 1.0e-9);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongSizeIsRejected()
+    {
+        new NonNegativeLeastSquaresWorkspace(4, 0)
+            .solvePremultipliedWithEqualityConstraints(new DMatrixRMaj(3, 3), new DMatrixRMaj(3, 1), 1.0);
+    }
+
+    static SimpleMatrix randomMatrix(Random random, int rows, int cols)
+    {
+        SimpleMatrix matrix = new SimpleMatrix(rows, cols);
+
+        for (int i = 0; i < rows; i++)
+        {
+            for (int j = 0; j < cols; j++)
+            {
+                matrix.set(i, j, random.nextDouble());
+            }
+        }
+
+        return matrix;
+    }
+
+    /**
+     * Adds a constraint that the weights sum to one, in the layout used by LeastSquaresMatrixBuilder.
+     */
+    static SimpleMatrix augmentWithSumToOne(SimpleMatrix ata)
+    {
+        int n = ata.numRows();
+        SimpleMatrix augmented = new SimpleMatrix(n + 1, n + 1);
+        augmented.insertIntoThis(0, 0, ata);
+
+        for (int i = 0; i < n; i++)
+        {
+            augmented.set(n, i, 1.0);
+            augmented.set(i, n, 1.0);
+        }
+
+        return augmented;
+    }
+
+    static SimpleMatrix augmentRHS(SimpleMatrix atb)
+    {
+        SimpleMatrix augmented = new SimpleMatrix(atb.numRows() + 1, 1);
+        augmented.insertIntoThis(0, 0, atb);
+        augmented.set(atb.numRows(), 1.0);
+        return augmented;
+    }
+
+    static double residual(SimpleMatrix a, SimpleMatrix b, SimpleMatrix x)
+    {
+        return a.mult(x.extractMatrix(0, a.numCols(), 0, 1)).minus(b).normF();
+    }
+
+    static void assertMatchesReference(NonNegativeLeastSquaresWorkspace workspace, SimpleMatrix ata, SimpleMatrix atb, int constraintCount)
+    {
+        double epsilon = TOLERANCE_SCALE * workspace.medianPositive(atb.getMatrix());
+
+        SimpleMatrix expected = NonNegativeLeastSquares.solvePremultipliedWithEqualityConstraints(ata, atb, epsilon, constraintCount);
+        DMatrixRMaj actual = workspace.solvePremultipliedWithEqualityConstraints(ata.getMatrix(), atb.getMatrix(), epsilon);
+
+        assertEquals(expected.getNumElements(), actual.getNumElements());
+
+        for (int i = 0; i < actual.getNumElements(); i++)
+        {
+            assertEquals("element " + i, expected.get(i), actual.get(i), 1.0e-8 * Math.max(1.0, Math.abs(expected.get(i))));
+        }
+    }
+}
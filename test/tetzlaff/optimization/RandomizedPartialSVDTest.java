@@ -0,0 +1,231 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.optimization;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.ejml.data.DMatrixRMaj;
+import org.ejml.data.FMatrixRMaj;
+import org.ejml.simple.SimpleMatrix;
+import org.ejml.simple.SimpleSVD;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares RandomizedPartialSVD (and FastPartialSVD, which uses it by default) against a full SVD computed by EJML.
+ */
+public class RandomizedPartialSVDTest
+{
+    /**
+     * Creates a random matrix with a particular rank, with singular values 100, 50, 25, ...
+     */
+    private static SimpleMatrix lowRankMatrix(Random random, int rows, int cols, int rank)
+    {
+        SimpleMatrix left = SimpleMatrix.random64(rows, rank, -1, 1, random);
+        SimpleMatrix right = SimpleMatrix.random64(cols, rank, -1, 1, random);
+
+        // Orthonormalize so that the singular values are known exactly.
+        SimpleSVD<SimpleMatrix> leftSVD = left.svd(true);
+        SimpleSVD<SimpleMatrix> rightSVD = right.svd(true);
+        SimpleMatrix u = leftSVD.getU();
+        SimpleMatrix v = rightSVD.getU();
+
+        SimpleMatrix s = new SimpleMatrix(rank, rank);
+        for (int k = 0; k < rank; k++)
+        {
+            s.set(k, k, 100.0 / (1 << k));
+        }
+
+        return u.mult(s).mult(v.transpose());
+    }
+
+    private static double[] ejmlSingularValues(SimpleMatrix matrix)
+    {
+        SimpleSVD<SimpleMatrix> svd = matrix.svd(true);
+        double[] values = new double[Math.min(matrix.numRows(), matrix.numCols())];
+
+        for (int k = 0; k < values.length; k++)
+        {
+            values[k] = svd.getSingleValue(k);
+        }
+
+        // EJML does not sort the singular values in the compact form.
+        Arrays.sort(values);
+        for (int k = 0; k < values.length / 2; k++)
+        {
+            double temp = values[k];
+            values[k] = values[values.length - 1 - k];
+            values[values.length - 1 - k] = temp;
+        }
+
+        return values;
+    }
+
+    private static void assertMatchesEJML(SimpleMatrix matrix, RandomizedPartialSVD svd, int singularValueCount)
+    {
+        double[] expected = ejmlSingularValues(matrix);
+        double[] actual = svd.getSingularValues();
+
+        assertEquals(singularValueCount, actual.length);
+
+        for (int k = 0; k < singularValueCount; k++)
+        {
+            assertEquals("singular value " + k, expected[k], actual[k], 1.0e-4 * expected[0]);
+        }
+
+        // The singular vectors should be orthonormal and reconstruct the matrix (which has rank no greater than the count).
+        SimpleMatrix u = svd.getU();
+        SimpleMatrix v = svd.getV();
+        assertTrue(u.transpose().mult(u).minus(SimpleMatrix.identity(singularValueCount)).normF() < 1.0e-6);
+        assertTrue(v.transpose().mult(v).minus(SimpleMatrix.identity(singularValueCount)).normF() < 1.0e-6);
+
+        SimpleMatrix s = SimpleMatrix.diag(actual);
+        double reconstructionError = u.mult(s).mult(v.transpose()).minus(matrix).normF();
+        assertTrue("reconstruction error " + reconstructionError, reconstructionError < 1.0e-4 * expected[0]);
+    }
+
+    @Test
+    public void tallLowRankMatchesEJML()
+    {
+        SimpleMatrix matrix = lowRankMatrix(new Random(20), 300, 123, 5);
+        assertMatchesEJML(matrix, RandomizedPartialSVD.compute(matrix, 5), 5);
+    }
+
+    @Test
+    public void wideLowRankMatchesEJML()
+    {
+        SimpleMatrix matrix = lowRankMatrix(new Random(21), 77, 250, 4);
+        assertMatchesEJML(matrix, RandomizedPartialSVD.compute(matrix, 4), 4);
+    }
+
+    @Test
+    public void fewerThanRankGivesLargestSingularValues()
+    {
+        SimpleMatrix matrix = lowRankMatrix(new Random(22), 150, 90, 8);
+        RandomizedPartialSVD svd = RandomizedPartialSVD.compute(matrix, 3);
+        double[] expected = ejmlSingularValues(matrix);
+        double[] actual = svd.getSingularValues();
+
+        for (int k = 0; k < 3; k++)
+        {
+            assertEquals(expected[k], actual[k], 1.0e-4 * expected[0]);
+        }
+    }
+
+    @Test
+    public void singlePrecisionMatrixMatchesEJML()
+    {
+        SimpleMatrix matrix = lowRankMatrix(new Random(23), 200, 64, 3);
+        SimpleMatrix floatMatrix = new SimpleMatrix(matrix.numRows(), matrix.numCols(), FMatrixRMaj.class);
+
+        for (int i = 0; i < matrix.numRows(); i++)
+        {
+            for (int j = 0; j < matrix.numCols(); j++)
+            {
+                floatMatrix.set(i, j, matrix.get(i, j));
+            }
+        }
+
+        assertMatchesEJML(matrix, RandomizedPartialSVD.compute(floatMatrix, 3), 3);
+    }
+
+    @Test
+    public void fileSourceMatchesMatrixSource() throws IOException
+    {
+        SimpleMatrix matrix = lowRankMatrix(new Random(24), 100, 37, 3);
+        File file = File.createTempFile("svd", ".bin");
+        file.deleteOnExit();
+
+        // Column by column, big-endian.
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
+        {
+            for (int j = 0; j < matrix.numCols(); j++)
+            {
+                for (int i = 0; i < matrix.numRows(); i++)
+                {
+                    out.writeFloat((float) matrix.get(i, j));
+                }
+            }
+        }
+
+        RandomizedPartialSVD fromFile = RandomizedPartialSVD.compute(
+            RandomizedPartialSVD.fromFile(file, matrix.numRows(), matrix.numCols(), ByteOrder.BIG_ENDIAN), 3);
+        RandomizedPartialSVD fromMatrix = RandomizedPartialSVD.compute(matrix, 3);
+
+        assertArrayEquals(fromMatrix.getSingularValues(), fromFile.getSingularValues(), 0.0);
+        assertArrayEquals(((DMatrixRMaj) fromMatrix.getU().getMatrix()).data, ((DMatrixRMaj) fromFile.getU().getMatrix()).data, 0.0);
+
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    @Test
+    public void sameSeedGivesSameResult()
+    {
+        SimpleMatrix matrix = lowRankMatrix(new Random(25), 120, 60, 6);
+        RandomizedPartialSVD.ColumnSource source = RandomizedPartialSVD.fromMatrix(matrix);
+
+        RandomizedPartialSVD first = RandomizedPartialSVD.compute(source, 4, 10, 2, 42L);
+        RandomizedPartialSVD second = RandomizedPartialSVD.compute(source, 4, 10, 2, 42L);
+
+        assertArrayEquals(first.getSingularValues(), second.getSingularValues(), 0.0);
+        assertArrayEquals(((DMatrixRMaj) first.getV().getMatrix()).data, ((DMatrixRMaj) second.getV().getMatrix()).data, 0.0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManySingularValuesIsRejected()
+    {
+        RandomizedPartialSVD.compute(new SimpleMatrix(10, 4), 5);
+    }
+
+    @Test
+    public void fastPartialSVDDeflatesMatrix()
+    {
+        for (int[] size : new int[][] { { 180, 70 }, { 70, 180 } })
+        {
+            SimpleMatrix matrix = lowRankMatrix(new Random(26), size[0], size[1], 6);
+            double[] expected = ejmlSingularValues(matrix);
+
+            SimpleMatrix floatMatrix = new SimpleMatrix(matrix.numRows(), matrix.numCols(), FMatrixRMaj.class);
+            for (int i = 0; i < matrix.numRows(); i++)
+            {
+                for (int j = 0; j < matrix.numCols(); j++)
+                {
+                    floatMatrix.set(i, j, matrix.get(i, j));
+                }
+            }
+
+            FastPartialSVD svd = FastPartialSVD.compute(floatMatrix, 4);
+            float[] actual = svd.getSingularValues();
+
+            assertEquals(matrix.numRows(), svd.getU().numRows());
+            assertEquals(matrix.numCols(), svd.getV().numRows());
+
+            for (int k = 0; k < 4; k++)
+            {
+                assertEquals(expected[k], actual[k], 1.0e-4 * expected[0]);
+            }
+
+            // The residual should contain only the two smallest singular values.
+            double expectedResidual = Math.sqrt(expected[4] * expected[4] + expected[5] * expected[5]);
+            assertEquals(expectedResidual, svd.getError().normF(), 1.0e-3 * expected[0]);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ *  Copyright (c) Michael Tetzlaff 2022
+ *
+ *  Licensed under GPLv3
+ *  ( http://www.gnu.org/licenses/gpl-3.0.html )
+ *
+ *  This code is free software: you can redistribute it and/or modify it under the terms of the GNU General Public License as published by the Free Software Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ *  This code is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ */
+
+package tetzlaff.util;
+
+import java.awt.*;
+import java.awt.color.ColorSpace;
+import java.awt.image.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.junit.Test;
+import org.lwjgl.BufferUtils;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Compares ImageBufferConverter against the per-pixel getRGB() conversions that it replaced in OpenGLTexture and ViewImageLoader,
+ * for each raster layout that it reads directly as well as some that fall back to getRGB().
+ */
+public class ImageBufferConverterTest
+{
+    private static final int SMALL_WIDTH = 37;
+    private static final int SMALL_HEIGHT = 23;
+
+    // Larger than 65536 pixels so that lookup tables are used for 16-bit images.
+    private static final int LARGE_WIDTH = 301;
+    private static final int LARGE_HEIGHT = 229;
+
+    private static final int[] IMAGE_TYPES =
+    {
+        BufferedImage.TYPE_BYTE_GRAY,
+        BufferedImage.TYPE_USHORT_GRAY,
+        BufferedImage.TYPE_INT_RGB,
+        BufferedImage.TYPE_INT_ARGB,
+        BufferedImage.TYPE_INT_ARGB_PRE,
+        BufferedImage.TYPE_INT_BGR,
+        BufferedImage.TYPE_3BYTE_BGR,
+        BufferedImage.TYPE_4BYTE_ABGR,
+        BufferedImage.TYPE_4BYTE_ABGR_PRE,
+        BufferedImage.TYPE_USHORT_565_RGB,
+        BufferedImage.TYPE_BYTE_INDEXED,
+    };
+
+    /**
+     * The conversion from OpenGLTexture.bufferedImageToNativeBuffer before ImageBufferConverter,
+     * which wrote ARGB integers in native byte order for uploading as GL_BGRA / GL_UNSIGNED_BYTE.
+     */
+    private static ByteBuffer referenceNativeBuffer(BufferedImage colorImg, BufferedImage maskImg, boolean flipVertical)
+    {
+        ByteBuffer buffer = BufferUtils.createByteBuffer(colorImg.getWidth() * colorImg.getHeight() * 4);
+        IntBuffer intBuffer = buffer.asIntBuffer();
+
+        for (int i = 0; i < colorImg.getHeight(); i++)
+        {
+            int y = flipVertical ? colorImg.getHeight() - 1 - i : i;
+
+            for (int x = 0; x < colorImg.getWidth(); x++)
+            {
+                if (maskImg == null)
+                {
+                    intBuffer.put(colorImg.getRGB(x, y));
+                }
+                else
+                {
+                    // Use green channel of the mask image for alpha
+                    intBuffer.put((colorImg.getRGB(x, y) & 0x00ffffff) | ((maskImg.getRGB(x, y) & 0x0000ff00) << 16));
+                }
+            }
+        }
+
+        return buffer;
+    }
+
+    /**
+     * The mapped conversion from OpenGLTexture.bufferedImageToNativeBuffer before ImageBufferConverter,
+     * which applied a single wrapper to the whole buffer.
+     */
+    private static ByteBuffer referenceMappedBuffer(BufferedImage colorImg, BufferedImage maskImg, boolean flipVertical,
+        Function<ByteBuffer, Consumer<Color>> bufferWrapperFunction, int mappedColorLength)
+    {
+        ByteBuffer buffer = BufferUtils.createByteBuffer(colorImg.getWidth() * colorImg.getHeight() * mappedColorLength);
+        Consumer<Color> wrappedBuffer = bufferWrapperFunction.apply(buffer);
+
+        for (int i = 0; i < colorImg.getHeight(); i++)
+        {
+            int y = flipVertical ? colorImg.getHeight() - 1 - i : i;
+
+            for (int x = 0; x < colorImg.getWidth(); x++)
+            {
+                if (maskImg == null)
+                {
+                    wrappedBuffer.accept(new Color(colorImg.getRGB(x, y), true));
+                }
+                else
+                {
+                    // Use green channel of the mask image for alpha
+                    wrappedBuffer.accept(new Color((colorImg.getRGB(x, y) & 0x00ffffff) | ((maskImg.getRGB(x, y) & 0x0000ff00) << 16), true));
+                }
+            }
+        }
+
+        return buffer;
+    }
+
+    /**
+     * The conversion from ViewImageLoader before ImageBufferConverter, which wrote RGBA bytes.
+     */
+    private static ByteBuffer referenceRGBABuffer(BufferedImage image, boolean flipVertical)
+    {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ByteBuffer bytes = BufferUtils.createByteBuffer(width * height * 4);
+        int[] row = new int[width];
+
+        for (int y = 0; y < height; y++)
+        {
+            image.getRGB(0, flipVertical ? height - 1 - y : y, width, 1, row, 0, width);
+
+            for (int x = 0; x < width; x++)
+            {
+                int index = 4 * (y * width + x);
+                bytes.put(index, (byte)(row[x] >>> 16));
+                bytes.put(index + 1, (byte)(row[x] >>> 8));
+                bytes.put(index + 2, (byte)row[x]);
+                bytes.put(index + 3, (byte)(row[x] >>> 24));
+            }
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Fills every sample of an image's raster with random values.
+     * For premultiplied images, color samples are limited to the alpha sample, since getRGB() isn't defined otherwise.
+     */
+    private static BufferedImage randomize(BufferedImage image, Random random)
+    {
+        WritableRaster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+
+        for (int b = 0; b < raster.getNumBands(); b++)
+        {
+            int bits = sampleModel.getSampleSize(b);
+
+            for (int y = 0; y < raster.getHeight(); y++)
+            {
+                for (int x = 0; x < raster.getWidth(); x++)
+                {
+                    raster.setSample(x, y, b, random.nextInt(1 << bits));
+                }
+            }
+        }
+
+        if (image.isAlphaPremultiplied())
+        {
+            int alphaBand = raster.getNumBands() - 1;
+
+            for (int y = 0; y < raster.getHeight(); y++)
+            {
+                for (int x = 0; x < raster.getWidth(); x++)
+                {
+                    int alpha = raster.getSample(x, y, alphaBand);
+
+                    for (int b = 0; b < alphaBand; b++)
+                    {
+                        raster.setSample(x, y, b, Math.min(alpha, raster.getSample(x, y, b)));
+                    }
+                }
+            }
+        }
+
+        return image;
+    }
+
+    private static BufferedImage createComponentImage(ColorSpace colorSpace, boolean hasAlpha, boolean premultiplied,
+        int dataType, int width, int height)
+    {
+        ColorModel colorModel = new ComponentColorModel(colorSpace, hasAlpha, premultiplied,
+            hasAlpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, dataType);
+        return new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(width, height), premultiplied, null);
+    }
+
+    /**
+     * Gray and alpha images (as decoded from gray PNGs with transparency) and 16-bit RGB images (as decoded from 16-bit PNGs),
+     * which have no predefined BufferedImage type.
+     */
+    private static BufferedImage[] createCustomImages(int width, int height)
+    {
+        ColorSpace gray = ColorSpace.getInstance(ColorSpace.CS_GRAY);
+        ColorSpace sRGB = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+
+        return new BufferedImage[]
+        {
+            createComponentImage(gray, true, false, DataBuffer.TYPE_BYTE, width, height),
+            createComponentImage(gray, true, true, DataBuffer.TYPE_BYTE, width, height),
+            createComponentImage(gray, true, false, DataBuffer.TYPE_USHORT, width, height),
+            createComponentImage(gray, true, true, DataBuffer.TYPE_USHORT, width, height),
+            createComponentImage(sRGB, false, false, DataBuffer.TYPE_USHORT, width, height),
+            createComponentImage(sRGB, true, false, DataBuffer.TYPE_USHORT, width, height),
+            createComponentImage(sRGB, true, true, DataBuffer.TYPE_USHORT, width, height),
+        };
+    }
+
+    private static String describe(BufferedImage image)
+    {
+        ColorModel colorModel = image.getColorModel();
+        return String.format("type %d, %s, %d bands, alpha %b, premultiplied %b, %dx%d", image.getType(),
+            colorModel.getClass().getSimpleName(), image.getRaster().getNumBands(), colorModel.hasAlpha(),
+            colorModel.isAlphaPremultiplied(), image.getWidth(), image.getHeight());
+    }
+
+    private static void forEachImage(Random random, Consumer<BufferedImage> test)
+    {
+        for (int[] size : new int[][] { { SMALL_WIDTH, SMALL_HEIGHT }, { LARGE_WIDTH, LARGE_HEIGHT } })
+        {
+            for (int type : IMAGE_TYPES)
+            {
+                test.accept(randomize(new BufferedImage(size[0], size[1], type), random));
+            }
+
+            for (BufferedImage image : createCustomImages(size[0], size[1]))
+            {
+                test.accept(randomize(image, random));
+            }
+        }
+
+        // A subimage has a translated raster, which isn't read directly.
+        BufferedImage parent = randomize(new BufferedImage(SMALL_WIDTH + 10, SMALL_HEIGHT + 10, BufferedImage.TYPE_4BYTE_ABGR), random);
+        test.accept(parent.getSubimage(3, 5, SMALL_WIDTH, SMALL_HEIGHT));
+    }
+
+    private static void assertBuffersEqual(String message, ByteBuffer expected, ByteBuffer actual)
+    {
+        assertEquals(message, expected.capacity(), actual.capacity());
+
+        for (int i = 0; i < expected.capacity(); i++)
+        {
+            if (expected.get(i) != actual.get(i))
+            {
+                fail(String.format("%s: byte %d (pixel %d, channel %d) expected %d but was %d",
+                    message, i, i / 4, i % 4, expected.get(i) & 0xFF, actual.get(i) & 0xFF));
+            }
+        }
+    }
+
+    @Test
+    public void bgraMatchesOpenGLTexture()
+    {
+        // The old conversion relied on native byte order to produce BGRA.
+        assumeTrue(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+
+        forEachImage(new Random(40), image ->
+        {
+            for (boolean flipVertical : new boolean[] { false, true })
+            {
+                assertBuffersEqual(describe(image) + ", flip " + flipVertical,
+                    referenceNativeBuffer(image, null, flipVertical),
+                    ImageBufferConverter.convert(image, null, flipVertical, ImageBufferConverter.ChannelOrder.BGRA));
+            }
+        });
+    }
+
+    @Test
+    public void rgbaMatchesViewImageLoader()
+    {
+        forEachImage(new Random(41), image ->
+        {
+            for (boolean flipVertical : new boolean[] { false, true })
+            {
+                assertBuffersEqual(describe(image) + ", flip " + flipVertical,
+                    referenceRGBABuffer(image, flipVertical),
+                    ImageBufferConverter.convert(image, null, flipVertical, ImageBufferConverter.ChannelOrder.RGBA));
+            }
+        });
+    }
+
+    @Test
+    public void maskMatchesOpenGLTexture()
+    {
+        assumeTrue(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+
+        Random random = new Random(42);
+        BufferedImage grayMask = randomize(new BufferedImage(SMALL_WIDTH, SMALL_HEIGHT, BufferedImage.TYPE_BYTE_GRAY), random);
+        BufferedImage colorMask = randomize(new BufferedImage(SMALL_WIDTH, SMALL_HEIGHT, BufferedImage.TYPE_3BYTE_BGR), random);
+        BufferedImage indexedMask = randomize(new BufferedImage(SMALL_WIDTH, SMALL_HEIGHT, BufferedImage.TYPE_BYTE_BINARY), random);
+
+        for (int type : IMAGE_TYPES)
+        {
+            BufferedImage image = randomize(new BufferedImage(SMALL_WIDTH, SMALL_HEIGHT, type), random);
+
+            for (BufferedImage mask : new BufferedImage[] { grayMask, colorMask, indexedMask })
+            {
+                for (boolean flipVertical : new boolean[] { false, true })
+                {
+                    assertBuffersEqual(describe(image) + ", mask " + describe(mask) + ", flip " + flipVertical,
+                        referenceNativeBuffer(image, mask, flipVertical),
+                        ImageBufferConverter.convert(image, mask, flipVertical, ImageBufferConverter.ChannelOrder.BGRA));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void mappedMatchesOpenGLTexture()
+    {
+        // Like a floating-point RGBA texture.
+        Function<ByteBuffer, Consumer<Color>> floatWrapper = buffer -> color ->
+        {
+            float[] components = color.getRGBComponents(null);
+            for (float component : components)
+            {
+                buffer.putFloat(component);
+            }
+        };
+
+        Random random = new Random(43);
+
+        for (int type : IMAGE_TYPES)
+        {
+            BufferedImage image = randomize(new BufferedImage(SMALL_WIDTH, SMALL_HEIGHT, type), random);
+            BufferedImage mask = randomize(new BufferedImage(SMALL_WIDTH, SMALL_HEIGHT, BufferedImage.TYPE_BYTE_GRAY), random);
+
+            for (BufferedImage maskImg : new BufferedImage[] { null, mask })
+            {
+                for (boolean flipVertical : new boolean[] { false, true })
+                {
+                    ByteBuffer expected = referenceMappedBuffer(image, maskImg, flipVertical, floatWrapper, 16);
+                    ByteBuffer actual = ImageBufferConverter.convertMapped(image, maskImg, flipVertical, floatWrapper, 16);
+                    assertEquals(expected.order(), actual.order());
+                    assertBuffersEqual(describe(image) + ", mask " + (maskImg != null) + ", flip " + flipVertical, expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mismatchedMaskIsRejected()
+    {
+        ImageBufferConverter.convert(new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB),
+            new BufferedImage(4, 5, BufferedImage.TYPE_BYTE_GRAY), false, ImageBufferConverter.ChannelOrder.BGRA);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void smallDestinationIsRejected()
+    {
+        ImageBufferConverter.convert(new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB), null, false,
+            ImageBufferConverter.ChannelOrder.RGBA, BufferUtils.createByteBuffer(63));
+    }
+}